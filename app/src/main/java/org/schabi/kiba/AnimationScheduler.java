@@ -0,0 +1,203 @@
+package org.schabi.kiba;
+
+import android.util.Log;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * AnimationScheduler.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Plays an {@link Animation} on a {@link PlussyDisplay} at a fixed frame rate on its own
+ * thread. Only leds that differ from the last frame sent are set, all with one call so
+ * a frame is never torn over several writes, or as a matrix if most of them changed.
+ * If the commands of the last frame are not even sent yet when the next one is due, the
+ * new frame is dropped instead of piling up behind it, and ticks that were missed
+ * completely are skipped.
+ * While the display's rate is adaptive, frames are also dropped until the link is
+ * expected to have carried the commands of the last one, so the frame rate goes down to
+ * what the link carries before commands start to wait.
+ */
+public class AnimationScheduler {
+    private static final String TAG = AnimationScheduler.class.toString();
+
+    private final PlussyDisplay display;
+    private Thread thread;
+    private volatile boolean run = false;
+
+    private volatile long framesSent = 0;
+    private volatile long droppedFrames = 0;
+    private volatile long lateFrames = 0;
+    private volatile float achievedFps = 0;
+
+    private class SchedulerRunnable implements Runnable {
+        private final Animation animation;
+        private final long period;
+        private final Frame frame = new Frame(display.getLedCount());
+        private final Frame lastSent = new Frame(display.getLedCount());
+        // the changed leds of a frame, set on the display with one call
+        private final int changedLeds[] = new int[display.getLedCount()];
+        private final int changedColors[] = new int[display.getLedCount()];
+        private boolean firstFrame = true;
+        // no frame before this while the rate is adaptive
+        private long nextFrame;
+
+        SchedulerRunnable(Animation animation, int fps) {
+            this.animation = animation;
+            period = 1000000000L / fps;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            nextFrame = start;
+            long tick = 0;
+            long fpsWindowStart = start;
+            long fpsWindowFrames = 0;
+            while(run) {
+                long deadline = start + tick * period;
+                long now = System.nanoTime();
+                if(now < deadline) {
+                    try {
+                        long wait = deadline - now;
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    now = System.nanoTime();
+                }
+                long behind = (now - deadline) / period;
+                if(behind > 0) {
+                    // whole ticks passed already, don't try to catch up on them
+                    droppedFrames += behind;
+                    tick += behind;
+                    deadline += behind * period;
+                }
+                if(now - deadline > period / 4) {
+                    lateFrames++;
+                }
+
+                if(display.getPendingCommands() > 0 || now - nextFrame < 0) {
+                    droppedFrames++;
+                } else {
+                    if(!animation.render(tick, frame)) {
+                        break;
+                    }
+                    nextFrame = now + display.getExpectedSendTime(sendDiff());
+                    framesSent++;
+                    fpsWindowFrames++;
+                }
+                tick++;
+
+                if(now - fpsWindowStart >= 1000000000L) {
+                    achievedFps = fpsWindowFrames * 1000000000f / (now - fpsWindowStart);
+                    fpsWindowStart = now;
+                    fpsWindowFrames = 0;
+                }
+            }
+            run = false;
+        }
+
+        // hands the whole frame to the display at once, so it goes out in one write
+        // instead of torn over several. Returns the number of commands it takes.
+        private int sendDiff() {
+            int changed = 0;
+            for(int i = 0; i < frame.colors.length; i++) {
+                if(firstFrame || !frame.sameColor(lastSent, i)) {
+                    changedLeds[changed] = i;
+                    changedColors[changed] = frame.colors[i];
+                    changed++;
+                }
+            }
+            lastSent.copyFrom(frame);
+            firstFrame = false;
+            if(changed > frame.colors.length / 2) {
+                display.setMatrix(frame.colors);
+                if(display.getProtocol() == PlussyDisplay.PROTOCOL_BINARY) {
+                    return 1;
+                }
+            } else if(changed > 0) {
+                display.setLeds(changedLeds, changedColors, changed);
+            }
+            return changed;
+        }
+    }
+
+    public AnimationScheduler(PlussyDisplay display) {
+        this.display = display;
+    }
+
+    /**
+     * Starts playing animation, a running animation is stopped first.
+     */
+    public void start(Animation animation, int fps) {
+        if(fps <= 0) {
+            Log.e(TAG, "Frame rate " + Integer.toString(fps) + " not possible.");
+            return;
+        }
+        stop();
+        framesSent = droppedFrames = lateFrames = 0;
+        achievedFps = 0;
+        run = true;
+        thread = new Thread(new SchedulerRunnable(animation, fps));
+        thread.start();
+    }
+
+    public void stop() {
+        if(thread == null) {
+            return;
+        }
+        run = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        thread = null;
+    }
+
+    public boolean isRunning() {
+        return run;
+    }
+
+    /**
+     * @return frames sent per second, measured over the last second
+     */
+    public float getAchievedFps() {
+        return achievedFps;
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    /**
+     * @return frames that were skipped, either because the link was still busy with the
+     * last one, or not expected to be done with it while the rate is adaptive, or because
+     * the scheduler thread missed their tick completely
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return frames that were sent more than a quarter frame after their tick
+     */
+    public long getLateFrames() {
+        return lateFrames;
+    }
+}
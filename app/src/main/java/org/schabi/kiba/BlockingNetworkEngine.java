@@ -0,0 +1,212 @@
+package org.schabi.kiba;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * BlockingNetworkEngine.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Reads with a blocking socket and a short read timeout, so the run flag is checked
+ * regularly. Commands are written by a sender thread of their own, so a socket that
+ * does not take data any more never blocks the threads that queue commands.
+ */
+class BlockingNetworkEngine extends NetworkEngine {
+    private static final String TAG = BlockingNetworkEngine.class.toString();
+
+    private static final int READ_TIMEOUT = 100;
+
+    private volatile Thread senderThread;
+    private volatile boolean sending = false;
+    // System.nanoTime() the running write started, 0 if none is running. A write only
+    // takes long if the send buffer of the socket is full.
+    private volatile long writeSince = 0;
+    // set by commandsPending() to wake up the sender thread
+    private final AtomicBoolean commandsChanged = new AtomicBoolean(true);
+
+    private class SenderRunnable implements Runnable {
+        private final OutputStream out;
+        private final byte sendBuffer[] = new byte[session.sendBufferSize];
+        // first command not written yet
+        private long pendingSince = 0;
+
+        SenderRunnable(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            while(sending) {
+                if(commandsChanged.getAndSet(false)) {
+                    drainCommands();
+                    if(pendingSince == 0 && commandQueue.getPending() > 0) {
+                        pendingSince = System.nanoTime();
+                    }
+                }
+                long wait = READ_TIMEOUT * 1000000L;
+                if(pendingSince != 0 && session.isEstablished()) {
+                    long now = System.nanoTime();
+                    if(batchDue(pendingSince, now)) {
+                        if(!writePendingCommands()) {
+                            break;
+                        }
+                    } else {
+                        wait = pendingSince + batchNanos() - now;
+                    }
+                }
+                if(!commandsChanged.get()) {
+                    LockSupport.parkNanos(this, wait);
+                }
+            }
+        }
+
+        // returns false if the connection broke
+        private boolean writePendingCommands() {
+            int length = session.encodePendingCommands(sendBuffer, 0);
+            if(length > 0) {
+                writeSince = System.nanoTime();
+                try {
+                    out.write(sendBuffer, 0, length);
+                    out.flush();
+                    display.getSendStats().record(sendPolicy, pendingSince,
+                            session.encodedCommands, length);
+                } catch (IOException e) {
+                    if(sending) {
+                        Log.e(TAG, "Error: could not send command to server.");
+                    }
+                    return false;
+                } finally {
+                    writeSince = 0;
+                }
+            }
+            // commands held back by a full window stay due
+            if(commandQueue.getPending() == 0) {
+                pendingSince = 0;
+            }
+            return true;
+        }
+    }
+
+    BlockingNetworkEngine(PlussyDisplay display, CommandQueue commandQueue,
+                          CommandRing commandRing) {
+        super(display, commandQueue, commandRing);
+    }
+
+    @Override
+    void connect(InetAddress serverAddress) {
+        Socket socket = null;
+        InputStream in;
+        try {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(serverAddress, PlussyDiscovery.TCP_PORT),
+                    CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(sendPolicy != PlussyDisplay.SEND_NAGLE);
+            socket.setSoTimeout(READ_TIMEOUT);
+            in = socket.getInputStream();
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            byte negotiation[] = new byte[2];
+            int length = session.begin(display.getPreferredProtocol(), negotiation);
+            out.write(negotiation, 0, length);
+            out.flush();
+            sending = true;
+            commandsChanged.set(true);
+            senderThread = new Thread(new SenderRunnable(out));
+            senderThread.start();
+        } catch(Exception e) {
+            connectionFailed();
+            closeSocket(socket);
+            return;
+        }
+
+        while(run) {
+            if(!senderThread.isAlive()) {
+                Log.e(TAG, "Error: connection to server lost.");
+                break;
+            }
+            int read;
+            try {
+                int free = session.compactReadBuffer();
+                read = in.read(session.readBuffer, session.readEnd, free);
+            } catch (InterruptedIOException e) {
+                idleWakeups++;
+                session.checkNegotiationTimeout();
+                continue;
+            } catch (IOException e) {
+                Log.e(TAG, "Error: connection to server lost.");
+                break;
+            }
+            if(read < 0) {
+                Log.e(TAG, "Error: connection closed by server.");
+                break;
+            }
+            session.readEnd += read;
+            session.processReadBuffer();
+            session.checkNegotiationTimeout();
+        }
+        stopSender(socket);
+        session.end();
+    }
+
+    // closing the socket first lets a write that is stuck return
+    private void stopSender(Socket socket) {
+        sending = false;
+        closeSocket(socket);
+        Thread thread = senderThread;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        senderThread = null;
+    }
+
+    private void closeSocket(Socket socket) {
+        try {
+            if(socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    void commandsPending() {
+        commandsChanged.set(true);
+        Thread thread = senderThread;
+        if(thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    long getSendBlockedSince() {
+        return writeSince;
+    }
+}
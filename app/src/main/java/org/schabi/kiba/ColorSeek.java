@@ -38,13 +38,9 @@ public class ColorSeek extends View {
 
     private static final String TAG = ColorSeek.class.toString();
 
-    private static final int RED_MASK = (0xff << 16);
-    private static final int GREEN_MASK = (0xff << 8);
-    private static final int BLUE_MASK = (0xff);
-
-    public static final int MODE_CHROMA_COLOR_PIC = 0;
-    public static final int MODE_COLOR_INTENSITY_PIC = 1;
-    public static final int MODE_BRIGHTNESS_PIC = 2;
+    public static final int MODE_CHROMA_COLOR_PIC = ColorMath.CHROMA;
+    public static final int MODE_COLOR_INTENSITY_PIC = ColorMath.INTENSITY;
+    public static final int MODE_BRIGHTNESS_PIC = ColorMath.BRIGHTNESS;
     private int mode = MODE_CHROMA_COLOR_PIC;
 
     private boolean isHorizontal = true;
@@ -52,6 +48,8 @@ public class ColorSeek extends View {
     private final int viewHeight = (int)(40 * scale);
 
     private Paint stripPaint;
+    // the base color under the strip, intensity and brightness draw a gradient over it
+    private Paint basePaint;
     private final float stripHeight = 2 * scale;
     private final float stripeAlign = 18 * scale;
 
@@ -67,6 +65,11 @@ public class ColorSeek extends View {
 
     private int baseColor = 0xffff0000;
 
+    // color for every pixel of the strip, rebuilt on the first touch after a change
+    private int colorTable[] = new int[0];
+    private int colorTableLength = 0;
+    private boolean colorTableValid = false;
+
     private float width;
     private float height;
 
@@ -96,9 +99,20 @@ public class ColorSeek extends View {
         height = h;
 
         cursorPosition = stripeAlign;
+        colorTableLength = Math.round((isHorizontal ? width : height) - 2 * stripeAlign) + 1;
+        if(colorTableLength < 1) {
+            colorTableLength = 1;
+        }
+        if(colorTable.length < colorTableLength) {
+            colorTable = new int[colorTableLength];
+        }
+        colorTableValid = false;
 
         stripPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         stripPaint.setStyle(Paint.Style.FILL);
+        basePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        basePaint.setStyle(Paint.Style.FILL);
+        basePaint.setColor(baseColor);
         int[] rainbow = {
                 0xffff0000,
                 0xffffff00,
@@ -108,17 +122,18 @@ public class ColorSeek extends View {
                 0xffff00ff,
                 0xffff0000
         };
+        // none of the gradients depend on the base color, so they are only built here
         Shader shader = new Shader();
         if(mode == MODE_CHROMA_COLOR_PIC) {
             shader = new LinearGradient(0, 0, width, height, rainbow, null, Shader.TileMode.MIRROR);
         } else if(mode == MODE_COLOR_INTENSITY_PIC ) {
-            shader = new LinearGradient(0, 0, width, height, new int[]{baseColor, 0xffffffff},
+            // from the base color to white
+            shader = new LinearGradient(0, 0, width, height, new int[]{0x00ffffff, 0xffffffff},
                     null, Shader.TileMode.MIRROR);
-            stripPaint.setShader(shader);
         } else if(mode == MODE_BRIGHTNESS_PIC ) {
-            shader = new LinearGradient(0, 0, width, height, new int[]{0xff000000, baseColor},
+            // from black to the base color
+            shader = new LinearGradient(0, 0, width, height, new int[]{0xff000000, 0x00000000},
                     null, Shader.TileMode.MIRROR);
-            stripPaint.setShader(shader);
             cursorPosition = (isHorizontal ? width : height) - stripeAlign;
         }
         stripPaint.setShader(shader);
@@ -156,6 +171,10 @@ public class ColorSeek extends View {
     protected void onDraw(Canvas canvas) {
         cursorPaint.setColor(selectedColor);
         if (isHorizontal) {
+            if(mode != MODE_CHROMA_COLOR_PIC) {
+                canvas.drawRect(stripeAlign, (height - stripHeight) / 2, width - stripeAlign,
+                        (height - stripHeight) / 2 + stripHeight, basePaint);
+            }
             canvas.drawRect(stripeAlign, (height - stripHeight) / 2, width - stripeAlign,
                     (height - stripHeight) / 2 + stripHeight, stripPaint);
 
@@ -167,6 +186,10 @@ public class ColorSeek extends View {
                 canvas.drawCircle(cursorPosition, height / 2, cursorRadius, cursorPaint);
             }
         } else {
+            if(mode != MODE_CHROMA_COLOR_PIC) {
+                canvas.drawRect((width - stripHeight) / 2, stripeAlign,
+                        (width - stripHeight) / 2 + stripHeight, height - stripeAlign, basePaint);
+            }
             canvas.drawRect((width - stripHeight) / 2, stripeAlign,
                     (width - stripHeight) / 2 + stripHeight, height - stripeAlign, stripPaint);
             if (useBigCursor) {
@@ -179,79 +202,13 @@ public class ColorSeek extends View {
         }
     }
 
-    private int getColorByPosition(float position) {
-        final float startPoint = stripeAlign;
-        final float endPoint = (isHorizontal ? width : height) - stripeAlign;
-        final float range = endPoint - startPoint;
-        final float relPos = (position - stripeAlign)/range;
-        final float colorRange = 1.0f / 6.0f;
-
-        float redPart = 0;
-        float greenPart = 0;
-        float bluePart = 0;
-
-        if(relPos < colorRange) {
-            redPart = 1;
-            greenPart = relPos/colorRange;
-        } else if(relPos < colorRange * 2) {
-            greenPart = 1;
-            redPart = (1 - (relPos-colorRange)/colorRange);
-        } else if(relPos < colorRange * 3) {
-            greenPart = 1;
-            bluePart = ((relPos - colorRange * 2) / colorRange);
-        } else if(relPos < colorRange * 4) {
-            bluePart = 1;
-            greenPart = (1 - (relPos - colorRange * 3) / colorRange);
-        } else if(relPos < colorRange * 5) {
-            bluePart = 1;
-            redPart = ((relPos - colorRange * 4) / colorRange);
-        } else if(relPos <= colorRange * 6) {
-            redPart = 1;
-            bluePart = (1 - (relPos - colorRange * 5) / colorRange);
+    // entry of the color table under the cursor
+    private int cursorIndex() {
+        int index = Math.round(cursorPosition - stripeAlign);
+        if(index < 0) {
+            return 0;
         }
-
-        int color = (0xff << 24) | ((int)(redPart*0xff) << 16) | ((int)(greenPart*0xff) << 8) | (int)(bluePart*0xff);
-        return color;
-    }
-
-    private int getIntensityColorByPosition(float position) {
-        final float startPoint = stripeAlign;
-        final float endPoint = (isHorizontal ? width : height) - stripeAlign;
-        final float range = endPoint - startPoint;
-        final float relPos = (position - stripeAlign)/range;
-
-        int redVal = (baseColor & RED_MASK) >> 16;
-        int greenVal = (baseColor & GREEN_MASK) >> 8;
-        int blueVal = (baseColor & BLUE_MASK);
-
-        int redDiv = 0xff - redVal;
-        int greenDiv = 0xff - greenVal;
-        int blueDiv = 0xff - blueVal;
-
-        redVal += redDiv * relPos;
-        greenVal += greenDiv * relPos;
-        blueVal += blueDiv * relPos;
-
-        int color = (0xff << 24) | (redVal << 16) | (greenVal << 8) | (blueVal);
-        return color;
-    }
-
-    private int getBrightnessColorByPosition(float position) {
-        final float startPoint = stripeAlign;
-        final float endPoint = (isHorizontal ? width : height) - stripeAlign;
-        final float range = endPoint - startPoint;
-        final float relPos = (position - stripeAlign)/range;
-
-        int redVal = (baseColor & RED_MASK) >> 16;
-        int greenVal = (baseColor & GREEN_MASK) >> 8;
-        int blueVal = (baseColor & BLUE_MASK);
-
-        redVal *= relPos;
-        greenVal *= relPos;
-        blueVal *= relPos;
-
-        int color = (0xff << 24) | (redVal << 16) | (greenVal << 8) | (blueVal);
-        return color;
+        return index < colorTableLength ? index : colorTableLength - 1;
     }
 
     @Override
@@ -278,13 +235,12 @@ public class ColorSeek extends View {
             }
         }
 
-        if(mode == MODE_CHROMA_COLOR_PIC) {
-            selectedColor = getColorByPosition(cursorPosition);
-        } else if(mode == MODE_COLOR_INTENSITY_PIC) {
-            selectedColor = getIntensityColorByPosition(cursorPosition);
-        } else if(mode == MODE_BRIGHTNESS_PIC) {
-            selectedColor = getBrightnessColorByPosition(cursorPosition);
+        if(!colorTableValid) {
+            ColorMath.fillTable(mode, baseColor, colorTable, colorTableLength);
+            colorTableValid = true;
         }
+        // also when the color did not change, a touch paints the led under the cursor
+        selectedColor = colorTable[cursorIndex()];
         listener.selectionChanged(selectedColor);
         invalidate();
         return true;
@@ -299,21 +255,21 @@ public class ColorSeek extends View {
     }
 
     public void setBaseColor(int baseColor) {
-        this.baseColor = baseColor;
-        if(mode == MODE_COLOR_INTENSITY_PIC || mode == MODE_BRIGHTNESS_PIC) {
-            if(mode == MODE_COLOR_INTENSITY_PIC) {
-                Shader shader = new LinearGradient(0, 0, width, height, new int[]{baseColor, 0xffffffff},
-                        null, Shader.TileMode.MIRROR);
-                stripPaint.setShader(shader);
-                selectedColor = getIntensityColorByPosition(cursorPosition);
-            } else {
-                Shader shader = new LinearGradient(0, 0, width, height, new int[]{0xff000000, baseColor},
-                        null, Shader.TileMode.MIRROR);
-                stripPaint.setShader(shader);
-                selectedColor = getBrightnessColorByPosition(cursorPosition);
+        if(mode != MODE_COLOR_INTENSITY_PIC && mode != MODE_BRIGHTNESS_PIC) {
+            return;
+        }
+        if(baseColor != this.baseColor) {
+            this.baseColor = baseColor;
+            if(basePaint != null) {
+                basePaint.setColor(baseColor);
             }
-            listener.selectionChanged(selectedColor);
+            // while the user works on another seek only the selected color is needed
+            colorTableValid = false;
+            selectedColor = ColorMath.tableColor(mode, baseColor, cursorIndex(),
+                    colorTableLength);
             invalidate();
         }
+        // passed on like a touch, the seek that was touched may not have changed the color
+        listener.selectionChanged(selectedColor);
     }
 }
@@ -0,0 +1,84 @@
+package org.schabi.kiba;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * FrameScheduler.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Runs a task on the ui thread at most once per display frame, no matter how often
+ * {@link #schedule()} is called from other threads meanwhile. Uses the Choreographer
+ * where it exists and a plain post to the handler on older devices.
+ */
+final class FrameScheduler {
+
+    private final Handler handler;
+    private final Runnable task;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Runnable post;
+
+    private final Runnable frame = new Runnable() {
+        @Override
+        public void run() {
+            // cleared first, so a schedule() during the task is not lost
+            scheduled.set(false);
+            task.run();
+        }
+    };
+
+    // only loaded on devices that have the Choreographer
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class ChoreographerPost implements Runnable, Choreographer.FrameCallback {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            frame.run();
+        }
+    }
+
+    /**
+     * @param handler of the ui thread
+     */
+    FrameScheduler(Handler handler, Runnable task) {
+        this.handler = handler;
+        this.task = task;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            post = new ChoreographerPost();
+        } else {
+            post = frame;
+        }
+    }
+
+    /**
+     * May be called from any thread.
+     */
+    void schedule() {
+        if(scheduled.compareAndSet(false, true)) {
+            handler.post(post);
+        }
+    }
+}
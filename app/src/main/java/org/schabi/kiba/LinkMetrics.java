@@ -0,0 +1,189 @@
+package org.schabi.kiba;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * LinkMetrics.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Counters of the link to one or more displays. They are written from the network
+ * thread without locks or allocation and read as a {@link Snapshot}.
+ */
+public final class LinkMetrics {
+
+    final AtomicLong commandsSent = new AtomicLong();
+    final AtomicLong repliesReceived = new AtomicLong();
+    final AtomicLong bytesOut = new AtomicLong();
+    final AtomicLong bytesIn = new AtomicLong();
+    final AtomicLong connects = new AtomicLong();
+    final AtomicLong reconnects = new AtomicLong();
+    final AtomicLong connectFailures = new AtomicLong();
+    // commands that did not fit into the queue to the network thread and were coalesced
+    final AtomicLong commandOverflows = new AtomicLong();
+    // change notifications of a subscription, and how often some got lost in between
+    final AtomicLong notificationsReceived = new AtomicLong();
+    final AtomicLong notificationGaps = new AtomicLong();
+    // duration of the last discovery and the last connect up to the established session
+    final AtomicLong discoveryNanos = new AtomicLong();
+    final AtomicLong connectNanos = new AtomicLong();
+    // time from sending a command until the display answered it
+    final LatencyHistogram ackLatency = new LatencyHistogram();
+    // synchronized frames: how many were answered, how many were further apart than the
+    // max skew, how many sends came too late and how many were replaced before they
+    // were due
+    final AtomicLong syncFrames = new AtomicLong();
+    final AtomicLong syncMisses = new AtomicLong();
+    final AtomicLong syncLateSends = new AtomicLong();
+    final AtomicLong syncReplaced = new AtomicLong();
+    // spread of the times a synchronized frame reached the displays, each halfway
+    // between sending the frame and its answer
+    final LatencyHistogram syncSkew = new LatencyHistogram();
+
+    LinkMetrics() {
+    }
+
+    void recordEstablished(long connectStart, boolean reconnect) {
+        connectNanos.set(System.nanoTime() - connectStart);
+        connects.incrementAndGet();
+        if(reconnect) {
+            reconnects.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param sendBlockedSince System.nanoTime() since a socket has not been taking the
+     *                         commands written to it, 0 if none
+     */
+    Snapshot snapshot(int queuedCommands, int commandsInFlight, long sendBlockedSince) {
+        return new Snapshot(this, queuedCommands, commandsInFlight, sendBlockedSince, null);
+    }
+
+    /**
+     * @param rate the controller choosing the window, may be null
+     */
+    Snapshot snapshot(int queuedCommands, int commandsInFlight, long sendBlockedSince,
+                      RateController rate) {
+        return new Snapshot(this, queuedCommands, commandsInFlight, sendBlockedSince, rate);
+    }
+
+    public static final class Snapshot {
+        public final long commandsSent;
+        public final long repliesReceived;
+        public final long bytesOut;
+        public final long bytesIn;
+        public final long connects;
+        public final long reconnects;
+        public final long connectFailures;
+        public final long commandOverflows;
+        public final long notificationsReceived;
+        public final long notificationGaps;
+        public final long discoveryNanos;
+        public final long connectNanos;
+        public final int queuedCommands;
+        public final int commandsInFlight;
+        // nanoseconds a socket has not been taking the commands written to it because
+        // its send buffer is full, the longest of them if there are several, 0 if none
+        public final long sendBlocked;
+        public final LatencyHistogram ackLatency;
+        public final long syncFrames;
+        public final long syncMisses;
+        public final long syncLateSends;
+        public final long syncReplaced;
+        public final LatencyHistogram syncSkew;
+        // decisions of the rate controller, all 0 if the rate is not adaptive
+        public final int window;
+        public final long smoothedRtt;
+        public final long minRtt;
+        public final long batchInterval;
+        public final long commandRate;
+        public final long windowIncreases;
+        public final long windowDecreases;
+
+        private Snapshot(LinkMetrics metrics, int queuedCommands, int commandsInFlight,
+                         long sendBlockedSince, RateController rate) {
+            commandsSent = metrics.commandsSent.get();
+            repliesReceived = metrics.repliesReceived.get();
+            bytesOut = metrics.bytesOut.get();
+            bytesIn = metrics.bytesIn.get();
+            connects = metrics.connects.get();
+            reconnects = metrics.reconnects.get();
+            connectFailures = metrics.connectFailures.get();
+            commandOverflows = metrics.commandOverflows.get();
+            notificationsReceived = metrics.notificationsReceived.get();
+            notificationGaps = metrics.notificationGaps.get();
+            discoveryNanos = metrics.discoveryNanos.get();
+            connectNanos = metrics.connectNanos.get();
+            ackLatency = metrics.ackLatency.copy();
+            syncFrames = metrics.syncFrames.get();
+            syncMisses = metrics.syncMisses.get();
+            syncLateSends = metrics.syncLateSends.get();
+            syncReplaced = metrics.syncReplaced.get();
+            syncSkew = metrics.syncSkew.copy();
+            if(rate != null) {
+                synchronized (rate) {
+                    window = rate.getWindow();
+                    smoothedRtt = rate.getSmoothedRtt();
+                    minRtt = rate.getMinRtt();
+                    batchInterval = rate.getBatchInterval();
+                    commandRate = rate.getCommandRate();
+                    windowIncreases = rate.getIncreases();
+                    windowDecreases = rate.getDecreases();
+                }
+            } else {
+                window = 0;
+                smoothedRtt = minRtt = batchInterval = commandRate = 0;
+                windowIncreases = windowDecreases = 0;
+            }
+            this.queuedCommands = queuedCommands;
+            this.commandsInFlight = commandsInFlight;
+            sendBlocked = sendBlockedSince == 0 ? 0 : System.nanoTime() - sendBlockedSince;
+        }
+
+        @Override
+        public String toString() {
+            return "sent=" + commandsSent
+                    + " replies=" + repliesReceived
+                    + " out=" + bytesOut + "B"
+                    + " in=" + bytesIn + "B"
+                    + " queued=" + queuedCommands
+                    + " inFlight=" + commandsInFlight
+                    + " blocked=" + sendBlocked / 1000000 + "ms"
+                    + " connects=" + connects
+                    + " reconnects=" + reconnects
+                    + " failures=" + connectFailures
+                    + " overflows=" + commandOverflows
+                    + " notifications=" + notificationsReceived
+                    + " gaps=" + notificationGaps
+                    + " discovery=" + discoveryNanos / 1000000 + "ms"
+                    + " connect=" + connectNanos / 1000000 + "ms"
+                    + " ack[" + ackLatency + "]"
+                    + (syncFrames > 0 ? " syncFrames=" + syncFrames
+                    + " syncMisses=" + syncMisses
+                    + " syncLate=" + syncLateSends
+                    + " syncReplaced=" + syncReplaced
+                    + " skew[" + syncSkew + "]" : "")
+                    + (window > 0 ? " window=" + window
+                    + " srtt=" + smoothedRtt / 1000 + "us"
+                    + " minRtt=" + minRtt / 1000 + "us"
+                    + " batch=" + batchInterval / 1000 + "us"
+                    + " rate=" + commandRate + "/s"
+                    + " windowUp=" + windowIncreases
+                    + " windowDown=" + windowDecreases : "");
+        }
+    }
+}
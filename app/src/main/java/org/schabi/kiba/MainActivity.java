@@ -7,10 +7,16 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.SubMenu;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 /**
  * Created by Christian Schabesberger on 13.09.15.
  *
@@ -35,6 +41,21 @@ public class MainActivity extends AppCompatActivity {
 
     private static final String TAG = MainActivity.class.toString();
 
+    // a layout file for a custom matrix, looked for in the app's external files directory
+    private static final String LAYOUT_FILE = "led_layout.bin";
+    // a scene library for the layout, offered in the menu if it is there
+    private static final String SCENE_FILE = "scenes.kscn";
+    private static final int SCENE_GROUP = 1;
+    // led numbers of the plussy cross, row by row from the top left
+    private static final int PLUSSY_MAPPING[] = {
+                     0x13, 0x12,
+                     0x10, 0x11,
+            0xf, 0xe, 0xd, 0xc, 0xb, 0xa,
+            0x4, 0x5, 0x6, 0x7, 0x8, 0x9,
+                      0x3, 0x2,
+                      0x0, 0x1
+    };
+
     private PlussyDisplay plussyDisplay;
     private PlussyLedView plussyView;
     private ColorSeek colorSeek;
@@ -42,29 +63,23 @@ public class MainActivity extends AppCompatActivity {
     private ColorSeek brightnessSeek;
     private ProgressBar connectionProgressBar;
     private ImageView connectionEstablishedView;
-
-    // needed to control sending limitation
-    private boolean allowSendingCommand = true;
-    private int lastLed = -1;
-    private int lastColor = -1;
+    private SceneLibrary scenes;
+    private int sceneColors[];
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
-        plussyDisplay = new PlussyDisplay();
+        LedLayout layout = loadLayout();
+        plussyDisplay = new PlussyDisplay(this, layout.getMatrixFormat());
+        // see what other controllers do to the display without polling for it
+        plussyDisplay.setSubscription(true);
         connectionProgressBar = (ProgressBar) findViewById(R.id.connectionProgressBar);
         connectionEstablishedView = (ImageView) findViewById(R.id.connectoinEstablishedView);
         plussyView = (PlussyLedView) findViewById(R.id.plussyView);
-        plussyView.setMapping(new int[] {
-                         0x13, 0x12,
-                         0x10, 0x11,
-                0xf, 0xe, 0xd, 0xc, 0xb, 0xa,
-                0x4, 0x5, 0x6, 0x7, 0x8, 0x9,
-                          0x3, 0x2,
-                          0x0, 0x1
-
-        });
+        plussyView.setLayout(layout);
+        scenes = loadScenes(layout.getCount());
+        sceneColors = new int[layout.getCount()];
 
         colorSeek = (ColorSeek) findViewById(R.id.colorSeek);
         intesitySeek = (ColorSeek) findViewById(R.id.intensitySeek);
@@ -89,16 +104,9 @@ public class MainActivity extends AppCompatActivity {
         });
         plussyView.setOnLedChangedListener(new PlussyLedView.OnLedChangedListener() {
             @Override
-            public void onChange(int led, int color) {
+            public void onChange(int leds[], int colors[], int count) {
                 if (plussyDisplay.getNetworkState() == PlussyDisplay.CONNECTION_ESTABLISHED) {
-                    if(allowSendingCommand) {
-                        plussyDisplay.setLed(led, color);
-                        allowSendingCommand = false;
-                        lastLed = lastColor = -1;
-                    } else {
-                        lastLed = led;
-                        lastColor = color;
-                    }
+                    plussyDisplay.setLeds(leds, colors, count);
                 }
             }
         });
@@ -108,7 +116,10 @@ public class MainActivity extends AppCompatActivity {
                 if (state == PlussyDisplay.CONNECTION_ESTABLISHED) {
                     connectionProgressBar.setVisibility(View.GONE);
                     connectionEstablishedView.setVisibility(View.VISIBLE);
-                    plussyDisplay.requestMatrixState();
+                    // the subscription brings the current state with it
+                } else if (state != PlussyDisplay.CONNECTION_FAILED) {
+                    connectionProgressBar.setVisibility(View.VISIBLE);
+                    connectionEstablishedView.setVisibility(View.GONE);
                 }
             }
         });
@@ -116,16 +127,47 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onReceived(int[] colors) {
                 plussyView.updateMatrix(colors);
-                if(lastLed != -1) {
-                    plussyDisplay.setLed(lastLed, lastColor);
-                    lastLed = lastColor = -1;
-                } else {
-                    allowSendingCommand = true;
-                }
             }
         });
     }
 
+    private LedLayout loadLayout() {
+        File dir = getExternalFilesDir(null);
+        File file = dir == null ? null : new File(dir, LAYOUT_FILE);
+        if(file != null && file.exists()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                return LedLayout.read(in);
+            } catch (IOException e) {
+                Log.e(TAG, "Error: could not read led layout " + file + ", using the plussy cross.");
+            } finally {
+                try {
+                    if(in != null) {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return LedLayout.plussy(PLUSSY_MAPPING);
+    }
+
+    private SceneLibrary loadScenes(int ledCount) {
+        File dir = getExternalFilesDir(null);
+        File file = dir == null ? null : new File(dir, SCENE_FILE);
+        if(file == null || !file.exists()) {
+            return null;
+        }
+        try {
+            return SceneLibrary.open(file, ledCount);
+        } catch (IOException e) {
+            Log.e(TAG, "Error: could not open scene library " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
     @Override
     public void onStart() {
         super.onStart();
@@ -142,6 +184,12 @@ public class MainActivity extends AppCompatActivity {
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.menu_main, menu);
+        if(scenes != null && scenes.size() > 0) {
+            SubMenu sceneMenu = menu.addSubMenu(R.string.scenes_title);
+            for(int i = 0; i < scenes.size(); i++) {
+                sceneMenu.add(SCENE_GROUP, i, i, scenes.getName(i));
+            }
+        }
         return true;
     }
 
@@ -150,6 +198,14 @@ public class MainActivity extends AppCompatActivity {
         // Handle action bar item clicks here. The action bar will
         // automatically handle clicks on the Home/Up button, so long
         // as you specify a parent activity in AndroidManifest.xml.
+        if(item.getGroupId() == SCENE_GROUP) {
+            if(plussyDisplay.getNetworkState() == PlussyDisplay.CONNECTION_ESTABLISHED
+                    && plussyDisplay.applyScene(scenes, item.getItemId())) {
+                scenes.getColors(item.getItemId(), 0, sceneColors);
+                plussyView.updateMatrix(sceneColors);
+            }
+            return true;
+        }
         Intent intent = new Intent(Intent.ACTION_VIEW);
         int id = item.getItemId();
         switch(id) {
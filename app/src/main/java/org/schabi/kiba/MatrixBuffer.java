@@ -0,0 +1,62 @@
+package org.schabi.kiba;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * MatrixBuffer.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Passes the newest matrix from the network thread to the ui thread without locks or
+ * allocation. The writer fills a back buffer and swaps it with the ready one, the reader
+ * swaps its front buffer with the ready one, so neither ever sees a half written matrix
+ * and matrices the reader did not pick up in time are simply overwritten.
+ */
+final class MatrixBuffer {
+
+    private static final int INDEX_MASK = 3;
+    // set while the ready buffer holds a matrix the reader did not take yet
+    private static final int FRESH = 4;
+
+    private final int buffers[][];
+    // only touched by the writer
+    private int back = 0;
+    // only touched by the reader
+    private int front = 1;
+    private final AtomicInteger ready = new AtomicInteger(2);
+
+    MatrixBuffer(int ledCount) {
+        buffers = new int[3][ledCount];
+    }
+
+    void publish(int colors[]) {
+        System.arraycopy(colors, 0, buffers[back], 0, colors.length);
+        back = ready.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * @return the newest matrix, valid until the next call, or null if nothing was
+     * published since the last call
+     */
+    int[] take() {
+        if((ready.get() & FRESH) == 0) {
+            return null;
+        }
+        front = ready.getAndSet(front) & INDEX_MASK;
+        return buffers[front];
+    }
+}
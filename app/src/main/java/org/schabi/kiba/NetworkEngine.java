@@ -0,0 +1,337 @@
+package org.schabi.kiba;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * NetworkEngine.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Runs the connection to one plussy display on its own thread and delivers the results
+ * of its {@link PlussySession} to the ui thread. Subclasses only move bytes between the
+ * socket, the session's readBuffer and the send path.
+ *
+ * The last display connected to is tried directly first. A broken connection is
+ * reconnected right away, failed attempts are retried with exponential backoff, and
+ * while backing off the engine listens for beacons in case the display got a new address.
+ */
+abstract class NetworkEngine implements Runnable, PlussySession.Listener {
+    private static final String TAG = NetworkEngine.class.toString();
+
+    static final int CONNECT_TIMEOUT = 2000;
+    private static final int DISCOVERY_TIMEOUT = 2000;
+    private static final int BACKOFF_MIN = 250;
+    private static final int BACKOFF_MAX = 8000;
+
+    final PlussyDisplay display;
+    final PlussySession session;
+    final CommandQueue commandQueue;
+    final CommandRing commandRing;
+    final LinkMetrics metrics;
+    final Handler handler = new Handler();
+    volatile boolean run = true;
+
+    private volatile DatagramSocket discoverySocket;
+    private InetAddress serverAddress;
+    // set once the session of the current connection got established
+    private volatile boolean established = false;
+    private long connectStart;
+
+    private final Runnable metricsLogger = new Runnable() {
+        @Override
+        public void run() {
+            int interval = display.getMetricsLogInterval();
+            if(run && interval > 0) {
+                Log.i(TAG, display.getMetrics().toString());
+                handler.postDelayed(this, interval);
+            }
+        }
+    };
+
+    // wakeups of the network thread that found nothing to do
+    volatile long idleWakeups = 0;
+
+    // taken from the display when the engine is created
+    final int sendPolicy;
+    final long batchNanos;
+    final int batchCommands;
+
+    private class ConnectionChangedRunnable implements Runnable {
+        int state = 0;
+        ConnectionChangedRunnable(int state) {
+            this.state = state;
+        }
+        @Override
+        public void run() {
+            display.dispatchConnectionChanged(state);
+        }
+    }
+
+    // newest matrix reported by the display, handed to the ui at most once per frame
+    private final MatrixBuffer matrixBuffer;
+    private final FrameScheduler matrixFrame = new FrameScheduler(handler, new Runnable() {
+        @Override
+        public void run() {
+            int colors[] = matrixBuffer.take();
+            if(colors != null) {
+                display.dispatchMatrixState(colors);
+            }
+        }
+    });
+
+    NetworkEngine(PlussyDisplay display, CommandQueue commandQueue, CommandRing commandRing) {
+        this.display = display;
+        this.commandQueue = commandQueue;
+        this.commandRing = commandRing;
+        metrics = display.getLinkMetrics();
+        session = new PlussySession(display.getMatrixFormat(), commandQueue, commandRing,
+                this, metrics);
+        session.setSubscribe(display.isSubscribing());
+        session.setRecorder(display.getRecorder());
+        session.setRateController(display.getRateController());
+        matrixBuffer = new MatrixBuffer(display.getMatrixFormat().ledCount);
+        sendPolicy = display.getSendPolicy();
+        batchNanos = display.getBatchInterval() * 1000L;
+        batchCommands = display.getBatchSize();
+    }
+
+    /**
+     * Connects to the display and handles the connection until it breaks or
+     * {@link #stop()} is called.
+     */
+    abstract void connect(InetAddress serverAddress);
+
+    /**
+     * Called from any thread after commands were put into the ring or the queue. Must
+     * never block on the socket.
+     */
+    abstract void commandsPending();
+
+    /**
+     * @return System.nanoTime() since the socket has not been taking the commands
+     * written to it, 0 if it took all of them. Called from any thread.
+     */
+    abstract long getSendBlockedSince();
+
+    /**
+     * Moves new commands from the ring into the queue. Only the thread that sends may
+     * call this.
+     */
+    void drainCommands() {
+        commandRing.drainTo(commandQueue);
+    }
+
+    int pendingCommands() {
+        return commandRing.size() + commandQueue.getPending();
+    }
+
+    /**
+     * Makes the network thread notice a changed run flag as fast as possible.
+     */
+    void wakeup() {
+    }
+
+    void stop() {
+        run = false;
+        DatagramSocket socket = discoverySocket;
+        if(socket != null) {
+            // lets a pending receive() return right away
+            socket.close();
+        }
+        wakeup();
+    }
+
+    @Override
+    public void run() {
+        serverAddress = display.getLastAddress();
+        if(display.getMetricsLogInterval() > 0) {
+            handler.postDelayed(metricsLogger, display.getMetricsLogInterval());
+        }
+        int failures = 0;
+        boolean reconnecting = false;
+        while(run) {
+            if(serverAddress == null) {
+                postConnectionChanged(PlussyDisplay.DISCOVERING);
+                serverAddress = listenToSetupBroadcast(0);
+                continue;
+            }
+            postConnectionChanged(reconnecting
+                    ? PlussyDisplay.RECONNECTING : PlussyDisplay.CONNECTING);
+            established = false;
+            connectStart = System.nanoTime();
+            connect(serverAddress);
+            if(!run) {
+                break;
+            }
+            reconnecting = true;
+            if(established) {
+                // the connection broke after it worked, so try again right away
+                failures = 0;
+                continue;
+            }
+            failures++;
+            metrics.connectFailures.incrementAndGet();
+            // or the backoff would end with the same address right away
+            display.getActiveDiscovery().forget(serverAddress);
+            postConnectionChanged(PlussyDisplay.BACKOFF);
+            InetAddress announced = listenToSetupBroadcast(backoff(failures));
+            if(announced != null) {
+                serverAddress = announced;
+            }
+        }
+    }
+
+    /**
+     * @return milliseconds to wait after the given number of failed connects in a row
+     */
+    static long backoff(int failures) {
+        return Math.min(BACKOFF_MAX, (long) BACKOFF_MIN << Math.min(failures - 1, 16));
+    }
+
+    /**
+     * Probes for a display if active discovery is on, then waits for its beacon.
+     * @param timeout milliseconds, 0 to wait until a display is found or the engine stopped
+     * @return the address of the display or null
+     */
+    InetAddress listenToSetupBroadcast(long timeout) {
+        byte[] rBuf = new byte[50];
+        InetAddress serverAddress = null;
+        DatagramSocket socket;
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + timeout;
+        ActiveDiscovery activeDiscovery = display.getActiveDiscovery();
+        if(display.getDiscoveryMode() == PlussyDisplay.DISCOVERY_ACTIVE) {
+            try {
+                serverAddress = activeDiscovery.discover();
+            } catch (IOException e) {
+                Log.e(TAG, "Error: could not send discovery probes.");
+            }
+            if(serverAddress != null) {
+                metrics.discoveryNanos.set(System.nanoTime() - start);
+                return serverAddress;
+            }
+        }
+        try {
+            socket = PlussyDiscovery.openSocket(DISCOVERY_TIMEOUT);
+            discoverySocket = socket;
+        } catch (Exception e) {
+            e.printStackTrace();
+            sleep(timeout > 0 ? timeout : DISCOVERY_TIMEOUT);
+            return null;
+        }
+        DatagramPacket packet = new DatagramPacket(rBuf, rBuf.length);
+        while (run && serverAddress == null) {
+            try {
+                if(timeout > 0) {
+                    long left = deadline - System.currentTimeMillis();
+                    if(left <= 0) {
+                        break;
+                    }
+                    socket.setSoTimeout((int) Math.min(DISCOVERY_TIMEOUT, left));
+                }
+                serverAddress = PlussyDiscovery.receiveBeacon(socket, packet);
+            } catch (InterruptedIOException e) {
+                //Log.e(TAG, "Error: Timeout while waiting for setup packet.");
+            } catch (IOException e) {
+                if(run) {
+                    Log.e(TAG, "Error: could not recieve setup packet");
+                }
+            }
+        }
+        discoverySocket = null;
+        socket.close();
+        if(serverAddress != null) {
+            activeDiscovery.put(serverAddress);
+            metrics.discoveryNanos.set(System.nanoTime() - start);
+        }
+        return serverAddress;
+    }
+
+    // waits without discovery if the discovery port can't be opened, checking the run flag
+    private void sleep(long time) {
+        long deadline = System.currentTimeMillis() + time;
+        long left;
+        while(run && (left = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                Thread.sleep(Math.min(left, 100));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void postConnectionChanged(int state) {
+        handler.post(new ConnectionChangedRunnable(state));
+    }
+
+    void connectionFailed() {
+        Log.e(TAG, "Error could not set up connection to server.");
+        postConnectionChanged(PlussyDisplay.CONNECTION_FAILED);
+    }
+
+    /**
+     * @return nanoseconds SEND_BATCHED holds commands back, chosen by the rate
+     * controller while there is one
+     */
+    long batchNanos() {
+        RateController rate = session.getRateController();
+        return rate != null ? rate.getBatchInterval() : batchNanos;
+    }
+
+    /**
+     * With SEND_BATCHED, tells if commands pending since the given time have to be
+     * written now.
+     */
+    boolean batchDue(long pendingSince, long now) {
+        return sendPolicy != PlussyDisplay.SEND_BATCHED
+                || now - pendingSince >= batchNanos()
+                || pendingCommands() >= batchCommands;
+    }
+
+    @Override
+    public void onSessionEstablished(PlussySession session) {
+        established = true;
+        // the metrics live as long as the display, so this also counts restarts
+        metrics.recordEstablished(connectStart, metrics.connects.get() > 0);
+        display.setLastAddress(serverAddress);
+        postConnectionChanged(PlussyDisplay.CONNECTION_ESTABLISHED);
+        commandsPending();
+    }
+
+    @Override
+    public void onReply(PlussySession session, int colors[], boolean upToDate) {
+        if(colors == null) {
+            Log.e(TAG, "ERROR: wrong command send to server");
+        } else if(upToDate) {
+            // while our own commands are still on their way the reported state is outdated
+            matrixBuffer.publish(colors);
+            matrixFrame.schedule();
+        }
+    }
+
+    @Override
+    public void onCommandsAcknowledged(PlussySession session) {
+        commandsPending();
+    }
+}
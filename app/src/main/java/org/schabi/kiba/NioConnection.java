@@ -0,0 +1,194 @@
+package org.schabi.kiba;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * NioConnection.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * One non-blocking channel to a display, registered on a selector that may be shared
+ * with other connections. Everything except {@link #markPending()},
+ * {@link #getPendingSince()} and {@link #getBlockedSince()} must be called on the
+ * selector's thread.
+ */
+class NioConnection {
+
+    final PlussySession session;
+    private final SendStats sendStats;
+    // commands that still have to be moved into the session's queue, may be null
+    private final CommandRing commandRing;
+    private int sendPolicy = PlussyDisplay.SEND_IMMEDIATE;
+    private SocketChannel channel;
+    private SelectionKey key;
+
+    private final ByteBuffer readByteBuffer;
+    private final byte sendBuffer[];
+    // bytes between position and limit still have to be written
+    private final ByteBuffer sendByteBuffer;
+
+    private volatile boolean hasPendingCommands = false;
+    private volatile long pendingSince = 0;
+    // System.nanoTime() since the socket did not take all of sendByteBuffer, 0 if it did
+    private volatile long blockedSince = 0;
+
+    NioConnection(PlussySession session, SendStats sendStats, CommandRing commandRing) {
+        this.session = session;
+        this.sendStats = sendStats;
+        this.commandRing = commandRing;
+        readByteBuffer = ByteBuffer.wrap(session.readBuffer);
+        sendBuffer = new byte[session.sendBufferSize];
+        sendByteBuffer = ByteBuffer.wrap(sendBuffer);
+        sendByteBuffer.limit(0);
+    }
+
+    /**
+     * Starts connecting. The selector reports OP_CONNECT on the returned key when
+     * {@link #finishConnect(int)} has to be called.
+     * @param sendPolicy one of the PlussyDisplay.SEND_* policies, only SEND_NAGLE leaves
+     *                   Nagle's algorithm on. Batching is up to the caller.
+     */
+    SelectionKey connect(InetAddress address, int port, Selector selector, Object attachment,
+                         int sendPolicy) throws IOException {
+        this.sendPolicy = sendPolicy;
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(sendPolicy != PlussyDisplay.SEND_NAGLE);
+        channel.connect(new InetSocketAddress(address, port));
+        key = channel.register(selector, SelectionKey.OP_CONNECT, attachment);
+        return key;
+    }
+
+    void finishConnect(int preferredProtocol) throws IOException {
+        channel.finishConnect();
+        key.interestOps(SelectionKey.OP_READ);
+        sendByteBuffer.clear();
+        sendByteBuffer.limit(session.begin(preferredProtocol, sendBuffer));
+        write();
+    }
+
+    /**
+     * @return false if the connection was closed by the other side
+     */
+    boolean read() throws IOException {
+        int free = session.compactReadBuffer();
+        readByteBuffer.limit(session.readEnd + free);
+        readByteBuffer.position(session.readEnd);
+        int read = channel.read(readByteBuffer);
+        if(read < 0) {
+            return false;
+        }
+        session.readEnd += read;
+        session.processReadBuffer();
+        return true;
+    }
+
+    void write() throws IOException {
+        channel.write(sendByteBuffer);
+        if(sendByteBuffer.hasRemaining()) {
+            if(blockedSince == 0) {
+                blockedSince = System.nanoTime();
+            }
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } else {
+            blockedSince = 0;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    boolean hasPendingCommands() {
+        return hasPendingCommands;
+    }
+
+    /**
+     * @return System.nanoTime() of the first command that is not sent yet, 0 if none
+     */
+    long getPendingSince() {
+        return pendingSince;
+    }
+
+    /**
+     * @return System.nanoTime() since the send buffer of the socket is full, 0 if the
+     * socket took everything written to it
+     */
+    long getBlockedSince() {
+        return blockedSince;
+    }
+
+    /**
+     * Remembers that the command queue changed. The caller still has to wake up the selector.
+     */
+    void markPending() {
+        if(pendingSince == 0) {
+            pendingSince = System.nanoTime();
+        }
+        hasPendingCommands = true;
+    }
+
+    void sendPendingCommands() throws IOException {
+        if(!session.isEstablished() || sendByteBuffer.hasRemaining()) {
+            // the rest is sent as soon as the socket takes data again
+            return;
+        }
+        hasPendingCommands = false;
+        // only after the flag is cleared, so nothing put into the ring meanwhile is missed
+        if(commandRing != null) {
+            commandRing.drainTo(session.commandQueue);
+        }
+        long since = pendingSince;
+        if(since == 0) {
+            // markPending() raced with the reset below
+            since = System.nanoTime();
+        }
+        sendByteBuffer.clear();
+        int length = session.encodePendingCommands(sendBuffer, 0);
+        // commands held back by a full window stay due
+        if(session.commandQueue.getPending() == 0) {
+            pendingSince = 0;
+        }
+        sendByteBuffer.limit(length);
+        if(length > 0) {
+            write();
+            sendStats.record(sendPolicy, since, session.encodedCommands, length);
+        }
+    }
+
+    boolean isConnected() {
+        return channel != null && channel.isConnected();
+    }
+
+    void close() {
+        session.end();
+        blockedSince = 0;
+        if(key != null) {
+            key.cancel();
+        }
+        try {
+            if(channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
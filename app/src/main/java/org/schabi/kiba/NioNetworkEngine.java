@@ -0,0 +1,161 @@
+package org.schabi.kiba;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * NioNetworkEngine.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Handles the connection with a non-blocking channel on a selector. The network thread
+ * sleeps in select() until data arrives, the socket can take more data, or it is woken
+ * up by new commands or by {@link #stop()}. All writes happen on the network thread.
+ * With SEND_BATCHED new commands only wake it up when a batch starts or is full.
+ */
+class NioNetworkEngine extends NetworkEngine {
+    private static final String TAG = NioNetworkEngine.class.toString();
+
+    private Selector selector;
+    private final NioConnection connection;
+    // while connecting, when to give up
+    private long connectDeadline;
+
+    NioNetworkEngine(PlussyDisplay display, CommandQueue commandQueue, CommandRing commandRing) {
+        super(display, commandQueue, commandRing);
+        connection = new NioConnection(session, display.getSendStats(), commandRing);
+    }
+
+    @Override
+    void connect(InetAddress serverAddress) {
+        SelectionKey key;
+        try {
+            synchronized (this) {
+                selector = Selector.open();
+            }
+            key = connection.connect(serverAddress, PlussyDiscovery.TCP_PORT, selector, null,
+                    sendPolicy);
+            connectDeadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        } catch (IOException e) {
+            connectionFailed();
+            close();
+            return;
+        }
+
+        while(run) {
+            try {
+                int ready = selector.select(selectTimeout());
+                if(!run) {
+                    break;
+                }
+                if(connectDeadline != 0 && System.currentTimeMillis() >= connectDeadline) {
+                    connectionFailed();
+                    break;
+                }
+                if(ready > 0) {
+                    selector.selectedKeys().clear();
+                    if(key.isConnectable()) {
+                        try {
+                            connection.finishConnect(display.getPreferredProtocol());
+                            connectDeadline = 0;
+                        } catch (IOException e) {
+                            connectionFailed();
+                            break;
+                        }
+                    }
+                    if(key.isValid() && key.isReadable() && !connection.read()) {
+                        Log.e(TAG, "Error: connection closed by server.");
+                        break;
+                    }
+                    if(key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                }
+                if(connection.hasPendingCommands()) {
+                    if(batchDue(connection.getPendingSince(), System.nanoTime())) {
+                        connection.sendPendingCommands();
+                    }
+                } else if(ready == 0) {
+                    idleWakeups++;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error: connection to server lost.");
+                break;
+            }
+        }
+        close();
+    }
+
+    // milliseconds until the connect, the negotiation or the current batch runs out,
+    // 0 for none
+    private long selectTimeout() {
+        long timeout = session.checkNegotiationTimeout();
+        if(connectDeadline != 0) {
+            timeout = Math.max(1, connectDeadline - System.currentTimeMillis());
+        }
+        if(sendPolicy == PlussyDisplay.SEND_BATCHED && session.isEstablished()
+                && connection.hasPendingCommands()) {
+            long left = connection.getPendingSince() + batchNanos() - System.nanoTime();
+            long batchTimeout = Math.max(1, (left + 999999) / 1000000);
+            if(timeout == 0 || batchTimeout < timeout) {
+                timeout = batchTimeout;
+            }
+        }
+        return timeout;
+    }
+
+    private void close() {
+        connection.close();
+        try {
+            synchronized (this) {
+                if(selector != null) {
+                    selector.close();
+                    selector = null;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    void commandsPending() {
+        boolean batchStarts = !connection.hasPendingCommands();
+        connection.markPending();
+        // a running batch is ended by the select timeout unless it is full already
+        if(sendPolicy != PlussyDisplay.SEND_BATCHED || batchStarts
+                || pendingCommands() >= batchCommands) {
+            wakeup();
+        }
+    }
+
+    @Override
+    long getSendBlockedSince() {
+        return connection.getBlockedSince();
+    }
+
+    @Override
+    synchronized void wakeup() {
+        if(selector != null) {
+            selector.wakeup();
+        }
+    }
+}
@@ -1,19 +1,12 @@
 package org.schabi.kiba;
 
-import android.os.Handler;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.InterruptedIOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.Socket;
 import java.net.UnknownHostException;
 
 /**
@@ -42,21 +35,107 @@ public class PlussyDisplay {
     public static final int NOT_CONNECTED = 0;
     public static final int CONNECTION_ESTABLISHED = 1;
     public static final int CONNECTION_FAILED = 2;
+    // waiting for the beacon of a display
+    public static final int DISCOVERING = 3;
+    // connecting to a known display
+    public static final int CONNECTING = 4;
+    // a connection attempt failed, waiting before the next one
+    public static final int BACKOFF = 5;
+    // connecting again after the connection broke or failed
+    public static final int RECONNECTING = 6;
     private int networkState = NOT_CONNECTED;
 
-    private static final String BROADCAST_IP = "255.255.255.255";
-    private static final int UDP_PORT = 60000;
-    private static final int TCP_PORT = 60000;
+    private static final String PREFERENCES = "plussy_display";
+    private static final String LAST_ADDRESS = "last_address";
+    private final SharedPreferences preferences;
+    private volatile InetAddress lastAddress;
+
+    public static final int DISCOVERY_PASSIVE = 0;
+    public static final int DISCOVERY_ACTIVE = 1;
+    private static final int PROBE_WINDOW = 300;
+    private static final long DISCOVERY_TTL = 30000;
+    private volatile int discoveryMode = DISCOVERY_ACTIVE;
+    private volatile ActiveDiscovery activeDiscovery =
+            new ActiveDiscovery(PROBE_WINDOW, DISCOVERY_TTL);
+
+    // number of leds and the protocol sizes that follow from it
+    private final MatrixFormat format;
+    private final int ledCount;
+
+    public static final int PROTOCOL_TEXT = 0;
+    public static final int PROTOCOL_BINARY = 1;
+    private volatile int preferredProtocol = PROTOCOL_BINARY;
+    private volatile boolean subscription = false;
+
+    public static final int ENGINE_BLOCKING = 0;
+    public static final int ENGINE_NIO = 1;
+    private int engineType = ENGINE_BLOCKING;
+
+    public static final int SEND_IMMEDIATE = 0;
+    public static final int SEND_BATCHED = 1;
+    public static final int SEND_NAGLE = 2;
+    private volatile int sendPolicy = SEND_IMMEDIATE;
+    private volatile int batchInterval = 2000;
+    private volatile int batchSize = 8;
+    private final SendStats sendStats = new SendStats();
+    private final LinkMetrics linkMetrics = new LinkMetrics();
+    private final RateController rateController = new RateController(CommandQueue.DEFAULT_WINDOW);
+    private volatile boolean adaptiveRate = false;
+    private volatile int metricsLogInterval = 0;
+    private static final int RECORDING_FILE_SIZE = 4 * 1024 * 1024;
+    private static final int RECORDING_FILES = 4;
+    private volatile SessionRecorder recorder;
 
     private Thread networkTread;
-    private NetworkRunnable networkRunnable;
+    private volatile NetworkEngine networkEngine;
     private OnMatrixStateReceivedListener onMatrixStateReceivedListener = null;
     private OnConnectionChangedListener onConnectionChangedListener = null;
 
-    PrintWriter out;
-    BufferedReader in;
+    private final CommandQueue commandQueue;
+    // commands on their way to the network thread, so callers never wait for the socket
+    private static final int RING_SIZE = 256;
+    private final CommandRing commandRing;
+
+    // what the display shows as far as we know, including our queued commands. Its lock
+    // also lets callers on different threads take turns as producer of commandRing.
+    private final int knownMatrix[];
+    private boolean knownMatrixValid = false;
+    private final boolean changedLeds[];
+    // a scene is loaded into this before it is sent
+    private final int sceneColors[];
+
+    public PlussyDisplay() {
+        this(null);
+    }
+
+    /**
+     * @param context used to remember the last display across restarts, so it can be
+     *                connected to without waiting for its beacon. May be null.
+     */
+    public PlussyDisplay(Context context) {
+        this(context, MatrixFormat.PLUSSY);
+    }
+
+    /**
+     * @param format the number of leds of the display, usually taken from its
+     *               {@link LedLayout}
+     */
+    public PlussyDisplay(Context context, MatrixFormat format) {
+        preferences = context == null
+                ? null
+                : context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        this.format = format;
+        ledCount = format.ledCount;
+        commandQueue = new CommandQueue(ledCount);
+        commandRing = new CommandRing(RING_SIZE, ledCount);
+        knownMatrix = new int[ledCount];
+        changedLeds = new boolean[ledCount];
+        sceneColors = new int[ledCount];
+    }
 
     public interface OnMatrixStateReceivedListener {
+        // called at most once per display frame with the newest state, colors must be
+        // copied if they are needed after the call
         void onReceived(int colors[]);
     }
 
@@ -64,171 +143,503 @@ public class PlussyDisplay {
         void onChange(int state);
     }
 
-    private class ConnectionChangedRunnable implements Runnable {
-        int state = 0;
-        ConnectionChangedRunnable(int state) {
-            this.state = state;
-        }
-        @Override
-        public void run() {
-            networkState = state;
-            if (onConnectionChangedListener != null) {
-                onConnectionChangedListener.onChange(state);
-            }
+    // called on the ui thread by the network engine
+    void dispatchConnectionChanged(int state) {
+        networkState = state;
+        invalidateKnownMatrix();
+        if (onConnectionChangedListener != null) {
+            onConnectionChangedListener.onChange(state);
         }
     }
 
-    private int[] parseMatrixUpdate(String message) {
-        message = message.substring(1, message.length());
-        int t[] = new int[20];
-        for(int i = 0; i < 20; i++) {
-            String ledValS = message.substring(i*6, i*6 + 6);
-            t[i] = Integer.valueOf(ledValS, 16);
-        }
-        return t;
-    }
-
-    private class ReplyRunnable implements Runnable {
-        String message;
-        public ReplyRunnable(String message) {
-            this.message = message;
-        }
-        @Override
-        public void run() {
-            switch(message) {
-                case "":
-                    Log.e(TAG, "ERROR: Message from Server is empty.");
-                    break;
-                case "?":
-                    Log.e(TAG, "ERROR: wrong command send to server");
-                    break;
-                default:
-                    if(message.contains("M") || message.contains("R")) {
-                        if(onMatrixStateReceivedListener != null) {
-                            onMatrixStateReceivedListener.onReceived(parseMatrixUpdate(message));
-                        }
-                    } else {
-                        Log.e(TAG, "ERROR: can't handle command: " + message);
-                    }
+    // called on the ui thread by the network engine, at most once per frame. colors is
+    // reused afterwards.
+    void dispatchMatrixState(int colors[]) {
+        synchronized (knownMatrix) {
+            // commands queued after this reply was sent are not part of it
+            if(commandRing.isEmpty() && commandQueue.isIdle()) {
+                System.arraycopy(colors, 0, knownMatrix, 0, ledCount);
+                knownMatrixValid = true;
             }
         }
+        if(onMatrixStateReceivedListener != null) {
+            onMatrixStateReceivedListener.onReceived(colors);
+        }
     }
 
-    private class NetworkRunnable implements Runnable {
-        Handler handler = new Handler();
-        public volatile boolean run = true;
-        private InetAddress listenToSetupBroadcast() {
-            byte[] rBuf = new byte[50];
-            InetAddress serverAddress = null;
-            DatagramSocket socket = null;
-            try {
-                InetAddress broadcastAddress = InetAddress.getByName(BROADCAST_IP);
-                socket = new DatagramSocket(UDP_PORT, broadcastAddress);
-                socket.setSoTimeout(2000);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            while (run && serverAddress == null) {
-                DatagramPacket packet = new DatagramPacket(rBuf, rBuf.length);
+    // called on the network thread
+    InetAddress getLastAddress() {
+        if(lastAddress == null && preferences != null) {
+            String address = preferences.getString(LAST_ADDRESS, null);
+            if(address != null) {
                 try {
-                    socket.receive(packet);
-                    String message = new String(packet.getData()).trim();
-                    if(message.contains("plussyDisplay")) {
-                        serverAddress = InetAddress.getByName(
-                                packet.getAddress().getHostAddress());
-                    }
-                } catch (InterruptedIOException e) {
-                    //Log.e(TAG, "Error: Timeout while waiting for setup packet.");
+                    // only ever a numeric address, so this does no lookup
+                    lastAddress = InetAddress.getByName(address);
                 } catch (UnknownHostException e) {
-                    Log.e(TAG, "Error: Host not known.");
-                } catch (IOException e) {
-                    Log.e(TAG, "Error: could not recieve setup packet");
+                    Log.e(TAG, "Error: remembered address " + address + " not usable.");
                 }
             }
-            socket.close();
-            return serverAddress;
-        }
-
-        private void connect(InetAddress serverAddress) {
-            String message = "";
-            Socket socket = null;
-            boolean messageReceived = false;
-            try {
-                socket = new Socket(serverAddress, TCP_PORT);
-                socket.setSoTimeout(100);
-                out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                handler.post(new ConnectionChangedRunnable(CONNECTION_ESTABLISHED));
-            } catch(Exception e) {
-                Log.e(TAG, "Error could not set up connection to server.");
-                handler.post(new ConnectionChangedRunnable(CONNECTION_FAILED));
-                return;
-            }
+        }
+        return lastAddress;
+    }
 
-            while(run) {
-                try {
-                    message = in.readLine();
-                    messageReceived = true;
-                } catch (Exception e) {
-                    messageReceived = false;
-                }
-                if(messageReceived) {
-                    handler.post(new ReplyRunnable(message));
-                }
-            }
-            try {
-                if(socket != null) {
-                    socket.close();
-                }
-            }catch (IOException e) {
-                e.printStackTrace();
-            }
+    // called on the network thread
+    void setLastAddress(InetAddress address) {
+        if(address.equals(lastAddress)) {
+            return;
+        }
+        lastAddress = address;
+        if(preferences != null) {
+            preferences.edit().putString(LAST_ADDRESS, address.getHostAddress()).apply();
         }
+    }
+
+    /**
+     * Makes the next {@link #startNetworking()} look for a display with discovery
+     * instead of connecting to the last one.
+     */
+    public void forgetLastAddress() {
+        lastAddress = null;
+        if(preferences != null) {
+            preferences.edit().remove(LAST_ADDRESS).apply();
+        }
+    }
+
+    /**
+     * With a subscription the display tells about changes made by other controllers as
+     * they happen, through the same listener as the answers to our own commands, so the
+     * matrix never has to be polled. Notifications that got lost are noticed by their
+     * sequence numbers and the whole matrix is requested once then. Takes effect with
+     * the next connection. Displays that don't support it are used without.
+     */
+    public void setSubscription(boolean subscription) {
+        this.subscription = subscription;
+    }
+
+    boolean isSubscribing() {
+        return subscription;
+    }
+
+    /**
+     * DISCOVERY_PASSIVE waits for the beacon of a display, which may take a whole beacon
+     * interval. DISCOVERY_ACTIVE first probes every local network and waits window
+     * milliseconds for answers, then falls back to the beacon for displays that don't
+     * answer probes. Displays found are remembered for a while either way.
+     */
+    public void setDiscovery(int mode, int window) {
+        discoveryMode = mode;
+        activeDiscovery = new ActiveDiscovery(window, DISCOVERY_TTL);
+    }
+
+    int getDiscoveryMode() {
+        return discoveryMode;
+    }
+
+    ActiveDiscovery getActiveDiscovery() {
+        return activeDiscovery;
+    }
 
-        @Override
-        public void run() {
-            InetAddress serverAddress = listenToSetupBroadcast();
-            connect(serverAddress);
+    private void invalidateKnownMatrix() {
+        synchronized (knownMatrix) {
+            knownMatrixValid = false;
         }
     }
 
     public void startNetworking() {
-        if(networkRunnable != null) {
+        invalidateKnownMatrix();
+        if(networkEngine != null) {
             stopNetworking();
         }
-        networkRunnable = new NetworkRunnable();
-        networkRunnable.run = true;
-        networkTread = new Thread(networkRunnable);
+        if(engineType == ENGINE_NIO) {
+            networkEngine = new NioNetworkEngine(this, commandQueue, commandRing);
+        } else {
+            networkEngine = new BlockingNetworkEngine(this, commandQueue, commandRing);
+        }
+        networkTread = new Thread(networkEngine);
         networkTread.start();
     }
 
     public void stopNetworking() {
-        networkRunnable.run = false;
+        if(networkEngine == null) {
+            return;
+        }
+        networkEngine.stop();
         try {
             networkTread.join();
-            networkRunnable = null;
+            networkEngine = null;
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    private void sendPendingCommands() {
+        NetworkEngine engine = networkEngine;
+        if(engine != null) {
+            engine.commandsPending();
+        }
+    }
+
+    public MatrixFormat getMatrixFormat() {
+        return format;
+    }
+
+    public int getLedCount() {
+        return ledCount;
+    }
+
     public void setLed(int led, int color) {
-        if(led >= 20) {
+        if(led < 0 || led >= ledCount) {
             Log.e(TAG, "Led " + Integer.toString(led) + " not known.");
             return;
         }
-        String ledS = Integer.toHexString(led);
-        if (ledS.length() < 2) {
-            ledS = "0" + ledS;
+        synchronized (knownMatrix) {
+            knownMatrix[led] = color;
+            if(!commandRing.putLed(led, color)) {
+                linkMetrics.commandOverflows.incrementAndGet();
+            }
         }
-        String command = "m" + ledS + Integer.toHexString(color).substring(2, 8);
-        out.println(command);
-        out.flush();
+        sendPendingCommands();
+    }
+
+    /**
+     * Sets several leds with one command each, queued together so they go out in the
+     * same write.
+     * @param leds led numbers, colors holds the color of each at the same index
+     */
+    public void setLeds(int leds[], int colors[], int count) {
+        for(int i = 0; i < count; i++) {
+            if(leds[i] < 0 || leds[i] >= ledCount) {
+                Log.e(TAG, "Led " + Integer.toString(leds[i]) + " not known.");
+                return;
+            }
+        }
+        synchronized (knownMatrix) {
+            for(int i = 0; i < count; i++) {
+                knownMatrix[leds[i]] = colors[i];
+            }
+            if(!commandRing.putLeds(leds, colors, count)) {
+                linkMetrics.commandOverflows.incrementAndGet();
+            }
+        }
+        sendPendingCommands();
+    }
+
+    /**
+     * Sets all leds at once. Only leds that differ from the last known state of the display
+     * are sent, all in one write. If most of them changed and the connection uses the binary
+     * protocol, the whole matrix goes out as a single command instead.
+     * @param colors one color for every led
+     */
+    public void setMatrix(int colors[]) {
+        if(colors.length != ledCount) {
+            Log.e(TAG, "Matrix with " + Integer.toString(colors.length) + " leds not known.");
+            return;
+        }
+        synchronized (knownMatrix) {
+            int changed = 0;
+            for(int i = 0; i < ledCount; i++) {
+                changedLeds[i] = !knownMatrixValid || !sameColor(knownMatrix[i], colors[i]);
+                if(changedLeds[i]) {
+                    changed++;
+                }
+            }
+            if(changed == 0) {
+                return;
+            }
+            // goes through the ring as a whole, so it is never sent only in part
+            if(!commandRing.putMatrix(colors, changedLeds, changed > ledCount / 2)) {
+                linkMetrics.commandOverflows.incrementAndGet();
+            }
+            System.arraycopy(colors, 0, knownMatrix, 0, ledCount);
+            knownMatrixValid = true;
+        }
+        sendPendingCommands();
+    }
+
+    /**
+     * Shows the first frame of a scene of the library with one {@link #setMatrix(int[])}.
+     * Animations are played with an {@link AnimationScheduler} and
+     * {@link SceneLibrary#getSequence(int, boolean)} instead.
+     * @return false if the library is made for a different number of leds
+     */
+    public boolean applyScene(SceneLibrary library, int scene) {
+        if(library.getLedCount() != ledCount) {
+            Log.e(TAG, "Scene library for " + Integer.toString(library.getLedCount())
+                    + " leds not known.");
+            return false;
+        }
+        synchronized (sceneColors) {
+            library.getColors(scene, 0, sceneColors);
+            setMatrix(sceneColors);
+        }
+        return true;
+    }
+
+    // the display has no alpha channel
+    private static boolean sameColor(int a, int b) {
+        return ((a ^ b) & 0xffffff) == 0;
     }
 
     public void requestMatrixState() {
-        out.println("r");
-        out.flush();
+        synchronized (knownMatrix) {
+            if(!commandRing.putRequest()) {
+                linkMetrics.commandOverflows.incrementAndGet();
+            }
+        }
+        sendPendingCommands();
+    }
+
+    /**
+     * Sets how many commands may be sent before the display answered the first one.
+     * A window of 1 waits a full round trip for every command.
+     */
+    public void setMaxCommandsInFlight(int window) {
+        commandQueue.setWindow(window);
+        if(adaptiveRate) {
+            rateController.restart(window);
+        }
+        sendPendingCommands();
+    }
+
+    public int getMaxCommandsInFlight() {
+        return commandQueue.getWindow();
+    }
+
+    /**
+     * Lets a {@link RateController} choose the window of commands in flight from the
+     * round trips of the answered commands, starting with the current window. It keeps
+     * the round trip below {@link #setLatencyTarget(int)} while letting as many commands
+     * through as the link carries. With SEND_BATCHED it also chooses the batch interval,
+     * and an {@link AnimationScheduler} lowers its frame rate to what the link is expected
+     * to carry. Its decisions are part of {@link #getMetrics()}.
+     */
+    public void setAdaptiveRate(boolean adaptive) {
+        if(adaptive && !adaptiveRate) {
+            rateController.restart(commandQueue.getWindow());
+        }
+        adaptiveRate = adaptive;
+        NetworkEngine engine = networkEngine;
+        if(engine != null) {
+            engine.session.setRateController(getRateController());
+        }
+        sendPendingCommands();
+    }
+
+    public boolean isAdaptiveRate() {
+        return adaptiveRate;
+    }
+
+    /**
+     * @param target milliseconds the display may take to answer a command while the
+     *               rate is adaptive
+     */
+    public void setLatencyTarget(int target) {
+        rateController.setTarget(target * 1000000L);
+    }
+
+    RateController getRateController() {
+        return adaptiveRate ? rateController : null;
+    }
+
+    /**
+     * @return nanoseconds the link is expected to take for the given number of commands
+     * while the rate is adaptive, 0 otherwise or if there is no estimate yet
+     */
+    long getExpectedSendTime(int commands) {
+        long rate = adaptiveRate ? rateController.getCommandRate() : 0;
+        return rate == 0 ? 0 : commands * 1000000000L / rate;
+    }
+
+    /**
+     * @return commands queued but not sent to the display yet
+     */
+    public int getPendingCommands() {
+        return commandRing.size() + commandQueue.getPending();
+    }
+
+    /**
+     * Selects the protocol used for the next connection. Binary frames are only used if the
+     * display agrees to them, otherwise the connection falls back to text commands.
+     */
+    public void setPreferredProtocol(int protocol) {
+        preferredProtocol = protocol;
+    }
+
+    int getPreferredProtocol() {
+        return preferredProtocol;
+    }
+
+    public int getProtocol() {
+        NetworkEngine engine = networkEngine;
+        return engine != null ? engine.session.getProtocol() : PROTOCOL_TEXT;
+    }
+
+    /**
+     * Selects how the next connection started with {@link #startNetworking()} is handled:
+     * ENGINE_BLOCKING polls a blocking socket with a short read timeout, ENGINE_NIO waits
+     * on a selector and is woken up right away by new commands.
+     */
+    public void setNetworkEngine(int engineType) {
+        this.engineType = engineType;
+    }
+
+    /**
+     * Selects how queued commands are written on the next connection:
+     * SEND_IMMEDIATE writes them right away with TCP_NODELAY set, SEND_BATCHED also sets
+     * TCP_NODELAY but gathers commands as configured by {@link #setBatching(int, int)} and
+     * writes them at once, SEND_NAGLE writes right away and leaves batching to Nagle's
+     * algorithm, which may hold back small writes until the display acknowledged the last.
+     */
+    public void setSendPolicy(int policy) {
+        sendPolicy = policy;
+    }
+
+    public int getSendPolicy() {
+        return sendPolicy;
+    }
+
+    /**
+     * Configures SEND_BATCHED: commands are written as soon as the oldest waited for
+     * interval microseconds or size commands are pending. The network thread can only
+     * wait for whole milliseconds, so intervals below one millisecond only hold while
+     * more commands keep coming in.
+     */
+    public void setBatching(int interval, int size) {
+        batchInterval = interval < 0 ? 0 : interval;
+        batchSize = size < 1 ? 1 : size;
+    }
+
+    int getBatchInterval() {
+        return batchInterval;
+    }
+
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return how often the network thread woke up without anything to do since
+     * the networking was started.
+     */
+    public long getIdleWakeups() {
+        NetworkEngine engine = networkEngine;
+        return engine != null ? engine.idleWakeups : 0;
+    }
+
+    /**
+     * @return average time in nanoseconds from queueing commands until they were written
+     * to the socket with the current send policy.
+     */
+    public long getAverageSendLatency() {
+        return sendStats.getAverageLatency(sendPolicy);
+    }
+
+    /**
+     * The send statistics are kept for every policy until {@link #resetSendStats()},
+     * so policies can be compared by reconnecting with another one.
+     * @return average time in nanoseconds from queueing commands until they were written
+     */
+    public long getAverageSendLatency(int policy) {
+        return sendStats.getAverageLatency(policy);
+    }
+
+    /**
+     * @return commands written per second with the given policy
+     */
+    public float getSendThroughput(int policy) {
+        return sendStats.getThroughput(policy);
+    }
+
+    public long getSentCommands(int policy) {
+        return sendStats.getCommands(policy);
+    }
+
+    /**
+     * @return number of writes, each carrying one or more commands
+     */
+    public long getSentBatches(int policy) {
+        return sendStats.getBatches(policy);
+    }
+
+    public long getSentBytes(int policy) {
+        return sendStats.getBytes(policy);
+    }
+
+    public void resetSendStats() {
+        sendStats.reset();
+    }
+
+    SendStats getSendStats() {
+        return sendStats;
+    }
+
+    LinkMetrics getLinkMetrics() {
+        return linkMetrics;
+    }
+
+    /**
+     * @return the counters of the link to the display since this object was created
+     */
+    public LinkMetrics.Snapshot getMetrics() {
+        NetworkEngine engine = networkEngine;
+        return linkMetrics.snapshot(commandQueue.getPending(), commandQueue.getInFlight(),
+                engine != null ? engine.getSendBlockedSince() : 0, getRateController());
+    }
+
+    /**
+     * Logs {@link #getMetrics()} every interval milliseconds while networking, starting
+     * with the next {@link #startNetworking()}. 0 turns it off.
+     */
+    public void setMetricsLogInterval(int interval) {
+        metricsLogInterval = interval;
+    }
+
+    int getMetricsLogInterval() {
+        return metricsLogInterval;
+    }
+
+    /**
+     * Records every command sent and every reply received, with their times, into files
+     * named session-start-number.klog in directory, so a problem can be looked at or
+     * replayed with the SessionReplay tool later. Only the last few megabytes are kept,
+     * of this and earlier recordings.
+     * @return false if the first file could not be created
+     */
+    public boolean startRecording(File directory) {
+        stopRecording();
+        try {
+            recorder = new SessionRecorder(directory, "session", ledCount,
+                    RECORDING_FILE_SIZE, RECORDING_FILES);
+        } catch (IOException e) {
+            Log.e(TAG, "Error: could not start recording: " + e.getMessage());
+            return false;
+        }
+        setEngineRecorder(recorder);
+        return true;
+    }
+
+    public void stopRecording() {
+        SessionRecorder old = recorder;
+        if(old == null) {
+            return;
+        }
+        recorder = null;
+        setEngineRecorder(null);
+        old.close();
+        if(old.getError() != null) {
+            Log.e(TAG, "Error: recording stopped early: " + old.getError().getMessage());
+        }
+    }
+
+    private void setEngineRecorder(SessionRecorder recorder) {
+        NetworkEngine engine = networkEngine;
+        if(engine != null) {
+            engine.session.setRecorder(recorder);
+        }
+    }
+
+    SessionRecorder getRecorder() {
+        return recorder;
     }
 
     public void setOnConnectionChangedListener(OnConnectionChangedListener connectionChagedListener) {
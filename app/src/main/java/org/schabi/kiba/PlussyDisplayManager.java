@@ -0,0 +1,828 @@
+package org.schabi.kiba;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * PlussyDisplayManager.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Drives any number of plussy displays with two threads: one keeps listening for
+ * beacons and registers every display it hears of, the other one handles the
+ * connections to all of them on a single selector. Displays that lose their
+ * connection are connected again when their next beacon arrives. A connect that takes
+ * longer than {@link NetworkEngine#CONNECT_TIMEOUT} fails, and beacons of a display whose
+ * connects failed are ignored for a backoff that doubles with every failure.
+ */
+public class PlussyDisplayManager {
+    private static final String TAG = PlussyDisplayManager.class.toString();
+
+    private static final int DISCOVERY_TIMEOUT = 2000;
+    // displays that answer probes are all found within this window after the start
+    private static final int PROBE_WINDOW = 500;
+    // synchronized frames go out this much earlier than the slowest display needs,
+    // so the io thread has time to wake up
+    private static final long SYNC_MARGIN = 2000000L;
+    // a send is due once less than this is left, sleeping would miss it by more
+    private static final long SYNC_SLACK = 500000L;
+    // a send that is later than this counts as late
+    private static final long SYNC_LATE = 1000000L;
+    // nanoseconds the displays may show a synchronized frame apart
+    public static final long DEFAULT_MAX_SKEW = 5000000L;
+    // idle displays are asked for their state this often while clock probes are on
+    private static final long PROBE_INTERVAL = 500000000L;
+
+    public interface OnDeviceFoundListener {
+        void onFound(Device device);
+    }
+
+    public interface OnDeviceConnectionChangedListener {
+        void onChange(Device device, int state);
+    }
+
+    public interface OnDeviceMatrixStateReceivedListener {
+        // at most once per display frame for every device, colors must be copied if
+        // they are needed after the call
+        void onReceived(Device device, int colors[]);
+    }
+
+    private OnDeviceFoundListener onDeviceFoundListener = null;
+    private OnDeviceConnectionChangedListener onDeviceConnectionChangedListener = null;
+    private OnDeviceMatrixStateReceivedListener onDeviceMatrixStateReceivedListener = null;
+
+    private final Handler handler = new Handler();
+    // all managed displays have the same number of leds
+    private final MatrixFormat format;
+    private volatile boolean run = false;
+    private volatile int preferredProtocol = PlussyDisplay.PROTOCOL_BINARY;
+    private int window = CommandQueue.DEFAULT_WINDOW;
+    private final SendStats sendStats = new SendStats();
+    private final LinkMetrics linkMetrics = new LinkMetrics();
+
+    private final HashMap<InetAddress, Device> devices = new HashMap<>();
+    // devices the io thread has to connect to
+    private final ConcurrentLinkedQueue<Device> connectRequests = new ConcurrentLinkedQueue<>();
+    // synchronized frames the io thread has to schedule
+    private final ConcurrentLinkedQueue<SyncFrame> syncRequests = new ConcurrentLinkedQueue<>();
+    private volatile long maxSkew = DEFAULT_MAX_SKEW;
+    private volatile boolean clockProbes = false;
+
+    private Thread discoveryThread;
+    private Thread ioThread;
+    private volatile DatagramSocket discoverySocket;
+    // opened by startNetworking(), woken up from any thread
+    private volatile Selector selector;
+
+    public PlussyDisplayManager() {
+        this(MatrixFormat.PLUSSY);
+    }
+
+    public PlussyDisplayManager(MatrixFormat format) {
+        this.format = format;
+    }
+
+    public class Device implements PlussySession.Listener {
+        private final InetAddress address;
+        private volatile int state = PlussyDisplay.NOT_CONNECTED;
+        // true from the connect request until the connection is closed again
+        private volatile boolean connecting = false;
+        // only touched by the io thread
+        private long connectStart;
+        // System.currentTimeMillis() the running connect fails at, 0 once connected
+        private long connectDeadline;
+        private boolean wasEstablished = false;
+        private int failures = 0;
+        // connect requests before this System.currentTimeMillis() are ignored
+        private volatile long retryAt = 0;
+        // the synchronized frame waiting to be sent and when it is due
+        private SyncFrame syncFrame;
+        private long syncSendAt;
+        // the synchronized frame sent last, until its commands are answered
+        private SyncFrame arrivingFrame;
+        final CommandQueue commandQueue = new CommandQueue(format.ledCount);
+        final PlussySession session = new PlussySession(format, commandQueue, null, this,
+                linkMetrics);
+        final NioConnection connection = new NioConnection(session, sendStats, null);
+        private final MatrixBuffer matrixBuffer = new MatrixBuffer(format.ledCount);
+        private final FrameScheduler matrixFrame = new FrameScheduler(handler, new Runnable() {
+            @Override
+            public void run() {
+                int colors[] = matrixBuffer.take();
+                if(colors != null && onDeviceMatrixStateReceivedListener != null) {
+                    onDeviceMatrixStateReceivedListener.onReceived(Device.this, colors);
+                }
+            }
+        });
+
+        Device(InetAddress address) {
+            this.address = address;
+            commandQueue.setWindow(window);
+        }
+
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        public int getState() {
+            return state;
+        }
+
+        /**
+         * @return median time in nanoseconds the display took to answer a command, -1
+         * if it did not answer one yet
+         */
+        public long getRoundTrip() {
+            return session.clock.getRoundTrip();
+        }
+
+        /**
+         * @return nanoseconds a command is expected to take to the display
+         */
+        public long getOneWayDelay() {
+            return session.clock.getOneWayDelay();
+        }
+
+        /**
+         * @return nanoseconds the one way delay varies by
+         */
+        public long getJitter() {
+            return session.clock.getJitter();
+        }
+
+        @Override
+        public void onSessionEstablished(PlussySession session) {
+            linkMetrics.recordEstablished(connectStart, wasEstablished);
+            wasEstablished = true;
+            failures = 0;
+            postConnectionChanged(this, PlussyDisplay.CONNECTION_ESTABLISHED);
+            connection.markPending();
+        }
+
+        @Override
+        public void onReply(PlussySession session, int colors[], boolean upToDate) {
+            if(colors == null) {
+                Log.e(TAG, "ERROR: wrong command send to " + address);
+            } else if(upToDate) {
+                matrixBuffer.publish(colors);
+                matrixFrame.schedule();
+            }
+        }
+
+        @Override
+        public void onCommandsAcknowledged(PlussySession session) {
+            // called on the io thread, which sends right after handling the reply
+            connection.markPending();
+            if(arrivingFrame != null) {
+                long arrival = session.takeFrameArrival();
+                if(arrival >= 0) {
+                    arrivingFrame.arrived(arrival);
+                    arrivingFrame = null;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostAddress();
+        }
+    }
+
+    // a frame all displays of a group should show at the same moment
+    private class SyncFrame {
+        final ArrayList<Device> group;
+        final int colors[];
+        final long showAt;
+        // only touched by the io thread
+        private int remaining;
+        private long firstArrival = Long.MAX_VALUE;
+        private long lastArrival = Long.MIN_VALUE;
+
+        SyncFrame(Collection<Device> group, int colors[], long showAt) {
+            this.group = new ArrayList<>(group);
+            this.colors = colors.clone();
+            this.showAt = showAt;
+            remaining = this.group.size();
+        }
+
+        // one display answered the frame, which reached it at arrival
+        void arrived(long arrival) {
+            firstArrival = Math.min(firstArrival, arrival);
+            lastArrival = Math.max(lastArrival, arrival);
+            done();
+        }
+
+        // the display was not connected, got a newer frame first or lost the connection
+        // before it answered
+        void dropped() {
+            done();
+        }
+
+        private void done() {
+            if(--remaining > 0 || lastArrival < firstArrival) {
+                return;
+            }
+            // the displays don't say when they show it, so this is measured from the
+            // answers to the frame
+            long skew = lastArrival - firstArrival;
+            linkMetrics.syncFrames.incrementAndGet();
+            linkMetrics.syncSkew.record(skew / 1000);
+            if(skew > maxSkew) {
+                linkMetrics.syncMisses.incrementAndGet();
+            }
+        }
+    }
+
+    // nanoseconds a frame has to go out before it should show: the one way delay, plus
+    // a round trip for every further window of led commands the text protocol needs
+    private long syncLead(Device device) {
+        ClockSync clock = device.session.clock;
+        long lead = clock.getOneWayDelay();
+        if(device.session.getProtocol() != PlussyDisplay.PROTOCOL_BINARY
+                && clock.getRoundTrip() > 0) {
+            lead += (format.ledCount - 1) / device.commandQueue.getWindow()
+                    * clock.getRoundTrip();
+        }
+        return lead;
+    }
+
+    private void postConnectionChanged(final Device device, final int state) {
+        device.state = state;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(onDeviceConnectionChangedListener != null) {
+                    onDeviceConnectionChangedListener.onChange(device, state);
+                }
+            }
+        });
+    }
+
+    private class DiscoveryRunnable implements Runnable {
+        @Override
+        public void run() {
+            byte[] rBuf = new byte[50];
+            DatagramPacket packet = new DatagramPacket(rBuf, rBuf.length);
+            try {
+                // everything that answers within the window, without waiting for beacons
+                for(InetAddress address : new ActiveDiscovery(PROBE_WINDOW, 0)
+                        .discover(Integer.MAX_VALUE)) {
+                    addDevice(address);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error: could not send discovery probes.");
+            }
+            try {
+                discoverySocket = PlussyDiscovery.openSocket(DISCOVERY_TIMEOUT);
+            } catch (Exception e) {
+                Log.e(TAG, "Error: could not listen for setup packets, only added devices are used.");
+                return;
+            }
+            while(run) {
+                try {
+                    InetAddress address = PlussyDiscovery.receiveBeacon(discoverySocket, packet);
+                    if(address != null) {
+                        addDevice(address);
+                    }
+                } catch (InterruptedIOException e) {
+                    // no beacon within the timeout, keep listening
+                } catch (IOException e) {
+                    if(run) {
+                        Log.e(TAG, "Error: could not recieve setup packet");
+                    }
+                }
+            }
+            discoverySocket.close();
+        }
+    }
+
+    private class IoRunnable implements Runnable {
+        // devices with an open or opening connection, only touched by the io thread
+        private final ArrayList<Device> active = new ArrayList<>();
+        // devices with a synchronized frame waiting to be sent
+        private final ArrayList<Device> syncing = new ArrayList<>();
+
+        @Override
+        public void run() {
+            // nanoseconds until the next synchronized frame or probe is due, -1 if none
+            long next = -1;
+            while(run) {
+                try {
+                    selector.select(selectTimeout(next));
+                } catch (IOException e) {
+                    Log.e(TAG, "Error: selector failed.");
+                    break;
+                }
+                if(!run) {
+                    break;
+                }
+                Device device;
+                while((device = connectRequests.poll()) != null) {
+                    open(device);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key, (Device) key.attachment());
+                }
+                checkConnectDeadlines();
+                SyncFrame frame;
+                while((frame = syncRequests.poll()) != null) {
+                    schedule(frame);
+                }
+                next = earliest(sendSyncFrames(), probe());
+                for(int i = active.size() - 1; i >= 0; i--) {
+                    device = active.get(i);
+                    if(device.connection.hasPendingCommands()) {
+                        try {
+                            device.connection.sendPendingCommands();
+                        } catch (IOException e) {
+                            close(device, PlussyDisplay.NOT_CONNECTED);
+                        }
+                    }
+                }
+            }
+            for(int i = active.size() - 1; i >= 0; i--) {
+                close(active.get(i), PlussyDisplay.NOT_CONNECTED);
+            }
+        }
+
+        // milliseconds for select(), 0 to wait until something happens
+        private long selectTimeout(long next) {
+            long timeout = negotiationTimeout();
+            long connect = connectTimeout();
+            if(connect > 0 && (timeout == 0 || connect < timeout)) {
+                timeout = connect;
+            }
+            if(next >= 0) {
+                long millis = Math.max(1, next / 1000000L);
+                if(timeout == 0 || millis < timeout) {
+                    timeout = millis;
+                }
+            }
+            return timeout;
+        }
+
+        private long earliest(long a, long b) {
+            return a < 0 ? b : b < 0 ? a : Math.min(a, b);
+        }
+
+        private void schedule(SyncFrame frame) {
+            for(Device device : frame.group) {
+                if(device.syncFrame != null) {
+                    linkMetrics.syncReplaced.incrementAndGet();
+                    device.syncFrame.dropped();
+                } else {
+                    syncing.add(device);
+                }
+                device.syncFrame = frame;
+                device.syncSendAt = frame.showAt - syncLead(device);
+            }
+        }
+
+        // queues the synchronized frames that are due, returns nanoseconds until the
+        // next one, -1 if there is none
+        private long sendSyncFrames() {
+            long next = -1;
+            long now = System.nanoTime();
+            for(int i = syncing.size() - 1; i >= 0; i--) {
+                Device device = syncing.get(i);
+                long left = device.syncSendAt - now;
+                if(left > SYNC_SLACK) {
+                    next = earliest(next, left);
+                    continue;
+                }
+                SyncFrame frame = device.syncFrame;
+                device.syncFrame = null;
+                syncing.remove(i);
+                if(!device.session.isEstablished()) {
+                    frame.dropped();
+                    continue;
+                }
+                if(!device.commandQueue.putMatrix(frame.colors)) {
+                    for(int led = 0; led < frame.colors.length; led++) {
+                        device.commandQueue.putLed(led, frame.colors[led]);
+                    }
+                }
+                device.connection.markPending();
+                if(-left > SYNC_LATE) {
+                    linkMetrics.syncLateSends.incrementAndGet();
+                }
+                if(device.arrivingFrame != null) {
+                    // answered together with this one, so it can't be told apart
+                    device.arrivingFrame.dropped();
+                }
+                device.arrivingFrame = frame;
+                device.session.trackFrame();
+            }
+            return next;
+        }
+
+        // asks idle displays for their state to get fresh round trips, returns
+        // nanoseconds until the next probe, -1 if probes are off
+        private long probe() {
+            if(!clockProbes) {
+                return -1;
+            }
+            long next = PROBE_INTERVAL;
+            for(int i = active.size() - 1; i >= 0; i--) {
+                Device device = active.get(i);
+                if(!device.session.isEstablished() || !device.commandQueue.isIdle()) {
+                    continue;
+                }
+                long left = PROBE_INTERVAL - device.session.clock.getSampleAge();
+                if(left <= 0) {
+                    device.commandQueue.putRequest();
+                    device.connection.markPending();
+                } else {
+                    next = Math.min(next, left);
+                }
+            }
+            return next;
+        }
+
+        // shortest time until one of the running negotiations gives up, 0 if none is running
+        private long negotiationTimeout() {
+            long timeout = 0;
+            for(int i = active.size() - 1; i >= 0; i--) {
+                long left = active.get(i).session.checkNegotiationTimeout();
+                if(left > 0 && (timeout == 0 || left < timeout)) {
+                    timeout = left;
+                }
+            }
+            return timeout;
+        }
+
+        // shortest time until one of the running connects fails, 0 if none is running
+        private long connectTimeout() {
+            long timeout = 0;
+            long now = System.currentTimeMillis();
+            for(int i = active.size() - 1; i >= 0; i--) {
+                long deadline = active.get(i).connectDeadline;
+                if(deadline != 0) {
+                    long left = Math.max(1, deadline - now);
+                    if(timeout == 0 || left < timeout) {
+                        timeout = left;
+                    }
+                }
+            }
+            return timeout;
+        }
+
+        // a display that is switched off would keep the connect running until the
+        // system gives up, which takes minutes
+        private void checkConnectDeadlines() {
+            long now = System.currentTimeMillis();
+            for(int i = active.size() - 1; i >= 0; i--) {
+                Device device = active.get(i);
+                if(device.connectDeadline != 0 && now >= device.connectDeadline) {
+                    Log.e(TAG, "Error: connecting to " + device + " timed out.");
+                    close(device, PlussyDisplay.CONNECTION_FAILED);
+                }
+            }
+        }
+
+        private void open(Device device) {
+            try {
+                device.connectStart = System.nanoTime();
+                device.connectDeadline = System.currentTimeMillis()
+                        + NetworkEngine.CONNECT_TIMEOUT;
+                device.connection.connect(device.address, PlussyDiscovery.TCP_PORT, selector, device,
+                        PlussyDisplay.SEND_IMMEDIATE);
+                active.add(device);
+            } catch (IOException e) {
+                Log.e(TAG, "Error could not set up connection to " + device);
+                close(device, PlussyDisplay.CONNECTION_FAILED);
+            }
+        }
+
+        private void handleKey(SelectionKey key, Device device) {
+            try {
+                if(key.isConnectable()) {
+                    device.connection.finishConnect(preferredProtocol);
+                    device.connectDeadline = 0;
+                }
+                if(key.isValid() && key.isReadable() && !device.connection.read()) {
+                    Log.e(TAG, "Error: connection closed by " + device);
+                    close(device, PlussyDisplay.NOT_CONNECTED);
+                    return;
+                }
+                if(key.isValid() && key.isWritable()) {
+                    device.connection.write();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error: connection to " + device + " lost.");
+                close(device, device.session.isEstablished()
+                        ? PlussyDisplay.NOT_CONNECTED : PlussyDisplay.CONNECTION_FAILED);
+            }
+        }
+
+        private void close(Device device, int state) {
+            if(state == PlussyDisplay.CONNECTION_FAILED) {
+                linkMetrics.connectFailures.incrementAndGet();
+                device.failures++;
+                device.retryAt = System.currentTimeMillis()
+                        + NetworkEngine.backoff(device.failures);
+            }
+            device.connectDeadline = 0;
+            if(device.arrivingFrame != null) {
+                device.arrivingFrame.dropped();
+                device.arrivingFrame = null;
+            }
+            device.connection.close();
+            active.remove(device);
+            device.connecting = false;
+            postConnectionChanged(device, state);
+        }
+    }
+
+    /**
+     * Starts listening for displays and connecting to them.
+     */
+    public void startNetworking() {
+        if(run) {
+            stopNetworking();
+        }
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            Log.e(TAG, "Error: could not open selector.");
+            return;
+        }
+        run = true;
+        synchronized (devices) {
+            for(Device device : devices.values()) {
+                requestConnect(device);
+            }
+        }
+        ioThread = new Thread(new IoRunnable());
+        ioThread.start();
+        discoveryThread = new Thread(new DiscoveryRunnable());
+        discoveryThread.start();
+    }
+
+    public void stopNetworking() {
+        if(!run) {
+            return;
+        }
+        run = false;
+        DatagramSocket socket = discoverySocket;
+        if(socket != null) {
+            socket.close();
+        }
+        selector.wakeup();
+        try {
+            discoveryThread.join();
+            ioThread.join();
+            selector.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        connectRequests.clear();
+        synchronized (devices) {
+            for(Device device : devices.values()) {
+                device.connecting = false;
+                // the next start tries every display right away
+                device.failures = 0;
+                device.retryAt = 0;
+            }
+        }
+    }
+
+    /**
+     * Registers a display without waiting for its beacon, and connects to it if it is
+     * not connected yet and not backing off from failed connects.
+     */
+    public Device addDevice(InetAddress address) {
+        Device device;
+        boolean isNew = false;
+        synchronized (devices) {
+            device = devices.get(address);
+            if(device == null) {
+                device = new Device(address);
+                devices.put(address, device);
+                isNew = true;
+            }
+        }
+        if(isNew) {
+            final Device found = device;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(onDeviceFoundListener != null) {
+                        onDeviceFoundListener.onFound(found);
+                    }
+                }
+            });
+        }
+        if(run) {
+            requestConnect(device);
+        }
+        return device;
+    }
+
+    private void requestConnect(Device device) {
+        if(!device.connecting && System.currentTimeMillis() >= device.retryAt) {
+            device.connecting = true;
+            connectRequests.add(device);
+            selector.wakeup();
+        }
+    }
+
+    public Device[] getDevices() {
+        synchronized (devices) {
+            return devices.values().toArray(new Device[devices.size()]);
+        }
+    }
+
+    public void setLed(Device device, int led, int color) {
+        if(led < 0 || led >= format.ledCount) {
+            Log.e(TAG, "Led " + Integer.toString(led) + " not known.");
+            return;
+        }
+        device.commandQueue.putLed(led, color);
+        device.connection.markPending();
+        wakeup();
+    }
+
+    /**
+     * Sets the led on every display in group. All commands go out in the same pass of
+     * the io thread.
+     */
+    public void setLed(Collection<Device> group, int led, int color) {
+        if(led < 0 || led >= format.ledCount) {
+            Log.e(TAG, "Led " + Integer.toString(led) + " not known.");
+            return;
+        }
+        for(Device device : group) {
+            device.commandQueue.putLed(led, color);
+            device.connection.markPending();
+        }
+        wakeup();
+    }
+
+    public void setLedOnAll(int led, int color) {
+        Device all[] = getDevices();
+        ArrayList<Device> group = new ArrayList<>(all.length);
+        for(Device device : all) {
+            group.add(device);
+        }
+        setLed(group, led, color);
+    }
+
+    public void requestMatrixState(Device device) {
+        device.commandQueue.putRequest();
+        device.connection.markPending();
+        wakeup();
+    }
+
+    public void requestMatrixStateOnAll() {
+        for(Device device : getDevices()) {
+            device.commandQueue.putRequest();
+            device.connection.markPending();
+        }
+        wakeup();
+    }
+
+    /**
+     * Shows colors on every display of group at the same moment, as soon as the slowest
+     * of them can make it.
+     * @return System.nanoTime() the frame is going to be shown at
+     * @see #setMatrixSynchronized(Collection, int[], long)
+     */
+    public long setMatrixSynchronized(Collection<Device> group, int colors[]) {
+        long lead = 0;
+        for(Device device : group) {
+            lead = Math.max(lead, syncLead(device));
+        }
+        long showAt = System.nanoTime() + lead + SYNC_MARGIN;
+        setMatrixSynchronized(group, colors, showAt);
+        return showAt;
+    }
+
+    /**
+     * Shows colors on every display of group at the System.nanoTime() showAt. Each
+     * display gets the frame ahead of showAt by its one way delay, as estimated from the
+     * round trips of its commands, plus a round trip for every further window of led
+     * commands with the text protocol. A display too slow to make it in time shows the
+     * frame as soon as it can, one that got a newer frame first skips it. How far apart
+     * the displays got the frame, measured from their answers to it, is in the sync
+     * fields of {@link #getMetrics()}.
+     */
+    public void setMatrixSynchronized(Collection<Device> group, int colors[], long showAt) {
+        if(colors.length != format.ledCount) {
+            Log.e(TAG, "Error: matrix has " + colors.length + " leds instead of "
+                    + format.ledCount + ".");
+            return;
+        }
+        syncRequests.add(new SyncFrame(group, colors, showAt));
+        wakeup();
+    }
+
+    /**
+     * @param skew nanoseconds the displays may get a synchronized frame apart, frames
+     *             that are further apart are counted as misses in the metrics
+     */
+    public void setMaxSkew(long skew) {
+        maxSkew = skew;
+    }
+
+    /**
+     * Asks displays that have been idle for half a second for their state, so the
+     * delays synchronized frames are sent ahead by stay up to date. The answers reach
+     * the matrix state listener like any other.
+     */
+    public void setClockProbes(boolean probes) {
+        clockProbes = probes;
+        wakeup();
+    }
+
+    private void wakeup() {
+        Selector s = selector;
+        if(run && s != null) {
+            s.wakeup();
+        }
+    }
+
+    /**
+     * Sets the window of commands in flight for all current and future displays.
+     */
+    public void setMaxCommandsInFlight(int window) {
+        this.window = window;
+        for(Device device : getDevices()) {
+            device.commandQueue.setWindow(window);
+            device.connection.markPending();
+        }
+        wakeup();
+    }
+
+    public void setPreferredProtocol(int protocol) {
+        preferredProtocol = protocol;
+    }
+
+    /**
+     * @return average time in nanoseconds from queueing commands until they were written,
+     * over all devices. Commands are always sent right away with TCP_NODELAY.
+     */
+    public long getAverageSendLatency() {
+        return sendStats.getAverageLatency(PlussyDisplay.SEND_IMMEDIATE);
+    }
+
+    /**
+     * @return the counters of all devices together
+     */
+    public LinkMetrics.Snapshot getMetrics() {
+        int queued = 0;
+        int inFlight = 0;
+        long blockedSince = 0;
+        for(Device device : getDevices()) {
+            queued += device.commandQueue.getPending();
+            inFlight += device.commandQueue.getInFlight();
+            long since = device.connection.getBlockedSince();
+            if(since != 0 && (blockedSince == 0 || since < blockedSince)) {
+                blockedSince = since;
+            }
+        }
+        return linkMetrics.snapshot(queued, inFlight, blockedSince);
+    }
+
+    public void setOnDeviceFoundListener(OnDeviceFoundListener listener) {
+        this.onDeviceFoundListener = listener;
+    }
+
+    public void setOnDeviceConnectionChangedListener(OnDeviceConnectionChangedListener listener) {
+        this.onDeviceConnectionChangedListener = listener;
+    }
+
+    public void setOnDeviceMatrixStateReceivedListener(OnDeviceMatrixStateReceivedListener listener) {
+        this.onDeviceMatrixStateReceivedListener = listener;
+    }
+}
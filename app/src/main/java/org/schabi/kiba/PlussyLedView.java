@@ -4,12 +4,15 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.PointF;
+import android.graphics.Rect;
+import android.os.Handler;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 
+import java.util.Arrays;
+
 /**
  * Created by Christian Schabesberger on 13.09.15.
  *
@@ -37,42 +40,50 @@ public class PlussyLedView extends View {
     public static final int G_MASK = (0xFF << 8);
     public static final int B_MASK = (0xFF << 16);
 
-    private class LedTuple {
-        public PointF position;
-        public int ledNumber;
-        public int color;
-    }
-
     private Paint ledPaint;
     private Paint cursorPaint;
-    private float width;
-    private float height;
-    private float length;
-    private float groupLength;
-    private float ledAlign;
-    private float ledRadius;
-
-    private float cursorRadius;
-    private PointF cursorPos = new PointF();
+
+    // bounds of the leds changed by one update. Only software rendering and hardware
+    // rendering before Android 5 redraw just these, later versions redraw the view, so
+    // the cost of an update is in not redrawing at all when nothing changed.
+    private final Rect dirty = new Rect();
+
+    // positions of the leds, colors are indexed the same way
+    private LedLayout layout = LedLayout.plussy(new int[20]);
+    private int ledColors[] = new int[20];
+
+    // index into the layout of the led the cursor is drawn around
+    private int cursor;
     private int selectedLed;
     private static final int cursorColour = 0xffffffff;
     private int colorAtCursor = 0xffff0000;
 
-    private LedTuple ledGuiMap[] = new LedTuple[20];
-    private int mapping[] = new int[20];
-
     public interface OnLedChangedListener {
-        void onChange(int led, int color);
+        // called at most once per display frame with every led changed since the last
+        // call, the arrays are reused afterwards
+        void onChange(int leds[], int colors[], int count);
     }
 
     private OnLedChangedListener listener;
 
+    // places changed since the listener was called last, each listed once with the color
+    // painted last, and where in the list a place is
+    private int changedPlaces[] = new int[20];
+    private boolean placeChanged[] = new boolean[20];
+    private int changedSlot[] = new int[20];
+    private int changedCount = 0;
+    private int changedLeds[] = new int[20];
+    private int changedColors[] = new int[20];
+    private FrameScheduler changeFrame;
+
+    // end of the stroke so far and the leds the last part of it passed over
+    private float strokeX;
+    private float strokeY;
+    private int strokeHits[] = new int[20];
+
     public PlussyLedView(Context context, AttributeSet attrs) {
         super(context, attrs);
-        for(int i = 0; i < 20; i++) {
-            ledGuiMap[i] = new LedTuple();
-            ledGuiMap[i].color = 0xff009900;
-        }
+        Arrays.fill(ledColors, 0xff009900);
 
         // init paint
         ledPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
@@ -80,43 +91,20 @@ public class PlussyLedView extends View {
 
         cursorPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         cursorPaint.setStyle(Paint.Style.FILL);
-        cursorPaint.setColor(Color.WHITE);
-    }
+        cursorPaint.setColor(cursorColour);
 
-    private void mapGroup(float x, float y, int startIndex, int tl, int tr, int bl, int br) {
-        ledGuiMap[startIndex].ledNumber = tl;
-        ledGuiMap[startIndex].position = new PointF(x - (groupLength/4), y - (groupLength/4));
-        ledGuiMap[startIndex + 1].ledNumber = tr;
-        ledGuiMap[startIndex + 1].position = new PointF(x + (groupLength/4), y - (groupLength/4));
-        ledGuiMap[startIndex + 2].ledNumber = bl;
-        ledGuiMap[startIndex + 2].position = new PointF(x - (groupLength/4), y + (groupLength/4));
-        ledGuiMap[startIndex + 3].ledNumber = br;
-        ledGuiMap[startIndex + 3].position = new PointF(x + (groupLength/4), y + (groupLength/4));
+        changeFrame = new FrameScheduler(new Handler(), new Runnable() {
+            @Override
+            public void run() {
+                dispatchChangedLeds();
+            }
+        });
     }
 
-
     @Override
     protected void onSizeChanged(int w, int h, int oldW, int oldH) {
-        width = w;
-        height = h;
-        length = width > height ? height : width;
-        groupLength = length/3;
-        ledAlign = length/100;
-        cursorRadius = groupLength/4;
-        ledRadius = cursorRadius - ledAlign/2;
-
-        // top group
-        mapGroup(width / 2, height / 2 - groupLength, 0, mapping[0], mapping[1], mapping[2], mapping[3]);
-        // left group
-        mapGroup(width / 2 - groupLength, height / 2, 4, mapping[4], mapping[5], mapping[10], mapping[11]);
-        // middle group
-        mapGroup(width / 2, height / 2, 8, mapping[6], mapping[7], mapping[12], mapping[13]);
-        // right group
-        mapGroup(width / 2 + groupLength, height / 2, 12, mapping[8], mapping[9], mapping[14], mapping[15]);
-        // bottom group
-        mapGroup(width / 2, height / 2 + groupLength, 16, mapping[16], mapping[17], mapping[18], mapping[19]);
-
-        cursorPos = ledGuiMap[0].position;
+        layout.fit(w, h);
+        cursor = 0;
     }
 
     @Override
@@ -145,57 +133,171 @@ public class PlussyLedView extends View {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        cursorPaint.setColor(cursorColour);
-        canvas.drawCircle(cursorPos.x, cursorPos.y, cursorRadius, cursorPaint);
-        for(int i = 0; i < 20; i++) {
-            LedTuple ledm = ledGuiMap[i];
-            ledPaint.setColor(ledm.color);
-            canvas.drawCircle(ledm.position.x, ledm.position.y, ledRadius, ledPaint);
+        canvas.drawCircle(layout.x[cursor], layout.y[cursor], layout.getCursorRadius(),
+                cursorPaint);
+        drawLeds(canvas);
+    }
+
+    private void drawLeds(Canvas canvas) {
+        float ledRadius = layout.getLedRadius();
+        float x[] = layout.x;
+        float y[] = layout.y;
+        int count = layout.getCount();
+        int paintColor = ledColors[0] + 1;
+        for(int i = 0; i < count; i++) {
+            // big matrices often have runs of leds with the same color
+            if(ledColors[i] != paintColor) {
+                paintColor = ledColors[i];
+                ledPaint.setColor(paintColor);
+            }
+            canvas.drawCircle(x[i], y[i], ledRadius, ledPaint);
+        }
+    }
+
+    private void ledChanged(int index) {
+        addDirty(layout.x[index], layout.y[index], layout.getLedRadius());
+    }
+
+    private void cursorMoved(int from, int to) {
+        float radius = Math.max(layout.getCursorRadius(), layout.getLedRadius());
+        addDirty(layout.x[from], layout.y[from], radius);
+        addDirty(layout.x[to], layout.y[to], radius);
+    }
+
+    private void addDirty(float x, float y, float radius) {
+        // one more pixel for anti aliasing and one for rounding
+        radius += 2;
+        dirty.union((int) (x - radius), (int) (y - radius),
+                (int) Math.ceil(x + radius), (int) Math.ceil(y + radius));
+    }
+
+    private void invalidateDirty() {
+        if(!dirty.isEmpty()) {
+            invalidate(dirty);
+            dirty.setEmpty();
         }
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-        float tx = event.getX();
-        float ty = event.getY();
-        for(int i = 0; i < 20; i++) {
-            LedTuple led = ledGuiMap[i];
-            if((led.position.x - ledRadius < tx && tx < led.position.x + ledRadius) &&
-                    (led.position.y - ledRadius < ty && ty < led.position.y + ledRadius)) {
-                PointF lastCursorPos = cursorPos;
-                cursorPos = led.position;
-                selectedLed = i;
-                ledGuiMap[selectedLed].color = colorAtCursor;
-                if(lastCursorPos != cursorPos) {
-                    this.invalidate();
-                    if(listener != null) {
-                        listener.onChange(ledGuiMap[selectedLed].ledNumber, ledGuiMap[selectedLed].color);
-                    }
-                }
-                break;
+        int action = event.getActionMasked();
+        if(action == MotionEvent.ACTION_DOWN) {
+            strokeX = event.getX();
+            strokeY = event.getY();
+            int hit = layout.hitTest(strokeX, strokeY);
+            if(hit >= 0) {
+                paintLed(hit);
+                moveCursor(hit);
+            }
+        } else if(action == MotionEvent.ACTION_MOVE || action == MotionEvent.ACTION_UP) {
+            // a fast stroke brings several samples per event, all of them are painted
+            for(int h = 0; h < event.getHistorySize(); h++) {
+                strokeTo(event.getHistoricalX(h), event.getHistoricalY(h));
             }
+            strokeTo(event.getX(), event.getY());
         }
+        invalidateDirty();
         return true;
     }
 
+    // paints every led between the end of the stroke and the given point
+    private void strokeTo(float x, float y) {
+        int hits = layout.hitSegment(strokeX, strokeY, x, y, strokeHits);
+        for(int i = 0; i < hits; i++) {
+            paintLed(strokeHits[i]);
+        }
+        strokeX = x;
+        strokeY = y;
+        int hit = layout.hitTest(x, y);
+        if(hit >= 0) {
+            moveCursor(hit);
+        }
+    }
+
+    private void moveCursor(int place) {
+        if(place != cursor) {
+            cursorMoved(cursor, place);
+            cursor = place;
+        }
+        selectedLed = place;
+    }
+
+    private void paintLed(int place) {
+        if(ledColors[place] == colorAtCursor) {
+            return;
+        }
+        ledColors[place] = colorAtCursor;
+        ledChanged(place);
+        if(!placeChanged[place]) {
+            placeChanged[place] = true;
+            changedSlot[place] = changedCount;
+            changedPlaces[changedCount++] = place;
+            changeFrame.schedule();
+        }
+        // taken now, a matrix update may show an older color before the listener is called
+        changedColors[changedSlot[place]] = colorAtCursor;
+    }
+
+    private void dispatchChangedLeds() {
+        int count = changedCount;
+        for(int i = 0; i < count; i++) {
+            int place = changedPlaces[i];
+            placeChanged[place] = false;
+            changedLeds[i] = layout.ledNumber[place];
+        }
+        changedCount = 0;
+        if(count > 0 && listener != null) {
+            listener.onChange(changedLeds, changedColors, count);
+        }
+    }
+
+    /**
+     * Paints the led under the cursor. The listener learns about it with the next frame.
+     */
     public void setColourAtCursor(int color) {
         colorAtCursor = color;
-        ledGuiMap[selectedLed].color = colorAtCursor;
-        if(listener != null) {
-            listener.onChange(ledGuiMap[selectedLed].ledNumber, ledGuiMap[selectedLed].color);
-        }
-        invalidate();
+        paintLed(selectedLed);
+        invalidateDirty();
     }
 
     public void updateMatrix(int color[]) {
-        for(int i = 0; i < 20; i++) {
-            ledGuiMap[i].color = (0xff << 24) | (color[ledGuiMap[i].ledNumber] & 0xffffff);
+        int count = layout.getCount();
+        int ledNumber[] = layout.ledNumber;
+        for(int i = 0; i < count; i++) {
+            // painted but not passed to the listener yet, the display does not know it
+            if(placeChanged[i]) {
+                continue;
+            }
+            int newColor = (0xff << 24) | (color[ledNumber[i]] & 0xffffff);
+            // replies mostly repeat what is shown already
+            if(ledColors[i] != newColor) {
+                ledColors[i] = newColor;
+                ledChanged(i);
+            }
         }
-        invalidate();
+        invalidateDirty();
     }
 
-    public void setMapping(int mapping[]) {
-        this.mapping = mapping;
+    /**
+     * @param layout where to draw the leds, the matrix colors passed to
+     *               {@link #updateMatrix(int[])} are indexed by its led numbers
+     */
+    public void setLayout(LedLayout layout) {
+        this.layout = layout;
+        ledColors = new int[layout.getCount()];
+        Arrays.fill(ledColors, 0xff009900);
+        int count = layout.getCount();
+        changedPlaces = new int[count];
+        placeChanged = new boolean[count];
+        changedSlot = new int[count];
+        changedCount = 0;
+        changedLeds = new int[count];
+        changedColors = new int[count];
+        strokeHits = new int[count];
+        cursor = selectedLed = 0;
+        if(getWidth() > 0 && getHeight() > 0) {
+            layout.fit(getWidth(), getHeight());
+        }
         invalidate();
     }
 
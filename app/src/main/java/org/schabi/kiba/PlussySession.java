@@ -0,0 +1,510 @@
+package org.schabi.kiba;
+
+import android.util.Log;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * PlussySession.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Protocol state of one connection to a display: negotiation, decoding of the replies
+ * in readBuffer and encoding of queued commands. It does no I/O itself, so the same
+ * session works with blocking sockets as well as with channels on a shared selector.
+ */
+class PlussySession {
+    private static final String TAG = PlussySession.class.toString();
+
+    static final int NEGOTIATION_TIMEOUT = 1000;
+    private static final int MIN_READ_BUFFER_SIZE = 512;
+
+    interface Listener {
+        void onSessionEstablished(PlussySession session);
+        // colors is null if the display did not understand a command, otherwise it is
+        // only valid during the call
+        void onReply(PlussySession session, int colors[], boolean upToDate);
+        // called once after a batch of replies freed slots in the window
+        void onCommandsAcknowledged(PlussySession session);
+    }
+
+    final MatrixFormat format;
+    final CommandQueue commandQueue;
+    private final CommandRing commandRing;
+    private final Listener listener;
+    private final LinkMetrics metrics;
+    // round trips of the answered commands, kept across connections
+    final ClockSync clock = new ClockSync();
+
+    // the longest command is a matrix frame
+    private final int maxCommandLength;
+    // a full window of text "m" lines, or one matrix among them
+    final int sendBufferSize;
+    // room for two text matrix lines
+    final byte readBuffer[];
+    // number of commands written by the last encodePendingCommands()
+    int encodedCommands = 0;
+    // bytes at the end of readBuffer already counted by processReadBuffer()
+    private int pendingBytes = 0;
+    private final int matrixColors[];
+    // replies are parsed into this, so reading allocates nothing
+    private final int replyColors[];
+    int readStart = 0;
+    int readEnd = 0;
+
+    private volatile int protocol = PlussyDisplay.PROTOCOL_TEXT;
+    // if the session subscribes to change notifications once it is established
+    private volatile boolean subscribe = false;
+    // set once the display answered the subscription
+    private boolean subscribed = false;
+    private int lastSequence;
+    private volatile boolean established = false;
+    // gets a copy of every byte sent and received if set
+    private volatile SessionRecorder recorder;
+    // chooses the window from the round trips if set
+    private volatile RateController rateController;
+    private boolean negotiating = false;
+    private long negotiationDeadline;
+    // answers missing until the commands of the tracked frame are all answered, 0 if no
+    // frame is tracked, and when it reached the display, -1 until then
+    private int frameAnswersLeft = 0;
+    private long frameArrival = -1;
+
+    /**
+     * @param commandRing where commands wait before they reach commandQueue, null if
+     *                    they are put into the queue directly
+     */
+    PlussySession(MatrixFormat format, CommandQueue commandQueue, CommandRing commandRing,
+                  Listener listener, LinkMetrics metrics) {
+        this.format = format;
+        this.commandQueue = commandQueue;
+        this.commandRing = commandRing;
+        this.listener = listener;
+        this.metrics = metrics;
+        maxCommandLength = Math.max(format.binaryMatrixLength, format.textSetLedLength);
+        sendBufferSize = CommandQueue.MAX_WINDOW * format.textSetLedLength + maxCommandLength;
+        readBuffer = new byte[Math.max(MIN_READ_BUFFER_SIZE, 2 * (format.textMatrixLength + 2))];
+        matrixColors = new int[format.ledCount];
+        replyColors = new int[format.ledCount];
+    }
+
+    /**
+     * Starts the session on a fresh connection. Commands still queued from the last
+     * connection are sent once the session is established.
+     * @return number of bytes written to dst that have to be sent before anything else
+     */
+    int begin(int preferredProtocol, byte dst[]) {
+        readStart = readEnd = pendingBytes = 0;
+        established = false;
+        frameAnswersLeft = 0;
+        frameArrival = -1;
+        commandQueue.restart();
+        SessionRecorder recorder = this.recorder;
+        if(recorder != null) {
+            recorder.record(SessionRecorder.CONNECTED);
+        }
+        if(preferredProtocol != PlussyDisplay.PROTOCOL_BINARY) {
+            established(PlussyDisplay.PROTOCOL_TEXT);
+            return 0;
+        }
+        negotiating = true;
+        negotiationDeadline = System.currentTimeMillis() + NEGOTIATION_TIMEOUT;
+        dst[0] = PlussyBinaryCodec.NEGOTIATE_COMMAND;
+        dst[1] = '\n';
+        metrics.bytesOut.addAndGet(2);
+        if(recorder != null) {
+            recorder.record(SessionRecorder.SENT, dst, 0, 2);
+        }
+        return 2;
+    }
+
+    /**
+     * Records everything sent and received from now on, null stops it. Closing the
+     * recorder is up to the caller.
+     */
+    void setRecorder(SessionRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Lets rateController choose the window of the command queue from now on, null
+     * keeps the window as it is.
+     */
+    void setRateController(RateController rateController) {
+        this.rateController = rateController;
+    }
+
+    RateController getRateController() {
+        return rateController;
+    }
+
+    /**
+     * Makes the next session ask the display to notify it about changes of other
+     * clients. Displays that don't support it keep working without notifications.
+     */
+    void setSubscribe(boolean subscribe) {
+        this.subscribe = subscribe;
+    }
+
+    private void established(int protocol) {
+        this.protocol = protocol;
+        commandQueue.setMatrixSupported(protocol == PlussyDisplay.PROTOCOL_BINARY);
+        negotiating = false;
+        subscribed = false;
+        if(subscribe) {
+            commandQueue.putSubscribe();
+        }
+        established = true;
+        listener.onSessionEstablished(this);
+    }
+
+    void end() {
+        established = false;
+        negotiating = false;
+        SessionRecorder recorder = this.recorder;
+        if(recorder != null) {
+            recorder.record(SessionRecorder.DISCONNECTED);
+        }
+    }
+
+    boolean isEstablished() {
+        return established;
+    }
+
+    int getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Falls back to the text protocol if the display did not answer the negotiation.
+     * @return milliseconds until the negotiation times out, 0 if no negotiation is running
+     */
+    long checkNegotiationTimeout() {
+        if(!negotiating) {
+            return 0;
+        }
+        long left = negotiationDeadline - System.currentTimeMillis();
+        if(left <= 0) {
+            established(PlussyDisplay.PROTOCOL_TEXT);
+            return 0;
+        }
+        return left;
+    }
+
+    /**
+     * Moves unread data to the front of readBuffer.
+     * @return free space behind readEnd
+     */
+    int compactReadBuffer() {
+        if(readStart > 0) {
+            System.arraycopy(readBuffer, readStart, readBuffer, 0, readEnd - readStart);
+            readEnd -= readStart;
+            readStart = 0;
+        }
+        if(readEnd == readBuffer.length) {
+            Log.e(TAG, "ERROR: message from server too long, dropping it.");
+            readEnd = pendingBytes = 0;
+        }
+        return readBuffer.length - readEnd;
+    }
+
+    /**
+     * Encodes as many queued commands as the window and dst allow. Callers sending from
+     * more than one thread have to hold the commandQueue's lock until the bytes are written.
+     * @return number of bytes written to dst
+     */
+    int encodePendingCommands(byte dst[], int offset) {
+        int command;
+        int length = 0;
+        encodedCommands = 0;
+        boolean binary = protocol == PlussyDisplay.PROTOCOL_BINARY;
+        // whatever is left over goes out with the next acknowledgement
+        while(offset + length + maxCommandLength <= dst.length
+                && (command = commandQueue.poll()) != CommandQueue.NO_COMMAND) {
+            if(command == CommandQueue.REQUEST_STATE) {
+                length += binary
+                        ? PlussyBinaryCodec.encodeRequestState(dst, offset + length)
+                        : PlussyCodec.encodeRequestState(dst, offset + length);
+            } else if(command == CommandQueue.SUBSCRIBE) {
+                length += binary
+                        ? PlussyBinaryCodec.encodeSubscribe(dst, offset + length)
+                        : PlussyCodec.encodeSubscribe(dst, offset + length);
+            } else if(command == CommandQueue.SET_MATRIX) {
+                // only queued while the binary protocol is in use
+                for(int i = 0; i < matrixColors.length; i++) {
+                    matrixColors[i] = commandQueue.getColor(i);
+                }
+                length += PlussyBinaryCodec.encodeSetMatrix(format, matrixColors, dst,
+                        offset + length);
+            } else {
+                int color = commandQueue.getColor(command);
+                length += binary
+                        ? PlussyBinaryCodec.encodeSetLed(format, command, color, dst, offset + length)
+                        : PlussyCodec.encodeSetLed(format, command, color, dst, offset + length);
+            }
+            encodedCommands++;
+        }
+        if(encodedCommands > 0) {
+            metrics.commandsSent.addAndGet(encodedCommands);
+            metrics.bytesOut.addAndGet(length);
+            SessionRecorder recorder = this.recorder;
+            if(recorder != null) {
+                recorder.record(SessionRecorder.SENT, dst, offset, length);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Handles all complete lines or frames between readStart and readEnd.
+     */
+    void processReadBuffer() {
+        boolean acknowledged = false;
+        int received = readEnd - readStart - pendingBytes;
+        metrics.bytesIn.addAndGet(received);
+        SessionRecorder recorder = this.recorder;
+        if(recorder != null && received > 0) {
+            recorder.record(SessionRecorder.RECEIVED, readBuffer, readEnd - received, received);
+        }
+        while(readStart < readEnd) {
+            int consumed;
+            if(negotiating) {
+                consumed = handleNegotiationReply();
+            } else if(protocol == PlussyDisplay.PROTOCOL_BINARY) {
+                consumed = handleBinaryReply();
+                acknowledged |= consumed > 0;
+            } else {
+                consumed = handleTextReply();
+                acknowledged |= consumed > 0;
+            }
+            if(consumed == 0) {
+                break;
+            }
+            readStart += consumed;
+        }
+        // an incomplete reply stays in the buffer and must not be counted again
+        pendingBytes = readEnd - readStart;
+        if(acknowledged) {
+            listener.onCommandsAcknowledged(this);
+        }
+    }
+
+    // length of the text line at readStart without line break, -1 if it is not complete yet
+    private int lineLength() {
+        int end = PlussyCodec.findLineEnd(readBuffer, readStart, readEnd);
+        if(end < 0) {
+            return -1;
+        }
+        if(end > readStart && readBuffer[end - 1] == '\r') {
+            end--;
+        }
+        return end - readStart;
+    }
+
+    private int skipLine() {
+        return PlussyCodec.findLineEnd(readBuffer, readStart, readEnd) + 1 - readStart;
+    }
+
+    private int handleNegotiationReply() {
+        int length = lineLength();
+        if(length < 0) {
+            return 0;
+        }
+        boolean binary = length == 1 && readBuffer[readStart] == PlussyBinaryCodec.NEGOTIATE_REPLY;
+        int consumed = skipLine();
+        established(binary ? PlussyDisplay.PROTOCOL_BINARY : PlussyDisplay.PROTOCOL_TEXT);
+        return consumed;
+    }
+
+    /**
+     * Tracks the commands queued so far, which carry a frame. Once the last of them is
+     * answered, the frame is taken to have reached the display halfway between sending
+     * that command and its answer, like NTP does. A command queued later may be sent
+     * first, then the time comes from that one, which went out in the same pass.
+     */
+    void trackFrame() {
+        frameAnswersLeft = commandQueue.getInFlight() + commandQueue.getPending();
+        frameArrival = -1;
+    }
+
+    /**
+     * @return System.nanoTime() the tracked frame reached the display, -1 if its commands
+     * are not all answered yet. Returned only once.
+     */
+    long takeFrameArrival() {
+        long arrival = frameArrival;
+        frameArrival = -1;
+        return arrival;
+    }
+
+    // returns the command that was answered
+    private int acknowledge() {
+        metrics.repliesReceived.incrementAndGet();
+        int command = commandQueue.acknowledge();
+        if(command != CommandQueue.NO_COMMAND) {
+            long roundTrip = System.nanoTime() - commandQueue.getAcknowledgedSince();
+            metrics.ackLatency.record(roundTrip / 1000);
+            clock.record(roundTrip);
+            if(frameAnswersLeft > 0 && --frameAnswersLeft == 0) {
+                frameArrival = commandQueue.getAcknowledgedSince() + roundTrip / 2;
+            }
+            RateController rate = rateController;
+            if(rate != null) {
+                // commands still in the ring are waiting for the window just as well
+                boolean waiting = commandQueue.getPending() > 0
+                        || (commandRing != null && !commandRing.isEmpty());
+                int window = rate.onAnswer(roundTrip, waiting);
+                if(window != commandQueue.getWindow()) {
+                    commandQueue.setWindow(window);
+                }
+            }
+        }
+        return command;
+    }
+
+    private void subscribed(int sequence) {
+        subscribed = true;
+        lastSequence = sequence;
+    }
+
+    /**
+     * Checks the sequence number of a notification whose changes are already in
+     * replyColors.
+     * @return false if notifications got lost, the whole matrix is requested again then
+     */
+    private boolean notified(int sequence) {
+        metrics.notificationsReceived.incrementAndGet();
+        boolean complete = sequence >= 0 && ((sequence - lastSequence) & 0xffff) == 1;
+        if(sequence >= 0) {
+            // the answer to the request covers everything up to here, so later
+            // notifications are checked against this one
+            lastSequence = sequence;
+        }
+        if(!complete) {
+            metrics.notificationGaps.incrementAndGet();
+            commandQueue.putRequest();
+        }
+        return complete;
+    }
+
+    // returns the number of bytes consumed, 0 if the line is not complete yet
+    private int handleTextReply() {
+        int length = lineLength();
+        if(length < 0) {
+            return 0;
+        }
+        int colors[] = null;
+        int type = PlussyCodec.getReplyType(readBuffer, readStart, length);
+        switch(type) {
+            // still the answer to a command, the firmware sends these for commands it
+            // does not understand, so they free a slot of the window like any other
+            case PlussyCodec.REPLY_EMPTY:
+                Log.e(TAG, "ERROR: Message from Server is empty.");
+                break;
+            case PlussyCodec.REPLY_UNKNOWN:
+                Log.e(TAG, "ERROR: can't handle command: "
+                        + new String(readBuffer, readStart, length));
+                break;
+            case PlussyCodec.REPLY_NOTIFICATION:
+                // no answer to a command, so nothing is acknowledged
+                if(subscribed && notified(PlussyCodec.applyNotification(format, readBuffer,
+                        readStart, length, replyColors))) {
+                    listener.onReply(this, replyColors, commandQueue.isIdle());
+                }
+                return skipLine();
+            case PlussyCodec.REPLY_SUBSCRIBED:
+                int sequence = PlussyCodec.parseSubscribed(format, readBuffer, readStart, length,
+                        replyColors);
+                if(sequence >= 0) {
+                    subscribed(sequence);
+                    colors = replyColors;
+                } else {
+                    Log.e(TAG, "ERROR: broken subscription: "
+                            + new String(readBuffer, readStart, length));
+                }
+                break;
+            case PlussyCodec.REPLY_MATRIX_UPDATE:
+            case PlussyCodec.REPLY_MATRIX_STATE:
+                colors = replyColors;
+                if(!PlussyCodec.parseMatrix(format, readBuffer, readStart, length, colors)) {
+                    Log.e(TAG, "ERROR: broken matrix state: "
+                            + new String(readBuffer, readStart, length));
+                    colors = null;
+                    if(subscribed) {
+                        // notifications are applied to what is left of it
+                        commandQueue.putRequest();
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        int command = acknowledge();
+        if(command == CommandQueue.SUBSCRIBE && type == PlussyCodec.REPLY_WRONG_COMMAND) {
+            Log.i(TAG, "Display does not support subscriptions.");
+            // the state the answer would have carried
+            commandQueue.putRequest();
+        } else if(colors != null || type == PlussyCodec.REPLY_WRONG_COMMAND) {
+            listener.onReply(this, colors, commandQueue.isIdle());
+        }
+        return skipLine();
+    }
+
+    // returns the number of bytes consumed, 0 if the frame is not complete yet
+    private int handleBinaryReply() {
+        byte type = readBuffer[readStart];
+        int length = PlussyBinaryCodec.frameLength(format, type);
+        if(type != PlussyBinaryCodec.MATRIX_UPDATE && type != PlussyBinaryCodec.MATRIX_STATE
+                && type != PlussyBinaryCodec.WRONG_COMMAND
+                && type != PlussyBinaryCodec.SUBSCRIBED
+                && type != PlussyBinaryCodec.NOTIFICATION) {
+            Log.e(TAG, "ERROR: can't handle frame: " + Integer.toHexString(type & 0xff));
+            return 1;
+        }
+        int available = readEnd - readStart;
+        if(type == PlussyBinaryCodec.NOTIFICATION) {
+            length = PlussyBinaryCodec.notificationLength(format, readBuffer, readStart, available);
+            if(length == 0 || available < length) {
+                return 0;
+            }
+            // no answer to a command, so nothing is acknowledged
+            if(subscribed && notified(PlussyBinaryCodec.applyNotification(format, readBuffer,
+                    readStart, replyColors))) {
+                listener.onReply(this, replyColors, commandQueue.isIdle());
+            }
+            return length;
+        }
+        if(available < length) {
+            return 0;
+        }
+        int colors[] = null;
+        if(type == PlussyBinaryCodec.SUBSCRIBED) {
+            colors = replyColors;
+            subscribed(PlussyBinaryCodec.decodeSubscribed(format, readBuffer, readStart, colors));
+        } else if(type != PlussyBinaryCodec.WRONG_COMMAND) {
+            colors = replyColors;
+            PlussyBinaryCodec.decodeMatrix(format, readBuffer, readStart, colors);
+        }
+        int command = acknowledge();
+        if(command == CommandQueue.SUBSCRIBE && type == PlussyBinaryCodec.WRONG_COMMAND) {
+            Log.i(TAG, "Display does not support subscriptions.");
+            // the state the answer would have carried
+            commandQueue.putRequest();
+        } else {
+            listener.onReply(this, colors, commandQueue.isIdle());
+        }
+        return length;
+    }
+}
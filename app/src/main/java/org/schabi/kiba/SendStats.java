@@ -0,0 +1,79 @@
+package org.schabi.kiba;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * SendStats.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Counts what was written to displays, separately for every send policy, so policies
+ * can be compared on the same display. Kept across connections until {@link #reset()}.
+ */
+class SendStats {
+
+    static final int POLICY_COUNT = 3;
+
+    // time from the first queued command until the batch was written, summed up
+    private final long latencyNanos[] = new long[POLICY_COUNT];
+    private final long batches[] = new long[POLICY_COUNT];
+    private final long commands[] = new long[POLICY_COUNT];
+    private final long bytes[] = new long[POLICY_COUNT];
+    private final long firstSend[] = new long[POLICY_COUNT];
+    private final long lastSend[] = new long[POLICY_COUNT];
+
+    synchronized void record(int policy, long pendingSince, int commandCount, int length) {
+        long now = System.nanoTime();
+        latencyNanos[policy] += now - pendingSince;
+        batches[policy]++;
+        commands[policy] += commandCount;
+        bytes[policy] += length;
+        if(firstSend[policy] == 0) {
+            firstSend[policy] = now;
+        }
+        lastSend[policy] = now;
+    }
+
+    synchronized long getAverageLatency(int policy) {
+        return batches[policy] == 0 ? 0 : latencyNanos[policy] / batches[policy];
+    }
+
+    synchronized long getBatches(int policy) {
+        return batches[policy];
+    }
+
+    synchronized long getCommands(int policy) {
+        return commands[policy];
+    }
+
+    synchronized long getBytes(int policy) {
+        return bytes[policy];
+    }
+
+    /**
+     * @return commands per second between the first and the last write with this policy
+     */
+    synchronized float getThroughput(int policy) {
+        long time = lastSend[policy] - firstSend[policy];
+        return time <= 0 ? 0 : commands[policy] * 1000000000f / time;
+    }
+
+    synchronized void reset() {
+        for(int i = 0; i < POLICY_COUNT; i++) {
+            latencyNanos[i] = batches[i] = commands[i] = bytes[i] = 0;
+            firstSend[i] = lastSend[i] = 0;
+        }
+    }
+}
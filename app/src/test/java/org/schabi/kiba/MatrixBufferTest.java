@@ -0,0 +1,104 @@
+package org.schabi.kiba;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * MatrixBufferTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+public class MatrixBufferTest {
+
+    private static int[] matrix(int ledCount, int value) {
+        int colors[] = new int[ledCount];
+        Arrays.fill(colors, value);
+        return colors;
+    }
+
+    @Test
+    public void takeGetsTheNewestMatrixOnce() {
+        MatrixBuffer buffer = new MatrixBuffer(20);
+        assertNull(buffer.take());
+
+        buffer.publish(matrix(20, 1));
+        assertArrayEquals(matrix(20, 1), buffer.take());
+        assertNull(buffer.take());
+
+        // the older one is overwritten, not queued
+        buffer.publish(matrix(20, 2));
+        buffer.publish(matrix(20, 3));
+        assertArrayEquals(matrix(20, 3), buffer.take());
+        assertNull(buffer.take());
+    }
+
+    @Test
+    public void aTakenMatrixStaysUntilTheNextTake() {
+        MatrixBuffer buffer = new MatrixBuffer(20);
+        buffer.publish(matrix(20, 1));
+        int taken[] = buffer.take();
+        buffer.publish(matrix(20, 2));
+        buffer.publish(matrix(20, 3));
+        buffer.publish(matrix(20, 4));
+        assertArrayEquals(matrix(20, 1), taken);
+        assertArrayEquals(matrix(20, 4), buffer.take());
+    }
+
+    @Test
+    public void theReaderNeverSeesAHalfWrittenMatrix() throws InterruptedException {
+        final MatrixBuffer buffer = new MatrixBuffer(400);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final int published = 200000;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int colors[] = new int[400];
+                for(int i = 1; i <= published; i++) {
+                    Arrays.fill(colors, i);
+                    buffer.publish(colors);
+                }
+                done.set(true);
+            }
+        });
+        writer.start();
+        int last = 0;
+        int taken = 0;
+        while(true) {
+            boolean finished = done.get();
+            int colors[] = buffer.take();
+            if(colors != null) {
+                for(int color : colors) {
+                    assertEquals(colors[0], color);
+                }
+                assertTrue("went back from " + last + " to " + colors[0], colors[0] > last);
+                last = colors[0];
+                taken++;
+            } else if(finished) {
+                break;
+            }
+        }
+        writer.join();
+        assertEquals(published, last);
+        assertTrue(taken > 1);
+    }
+}
@@ -0,0 +1,101 @@
+package org.schabi.kiba;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * PipelineThroughputTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Floods an emulated display with a round trip of 20ms with set led commands and
+ * counts the answers per second for different windows of commands in flight. Without
+ * the window the app waited for every answer, as with a window of one.
+ */
+public class PipelineThroughputTest {
+
+    private static final int LATENCY = 20;
+    private static final long CONNECT_TIMEOUT = 10000;
+    private static final long MEASURE_TIME = 2000;
+
+    private PlussyEmulator emulator;
+
+    @Before
+    public void setUp() throws Exception {
+        LinkConditions conditions = new LinkConditions();
+        conditions.latency = LATENCY;
+        emulator = new PlussyEmulator(PlussyDiscovery.TCP_PORT, MatrixFormat.PLUSSY,
+                InetAddress.getByName("255.255.255.255"), conditions, false);
+        emulator.setBeaconInterval(100);
+        emulator.start();
+    }
+
+    @After
+    public void tearDown() {
+        emulator.stop();
+    }
+
+    // answers per second while commands are always waiting for the window
+    private double updatesPerSecond(int window) throws InterruptedException {
+        PlussyDisplay display = new PlussyDisplay(null, MatrixFormat.PLUSSY);
+        display.setMaxCommandsInFlight(window);
+        display.startNetworking();
+        try {
+            int ledCount = display.getLedCount();
+            long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+            int color = 0;
+            while(display.getMetrics().repliesReceived == 0) {
+                assertTrue("no connection to the emulator", System.currentTimeMillis() < deadline);
+                display.setLed(0, ++color);
+                Thread.sleep(10);
+            }
+            long replies = display.getMetrics().repliesReceived;
+            long start = System.nanoTime();
+            long end = start + MEASURE_TIME * 1000000L;
+            while(System.nanoTime() < end) {
+                // every led changes again before its last command is answered
+                for(int led = 0; led < ledCount; led++) {
+                    display.setLed(led, ++color & 0xffffff);
+                }
+                Thread.sleep(1);
+            }
+            replies = display.getMetrics().repliesReceived - replies;
+            return replies * 1e9 / (System.nanoTime() - start);
+        } finally {
+            display.stopNetworking();
+        }
+    }
+
+    @Test
+    public void largerWindowsCarryMoreUpdates() throws InterruptedException {
+        double one = updatesPerSecond(1);
+        double four = updatesPerSecond(4);
+        double sixteen = updatesPerSecond(16);
+        // each window is limited by its round trips, so this leaves room for slow machines
+        assertTrue("window 1 carried " + Math.round(one) + " updates/s",
+                one < 1000.0 / LATENCY * 1.2);
+        assertTrue("window 4 carried " + Math.round(four) + " updates/s, window 1 "
+                + Math.round(one), four > 2.5 * one);
+        assertTrue("window 16 carried " + Math.round(sixteen) + " updates/s, window 4 "
+                + Math.round(four), sixteen > 2.5 * four);
+    }
+}
@@ -0,0 +1,141 @@
+package org.schabi.kiba;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * StalledDisplayTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Touches keep setting leds while the display stopped reading, after the frames before
+ * filled the send buffer of the socket. The calls the touch handler makes must take as
+ * long as they do on a working link, they only hand the commands to the network thread.
+ */
+public class StalledDisplayTest {
+
+    private static final long CONNECT_TIMEOUT = 10000;
+    private static final long STALL_TIMEOUT = 10000;
+    // a socket that took nothing for this long is stalled, a large write that is still
+    // going on is over by then
+    private static final long STALLED = 200000000L;
+    // the largest display there can be, so the frames of a full window are far more
+    // than the socket buffers of both sides take
+    private static final MatrixFormat FORMAT = new MatrixFormat(MatrixFormat.MAX_LED_COUNT);
+    private static final int TOUCHES = 20000;
+    // far more than a touch handler can take, but a blocked call would wait for seconds
+    private static final long MAX_CALL = 100000000L;
+    private static final long MAX_AVERAGE = 100000L;
+
+    private PlussyEmulator emulator;
+    private PlussyDisplay display;
+
+    @Before
+    public void setUp() throws Exception {
+        emulator = new PlussyEmulator(PlussyDiscovery.TCP_PORT, FORMAT,
+                InetAddress.getByName("255.255.255.255"), new LinkConditions(), true);
+        emulator.setBeaconInterval(100);
+        emulator.start();
+        display = new PlussyDisplay(null, FORMAT);
+        display.setPreferredProtocol(PlussyDisplay.PROTOCOL_BINARY);
+        display.setMaxCommandsInFlight(CommandQueue.MAX_WINDOW);
+    }
+
+    @After
+    public void tearDown() {
+        display.stopNetworking();
+        emulator.stop();
+    }
+
+    private void connect() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        LinkMetrics.Snapshot metrics = display.getMetrics();
+        while(metrics.connects == 0 || metrics.queuedCommands > 0
+                || metrics.commandsInFlight > 0) {
+            assertTrue("no connection to the emulator", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+            metrics = display.getMetrics();
+        }
+    }
+
+    // sends whole frames to the display that stopped reading until the socket takes
+    // no more of them
+    private void fillSendBuffer() throws InterruptedException {
+        emulator.setReading(false);
+        int colors[] = new int[FORMAT.ledCount];
+        long deadline = System.currentTimeMillis() + STALL_TIMEOUT;
+        for(int frame = 1; display.getMetrics().sendBlocked < STALLED; frame++) {
+            assertTrue("the send buffer did not fill", System.currentTimeMillis() < deadline);
+            Arrays.fill(colors, frame);
+            display.setMatrix(colors);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void nioEngineDoesNotBlockTouches() throws InterruptedException {
+        touchStalledDisplay(PlussyDisplay.ENGINE_NIO);
+    }
+
+    @Test
+    public void blockingEngineDoesNotBlockTouches() throws InterruptedException {
+        touchStalledDisplay(PlussyDisplay.ENGINE_BLOCKING);
+    }
+
+    private void touchStalledDisplay(int engine) throws InterruptedException {
+        display.setNetworkEngine(engine);
+        display.startNetworking();
+        connect();
+        fillSendBuffer();
+        long replies = display.getMetrics().repliesReceived;
+
+        int ledCount = display.getLedCount();
+        int leds[] = new int[3];
+        int colors[] = new int[3];
+        long longest = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < TOUCHES; i++) {
+            long before = System.nanoTime();
+            if(i % 2 == 0) {
+                display.setLed(i % ledCount, i);
+            } else {
+                // a stroke over several leds, as the led view sends it
+                for(int j = 0; j < leds.length; j++) {
+                    leds[j] = (i + j) % ledCount;
+                    colors[j] = i;
+                }
+                display.setLeds(leds, colors, leds.length);
+            }
+            longest = Math.max(longest, System.nanoTime() - before);
+        }
+        long total = System.nanoTime() - start;
+        LinkMetrics.Snapshot metrics = display.getMetrics();
+
+        assertTrue("the socket took data again", metrics.sendBlocked >= total);
+        assertEquals("the display answered", replies, metrics.repliesReceived);
+        assertTrue("a call took " + longest / 1000000 + "ms", longest < MAX_CALL);
+        assertTrue("a call took " + total / TOUCHES / 1000 + "us on average",
+                total / TOUCHES < MAX_AVERAGE);
+    }
+}
@@ -0,0 +1,168 @@
+package org.schabi.kiba;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * SynchronizedFrameTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Emulated displays with different latencies and some jitter get synchronized frames.
+ * When each of them changed its leds is compared to what the metrics of the manager
+ * claim.
+ */
+public class SynchronizedFrameTest {
+
+    private static final long MILLI = 1000000L;
+    private static final long CONNECT_TIMEOUT = 10000;
+    private static final long FRAME_TIMEOUT = 5000;
+    // round trips in milliseconds, an unsynchronized frame would reach the displays up
+    // to 50ms apart
+    private static final int LATENCIES[] = {20, 60, 120};
+    private static final int JITTER = 4;
+    private static final int FRAMES = 5;
+    // the one way jitter of two displays, plus sends that come late on a busy machine
+    private static final long MAX_SKEW = 20 * MILLI;
+    // how far the metrics may be off the skew of the emulators
+    private static final long MAX_ERROR = 10 * MILLI;
+
+    private final ArrayList<PlussyEmulator> emulators = new ArrayList<>();
+    private final ArrayList<LinkConditions> conditions = new ArrayList<>();
+    private final ArrayList<PlussyDisplayManager.Device> group = new ArrayList<>();
+    private PlussyDisplayManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        for(int i = 0; i < LATENCIES.length; i++) {
+            LinkConditions link = new LinkConditions();
+            link.latency = LATENCIES[i];
+            link.jitter = JITTER;
+            PlussyEmulator emulator = new PlussyEmulator(PlussyDiscovery.TCP_PORT,
+                    MatrixFormat.PLUSSY, InetAddress.getByName("127.0.0.1"), link, true);
+            emulator.setBindAddress(InetAddress.getByName("127.0.0." + (i + 2)));
+            emulator.setAnswerProbes(false);
+            emulator.setBeaconInterval(60000);
+            emulator.start();
+            emulators.add(emulator);
+            conditions.add(link);
+        }
+        manager = new PlussyDisplayManager();
+        manager.setPreferredProtocol(PlussyDisplay.PROTOCOL_BINARY);
+        manager.startNetworking();
+        for(int i = 0; i < LATENCIES.length; i++) {
+            group.add(manager.addDevice(InetAddress.getByName("127.0.0." + (i + 2))));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        manager.stopNetworking();
+        for(PlussyEmulator emulator : emulators) {
+            emulator.stop();
+        }
+    }
+
+    private void connect() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        for(PlussyDisplayManager.Device device : group) {
+            while(device.getState() != PlussyDisplay.CONNECTION_ESTABLISHED) {
+                assertTrue("no connection to " + device, System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    // every display answers enough commands for the median of its round trips
+    private void measureRoundTrips() throws InterruptedException {
+        for(int i = 0; i < ClockSync.SAMPLES; i++) {
+            manager.setLed(group, 0, i);
+            Thread.sleep(LATENCIES[LATENCIES.length - 1] / 4);
+        }
+        Thread.sleep(2 * LATENCIES[LATENCIES.length - 1]);
+    }
+
+    // shows one frame on all displays, returns the spread of the times they changed
+    private long showFrame(int color) throws InterruptedException {
+        int colors[] = new int[MatrixFormat.PLUSSY.ledCount];
+        Arrays.fill(colors, color);
+        long before = System.nanoTime();
+        manager.setMatrixSynchronized(group, colors);
+
+        long deadline = System.currentTimeMillis() + FRAME_TIMEOUT;
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for(PlussyEmulator emulator : emulators) {
+            while(!Arrays.equals(colors, emulator.getState())) {
+                assertTrue("frame did not arrive", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+            long change = emulator.getLastChange();
+            assertTrue(change > before);
+            first = Math.min(first, change);
+            last = Math.max(last, change);
+        }
+        // until the answers are in the metrics
+        Thread.sleep(LATENCIES[LATENCIES.length - 1]);
+        return last - first;
+    }
+
+    @Test
+    public void displaysShowTheFrameTogether() throws InterruptedException {
+        connect();
+        measureRoundTrips();
+        long longest = 0;
+        for(int i = 0; i < FRAMES; i++) {
+            long skew = showFrame(0x100000 * (i + 1));
+            assertTrue("frame " + i + " was " + skew / MILLI + "ms apart", skew < MAX_SKEW);
+            longest = Math.max(longest, skew);
+        }
+
+        LinkMetrics.Snapshot metrics = manager.getMetrics();
+        assertEquals(FRAMES, metrics.syncFrames);
+        assertEquals(0, metrics.syncReplaced);
+        long measured = metrics.syncSkew.getMax() * 1000;
+        assertTrue("metrics claim " + measured / MILLI + "ms, the displays were "
+                + longest / MILLI + "ms apart", Math.abs(measured - longest) < MAX_ERROR);
+    }
+
+    @Test
+    public void skewOfAnOutdatedLeadShowsInTheMetrics() throws InterruptedException {
+        connect();
+        measureRoundTrips();
+        // the lead of the fastest display is 40ms short now
+        conditions.get(0).latency += 80;
+        long skew = showFrame(0x123456);
+        assertTrue("the displays were only " + skew / MILLI + "ms apart",
+                skew > 40 * MILLI - MAX_SKEW);
+
+        LinkMetrics.Snapshot metrics = manager.getMetrics();
+        assertEquals(1, metrics.syncFrames);
+        assertEquals(1, metrics.syncMisses);
+        long measured = metrics.syncSkew.getMax() * 1000;
+        assertTrue("metrics claim " + measured / MILLI + "ms, the displays were "
+                + skew / MILLI + "ms apart", Math.abs(measured - skew) < MAX_ERROR);
+    }
+}
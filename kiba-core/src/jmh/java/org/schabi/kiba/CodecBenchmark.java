@@ -0,0 +1,102 @@
+package org.schabi.kiba;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * CodecBenchmark.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Encoding of commands and parsing of replies in both the text and the binary protocol.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    // 20 for the plussy cross, more for bigger matrices
+    @Param({"20", "2000"})
+    public int ledCount;
+
+    private MatrixFormat format;
+    private byte buffer[];
+    private byte textMatrix[];
+    private byte binaryMatrix[];
+    private int colors[];
+    private int led;
+
+    @Setup
+    public void setup() {
+        format = new MatrixFormat(ledCount);
+        buffer = new byte[format.textMatrixLength + 1];
+        textMatrix = new byte[format.textMatrixLength + 1];
+        binaryMatrix = new byte[format.binaryMatrixLength];
+        colors = new int[ledCount];
+        for(int i = 0; i < colors.length; i++) {
+            colors[i] = Animations.hueToColor(i / (float) colors.length);
+        }
+        PlussyCodec.encodeMatrix(format, (byte) 'M', colors, textMatrix, 0);
+        PlussyBinaryCodec.encodeMatrix(format, PlussyBinaryCodec.MATRIX_UPDATE, colors,
+                binaryMatrix, 0);
+    }
+
+    @Benchmark
+    public int encodeSetLedText() {
+        led = (led + 1) % ledCount;
+        return PlussyCodec.encodeSetLed(format, led, colors[led], buffer, 0);
+    }
+
+    @Benchmark
+    public int encodeSetLedBinary() {
+        led = (led + 1) % ledCount;
+        return PlussyBinaryCodec.encodeSetLed(format, led, colors[led], buffer, 0);
+    }
+
+    @Benchmark
+    public int encodeSetMatrixBinary() {
+        return PlussyBinaryCodec.encodeSetMatrix(format, colors, buffer, 0);
+    }
+
+    @Benchmark
+    public void parseMatrixText(Blackhole blackhole) {
+        int end = PlussyCodec.findLineEnd(textMatrix, 0, textMatrix.length);
+        blackhole.consume(PlussyCodec.getReplyType(textMatrix, 0, end));
+        blackhole.consume(PlussyCodec.parseMatrix(format, textMatrix, 0, end, colors));
+    }
+
+    @Benchmark
+    public int[] decodeMatrixBinary() {
+        PlussyBinaryCodec.decodeMatrix(format, binaryMatrix, 0, colors);
+        return colors;
+    }
+}
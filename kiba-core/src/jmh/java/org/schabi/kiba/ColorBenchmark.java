@@ -0,0 +1,114 @@
+package org.schabi.kiba;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * ColorBenchmark.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The color math behind the color pickers: filling the color table of a 1080 pixel wide
+ * stripe, and picking the colors of a finger moving over it by computing them on every
+ * move compared to looking them up in the table.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ColorBenchmark {
+
+    private static final int STRIPE_LENGTH = 1080;
+
+    private static final int MOVES = 256;
+
+    private final int stripe[] = new int[STRIPE_LENGTH];
+    private final int table[] = new int[STRIPE_LENGTH];
+    private final int moves[] = new int[MOVES];
+    private int move;
+    private int baseColor = 0xffff8000;
+
+    @Setup
+    public void setup() {
+        ColorMath.fillTable(ColorMath.INTENSITY, baseColor, table, STRIPE_LENGTH);
+        for(int i = 0; i < MOVES; i++) {
+            // a finger sliding back and forth a few pixels per event
+            moves[i] = (int) ((Math.sin(i * 0.05) + 1) / 2 * (STRIPE_LENGTH - 1));
+        }
+    }
+
+    @Benchmark
+    public int touchComputed() {
+        move = (move + 1) & (MOVES - 1);
+        return ColorMath.tableColor(ColorMath.INTENSITY, baseColor, moves[move], STRIPE_LENGTH);
+    }
+
+    @Benchmark
+    public int touchLookup() {
+        move = (move + 1) & (MOVES - 1);
+        return table[moves[move]];
+    }
+
+    @Benchmark
+    public int[] fillIntensityTable() {
+        ColorMath.fillTable(ColorMath.INTENSITY, baseColor, table, STRIPE_LENGTH);
+        return table;
+    }
+
+    @Benchmark
+    public int[] chromaStripe() {
+        for(int i = 0; i < STRIPE_LENGTH; i++) {
+            stripe[i] = ColorMath.chroma(i / (float) (STRIPE_LENGTH - 1));
+        }
+        return stripe;
+    }
+
+    @Benchmark
+    public int[] intensityStripe() {
+        for(int i = 0; i < STRIPE_LENGTH; i++) {
+            stripe[i] = ColorMath.intensity(baseColor, i / (float) (STRIPE_LENGTH - 1));
+        }
+        return stripe;
+    }
+
+    @Benchmark
+    public int[] brightnessStripe() {
+        for(int i = 0; i < STRIPE_LENGTH; i++) {
+            stripe[i] = ColorMath.brightness(baseColor, i / (float) (STRIPE_LENGTH - 1));
+        }
+        return stripe;
+    }
+
+    @Benchmark
+    public int hueToColor() {
+        baseColor = Animations.hueToColor((baseColor & 0xff) / 255f);
+        return baseColor;
+    }
+}
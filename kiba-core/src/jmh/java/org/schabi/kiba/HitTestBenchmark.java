@@ -0,0 +1,101 @@
+package org.schabi.kiba;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * HitTestBenchmark.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Finding the led under a touch point, for points on leds and points between them, the
+ * leds a stroke between two points passes over, and fitting a layout into a view including its grid index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HitTestBenchmark {
+
+    private static final int POINTS = 256;
+
+    // the plussy cross or a matrix of 2000 leds
+    @Param({"plussy", "grid"})
+    public String shape;
+
+    private LedLayout layout;
+    private final float touchX[] = new float[POINTS];
+    private final float touchY[] = new float[POINTS];
+    private int next;
+    private int hits[];
+
+    @Setup
+    public void setup() {
+        if(shape.equals("grid")) {
+            layout = LedLayout.grid(50, 40);
+        } else {
+            int mapping[] = new int[20];
+            for(int i = 0; i < mapping.length; i++) {
+                mapping[i] = i;
+            }
+            layout = LedLayout.plussy(mapping);
+        }
+        layout.fit(1080, 1080);
+        hits = new int[layout.getCount()];
+        // the same points on every run, so results can be compared
+        Random random = new Random(42);
+        for(int i = 0; i < POINTS; i++) {
+            touchX[i] = random.nextFloat() * 1080;
+            touchY[i] = random.nextFloat() * 1080;
+        }
+    }
+
+    @Benchmark
+    public int hitTest() {
+        next = (next + 1) & (POINTS - 1);
+        return layout.hitTest(touchX[next], touchY[next]);
+    }
+
+    // one sample of a fast stroke, consecutive points are far apart
+    @Benchmark
+    public int hitSegment() {
+        int from = next;
+        next = (next + 1) & (POINTS - 1);
+        return layout.hitSegment(touchX[from], touchY[from], touchX[next], touchY[next], hits);
+    }
+
+    @Benchmark
+    public void fit(Blackhole blackhole) {
+        layout.fit(1080, 1920);
+        blackhole.consume(layout.x);
+    }
+}
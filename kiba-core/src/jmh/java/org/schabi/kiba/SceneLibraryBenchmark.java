@@ -0,0 +1,112 @@
+package org.schabi.kiba;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * SceneLibraryBenchmark.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Opening a scene library, finding a scene by its name and loading its colors, for
+ * libraries of different sizes. Every tenth scene is an animation of eight frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SceneLibraryBenchmark {
+
+    private static final int NAMES = 256;
+
+    @Param({"10", "1000", "10000"})
+    public int scenes;
+
+    private File file;
+    private SceneLibrary library;
+    private final String names[] = new String[NAMES];
+    private int colors[];
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        int ledCount = MatrixFormat.PLUSSY.ledCount;
+        StringBuilder text = new StringBuilder("kiba scenes 1\nleds " + ledCount + "\n");
+        for(int i = 0; i < scenes; i++) {
+            text.append("scene preset ").append(i).append('\n');
+            int frames = i % 10 == 0 ? 8 : 1;
+            for(int frame = 0; frame < frames; frame++) {
+                text.append("frame 1");
+                for(int led = 0; led < ledCount; led++) {
+                    text.append(String.format(" %06x", Animations.hueToColor(
+                            (led + frame + i) / (float) ledCount) & 0xffffff));
+                }
+                text.append('\n');
+            }
+        }
+        file = File.createTempFile("scenes", ".bin");
+        file.delete();
+        library = SceneLibrary.open(file, ledCount).importText(new StringReader(text.toString()));
+        colors = new int[ledCount];
+        // the same scenes on every run, so results can be compared
+        Random random = new Random(42);
+        for(int i = 0; i < NAMES; i++) {
+            names[i] = "preset " + random.nextInt(scenes);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public int open() throws IOException {
+        return SceneLibrary.open(file, colors.length).size();
+    }
+
+    @Benchmark
+    public int find() {
+        next = (next + 1) & (NAMES - 1);
+        return library.find(names[next]);
+    }
+
+    @Benchmark
+    public int[] findAndLoad() {
+        next = (next + 1) & (NAMES - 1);
+        library.getColors(library.find(names[next]), 0, colors);
+        return colors;
+    }
+}
@@ -0,0 +1,181 @@
+package org.schabi.kiba;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * ActiveDiscovery.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Finds displays by asking for them instead of waiting for their next beacon. A probe
+ * goes to the broadcast address of every local network at once and the answers are
+ * collected for a short window. The probe is repeated once halfway through the window
+ * in case it got lost.
+ *
+ * Displays found stay cached for a while, so asking again right away costs nothing.
+ * The cache is locked only to read and update it, never while waiting for answers, so
+ * others can use it while a discovery runs.
+ * Displays that don't answer probes are still found by listening for their beacon with
+ * {@link PlussyDiscovery#receiveBeacon(DatagramSocket, DatagramPacket)}.
+ */
+final class ActiveDiscovery {
+
+    private final int window;
+    private final long ttlNanos;
+    // probed in addition to the broadcast addresses, for displays on this machine
+    private final List<InetAddress> extraTargets = new ArrayList<>();
+
+    // address of every display found, with the System.nanoTime() it expires at
+    private final LinkedHashMap<InetAddress, Long> cache = new LinkedHashMap<>();
+
+    /**
+     * @param window milliseconds to wait for answers
+     * @param ttl milliseconds a found display is remembered
+     */
+    ActiveDiscovery(int window, long ttl) {
+        this.window = window;
+        ttlNanos = ttl * 1000000L;
+    }
+
+    /**
+     * Also sends probes to the given address, which may be a single host.
+     */
+    synchronized void addTarget(InetAddress address) {
+        extraTargets.add(address);
+    }
+
+    /**
+     * @return the first display that answered, a cached one if there is any, or null
+     */
+    InetAddress discover() throws IOException {
+        List<InetAddress> found = discover(1);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /**
+     * Probes unless at least max displays are cached.
+     * @param max stop waiting for answers when this many displays are known
+     * @return the displays found, never null
+     */
+    List<InetAddress> discover(int max) throws IOException {
+        List<InetAddress> found = getCached();
+        if(found.size() >= max) {
+            return found;
+        }
+        List<InetAddress> targets = PlussyDiscovery.broadcastAddresses();
+        synchronized (this) {
+            targets.addAll(extraTargets);
+        }
+        // discoveries may run at the same time, each with its own buffer
+        byte receiveBuffer[] = new byte[64];
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.setBroadcast(true);
+            DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+            long start = System.nanoTime();
+            long deadline = start + window * 1000000L;
+            long reprobe = start + window * 500000L;
+            boolean reprobePending = sendProbes(socket, targets);
+            long now;
+            while(found.size() < max && (now = System.nanoTime()) < deadline) {
+                if(reprobePending && now >= reprobe) {
+                    sendProbes(socket, targets);
+                    reprobePending = false;
+                }
+                long until = reprobePending ? reprobe : deadline;
+                socket.setSoTimeout((int) Math.max(1, (until - now) / 1000000L));
+                try {
+                    packet.setLength(receiveBuffer.length);
+                    socket.receive(packet);
+                } catch (InterruptedIOException e) {
+                    continue;
+                }
+                if(PlussyDiscovery.isBeacon(packet)) {
+                    InetAddress address = packet.getAddress();
+                    put(address);
+                    if(!found.contains(address)) {
+                        found.add(address);
+                    }
+                }
+            }
+        } finally {
+            socket.close();
+        }
+        return found;
+    }
+
+    // returns false if no probe could be sent at all
+    private static boolean sendProbes(DatagramSocket socket, List<InetAddress> targets)
+            throws IOException {
+        IOException failure = null;
+        boolean sent = false;
+        for(InetAddress target : targets) {
+            try {
+                socket.send(PlussyDiscovery.probePacket(target));
+                sent = true;
+            } catch (IOException e) {
+                // a network without a route, the others may still work
+                failure = e;
+            }
+        }
+        if(!sent && failure != null) {
+            throw failure;
+        }
+        return sent;
+    }
+
+    /**
+     * @return the displays found within the ttl
+     */
+    synchronized List<InetAddress> getCached() {
+        long now = System.nanoTime();
+        List<InetAddress> cached = new ArrayList<>();
+        Iterator<Map.Entry<InetAddress, Long>> entries = cache.entrySet().iterator();
+        while(entries.hasNext()) {
+            Map.Entry<InetAddress, Long> entry = entries.next();
+            if(entry.getValue() - now <= 0) {
+                entries.remove();
+            } else {
+                cached.add(entry.getKey());
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Remembers a display found another way, for example by its beacon.
+     */
+    synchronized void put(InetAddress address) {
+        cache.put(address, System.nanoTime() + ttlNanos);
+    }
+
+    /**
+     * Drops a display from the cache, for example because connecting to it failed.
+     */
+    synchronized void forget(InetAddress address) {
+        cache.remove(address);
+    }
+}
@@ -0,0 +1,32 @@
+package org.schabi.kiba;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * Animation.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Something that can draw frames, like a recorded {@link FrameSequence} or one of the
+ * generators in {@link Animations}.
+ */
+public interface Animation {
+    /**
+     * Draws the frame with the given index into frame. Indices count scheduler ticks,
+     * so frames the scheduler had to drop are skipped and never drawn.
+     * @return false if the animation is over
+     */
+    boolean render(long index, Frame frame);
+}
@@ -0,0 +1,135 @@
+package org.schabi.kiba;
+
+import java.util.Random;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * Animations.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Generated animations that need no recorded frames.
+ */
+public final class Animations {
+
+    private Animations() {
+    }
+
+    /**
+     * A rainbow running over the leds in the order of their number.
+     * @param ticksPerCycle ticks until the rainbow moved once around, at least 1
+     */
+    public static Animation rainbowChase(final int ticksPerCycle) {
+        if(ticksPerCycle < 1) {
+            throw new IllegalArgumentException("ticks per cycle must be at least 1: "
+                    + ticksPerCycle);
+        }
+        return new Animation() {
+            @Override
+            public boolean render(long index, Frame frame) {
+                float offset = (float) (index % ticksPerCycle) / ticksPerCycle;
+                int ledCount = frame.colors.length;
+                for(int i = 0; i < ledCount; i++) {
+                    float hue = offset + (float) i / ledCount;
+                    frame.colors[i] = hueToColor(hue - (int) hue);
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * All leds fading from one color to the other and back.
+     * @param ticks ticks for one direction, at least 1
+     */
+    public static Animation fade(final int from, final int to, final int ticks) {
+        if(ticks < 1) {
+            throw new IllegalArgumentException("fade ticks must be at least 1: " + ticks);
+        }
+        return new Animation() {
+            @Override
+            public boolean render(long index, Frame frame) {
+                long step = index % (2 * ticks);
+                float t = step < ticks ? (float) step / ticks : (float) (2 * ticks - step) / ticks;
+                frame.fill(mix(from, to, t));
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Random leds flashing up in color on the background color and fading out again.
+     * @param probability chance of every dark led to flash up per tick
+     * @param decay factor every flash is dimmed by per tick
+     */
+    public static Animation sparkle(final int background, final int color,
+                                    final float probability, final float decay) {
+        return new Animation() {
+            private final Random random = new Random();
+            private float intensity[] = new float[0];
+
+            @Override
+            public boolean render(long index, Frame frame) {
+                if(intensity.length != frame.colors.length) {
+                    intensity = new float[frame.colors.length];
+                }
+                for(int i = 0; i < intensity.length; i++) {
+                    intensity[i] *= decay;
+                    if(intensity[i] < 0.05f && random.nextFloat() < probability) {
+                        intensity[i] = 1;
+                    }
+                    frame.colors[i] = mix(background, color, intensity[i]);
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param hue 0 to 1
+     */
+    static int hueToColor(float hue) {
+        float h = hue * 6;
+        int sector = (int) h;
+        float f = h - sector;
+        int rising = (int) (f * 0xff);
+        int falling = 0xff - rising;
+        switch(sector) {
+            case 0:
+                return 0xffff0000 | (rising << 8);
+            case 1:
+                return 0xff00ff00 | (falling << 16);
+            case 2:
+                return 0xff00ff00 | rising;
+            case 3:
+                return 0xff0000ff | (falling << 8);
+            case 4:
+                return 0xff0000ff | (rising << 16);
+            default:
+                return 0xffff0000 | falling;
+        }
+    }
+
+    /**
+     * Linear mix of two colors, t = 0 gives a, t = 1 gives b.
+     */
+    static int mix(int a, int b, float t) {
+        int r = (int) (((a >> 16) & 0xff) * (1 - t) + ((b >> 16) & 0xff) * t);
+        int g = (int) (((a >> 8) & 0xff) * (1 - t) + ((b >> 8) & 0xff) * t);
+        int bl = (int) ((a & 0xff) * (1 - t) + (b & 0xff) * t);
+        return 0xff000000 | (r << 16) | (g << 8) | bl;
+    }
+}
@@ -0,0 +1,101 @@
+package org.schabi.kiba;
+
+import java.util.Arrays;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * ClockSync.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Estimates how long a command takes to reach a display from the round trips of the
+ * commands it answered. Like the clock filter of NTP it keeps the last {@link #SAMPLES}
+ * round trips, so a single late answer does not move the estimate.
+ *
+ * A display has no clock that could be asked, so what NTP calls the offset is the one
+ * way delay here: half the median round trip. That is how far ahead of the moment it
+ * should show up a command has to be sent. The jitter is half the spread between the
+ * first and the third quartile of the round trips, the part of the delay no lead time
+ * can take out.
+ */
+public final class ClockSync {
+
+    public static final int SAMPLES = 16;
+
+    // round trips in nanoseconds, a ring of the last SAMPLES
+    private final long samples[] = new long[SAMPLES];
+    private final long sorted[] = new long[SAMPLES];
+    private int count = 0;
+    private int next = 0;
+    private long lastSample;
+    private long roundTrip = -1;
+    private long jitter = 0;
+
+    public ClockSync() {
+    }
+
+    /**
+     * @param sample nanoseconds from sending a command until its answer came in
+     */
+    public synchronized void record(long sample) {
+        if(sample < 0) {
+            return;
+        }
+        samples[next] = sample;
+        next = (next + 1) % SAMPLES;
+        if(count < SAMPLES) {
+            count++;
+        }
+        lastSample = System.nanoTime();
+        System.arraycopy(samples, 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        roundTrip = sorted[count / 2];
+        jitter = (sorted[count * 3 / 4] - sorted[count / 4]) / 2;
+    }
+
+    /**
+     * @return median round trip in nanoseconds, -1 before the first sample
+     */
+    public synchronized long getRoundTrip() {
+        return roundTrip;
+    }
+
+    /**
+     * @return nanoseconds a command is expected to take to the display, 0 before the
+     * first sample
+     */
+    public synchronized long getOneWayDelay() {
+        return roundTrip < 0 ? 0 : roundTrip / 2;
+    }
+
+    /**
+     * @return nanoseconds the one way delay varies around {@link #getOneWayDelay()}
+     */
+    public synchronized long getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @return nanoseconds since the last sample, Long.MAX_VALUE if there is none
+     */
+    public synchronized long getSampleAge() {
+        return count == 0 ? Long.MAX_VALUE : System.nanoTime() - lastSample;
+    }
+
+    public synchronized int getSampleCount() {
+        return count;
+    }
+}
@@ -0,0 +1,138 @@
+package org.schabi.kiba;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * ColorMath.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Colors of the color pickers for a relative position between 0 (start of the strip)
+ * and 1 (end of the strip).
+ */
+public final class ColorMath {
+
+    public static final int CHROMA = 0;
+    public static final int INTENSITY = 1;
+    public static final int BRIGHTNESS = 2;
+
+    private static final int RED_MASK = (0xff << 16);
+    private static final int GREEN_MASK = (0xff << 8);
+    private static final int BLUE_MASK = (0xff);
+
+    private ColorMath() {
+    }
+
+    /**
+     * @param kind CHROMA, INTENSITY or BRIGHTNESS, baseColor is ignored for CHROMA
+     */
+    public static int color(int kind, int baseColor, float relPos) {
+        switch(kind) {
+            case INTENSITY:
+                return intensity(baseColor, relPos);
+            case BRIGHTNESS:
+                return brightness(baseColor, relPos);
+            default:
+                return chroma(relPos);
+        }
+    }
+
+    /**
+     * Color of one entry of a table filled by {@link #fillTable(int, int, int[], int)}.
+     */
+    public static int tableColor(int kind, int baseColor, int index, int length) {
+        return color(kind, baseColor, length > 1 ? index / (float) (length - 1) : 0);
+    }
+
+    /**
+     * Fills the first length entries of table with the colors from the start to the end
+     * of the strip, so picking a color is a lookup instead of a computation.
+     */
+    public static void fillTable(int kind, int baseColor, int table[], int length) {
+        for(int i = 0; i < length; i++) {
+            table[i] = tableColor(kind, baseColor, i, length);
+        }
+    }
+
+    /**
+     * Rainbow from red over yellow, green, cyan, blue and magenta back to red.
+     */
+    public static int chroma(float relPos) {
+        final float colorRange = 1.0f / 6.0f;
+
+        float redPart = 0;
+        float greenPart = 0;
+        float bluePart = 0;
+
+        if(relPos < colorRange) {
+            redPart = 1;
+            greenPart = relPos/colorRange;
+        } else if(relPos < colorRange * 2) {
+            greenPart = 1;
+            redPart = (1 - (relPos-colorRange)/colorRange);
+        } else if(relPos < colorRange * 3) {
+            greenPart = 1;
+            bluePart = ((relPos - colorRange * 2) / colorRange);
+        } else if(relPos < colorRange * 4) {
+            bluePart = 1;
+            greenPart = (1 - (relPos - colorRange * 3) / colorRange);
+        } else if(relPos < colorRange * 5) {
+            bluePart = 1;
+            redPart = ((relPos - colorRange * 4) / colorRange);
+        } else if(relPos <= colorRange * 6) {
+            redPart = 1;
+            bluePart = (1 - (relPos - colorRange * 5) / colorRange);
+        }
+
+        int color = (0xff << 24) | ((int)(redPart*0xff) << 16) | ((int)(greenPart*0xff) << 8) | (int)(bluePart*0xff);
+        return color;
+    }
+
+    /**
+     * From baseColor to white.
+     */
+    public static int intensity(int baseColor, float relPos) {
+        int redVal = (baseColor & RED_MASK) >> 16;
+        int greenVal = (baseColor & GREEN_MASK) >> 8;
+        int blueVal = (baseColor & BLUE_MASK);
+
+        int redDiv = 0xff - redVal;
+        int greenDiv = 0xff - greenVal;
+        int blueDiv = 0xff - blueVal;
+
+        redVal += redDiv * relPos;
+        greenVal += greenDiv * relPos;
+        blueVal += blueDiv * relPos;
+
+        int color = (0xff << 24) | (redVal << 16) | (greenVal << 8) | (blueVal);
+        return color;
+    }
+
+    /**
+     * From black to baseColor.
+     */
+    public static int brightness(int baseColor, float relPos) {
+        int redVal = (baseColor & RED_MASK) >> 16;
+        int greenVal = (baseColor & GREEN_MASK) >> 8;
+        int blueVal = (baseColor & BLUE_MASK);
+
+        redVal *= relPos;
+        greenVal *= relPos;
+        blueVal *= relPos;
+
+        int color = (0xff << 24) | (redVal << 16) | (greenVal << 8) | (blueVal);
+        return color;
+    }
+}
@@ -0,0 +1,261 @@
+package org.schabi.kiba;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * CommandQueue.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Pending commands for one display. Only the newest color of every led is kept,
+ * and at most {@link #getWindow()} commands are sent without an answer from the display.
+ * The display answers every command with exactly one line, in order, so answers are
+ * matched to commands first in first out.
+ *
+ * On connections that support it, a whole matrix can be queued as one frame command,
+ * which takes a single slot of the window instead of one per led.
+ */
+public class CommandQueue {
+
+    public static final int NO_COMMAND = -1;
+    public static final int REQUEST_STATE = -2;
+    public static final int SET_MATRIX = -3;
+    public static final int SUBSCRIBE = -4;
+
+    public static final int MAX_WINDOW = 64;
+    public static final int DEFAULT_WINDOW = 4;
+
+    private final int ledCount;
+    private final int pendingColor[];
+    private final boolean pending[];
+    // leds waiting to be sent, in the order they were first changed
+    private final int order[];
+    private int orderHead = 0;
+    private int orderSize = 0;
+    private boolean requestPending = false;
+    private boolean subscribePending = false;
+    private boolean matrixPending = false;
+    private boolean matrixSupported = false;
+
+    // commands sent but not yet answered
+    private final int inFlight[] = new int[MAX_WINDOW];
+    // System.nanoTime() when they were taken by poll()
+    private final long inFlightSince[] = new long[MAX_WINDOW];
+    private long acknowledgedSince = 0;
+    private int inFlightHead = 0;
+    private int inFlightSize = 0;
+    private int window = DEFAULT_WINDOW;
+
+    public CommandQueue(int ledCount) {
+        this.ledCount = ledCount;
+        pendingColor = new int[ledCount];
+        pending = new boolean[ledCount];
+        order = new int[ledCount];
+    }
+
+    public synchronized void putLed(int led, int color) {
+        pendingColor[led] = color;
+        // a matrix that is not sent yet carries the new color anyway
+        if(!matrixPending) {
+            queueLed(led);
+        }
+    }
+
+    private void queueLed(int led) {
+        if(!pending[led]) {
+            pending[led] = true;
+            order[(orderHead + orderSize) % ledCount] = led;
+            orderSize++;
+        }
+    }
+
+    public synchronized void putRequest() {
+        requestPending = true;
+    }
+
+    /**
+     * Queues a subscription to the change notifications of the display. Only ever queued
+     * by the session right after it got established.
+     */
+    public synchronized void putSubscribe() {
+        subscribePending = true;
+    }
+
+    /**
+     * Queues all colors as one matrix command, replacing leds that are still pending.
+     * @return false if the connection can't send matrix commands, nothing is queued then
+     */
+    public synchronized boolean putMatrix(int colors[]) {
+        if(!matrixSupported) {
+            return false;
+        }
+        for(int i = 0; i < ledCount; i++) {
+            pendingColor[i] = colors[i];
+            pending[i] = false;
+        }
+        orderHead = orderSize = 0;
+        matrixPending = true;
+        return true;
+    }
+
+    /**
+     * Set by the session once it knows whether the display understands matrix commands.
+     */
+    public synchronized void setMatrixSupported(boolean matrixSupported) {
+        this.matrixSupported = matrixSupported;
+        if(!matrixSupported && matrixPending) {
+            matrixPending = false;
+            for(int i = 0; i < ledCount; i++) {
+                queueLed(i);
+            }
+        }
+    }
+
+    /**
+     * Takes the next command that may be sent now and marks it as in flight.
+     * @return the led to set, {@link #SUBSCRIBE}, {@link #REQUEST_STATE},
+     * {@link #SET_MATRIX} with the colors
+     * available through {@link #getColor(int)}, or {@link #NO_COMMAND} if nothing
+     * is pending or the window is full.
+     */
+    public synchronized int poll() {
+        if(inFlightSize >= window) {
+            return NO_COMMAND;
+        }
+        int command;
+        if(subscribePending) {
+            subscribePending = false;
+            command = SUBSCRIBE;
+        } else if(requestPending) {
+            requestPending = false;
+            command = REQUEST_STATE;
+        } else if(matrixPending) {
+            matrixPending = false;
+            command = SET_MATRIX;
+        } else if(orderSize > 0) {
+            command = order[orderHead];
+            orderHead = (orderHead + 1) % ledCount;
+            orderSize--;
+            pending[command] = false;
+        } else {
+            return NO_COMMAND;
+        }
+        int slot = (inFlightHead + inFlightSize) % MAX_WINDOW;
+        inFlight[slot] = command;
+        inFlightSince[slot] = System.nanoTime();
+        inFlightSize++;
+        return command;
+    }
+
+    /**
+     * Color of the led returned by the last {@link #poll()}. Must be called while holding
+     * the queue's lock together with poll().
+     */
+    public synchronized int getColor(int led) {
+        return pendingColor[led];
+    }
+
+    /**
+     * Matches an answer of the display to the oldest command in flight.
+     * @return the acknowledged command or {@link #NO_COMMAND} if nothing was in flight.
+     */
+    public synchronized int acknowledge() {
+        if(inFlightSize == 0) {
+            return NO_COMMAND;
+        }
+        int command = inFlight[inFlightHead];
+        acknowledgedSince = inFlightSince[inFlightHead];
+        inFlightHead = (inFlightHead + 1) % MAX_WINDOW;
+        inFlightSize--;
+        return command;
+    }
+
+    /**
+     * @return System.nanoTime() when the command returned by the last
+     * {@link #acknowledge()} was polled
+     */
+    public synchronized long getAcknowledgedSince() {
+        return acknowledgedSince;
+    }
+
+    /**
+     * @return true if nothing is pending or waiting for an answer, so the state the
+     * display reports is not going to be overwritten by one of our commands.
+     */
+    public synchronized boolean isIdle() {
+        return inFlightSize == 0 && orderSize == 0 && !requestPending && !matrixPending
+                && !subscribePending;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlightSize;
+    }
+
+    public synchronized int getPending() {
+        return orderSize + (requestPending ? 1 : 0) + (matrixPending ? 1 : 0)
+                + (subscribePending ? 1 : 0);
+    }
+
+    /**
+     * Prepares the queue for a new connection. Commands that were in flight got lost with
+     * the old one, so they are queued again together with the still pending ones. A
+     * subscription is not, the new session subscribes again if it wants to.
+     */
+    public synchronized void restart() {
+        subscribePending = false;
+        while(inFlightSize > 0) {
+            int command = inFlight[inFlightHead];
+            inFlightHead = (inFlightHead + 1) % MAX_WINDOW;
+            inFlightSize--;
+            if(command == SUBSCRIBE) {
+                continue;
+            } else if(command == REQUEST_STATE) {
+                requestPending = true;
+            } else if(command == SET_MATRIX) {
+                matrixPending = true;
+            } else if(!matrixPending) {
+                queueLed(command);
+            }
+        }
+        inFlightHead = 0;
+        // known again once the new connection is established
+        setMatrixSupported(false);
+    }
+
+    public synchronized void clear() {
+        for(int i = 0; i < ledCount; i++) {
+            pending[i] = false;
+        }
+        orderHead = orderSize = 0;
+        inFlightHead = inFlightSize = 0;
+        requestPending = false;
+        subscribePending = false;
+        matrixPending = false;
+        matrixSupported = false;
+    }
+
+    public synchronized void setWindow(int window) {
+        if(window < 1) {
+            window = 1;
+        } else if(window > MAX_WINDOW) {
+            window = MAX_WINDOW;
+        }
+        this.window = window;
+    }
+
+    public synchronized int getWindow() {
+        return window;
+    }
+}
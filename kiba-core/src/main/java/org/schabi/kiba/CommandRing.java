@@ -0,0 +1,244 @@
+package org.schabi.kiba;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * CommandRing.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Hands commands from the thread that creates them to the network thread that sends
+ * them, without locks and without allocating. Every command is one long in a bounded
+ * single producer, single consumer ring, so producers on more than one thread have to
+ * take turns.
+ *
+ * If the ring is full the producer never waits. The led is marked dirty instead and
+ * the consumer sends its newest color once it got past everything that was in the ring
+ * at that moment, so commands are coalesced but no led ends up with an outdated color.
+ */
+final class CommandRing {
+
+    // color in bits 0 to 31, led in bits 32 to 47
+    private static final long SET_LED = 1L << 48;
+    private static final long REQUEST_STATE = 2L << 48;
+    private static final long MATRIX_LED = 3L << 48;
+    private static final long TYPE_MASK = 0xffL << 48;
+    // flags of MATRIX_LED
+    private static final long CHANGED = 1L << 56;
+    private static final long LAST = 1L << 57;
+    // on the last led: the matrix may be sent as one command
+    private static final long WHOLE = 1L << 58;
+
+    private final long slots[];
+    private final int mask;
+    // next slot to read, only written by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // next slot to write, only written by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    private final int ledCount;
+    private final AtomicIntegerArray latestColor;
+    // 0 or one more than the tail when the led was marked dirty, its newest color may
+    // only be sent once the consumer got that far
+    private final AtomicLongArray dirty;
+    private final AtomicBoolean requestDirty = new AtomicBoolean();
+    private final AtomicBoolean overflowed = new AtomicBoolean();
+
+    // only used by the consumer to put a matrix together again
+    private final int matrixColors[];
+    private final boolean matrixChanged[];
+
+    /**
+     * @param capacity rounded up to a power of two, and to two matrices if that is more
+     */
+    CommandRing(int capacity, int ledCount) {
+        int size = Integer.highestOneBit(Math.max(2, Math.max(capacity, 2 * ledCount)) - 1) << 1;
+        slots = new long[size];
+        mask = size - 1;
+        this.ledCount = ledCount;
+        latestColor = new AtomicIntegerArray(ledCount);
+        dirty = new AtomicLongArray(ledCount);
+        matrixColors = new int[ledCount];
+        matrixChanged = new boolean[ledCount];
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    boolean isEmpty() {
+        return tail.get() == head.get() && !overflowed.get();
+    }
+
+    // producer
+    private boolean offer(long command) {
+        long t = tail.get();
+        if(t - head.get() == slots.length) {
+            return false;
+        }
+        slots[(int) t & mask] = command;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * @return false if the ring was full and the led was marked dirty instead
+     */
+    boolean putLed(int led, int color) {
+        latestColor.lazySet(led, color);
+        if(offer(SET_LED | ((long) led << 32) | (color & 0xffffffffL))) {
+            return true;
+        }
+        markDirty(led, tail.get());
+        return false;
+    }
+
+    /**
+     * Queues several leds at once, so the consumer sends them in the same write.
+     * @return false if the ring had no room and the leds were marked dirty instead
+     */
+    boolean putLeds(int leds[], int colors[], int count) {
+        for(int i = 0; i < count; i++) {
+            latestColor.lazySet(leds[i], colors[i]);
+        }
+        long t = tail.get();
+        if(slots.length - (t - head.get()) < count) {
+            for(int i = 0; i < count; i++) {
+                markDirty(leds[i], t);
+            }
+            return false;
+        }
+        for(int i = 0; i < count; i++) {
+            slots[(int) (t + i) & mask] = SET_LED
+                    | ((long) leds[i] << 32) | (colors[i] & 0xffffffffL);
+        }
+        tail.lazySet(t + count);
+        return true;
+    }
+
+    boolean putRequest() {
+        if(offer(REQUEST_STATE)) {
+            return true;
+        }
+        requestDirty.set(true);
+        overflowed.set(true);
+        return false;
+    }
+
+    /**
+     * Queues a whole matrix at once, so the consumer never sees only part of it.
+     * @param changed leds that differ from what the display shows, only these are sent
+     *                unless whole is set
+     * @param whole if the matrix may be sent as a single command
+     * @return false if the ring had no room and the changed leds were marked dirty instead
+     */
+    boolean putMatrix(int colors[], boolean changed[], boolean whole) {
+        for(int i = 0; i < ledCount; i++) {
+            latestColor.lazySet(i, colors[i]);
+        }
+        long t = tail.get();
+        if(slots.length - (t - head.get()) < ledCount) {
+            for(int i = 0; i < ledCount; i++) {
+                if(changed[i]) {
+                    markDirty(i, t);
+                }
+            }
+            return false;
+        }
+        for(int i = 0; i < ledCount; i++) {
+            long flags = changed[i] ? CHANGED : 0;
+            if(i == ledCount - 1) {
+                flags |= whole ? LAST | WHOLE : LAST;
+            }
+            slots[(int) (t + i) & mask] = MATRIX_LED | flags
+                    | ((long) i << 32) | (colors[i] & 0xffffffffL);
+        }
+        tail.lazySet(t + ledCount);
+        return true;
+    }
+
+    // t is the tail of the ring the led did not fit into
+    private void markDirty(int led, long t) {
+        dirty.set(led, t + 1);
+        overflowed.set(true);
+    }
+
+    /**
+     * Moves all commands into the queue. Must only be called by the consumer.
+     */
+    void drainTo(CommandQueue queue) {
+        long h = head.get();
+        long t = tail.get();
+        while(h < t) {
+            long command = slots[(int) h & mask];
+            h++;
+            head.lazySet(h);
+            int led = (int) (command >> 32) & 0xffff;
+            int color = (int) command;
+            long type = command & TYPE_MASK;
+            if(type == SET_LED) {
+                queue.putLed(led, color);
+            } else if(type == REQUEST_STATE) {
+                queue.putRequest();
+            } else if(type == MATRIX_LED) {
+                matrixColors[led] = color;
+                matrixChanged[led] = (command & CHANGED) != 0;
+                if((command & LAST) != 0) {
+                    putMatrix(queue, (command & WHOLE) != 0);
+                }
+            }
+        }
+        if(overflowed.getAndSet(false)) {
+            if(requestDirty.getAndSet(false)) {
+                queue.putRequest();
+            }
+            boolean waiting = false;
+            for(int i = 0; i < ledCount; i++) {
+                long mark = dirty.get(i);
+                if(mark == 0) {
+                    continue;
+                }
+                // older colors of the led still in the ring would overwrite the newest
+                if(mark > h + 1) {
+                    waiting = true;
+                } else if(dirty.compareAndSet(i, mark, 0)) {
+                    queue.putLed(i, latestColor.get(i));
+                }
+            }
+            if(waiting) {
+                overflowed.set(true);
+            }
+        }
+    }
+
+    private void putMatrix(CommandQueue queue, boolean whole) {
+        if(!whole || !queue.putMatrix(matrixColors)) {
+            for(int i = 0; i < ledCount; i++) {
+                if(matrixChanged[i]) {
+                    queue.putLed(i, matrixColors[i]);
+                }
+            }
+        }
+    }
+}
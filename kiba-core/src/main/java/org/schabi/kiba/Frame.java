@@ -0,0 +1,62 @@
+package org.schabi.kiba;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * Frame.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Colors of all leds of the display at one point of an animation.
+ */
+public class Frame {
+    public final int colors[];
+
+    /**
+     * A frame for the 20 leds of the plussy cross.
+     */
+    public Frame() {
+        this(MatrixFormat.PLUSSY.ledCount);
+    }
+
+    public Frame(int ledCount) {
+        colors = new int[ledCount];
+    }
+
+    public Frame(int colors[]) {
+        this.colors = colors.clone();
+    }
+
+    public int getLedCount() {
+        return colors.length;
+    }
+
+    public void copyFrom(Frame other) {
+        System.arraycopy(other.colors, 0, colors, 0, colors.length);
+    }
+
+    public void fill(int color) {
+        for(int i = 0; i < colors.length; i++) {
+            colors[i] = color;
+        }
+    }
+
+    /**
+     * Compares only the rgb part, the display does not know about alpha.
+     */
+    public boolean sameColor(Frame other, int led) {
+        return ((colors[led] ^ other.colors[led]) & 0xffffff) == 0;
+    }
+}
@@ -0,0 +1,89 @@
+package org.schabi.kiba;
+
+import java.util.ArrayList;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * FrameSequence.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A fixed list of frames, each one shown for a number of ticks.
+ */
+public class FrameSequence implements Animation {
+    private final ArrayList<Frame> frames = new ArrayList<>();
+    private int durations[] = new int[8];
+    private long totalTicks = 0;
+    private boolean loop = false;
+
+    public FrameSequence() {
+    }
+
+    public FrameSequence(boolean loop) {
+        this.loop = loop;
+    }
+
+    /**
+     * Appends a copy of frame that is shown for the given number of ticks.
+     */
+    public void add(Frame frame, int ticks) {
+        Frame copy = new Frame(frame.colors);
+        if(frames.size() == durations.length) {
+            int grown[] = new int[durations.length * 2];
+            System.arraycopy(durations, 0, grown, 0, durations.length);
+            durations = grown;
+        }
+        durations[frames.size()] = ticks;
+        frames.add(copy);
+        totalTicks += ticks;
+    }
+
+    public int size() {
+        return frames.size();
+    }
+
+    public Frame get(int i) {
+        return frames.get(i);
+    }
+
+    public int getTicks(int i) {
+        return durations[i];
+    }
+
+    public void setLoop(boolean loop) {
+        this.loop = loop;
+    }
+
+    @Override
+    public boolean render(long index, Frame frame) {
+        if(totalTicks == 0) {
+            return false;
+        }
+        if(loop) {
+            index %= totalTicks;
+        } else if(index >= totalTicks) {
+            return false;
+        }
+        for(int i = 0; i < frames.size(); i++) {
+            index -= durations[i];
+            if(index < 0) {
+                frame.copyFrom(frames.get(i));
+                break;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,138 @@
+package org.schabi.kiba;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * LatencyHistogram.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Histogram of durations in microseconds with a fixed number of buckets. Every power of
+ * two is split into 16 buckets, so a reported value is at most 1/16 above the recorded
+ * one, from 1 microsecond up to more than an hour. Recording takes no lock and
+ * allocates nothing.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values from 2^MAX_BITS on all land in the last bucket
+    private static final int MAX_BITS = 32;
+    static final int BUCKET_COUNT = (MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+    }
+
+    /**
+     * @return a copy that does not change with later recordings
+     */
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            copy.counts.set(i, counts.get(i));
+        }
+        copy.sum.set(sum.get());
+        copy.max.set(max.get());
+        return copy;
+    }
+
+    public void record(long micros) {
+        if(micros < 0) {
+            micros = 0;
+        }
+        counts.incrementAndGet(index(micros));
+        sum.addAndGet(micros);
+        long current;
+        while(micros > (current = max.get()) && !max.compareAndSet(current, micros)) {
+            // someone else raised max meanwhile, try again
+        }
+    }
+
+    static int index(long value) {
+        if(value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        if(highestBit >= MAX_BITS) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = highestBit - SUB_BUCKET_BITS;
+        return SUB_BUCKETS * (shift + 1) + (int) ((value >> shift) & (SUB_BUCKETS - 1));
+    }
+
+    // largest value that lands in the bucket
+    static long highestValue(int index) {
+        if(index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : sum.get() / count;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the value in microseconds that percentile of all recordings did not exceed,
+     * 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if(count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if(seen >= target) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount()
+                + " mean=" + getMean() + "us"
+                + " p50=" + getPercentile(50) + "us"
+                + " p99=" + getPercentile(99) + "us"
+                + " max=" + getMax() + "us";
+    }
+}
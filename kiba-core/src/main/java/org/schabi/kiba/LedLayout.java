@@ -0,0 +1,377 @@
+package org.schabi.kiba;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * LedLayout.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Where the leds of a display are drawn. Positions are given in layout units inside an
+ * area of width x height units and kept in plain arrays indexed by their place in the
+ * drawing, the led number behind each place is the one the display knows it by.
+ *
+ * {@link #fit(float, float)} scales the area into a view, keeping its aspect ratio, and
+ * puts the leds into a uniform grid of cells one led wide, so finding the led under a
+ * point only looks at the leds of one cell.
+ *
+ * Layout files are binary, big endian:
+ * <pre>
+ * "KLAY" version(1)
+ * int ledCount, float width, float height, float ledRadius, float cursorRadius
+ * ledCount * (float x, float y, int ledNumber)
+ * </pre>
+ */
+public class LedLayout {
+
+    private static final int MAGIC = ('K' << 24) | ('L' << 16) | ('A' << 8) | 'Y';
+    private static final int VERSION = 1;
+
+    // spacing of the leds of the plussy cross in units of its size
+    private static final float PLUSSY_GROUP = 1f / 3;
+    private static final float PLUSSY_CURSOR = PLUSSY_GROUP / 4;
+    private static final float PLUSSY_ALIGN = 1f / 100;
+
+    private final int count;
+    private final float width;
+    private final float height;
+    private final float unitLedRadius;
+    private final float unitCursorRadius;
+
+    // in layout units
+    public final float unitX[];
+    public final float unitY[];
+    public final int ledNumber[];
+
+    // in view coordinates, valid after fit()
+    public final float x[];
+    public final float y[];
+    private float ledRadius;
+    private float cursorRadius;
+
+    // cellStart[c] to cellStart[c + 1] are the entries of cell c in cellLeds
+    private float cellSize;
+    private int gridColumns;
+    private int gridRows;
+    private int cellStart[] = new int[1];
+    private int cellLeds[] = new int[0];
+    // hitSegment() marks every led it reported with the current stamp, so a led listed
+    // in more than one cell is reported once
+    private int visited[];
+    private int stamp = 0;
+
+    public LedLayout(int count, float width, float height, float ledRadius, float cursorRadius) {
+        if(count < 1 || count > MatrixFormat.MAX_LED_COUNT) {
+            throw new IllegalArgumentException("led count out of range: " + count);
+        }
+        this.count = count;
+        this.width = width;
+        this.height = height;
+        unitLedRadius = ledRadius;
+        unitCursorRadius = cursorRadius;
+        unitX = new float[count];
+        unitY = new float[count];
+        ledNumber = new int[count];
+        x = new float[count];
+        y = new float[count];
+        visited = new int[count];
+    }
+
+    /**
+     * The cross of five groups of four leds of the plussy display: top, left, middle,
+     * right and bottom.
+     * @param mapping led number for every place, in the order the places are listed
+     *                row by row from the top left
+     */
+    public static LedLayout plussy(int mapping[]) {
+        LedLayout layout = new LedLayout(20, 1, 1,
+                PLUSSY_CURSOR - PLUSSY_ALIGN / 2, PLUSSY_CURSOR);
+        // top group
+        layout.mapGroup(0.5f, 0.5f - PLUSSY_GROUP, 0, mapping[0], mapping[1], mapping[2], mapping[3]);
+        // left group
+        layout.mapGroup(0.5f - PLUSSY_GROUP, 0.5f, 4, mapping[4], mapping[5], mapping[10], mapping[11]);
+        // middle group
+        layout.mapGroup(0.5f, 0.5f, 8, mapping[6], mapping[7], mapping[12], mapping[13]);
+        // right group
+        layout.mapGroup(0.5f + PLUSSY_GROUP, 0.5f, 12, mapping[8], mapping[9], mapping[14], mapping[15]);
+        // bottom group
+        layout.mapGroup(0.5f, 0.5f + PLUSSY_GROUP, 16, mapping[16], mapping[17], mapping[18], mapping[19]);
+        return layout;
+    }
+
+    private void mapGroup(float cx, float cy, int startIndex, int tl, int tr, int bl, int br) {
+        float offset = PLUSSY_GROUP / 4;
+        place(startIndex, tl, cx - offset, cy - offset);
+        place(startIndex + 1, tr, cx + offset, cy - offset);
+        place(startIndex + 2, bl, cx - offset, cy + offset);
+        place(startIndex + 3, br, cx + offset, cy + offset);
+    }
+
+    /**
+     * A rectangular matrix with the leds numbered row by row.
+     */
+    public static LedLayout grid(int columns, int rows) {
+        LedLayout layout = new LedLayout(columns * rows, columns, rows, 0.4f, 0.5f);
+        for(int row = 0; row < rows; row++) {
+            for(int column = 0; column < columns; column++) {
+                int i = row * columns + column;
+                layout.place(i, i, column + 0.5f, row + 0.5f);
+            }
+        }
+        return layout;
+    }
+
+    public void place(int index, int led, float px, float py) {
+        ledNumber[index] = led;
+        unitX[index] = px;
+        unitY[index] = py;
+    }
+
+    public static LedLayout read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if(data.readInt() != MAGIC) {
+            throw new IOException("not a led layout file");
+        }
+        int version = data.readUnsignedByte();
+        if(version != VERSION) {
+            throw new IOException("unknown led layout version " + version);
+        }
+        int count = data.readInt();
+        if(count < 1 || count > MatrixFormat.MAX_LED_COUNT) {
+            throw new IOException("led count out of range: " + count);
+        }
+        LedLayout layout = new LedLayout(count, data.readFloat(), data.readFloat(),
+                data.readFloat(), data.readFloat());
+        for(int i = 0; i < count; i++) {
+            float px = data.readFloat();
+            float py = data.readFloat();
+            int led = data.readInt();
+            if(led < 0 || led >= count) {
+                throw new IOException("led number out of range: " + led);
+            }
+            layout.place(i, led, px, py);
+        }
+        return layout;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeInt(count);
+        data.writeFloat(width);
+        data.writeFloat(height);
+        data.writeFloat(unitLedRadius);
+        data.writeFloat(unitCursorRadius);
+        for(int i = 0; i < count; i++) {
+            data.writeFloat(unitX[i]);
+            data.writeFloat(unitY[i]);
+            data.writeInt(ledNumber[i]);
+        }
+        data.flush();
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the protocol sizes of a display with this layout's leds
+     */
+    public MatrixFormat getMatrixFormat() {
+        return count == MatrixFormat.PLUSSY.ledCount ? MatrixFormat.PLUSSY : new MatrixFormat(count);
+    }
+
+    /**
+     * Scales the layout into a view of the given size, centered.
+     */
+    public void fit(float viewWidth, float viewHeight) {
+        float scale = Math.min(viewWidth / width, viewHeight / height);
+        float left = (viewWidth - width * scale) / 2;
+        float top = (viewHeight - height * scale) / 2;
+        for(int i = 0; i < count; i++) {
+            x[i] = left + unitX[i] * scale;
+            y[i] = top + unitY[i] * scale;
+        }
+        ledRadius = unitLedRadius * scale;
+        cursorRadius = unitCursorRadius * scale;
+        buildGrid(viewWidth, viewHeight);
+    }
+
+    private void buildGrid(float viewWidth, float viewHeight) {
+        // at least one led wide, and not more cells than a few per led
+        cellSize = Math.max(2 * ledRadius, 1);
+        float minCell = (float) Math.sqrt(viewWidth * viewHeight / (4f * count));
+        cellSize = Math.max(cellSize, minCell);
+        gridColumns = Math.max(1, (int) Math.ceil(viewWidth / cellSize));
+        gridRows = Math.max(1, (int) Math.ceil(viewHeight / cellSize));
+        int cells = gridColumns * gridRows;
+        if(cellStart.length < cells + 1) {
+            cellStart = new int[cells + 1];
+        } else {
+            Arrays.fill(cellStart, 0);
+        }
+        // count, then turn the counts into start positions, then fill in led order so
+        // every cell lists its leds by ascending index
+        int entries = 0;
+        for(int i = 0; i < count; i++) {
+            int c0 = column(x[i] - ledRadius);
+            int c1 = column(x[i] + ledRadius);
+            int r0 = row(y[i] - ledRadius);
+            int r1 = row(y[i] + ledRadius);
+            for(int r = r0; r <= r1; r++) {
+                for(int c = c0; c <= c1; c++) {
+                    cellStart[r * gridColumns + c + 1]++;
+                    entries++;
+                }
+            }
+        }
+        for(int c = 0; c < cells; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        if(cellLeds.length < entries) {
+            cellLeds = new int[entries];
+        }
+        int fill[] = new int[cells];
+        for(int i = 0; i < count; i++) {
+            int c0 = column(x[i] - ledRadius);
+            int c1 = column(x[i] + ledRadius);
+            int r0 = row(y[i] - ledRadius);
+            int r1 = row(y[i] + ledRadius);
+            for(int r = r0; r <= r1; r++) {
+                for(int c = c0; c <= c1; c++) {
+                    int cell = r * gridColumns + c;
+                    cellLeds[cellStart[cell] + fill[cell]++] = i;
+                }
+            }
+        }
+    }
+
+    private int column(float px) {
+        int c = (int) (px / cellSize);
+        return c < 0 ? 0 : (c >= gridColumns ? gridColumns - 1 : c);
+    }
+
+    private int row(float py) {
+        int r = (int) (py / cellSize);
+        return r < 0 ? 0 : (r >= gridRows ? gridRows - 1 : r);
+    }
+
+    public float getLedRadius() {
+        return ledRadius;
+    }
+
+    public float getCursorRadius() {
+        return cursorRadius;
+    }
+
+    /**
+     * @return the place whose led contains the point, the lowest one if leds overlap,
+     * -1 if none does
+     */
+    public int hitTest(float px, float py) {
+        if(gridColumns == 0) {
+            // not fitted into a view yet
+            return -1;
+        }
+        int cell = row(py) * gridColumns + column(px);
+        for(int e = cellStart[cell]; e < cellStart[cell + 1]; e++) {
+            int i = cellLeds[e];
+            if((x[i] - ledRadius < px && px < x[i] + ledRadius) &&
+                    (y[i] - ledRadius < py && py < y[i] + ledRadius)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds every led a straight move from one point to another passes over, so a fast
+     * stroke whose touch samples lie far apart skips none.
+     * @param hits gets the places of the leds, in no particular order
+     * @return the number of places written to hits, at most its length
+     */
+    public int hitSegment(float x0, float y0, float x1, float y1, int hits[]) {
+        if(gridColumns == 0) {
+            return 0;
+        }
+        if(++stamp == 0) {
+            Arrays.fill(visited, 0);
+            stamp = 1;
+        }
+        float dx = x1 - x0;
+        float dy = y1 - y0;
+        int c0 = column(Math.min(x0, x1));
+        int c1 = column(Math.max(x0, x1));
+        int r0 = row(Math.min(y0, y1));
+        int r1 = row(Math.max(y0, y1));
+        int found = 0;
+        for(int r = r0; r <= r1; r++) {
+            for(int c = c0; c <= c1; c++) {
+                int cell = r * gridColumns + c;
+                for(int e = cellStart[cell]; e < cellStart[cell + 1]; e++) {
+                    int i = cellLeds[e];
+                    if(visited[i] == stamp) {
+                        continue;
+                    }
+                    visited[i] = stamp;
+                    if(crossesLed(i, x0, y0, dx, dy)) {
+                        if(found == hits.length) {
+                            return found;
+                        }
+                        hits[found++] = i;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    // clips the segment against the square of the led, like hitTest() checks points
+    private boolean crossesLed(int i, float x0, float y0, float dx, float dy) {
+        float enter = 0;
+        float leave = 1;
+        if(dx == 0) {
+            if(x0 <= x[i] - ledRadius || x0 >= x[i] + ledRadius) {
+                return false;
+            }
+        } else {
+            float t0 = (x[i] - ledRadius - x0) / dx;
+            float t1 = (x[i] + ledRadius - x0) / dx;
+            enter = Math.max(enter, Math.min(t0, t1));
+            leave = Math.min(leave, Math.max(t0, t1));
+        }
+        if(dy == 0) {
+            if(y0 <= y[i] - ledRadius || y0 >= y[i] + ledRadius) {
+                return false;
+            }
+        } else {
+            float t0 = (y[i] - ledRadius - y0) / dy;
+            float t1 = (y[i] + ledRadius - y0) / dy;
+            enter = Math.max(enter, Math.min(t0, t1));
+            leave = Math.min(leave, Math.max(t0, t1));
+        }
+        return enter <= leave;
+    }
+}
@@ -0,0 +1,77 @@
+package org.schabi.kiba;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * MatrixFormat.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Sizes of the protocol for a display with a given number of leds. Up to 256 leds a led
+ * number is two hex digits in the text protocol and one byte in the binary one, above
+ * that it is four digits or two bytes. The plussy cross has 20 leds.
+ */
+public final class MatrixFormat {
+
+    public static final int MAX_LED_COUNT = 65536;
+    public static final MatrixFormat PLUSSY = new MatrixFormat(20);
+
+    public final int ledCount;
+    // bytes of a led number in binary frames, twice as many hex digits in text lines
+    public final int ledBytes;
+
+    // "m" + led + RRGGBB + line break
+    public final int textSetLedLength;
+    // 'M' or 'R' + ledCount * RRGGBB, without line break
+    public final int textMatrixLength;
+    public final int binarySetLedLength;
+    // 'f', 'M' or 'R' + ledCount * (r g b)
+    public final int binaryMatrixLength;
+    // 'S' + sequence + matrix, without line break in the text protocol
+    public final int textSubscribedLength;
+    public final int binarySubscribedLength;
+    // one changed led of a notification: led + RRGGBB, or led + (r g b)
+    public final int textChangeLength;
+    public final int binaryChangeLength;
+
+    public MatrixFormat(int ledCount) {
+        if(ledCount < 1 || ledCount > MAX_LED_COUNT) {
+            throw new IllegalArgumentException("led count out of range: " + ledCount);
+        }
+        this.ledCount = ledCount;
+        ledBytes = ledCount > 256 ? 2 : 1;
+        textSetLedLength = 1 + ledBytes * 2 + 6 + 1;
+        textMatrixLength = 1 + ledCount * 6;
+        binarySetLedLength = 1 + ledBytes + 3;
+        binaryMatrixLength = 1 + ledCount * 3;
+        textSubscribedLength = textMatrixLength + 4;
+        binarySubscribedLength = binaryMatrixLength + 2;
+        textChangeLength = ledBytes * 2 + 6;
+        binaryChangeLength = ledBytes + 3;
+    }
+
+    /**
+     * @return true for formats that encode everything the same way
+     */
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof MatrixFormat && ((MatrixFormat) other).ledCount == ledCount;
+    }
+
+    @Override
+    public int hashCode() {
+        return ledCount;
+    }
+}
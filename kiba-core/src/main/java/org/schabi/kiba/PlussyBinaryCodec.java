@@ -0,0 +1,279 @@
+package org.schabi.kiba;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * PlussyBinaryCodec.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Binary frames of the plussy protocol. Every frame starts with the letter of its text
+ * counterpart and, except for notifications, has a fixed size that only depends on that
+ * letter:
+ *
+ * <pre>
+ * 'm' led r g b        set a led                  5 bytes (text: 10)
+ * 'r'                  request the matrix state   1 byte  (text: 2)
+ * 's'                  subscribe                  1 byte  (text: 2)
+ * 'f' 20 * (r g b)     set all leds at once      61 bytes (binary only)
+ * 'M' 20 * (r g b)     matrix after an 'm'       61 bytes (text: 122)
+ * 'R' 20 * (r g b)     matrix after an 'r'       61 bytes (text: 122)
+ * 'S' s s 20 * (r g b) matrix after an 's'       63 bytes (text: 126)
+ * 'N' s s k k k * (led r g b)  notification   5 + 4k bytes (text: 6 + 8k)
+ * '?'                  wrong command              1 byte  (text: 2)
+ * </pre>
+ *
+ * The sizes are those of the 20 leds of the plussy cross. Other displays send one
+ * (r g b) per led, and above 256 leds the led number takes two bytes, high byte first,
+ * see {@link MatrixFormat}. The sequence number s s and the number of changed leds k k
+ * of a notification are sent high byte first too, see {@link PlussyCodec} for what they
+ * mean.
+ *
+ * A client switches to binary frames by sending the text line "b". Displays that
+ * understand it answer "B" and only talk binary afterwards, older firmware answers "?"
+ * and the connection stays on the text protocol. A display answers 'f' with 'M' just
+ * like an 'm'.
+ */
+public final class PlussyBinaryCodec {
+
+    public static final byte SET_LED = 'm';
+    public static final byte REQUEST_STATE = 'r';
+    public static final byte SET_MATRIX = 'f';
+    public static final byte MATRIX_UPDATE = 'M';
+    public static final byte MATRIX_STATE = 'R';
+    public static final byte WRONG_COMMAND = '?';
+    public static final byte SUBSCRIBE = 's';
+    public static final byte SUBSCRIBED = 'S';
+    public static final byte NOTIFICATION = 'N';
+
+    public static final byte NEGOTIATE_COMMAND = 'b';
+    public static final byte NEGOTIATE_REPLY = 'B';
+
+    public static final int REQUEST_STATE_LENGTH = 1;
+    public static final int WRONG_COMMAND_LENGTH = 1;
+    public static final int SUBSCRIBE_LENGTH = 1;
+    public static final int NOTIFICATION_HEADER_LENGTH = 5;
+    public static final int MAX_NOTIFICATION_CHANGES = 0xffff;
+
+    private PlussyBinaryCodec() {
+    }
+
+    /**
+     * @return number of bytes written to dst
+     */
+    public static int encodeSetLed(MatrixFormat format, int led, int color,
+                                   byte dst[], int offset) {
+        dst[offset] = SET_LED;
+        int p = offset + 1;
+        if(format.ledBytes == 2) {
+            dst[p++] = (byte) (led >> 8);
+        }
+        dst[p] = (byte) led;
+        dst[p + 1] = (byte) (color >> 16);
+        dst[p + 2] = (byte) (color >> 8);
+        dst[p + 3] = (byte) color;
+        return format.binarySetLedLength;
+    }
+
+    /**
+     * @return the led number of the 'm' frame starting at offset
+     */
+    public static int decodeSetLedNumber(MatrixFormat format, byte src[], int offset) {
+        if(format.ledBytes == 2) {
+            return ((src[offset + 1] & 0xff) << 8) | (src[offset + 2] & 0xff);
+        }
+        return src[offset + 1] & 0xff;
+    }
+
+    /**
+     * @return the color of the 'm' frame starting at offset
+     */
+    public static int decodeSetLedColor(MatrixFormat format, byte src[], int offset) {
+        int p = offset + 1 + format.ledBytes;
+        return ((src[p] & 0xff) << 16) | ((src[p + 1] & 0xff) << 8) | (src[p + 2] & 0xff);
+    }
+
+    /**
+     * @return number of bytes written to dst
+     */
+    public static int encodeRequestState(byte dst[], int offset) {
+        dst[offset] = REQUEST_STATE;
+        return REQUEST_STATE_LENGTH;
+    }
+
+    /**
+     * @return number of bytes written to dst
+     */
+    public static int encodeSubscribe(byte dst[], int offset) {
+        dst[offset] = SUBSCRIBE;
+        return SUBSCRIBE_LENGTH;
+    }
+
+    /**
+     * @param sequence number of the last notification sent to the client
+     * @return number of bytes written to dst
+     */
+    public static int encodeSubscribed(MatrixFormat format, int sequence, int colors[],
+                                       byte dst[], int offset) {
+        dst[offset] = SUBSCRIBED;
+        dst[offset + 1] = (byte) (sequence >> 8);
+        dst[offset + 2] = (byte) sequence;
+        encodeColors(format, colors, dst, offset + 3);
+        return format.binarySubscribedLength;
+    }
+
+    /**
+     * Decodes the 'S' frame starting at offset into colors.
+     * @return the sequence number
+     */
+    public static int decodeSubscribed(MatrixFormat format, byte src[], int offset,
+                                       int colors[]) {
+        decodeColors(format, src, offset + 3, colors);
+        return readShort(src, offset + 1);
+    }
+
+    /**
+     * @param count at most {@link #MAX_NOTIFICATION_CHANGES}
+     * @return number of bytes written to dst
+     */
+    public static int encodeNotification(MatrixFormat format, int sequence, int leds[],
+                                         int colors[], int count, byte dst[], int offset) {
+        dst[offset] = NOTIFICATION;
+        dst[offset + 1] = (byte) (sequence >> 8);
+        dst[offset + 2] = (byte) sequence;
+        dst[offset + 3] = (byte) (count >> 8);
+        dst[offset + 4] = (byte) count;
+        int p = offset + NOTIFICATION_HEADER_LENGTH;
+        for(int i = 0; i < count; i++) {
+            if(format.ledBytes == 2) {
+                dst[p++] = (byte) (leds[i] >> 8);
+            }
+            dst[p] = (byte) leds[i];
+            dst[p + 1] = (byte) (colors[i] >> 16);
+            dst[p + 2] = (byte) (colors[i] >> 8);
+            dst[p + 3] = (byte) colors[i];
+            p += 4;
+        }
+        return p - offset;
+    }
+
+    /**
+     * @param available bytes from offset on, at least the header is needed
+     * @return length of the 'N' frame starting at offset, 0 if its header is not
+     * complete yet
+     */
+    public static int notificationLength(MatrixFormat format, byte src[], int offset,
+                                         int available) {
+        if(available < NOTIFICATION_HEADER_LENGTH) {
+            return 0;
+        }
+        return NOTIFICATION_HEADER_LENGTH + readShort(src, offset + 3) * format.binaryChangeLength;
+    }
+
+    /**
+     * Sets the leds of the complete 'N' frame starting at offset in colors.
+     * @return the sequence number, -1 if the frame names a led the display does not have
+     */
+    public static int applyNotification(MatrixFormat format, byte src[], int offset,
+                                        int colors[]) {
+        int count = readShort(src, offset + 3);
+        int p = offset + NOTIFICATION_HEADER_LENGTH;
+        for(int i = 0; i < count; i++) {
+            int led = src[p++] & 0xff;
+            if(format.ledBytes == 2) {
+                led = (led << 8) | (src[p++] & 0xff);
+            }
+            if(led >= format.ledCount) {
+                return -1;
+            }
+            colors[led] = ((src[p] & 0xff) << 16) | ((src[p + 1] & 0xff) << 8) | (src[p + 2] & 0xff);
+            p += 3;
+        }
+        return readShort(src, offset + 1);
+    }
+
+    private static int readShort(byte src[], int offset) {
+        return ((src[offset] & 0xff) << 8) | (src[offset + 1] & 0xff);
+    }
+
+    /**
+     * @return number of bytes written to dst
+     */
+    public static int encodeSetMatrix(MatrixFormat format, int colors[], byte dst[], int offset) {
+        return encodeMatrix(format, SET_MATRIX, colors, dst, offset);
+    }
+
+    /**
+     * @return length of the frame starting with the given byte, or -1 if it is not a
+     * valid first byte of a frame. For 'N' only the length of its header.
+     */
+    public static int frameLength(MatrixFormat format, byte first) {
+        switch(first) {
+            case SET_LED:
+                return format.binarySetLedLength;
+            case REQUEST_STATE:
+                return REQUEST_STATE_LENGTH;
+            case SUBSCRIBE:
+                return SUBSCRIBE_LENGTH;
+            case SUBSCRIBED:
+                return format.binarySubscribedLength;
+            case NOTIFICATION:
+                // the header, the whole frame is given by notificationLength()
+                return NOTIFICATION_HEADER_LENGTH;
+            case SET_MATRIX:
+            case MATRIX_UPDATE:
+            case MATRIX_STATE:
+                return format.binaryMatrixLength;
+            case WRONG_COMMAND:
+                return WRONG_COMMAND_LENGTH;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Decodes the payload of a 'M' or 'R' frame starting at offset into colors.
+     */
+    public static void decodeMatrix(MatrixFormat format, byte src[], int offset, int colors[]) {
+        decodeColors(format, src, offset + 1, colors);
+    }
+
+    private static void decodeColors(MatrixFormat format, byte src[], int p, int colors[]) {
+        for(int i = 0; i < format.ledCount; i++) {
+            colors[i] = ((src[p] & 0xff) << 16) | ((src[p + 1] & 0xff) << 8) | (src[p + 2] & 0xff);
+            p += 3;
+        }
+    }
+
+    /**
+     * Encodes a whole matrix as a frame of the given type ('f', 'M' or 'R').
+     * @return number of bytes written to dst
+     */
+    public static int encodeMatrix(MatrixFormat format, byte type, int colors[],
+                                   byte dst[], int offset) {
+        dst[offset] = type;
+        encodeColors(format, colors, dst, offset + 1);
+        return format.binaryMatrixLength;
+    }
+
+    private static void encodeColors(MatrixFormat format, int colors[], byte dst[], int p) {
+        for(int i = 0; i < format.ledCount; i++) {
+            dst[p] = (byte) (colors[i] >> 16);
+            dst[p + 1] = (byte) (colors[i] >> 8);
+            dst[p + 2] = (byte) colors[i];
+            p += 3;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package org.schabi.kiba;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * PlussyCodec.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Text protocol of the plussy display, working directly on byte buffers so neither
+ * sending nor receiving creates any objects.
+ *
+ * <pre>
+ * mLLRRGGBB\n          set led LL (hex) to color RRGGBB
+ * r\n                  request the matrix state
+ * s\n                  subscribe to change notifications
+ * M + n * RRGGBB       matrix after an 'm'
+ * R + n * RRGGBB       matrix after an 'r'
+ * S + SSSS + n * RRGGBB    matrix after an 's'
+ * N + SSSS + k * (LL RRGGBB)   notification, not an answer to a command
+ * ?                    wrong command
+ * </pre>
+ *
+ * A subscribed client gets a notification whenever other clients change leds. SSSS is
+ * a sequence number that counts the notifications of the connection, wrapping around
+ * after ffff. The answer to 's' carries the number of the last notification, so the
+ * next one is expected to be one more. A number that skips shows that notifications
+ * got lost and the client has to ask for the whole matrix again. Older firmware answers
+ * 's' with '?'.
+ *
+ * n is the number of leds of the display, 20 for the plussy cross. Displays with more
+ * than 256 leds use four digits for the led number, see {@link MatrixFormat}.
+ */
+public final class PlussyCodec {
+
+    public static final int REPLY_EMPTY = 0;
+    public static final int REPLY_MATRIX_UPDATE = 1;
+    public static final int REPLY_MATRIX_STATE = 2;
+    public static final int REPLY_WRONG_COMMAND = 3;
+    public static final int REPLY_UNKNOWN = 4;
+    public static final int REPLY_SUBSCRIBED = 5;
+    public static final int REPLY_NOTIFICATION = 6;
+
+    public static final int REQUEST_STATE_LENGTH = 2;
+    public static final int SUBSCRIBE_LENGTH = 2;
+    // header of a notification line, 'N' and the sequence number
+    public static final int NOTIFICATION_HEADER_LENGTH = 5;
+
+    private static final byte HEX_DIGITS[] = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    private PlussyCodec() {
+    }
+
+    /**
+     * Writes "mLLRRGGBB\n". The alpha channel of color is ignored.
+     * @return number of bytes written to dst
+     */
+    public static int encodeSetLed(MatrixFormat format, int led, int color,
+                                   byte dst[], int offset) {
+        int digits = format.ledBytes * 2;
+        dst[offset] = 'm';
+        writeHex(led, digits, dst, offset + 1);
+        writeHex(color, 6, dst, offset + 1 + digits);
+        dst[offset + digits + 7] = '\n';
+        return format.textSetLedLength;
+    }
+
+    /**
+     * Reads the led and the color of a set led line without line break.
+     * @return the color in the low 24 bits and the led above, -1 if the line is no
+     * valid set led command for this format
+     */
+    public static long parseSetLed(MatrixFormat format, byte src[], int offset, int length) {
+        int digits = format.ledBytes * 2;
+        if(length != format.textSetLedLength - 1 || src[offset] != 'm') {
+            return -1;
+        }
+        int led = parseHex(src, offset + 1, digits);
+        int color = parseHex(src, offset + 1 + digits, 6);
+        if(led < 0 || led >= format.ledCount || color < 0) {
+            return -1;
+        }
+        return ((long) led << 24) | color;
+    }
+
+    /**
+     * @return number of bytes written to dst
+     */
+    public static int encodeRequestState(byte dst[], int offset) {
+        dst[offset] = 'r';
+        dst[offset + 1] = '\n';
+        return REQUEST_STATE_LENGTH;
+    }
+
+    /**
+     * @return number of bytes written to dst
+     */
+    public static int encodeSubscribe(byte dst[], int offset) {
+        dst[offset] = 's';
+        dst[offset + 1] = '\n';
+        return SUBSCRIBE_LENGTH;
+    }
+
+    /**
+     * Writes the answer to 's' including the line break.
+     * @param sequence number of the last notification sent to the client
+     * @return number of bytes written to dst
+     */
+    public static int encodeSubscribed(MatrixFormat format, int sequence, int colors[],
+                                       byte dst[], int offset) {
+        dst[offset] = 'S';
+        writeHex(sequence, 4, dst, offset + 1);
+        for(int i = 0; i < format.ledCount; i++) {
+            writeHex(colors[i], 6, dst, offset + 5 + i * 6);
+        }
+        dst[offset + format.textSubscribedLength] = '\n';
+        return format.textSubscribedLength + 1;
+    }
+
+    /**
+     * Parses the answer to 's', without line break, into colors.
+     * @return the sequence number, -1 if the line is broken
+     */
+    public static int parseSubscribed(MatrixFormat format, byte src[], int offset, int length,
+                                      int colors[]) {
+        if(length < format.textSubscribedLength) {
+            return -1;
+        }
+        int sequence = parseHex(src, offset + 1, 4);
+        if(sequence < 0 || !parseColors(format, src, offset + 5, colors)) {
+            return -1;
+        }
+        return sequence;
+    }
+
+    /**
+     * Writes a notification line with the given leds including the line break.
+     * @return number of bytes written to dst
+     */
+    public static int encodeNotification(MatrixFormat format, int sequence, int leds[],
+                                         int colors[], int count, byte dst[], int offset) {
+        int digits = format.ledBytes * 2;
+        dst[offset] = 'N';
+        writeHex(sequence, 4, dst, offset + 1);
+        int p = offset + NOTIFICATION_HEADER_LENGTH;
+        for(int i = 0; i < count; i++) {
+            writeHex(leds[i], digits, dst, p);
+            writeHex(colors[i], 6, dst, p + digits);
+            p += format.textChangeLength;
+        }
+        dst[p] = '\n';
+        return p + 1 - offset;
+    }
+
+    /**
+     * Sets the leds of a notification line without line break in colors. A broken line
+     * may leave colors changed in part.
+     * @return the sequence number, -1 if the line is broken
+     */
+    public static int applyNotification(MatrixFormat format, byte src[], int offset,
+                                        int length, int colors[]) {
+        int changes = length - NOTIFICATION_HEADER_LENGTH;
+        if(changes <= 0 || changes % format.textChangeLength != 0) {
+            return -1;
+        }
+        int sequence = parseHex(src, offset + 1, 4);
+        int digits = format.ledBytes * 2;
+        int end = offset + length;
+        for(int p = offset + NOTIFICATION_HEADER_LENGTH; p < end; p += format.textChangeLength) {
+            int led = parseHex(src, p, digits);
+            int color = parseHex(src, p + digits, 6);
+            if(led < 0 || led >= format.ledCount || color < 0) {
+                return -1;
+            }
+            colors[led] = color;
+        }
+        return sequence;
+    }
+
+    /**
+     * Writes a matrix reply line of the given type ('M' or 'R') including the line break.
+     * @return number of bytes written to dst
+     */
+    public static int encodeMatrix(MatrixFormat format, byte type, int colors[],
+                                   byte dst[], int offset) {
+        dst[offset] = type;
+        for(int i = 0; i < format.ledCount; i++) {
+            writeHex(colors[i], 6, dst, offset + 1 + i * 6);
+        }
+        dst[offset + format.textMatrixLength] = '\n';
+        return format.textMatrixLength + 1;
+    }
+
+    /**
+     * Classifies a reply line. The line must not contain the line break.
+     */
+    public static int getReplyType(byte src[], int offset, int length) {
+        if(length == 0) {
+            return REPLY_EMPTY;
+        }
+        switch(src[offset]) {
+            case 'M':
+                return REPLY_MATRIX_UPDATE;
+            case 'R':
+                return REPLY_MATRIX_STATE;
+            case 'S':
+                return REPLY_SUBSCRIBED;
+            case 'N':
+                return REPLY_NOTIFICATION;
+            case '?':
+                return REPLY_WRONG_COMMAND;
+            default:
+                return REPLY_UNKNOWN;
+        }
+    }
+
+    /**
+     * Parses the colors of a 'M' or 'R' line into colors.
+     * @return false if the line is too short or contains something else than hex digits
+     */
+    public static boolean parseMatrix(MatrixFormat format, byte src[], int offset, int length,
+                                      int colors[]) {
+        if(length < format.textMatrixLength) {
+            return false;
+        }
+        return parseColors(format, src, offset + 1, colors);
+    }
+
+    private static boolean parseColors(MatrixFormat format, byte src[], int p, int colors[]) {
+        for(int i = 0; i < format.ledCount; i++) {
+            int color = 0;
+            for(int j = 0; j < 6; j++) {
+                int digit = hexValue(src[p++]);
+                if(digit < 0) {
+                    return false;
+                }
+                color = (color << 4) | digit;
+            }
+            colors[i] = color;
+        }
+        return true;
+    }
+
+    /**
+     * @return the position of the next line break in src, or -1 if there is none
+     */
+    public static int findLineEnd(byte src[], int offset, int end) {
+        for(int i = offset; i < end; i++) {
+            if(src[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads digits hex digits, as in the led and color of a "mLLRRGGBB" command.
+     * @return the value or -1 if one of the bytes is not a hex digit
+     */
+    public static int parseHex(byte src[], int offset, int digits) {
+        int value = 0;
+        for(int i = 0; i < digits; i++) {
+            int digit = hexValue(src[offset + i]);
+            if(digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static void writeHex(int value, int digits, byte dst[], int offset) {
+        for(int i = digits - 1; i >= 0; i--) {
+            dst[offset + i] = HEX_DIGITS[value & 0xf];
+            value >>>= 4;
+        }
+    }
+
+    private static int hexValue(byte c) {
+        if(c >= '0' && c <= '9') {
+            return c - '0';
+        } else if(c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if(c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
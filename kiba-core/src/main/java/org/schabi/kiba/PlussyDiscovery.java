@@ -0,0 +1,151 @@
+package org.schabi.kiba;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * PlussyDiscovery.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Displays announce themselves by broadcasting "plussyDisplay" to UDP port 60000. Displays
+ * that support it also answer a "plussyProbe" sent to that port with the same message,
+ * sent back to the address and port of the probe.
+ */
+final class PlussyDiscovery {
+
+    static final String BROADCAST_IP = "255.255.255.255";
+    static final int UDP_PORT = 60000;
+    static final int TCP_PORT = 60000;
+    static final String BEACON = "plussyDisplay";
+    static final String PROBE = "plussyProbe";
+
+    private static final byte BEACON_BYTES[] = ascii(BEACON);
+    private static final byte PROBE_BYTES[] = ascii(PROBE);
+
+    private PlussyDiscovery() {
+    }
+
+    private static byte[] ascii(String message) {
+        byte bytes[] = new byte[message.length()];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) message.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Opens the socket beacons are received on. Other sockets on this machine may listen
+     * on the port as well, for example an emulated display answering probes.
+     */
+    static DatagramSocket openSocket(int timeout) throws IOException {
+        InetAddress broadcastAddress = InetAddress.getByName(BROADCAST_IP);
+        DatagramSocket socket = new DatagramSocket(null);
+        try {
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(broadcastAddress, UDP_PORT));
+            socket.setSoTimeout(timeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Waits for one packet.
+     * @return the address of the display that sent it, or null if it was no beacon
+     * @throws java.io.InterruptedIOException if nothing arrived within the socket's timeout
+     */
+    static InetAddress receiveBeacon(DatagramSocket socket, DatagramPacket packet)
+            throws IOException {
+        packet.setLength(packet.getData().length);
+        socket.receive(packet);
+        return isBeacon(packet) ? packet.getAddress() : null;
+    }
+
+    static boolean isBeacon(DatagramPacket packet) {
+        return contains(packet.getData(), packet.getOffset(), packet.getLength(), BEACON_BYTES);
+    }
+
+    static boolean isProbe(DatagramPacket packet) {
+        return contains(packet.getData(), packet.getOffset(), packet.getLength(), PROBE_BYTES);
+    }
+
+    static DatagramPacket beaconPacket(InetAddress address, int port) {
+        return new DatagramPacket(BEACON_BYTES, BEACON_BYTES.length, address, port);
+    }
+
+    static DatagramPacket probePacket(InetAddress address) {
+        return new DatagramPacket(PROBE_BYTES, PROBE_BYTES.length, address, UDP_PORT);
+    }
+
+    // like String.contains(), without decoding the packet
+    private static boolean contains(byte data[], int offset, int length, byte message[]) {
+        int last = offset + length - message.length;
+        for(int start = offset; start <= last; start++) {
+            int i = 0;
+            while(i < message.length && data[start + i] == message[i]) {
+                i++;
+            }
+            if(i == message.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the broadcast address of every local IPv4 network that is up, and the
+     * limited broadcast address
+     */
+    static List<InetAddress> broadcastAddresses() {
+        LinkedHashSet<InetAddress> addresses = new LinkedHashSet<>();
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while(interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface networkInterface = interfaces.nextElement();
+                if(!networkInterface.isUp()) {
+                    continue;
+                }
+                for(InterfaceAddress address : networkInterface.getInterfaceAddresses()) {
+                    if(address.getBroadcast() != null) {
+                        addresses.add(address.getBroadcast());
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            // the limited broadcast still reaches the network of the default route
+        }
+        try {
+            addresses.add(InetAddress.getByName(BROADCAST_IP));
+        } catch (IOException e) {
+            // a literal address is never looked up
+        }
+        return new ArrayList<>(addresses);
+    }
+}
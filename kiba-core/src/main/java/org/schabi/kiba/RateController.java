@@ -0,0 +1,223 @@
+package org.schabi.kiba;
+
+import java.util.Arrays;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * RateController.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Chooses the window of commands in flight from the round trips of the answered
+ * commands, like TCP congestion control does with its congestion window, but driven
+ * by delay instead of loss, since a TCP link to a display never loses a command.
+ *
+ * Once per round trip, that is after a window of answers, the median round trip of the
+ * round is compared to the target. A queue in front of the display delays every answer
+ * of a round, a retransmission only the ones behind it, so a single loss does not
+ * shrink the window, while losses that hold up most of a round do, since every command
+ * of a larger window would wait for them as well. The window is
+ * - halved if it is above the target, after which one round is left alone, because
+ *   its answers are still those of the larger window,
+ * - doubled while starting up, later grown by one, if it is below and more commands
+ *   were waiting than the window let through,
+ * - kept otherwise, so a window the app does not use does not grow.
+ * Start up ends with the first halving or once the round trip reaches half the target.
+ * A link that takes longer than the target even without a queue gets half of its
+ * smallest round trip as room for a queue instead.
+ *
+ * The batch interval follows from the smoothed round trip: while it is above half the
+ * target, holding back new commands for an eighth of it lets more of them be merged,
+ * below that they go out right away. The rate of commands the link carries, which frame
+ * rates can be adapted to, is measured over the rounds in which commands had to wait,
+ * since a round the app did not fill says nothing about the link. A window per smoothed
+ * round trip is what the link carries at least, while the window is not used up.
+ */
+public final class RateController {
+
+    public static final long DEFAULT_TARGET = 50000000L;
+    private static final long MAX_BATCH_INTERVAL = 20000000L;
+    // the smallest round trip is forgotten after this, so a changed route shows up
+    private static final long MIN_RTT_LIFETIME = 10000000000L;
+
+    private long target = DEFAULT_TARGET;
+    private int window;
+    private boolean startingUp = true;
+
+    private long smoothedRtt = 0;
+    private long minRtt = 0;
+    private long minRttTime;
+
+    // the current round: answers so far, the window it started with and if commands
+    // had to wait for the window
+    private int answered = 0;
+    private int roundSize;
+    private boolean windowLimited = false;
+    private final long roundRtts[] = new long[CommandQueue.MAX_WINDOW];
+    private long roundStart = 0;
+    private long lastAnswer = 0;
+    // answers per second of the rounds that were limited by the window, smoothed
+    private long deliveryRate = 0;
+    // the round after a halving still answers commands sent with the old window
+    private boolean draining = false;
+
+    private long increases = 0;
+    private long decreases = 0;
+
+    /**
+     * @param window to start with
+     */
+    public RateController(int window) {
+        this.window = clampWindow(window);
+        roundSize = this.window;
+    }
+
+    private static int clampWindow(int window) {
+        return Math.max(1, Math.min(CommandQueue.MAX_WINDOW, window));
+    }
+
+    /**
+     * @param target nanoseconds the round trip of a command should stay below
+     */
+    public synchronized void setTarget(long target) {
+        this.target = target;
+    }
+
+    public synchronized long getTarget() {
+        return target;
+    }
+
+    /**
+     * Starts over from window, keeping what was learned about the link.
+     */
+    public synchronized void restart(int window) {
+        this.window = clampWindow(window);
+        startingUp = true;
+        answered = 0;
+        roundSize = this.window;
+        windowLimited = false;
+        roundStart = 0;
+        draining = false;
+    }
+
+    /**
+     * Takes the round trip of one answered command into account.
+     * @param waiting if commands were waiting for a free slot in the window
+     * @return the window to use from now on
+     */
+    public synchronized int onAnswer(long roundTrip, boolean waiting) {
+        long now = System.nanoTime();
+        // an answer within the same tick of the clock, rates are divided by it
+        roundTrip = Math.max(1, roundTrip);
+        if(minRtt == 0 || roundTrip <= minRtt || now - minRttTime > MIN_RTT_LIFETIME) {
+            minRtt = roundTrip;
+            minRttTime = now;
+        }
+        smoothedRtt = smoothedRtt == 0 ? roundTrip : smoothedRtt + (roundTrip - smoothedRtt) / 8;
+        windowLimited |= waiting;
+        if(answered < roundRtts.length) {
+            roundRtts[answered] = roundTrip;
+        }
+        if(roundStart == 0) {
+            // a round continues the last one if the link did not run dry in between,
+            // otherwise it started when its first command was sent
+            roundStart = lastAnswer != 0 && now - lastAnswer < roundTrip
+                    ? lastAnswer : now - roundTrip;
+        }
+        lastAnswer = now;
+        if(++answered < roundSize) {
+            return window;
+        }
+        if(windowLimited && now > roundStart) {
+            // answers held up by a retransmission come in at once, but never faster
+            // than a window per round trip
+            long rate = Math.min(answered * 1000000000L / (now - roundStart),
+                    answered * 1000000000L / minRtt);
+            deliveryRate = deliveryRate == 0 ? rate : deliveryRate + (rate - deliveryRate) / 4;
+        }
+        int samples = Math.min(answered, roundRtts.length);
+        Arrays.sort(roundRtts, 0, samples);
+        long roundRtt = roundRtts[samples / 2];
+        long limit = Math.max(target, minRtt + minRtt / 2);
+        if(draining) {
+            draining = false;
+        } else if(roundRtt > limit) {
+            if(window > 1) {
+                window = Math.max(1, window / 2);
+                decreases++;
+                draining = true;
+            }
+            startingUp = false;
+        } else if(windowLimited && window < CommandQueue.MAX_WINDOW) {
+            if(startingUp && 2 * roundRtt < limit) {
+                window = clampWindow(2 * window);
+            } else {
+                startingUp = false;
+                window++;
+            }
+            increases++;
+        }
+        answered = 0;
+        roundSize = window;
+        windowLimited = false;
+        roundStart = 0;
+        return window;
+    }
+
+    public synchronized int getWindow() {
+        return window;
+    }
+
+    /**
+     * @return round trip in nanoseconds, smoothed over the last answers, 0 before the first
+     */
+    public synchronized long getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    /**
+     * @return smallest round trip of the last seconds in nanoseconds, 0 before the first
+     */
+    public synchronized long getMinRtt() {
+        return minRtt;
+    }
+
+    /**
+     * @return nanoseconds new commands should be held back to be sent together
+     */
+    public synchronized long getBatchInterval() {
+        return 2 * smoothedRtt > target ? Math.min(MAX_BATCH_INTERVAL, smoothedRtt / 8) : 0;
+    }
+
+    /**
+     * @return commands per second the link is expected to carry, 0 before the first answer
+     */
+    public synchronized long getCommandRate() {
+        long windowRate = smoothedRtt == 0 ? 0 : window * 1000000000L / smoothedRtt;
+        return Math.max(deliveryRate, windowRate);
+    }
+
+    /**
+     * @return how often the window was grown and shrunk
+     */
+    public synchronized long getIncreases() {
+        return increases;
+    }
+
+    public synchronized long getDecreases() {
+        return decreases;
+    }
+}
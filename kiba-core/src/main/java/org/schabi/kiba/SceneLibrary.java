@@ -0,0 +1,472 @@
+package org.schabi.kiba;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * SceneLibrary.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Named scenes for one size of display: a single matrix, or a sequence of frames with
+ * the ticks each one is shown for. The library is a file mapped into memory and read in
+ * place: opening it only checks the index, nothing is parsed into objects, and loading a
+ * scene copies its colors straight into the caller's array.
+ *
+ * The file is never changed in place. {@link #save(String, FrameSequence)} and
+ * {@link #remove(String)} write a new one next to it, copying the other scenes as they
+ * are, replace the old file with it and return the library opened again.
+ *
+ * Library files are binary, big endian, the index sorted by the bytes of the names so
+ * {@link #find(String)} is a binary search:
+ * <pre>
+ * "KSCN" version(1)
+ * int ledCount, int sceneCount
+ * sceneCount * (int nameOffset, int nameLength, int dataOffset, int frameCount)
+ * names in UTF-8
+ * per scene frameCount * (int ticks, ledCount * (r g b))
+ * </pre>
+ *
+ * {@link #exportText(Writer)} and {@link #importText(Reader)} use a text format to share
+ * scenes:
+ * <pre>
+ * kiba scenes 1
+ * leds 20
+ * scene name of the scene
+ * frame ticks RRGGBB RRGGBB ...
+ * </pre>
+ */
+public final class SceneLibrary {
+
+    private static final int MAGIC = ('K' << 24) | ('S' << 16) | ('C' << 8) | 'N';
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 13;
+    private static final int ENTRY_LENGTH = 16;
+    private static final String TEXT_HEADER = "kiba scenes 1";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int ledCount;
+    private final int sceneCount;
+    private final int frameLength;
+
+    private SceneLibrary(File file, MappedByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if(buffer.limit() < HEADER_LENGTH || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a scene library: " + file);
+        }
+        int version = buffer.get(4);
+        if(version != VERSION) {
+            throw new IOException("unknown scene library version " + version);
+        }
+        ledCount = buffer.getInt(5);
+        sceneCount = buffer.getInt(9);
+        if(ledCount < 1 || ledCount > MatrixFormat.MAX_LED_COUNT || sceneCount < 0
+                || HEADER_LENGTH + (long) sceneCount * ENTRY_LENGTH > buffer.limit()) {
+            throw new IOException("broken scene library: " + file);
+        }
+        frameLength = 4 + ledCount * 3;
+        // checked once, so reading a scene later can't run past the end
+        for(int i = 0; i < sceneCount; i++) {
+            int entry = entry(i);
+            long nameEnd = (long) buffer.getInt(entry) + buffer.getInt(entry + 4);
+            long dataEnd = buffer.getInt(entry + 8) + (long) buffer.getInt(entry + 12) * frameLength;
+            if(buffer.getInt(entry) < 0 || buffer.getInt(entry + 4) < 0 || nameEnd > buffer.limit()
+                    || buffer.getInt(entry + 8) < 0 || buffer.getInt(entry + 12) < 1
+                    || dataEnd > buffer.limit()) {
+                throw new IOException("broken scene " + i + " in " + file);
+            }
+        }
+    }
+
+    /**
+     * Maps a library file, creating an empty one if there is none yet.
+     * @throws IOException if the file is broken or made for a different number of leds
+     */
+    public static SceneLibrary open(File file, int ledCount) throws IOException {
+        if(!file.exists()) {
+            write(file, ledCount, new ArrayList<Entry>());
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        SceneLibrary library;
+        try {
+            library = new SceneLibrary(file, in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    0, in.length()));
+        } finally {
+            // the mapping stays valid without the file being open
+            in.close();
+        }
+        if(library.ledCount != ledCount) {
+            throw new IOException("scene library " + file + " is made for " + library.ledCount
+                    + " leds, not " + ledCount);
+        }
+        return library;
+    }
+
+    public int getLedCount() {
+        return ledCount;
+    }
+
+    public int size() {
+        return sceneCount;
+    }
+
+    private static int entry(int scene) {
+        return HEADER_LENGTH + scene * ENTRY_LENGTH;
+    }
+
+    public String getName(int scene) {
+        int entry = entry(scene);
+        byte name[] = new byte[buffer.getInt(entry + 4)];
+        for(int i = 0; i < name.length; i++) {
+            name[i] = buffer.get(buffer.getInt(entry) + i);
+        }
+        return new String(name, UTF8);
+    }
+
+    /**
+     * @return index of the scene with the given name, or -1 if there is none
+     */
+    public int find(String name) {
+        byte key[] = name.getBytes(UTF8);
+        int low = 0;
+        int high = sceneCount - 1;
+        while(low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = compareName(middle, key);
+            if(order < 0) {
+                low = middle + 1;
+            } else if(order > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    // compares the name of scene with key byte by byte, unsigned
+    private int compareName(int scene, byte key[]) {
+        int entry = entry(scene);
+        int offset = buffer.getInt(entry);
+        int length = buffer.getInt(entry + 4);
+        int common = Math.min(length, key.length);
+        for(int i = 0; i < common; i++) {
+            int difference = (buffer.get(offset + i) & 0xff) - (key[i] & 0xff);
+            if(difference != 0) {
+                return difference;
+            }
+        }
+        return length - key.length;
+    }
+
+    /**
+     * @return 1 for a single matrix, more for an animation
+     */
+    public int getFrameCount(int scene) {
+        return buffer.getInt(entry(scene) + 12);
+    }
+
+    public int getTicks(int scene, int frame) {
+        return buffer.getInt(frameOffset(scene, frame));
+    }
+
+    private int frameOffset(int scene, int frame) {
+        return buffer.getInt(entry(scene) + 8) + frame * frameLength;
+    }
+
+    /**
+     * Copies the colors of a frame of a scene into colors, which needs room for every led.
+     */
+    public void getColors(int scene, int frame, int colors[]) {
+        int p = frameOffset(scene, frame) + 4;
+        for(int i = 0; i < ledCount; i++) {
+            colors[i] = ((buffer.get(p) & 0xff) << 16) | ((buffer.get(p + 1) & 0xff) << 8)
+                    | (buffer.get(p + 2) & 0xff);
+            p += 3;
+        }
+    }
+
+    /**
+     * @return a copy of the scene that can be played by the AnimationScheduler
+     */
+    public FrameSequence getSequence(int scene, boolean loop) {
+        FrameSequence sequence = new FrameSequence(loop);
+        Frame frame = new Frame(ledCount);
+        for(int i = 0; i < getFrameCount(scene); i++) {
+            getColors(scene, i, frame.colors);
+            sequence.add(frame, getTicks(scene, i));
+        }
+        return sequence;
+    }
+
+    /**
+     * Saves a single matrix under the given name, replacing a scene of that name.
+     * @return the library with the new scene
+     */
+    public SceneLibrary save(String name, int colors[]) throws IOException {
+        FrameSequence sequence = new FrameSequence();
+        sequence.add(new Frame(colors), 1);
+        return save(name, sequence);
+    }
+
+    /**
+     * Saves the frames of sequence under the given name, replacing a scene of that name.
+     * @return the library with the new scene
+     */
+    public SceneLibrary save(String name, FrameSequence sequence) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<FrameSequence> sequences = new ArrayList<>();
+        names.add(name);
+        sequences.add(sequence);
+        return replace(names, sequences, null);
+    }
+
+    /**
+     * @return the library without the scene of that name
+     */
+    public SceneLibrary remove(String name) throws IOException {
+        return replace(new ArrayList<String>(), new ArrayList<FrameSequence>(), name);
+    }
+
+    // writes the scenes of this library but removed and the ones of names with their
+    // sequences into a new file, which then replaces the old one
+    private SceneLibrary replace(List<String> names, List<FrameSequence> sequences,
+                                 String removed) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        List<String> added = new ArrayList<>();
+        for(int i = 0; i < names.size(); i++) {
+            // a line break would end the name early in the text format
+            String name = names.get(i).replace('\n', ' ');
+            if(names.lastIndexOf(names.get(i)) != i) {
+                // the last scene of a name wins
+                continue;
+            }
+            if(sequences.get(i).size() == 0) {
+                throw new IllegalArgumentException("scene without frames: " + name);
+            }
+            if(sequences.get(i).get(0).getLedCount() != ledCount) {
+                throw new IllegalArgumentException("scene " + name + " has "
+                        + sequences.get(i).get(0).getLedCount() + " leds, not " + ledCount);
+            }
+            entries.add(new Entry(name.getBytes(UTF8), sequences.get(i)));
+            added.add(name);
+        }
+        for(int i = 0; i < sceneCount; i++) {
+            String name = getName(i);
+            if(!added.contains(name) && !name.equals(removed)) {
+                entries.add(new Entry(name.getBytes(UTF8), i));
+            }
+        }
+        File temporary = new File(file.getPath() + ".new");
+        write(temporary, ledCount, entries);
+        if(!temporary.renameTo(file)) {
+            // some file systems don't replace files on rename
+            if(!file.delete() || !temporary.renameTo(file)) {
+                throw new IOException("could not replace " + file);
+            }
+        }
+        return open(file, ledCount);
+    }
+
+    // a scene to write, either new frames or one of this library copied as it is
+    private class Entry {
+        final byte name[];
+        final FrameSequence sequence;
+        final int scene;
+
+        Entry(byte name[], FrameSequence sequence) {
+            this.name = name;
+            this.sequence = sequence;
+            scene = -1;
+        }
+
+        Entry(byte name[], int scene) {
+            this.name = name;
+            sequence = null;
+            this.scene = scene;
+        }
+
+        int getFrameCount() {
+            return sequence != null ? sequence.size() : SceneLibrary.this.getFrameCount(scene);
+        }
+
+        void writeFrames(DataOutputStream out) throws IOException {
+            if(sequence != null) {
+                for(int i = 0; i < sequence.size(); i++) {
+                    out.writeInt(sequence.getTicks(i));
+                    int colors[] = sequence.get(i).colors;
+                    for(int led = 0; led < colors.length; led++) {
+                        out.writeByte(colors[led] >> 16);
+                        out.writeByte(colors[led] >> 8);
+                        out.writeByte(colors[led]);
+                    }
+                }
+            } else {
+                int start = frameOffset(scene, 0);
+                int end = start + getFrameCount() * frameLength;
+                for(int p = start; p < end; p++) {
+                    out.write(buffer.get(p));
+                }
+            }
+        }
+    }
+
+    private static void write(File file, int ledCount, List<Entry> entries) throws IOException {
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                int common = Math.min(a.name.length, b.name.length);
+                for(int i = 0; i < common; i++) {
+                    int difference = (a.name[i] & 0xff) - (b.name[i] & 0xff);
+                    if(difference != 0) {
+                        return difference;
+                    }
+                }
+                return a.name.length - b.name.length;
+            }
+        });
+        int frameLength = 4 + ledCount * 3;
+        int nameOffset = HEADER_LENGTH + entries.size() * ENTRY_LENGTH;
+        int dataOffset = nameOffset;
+        for(Entry entry : entries) {
+            dataOffset += entry.name.length;
+        }
+        FileOutputStream fileOut = new FileOutputStream(file);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(ledCount);
+            out.writeInt(entries.size());
+            for(Entry entry : entries) {
+                out.writeInt(nameOffset);
+                out.writeInt(entry.name.length);
+                out.writeInt(dataOffset);
+                out.writeInt(entry.getFrameCount());
+                nameOffset += entry.name.length;
+                dataOffset += entry.getFrameCount() * frameLength;
+            }
+            for(Entry entry : entries) {
+                out.write(entry.name);
+            }
+            for(Entry entry : entries) {
+                entry.writeFrames(out);
+            }
+            // on the disk before it replaces the old library, a crash right after the
+            // rename would leave an empty file otherwise
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes all scenes in the text format.
+     */
+    public void exportText(Writer out) throws IOException {
+        int colors[] = new int[ledCount];
+        StringBuilder line = new StringBuilder();
+        out.write(TEXT_HEADER + "\nleds " + ledCount + "\n");
+        for(int scene = 0; scene < sceneCount; scene++) {
+            out.write("scene " + getName(scene) + "\n");
+            for(int frame = 0; frame < getFrameCount(scene); frame++) {
+                getColors(scene, frame, colors);
+                line.setLength(0);
+                line.append("frame ").append(getTicks(scene, frame));
+                for(int color : colors) {
+                    line.append(' ');
+                    String hex = Integer.toHexString(color);
+                    for(int i = hex.length(); i < 6; i++) {
+                        line.append('0');
+                    }
+                    line.append(hex);
+                }
+                out.write(line.append('\n').toString());
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Adds the scenes of a text export, replacing scenes of the same names.
+     * @return the library with the imported scenes
+     * @throws IOException if the text is broken or made for a different number of leds
+     */
+    public SceneLibrary importText(Reader in) throws IOException {
+        BufferedReader lines = new BufferedReader(in);
+        if(!TEXT_HEADER.equals(lines.readLine())) {
+            throw new IOException("not a scene export");
+        }
+        String leds = lines.readLine();
+        if(leds == null || !leds.equals("leds " + ledCount)) {
+            throw new IOException("scene export is not made for " + ledCount + " leds");
+        }
+        List<String> names = new ArrayList<>();
+        List<FrameSequence> sequences = new ArrayList<>();
+        Frame frame = new Frame(ledCount);
+        String line;
+        int number = 2;
+        while((line = lines.readLine()) != null) {
+            number++;
+            if(line.startsWith("scene ")) {
+                names.add(line.substring(6));
+                sequences.add(new FrameSequence());
+            } else if(line.startsWith("frame ") && !sequences.isEmpty()) {
+                String fields[] = line.trim().split(" +");
+                if(fields.length != ledCount + 2) {
+                    throw new IOException("line " + number + ": expected " + ledCount
+                            + " colors");
+                }
+                try {
+                    int ticks = Integer.parseInt(fields[1]);
+                    for(int i = 0; i < ledCount; i++) {
+                        frame.colors[i] = Integer.parseInt(fields[i + 2], 16) & 0xffffff;
+                    }
+                    sequences.get(sequences.size() - 1).add(frame, ticks);
+                } catch (NumberFormatException e) {
+                    throw new IOException("line " + number + ": " + e.getMessage());
+                }
+            } else if(!line.trim().isEmpty()) {
+                throw new IOException("line " + number + ": can't read " + line);
+            }
+        }
+        for(int i = 0; i < names.size(); i++) {
+            if(sequences.get(i).size() == 0) {
+                throw new IOException("scene " + names.get(i) + " has no frames");
+            }
+        }
+        return replace(names, sequences, null);
+    }
+}
@@ -0,0 +1,131 @@
+package org.schabi.kiba;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * SessionLogReader.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Reads the records of the files written by a {@link SessionRecorder}, one after the
+ * other. The data of the current record is only valid until the next call to
+ * {@link #next()}.
+ */
+final class SessionLogReader {
+
+    private final List<File> files;
+    private int fileIndex = 0;
+    private MappedByteBuffer buffer;
+    private int ledCount = -1;
+
+    private byte type;
+    private long nanos;
+    private byte data[] = new byte[4096];
+    private int length;
+
+    /**
+     * @param files in the order they were written
+     */
+    SessionLogReader(List<File> files) {
+        this.files = files;
+    }
+
+    /**
+     * Moves on to the next record.
+     * @return false if there is none
+     * @throws IOException if a file can't be read or is no log file
+     */
+    boolean next() throws IOException {
+        while(buffer == null || buffer.remaining() < SessionRecorder.RECORD_HEADER_LENGTH
+                || buffer.get(buffer.position()) == 0) {
+            // an empty rest is the end of a file that was not closed
+            if(fileIndex == files.size()) {
+                return false;
+            }
+            open(files.get(fileIndex++));
+        }
+        type = buffer.get();
+        length = buffer.getInt();
+        nanos = buffer.getLong();
+        if(length < 0 || length > buffer.remaining()) {
+            throw new IOException("broken record in " + files.get(fileIndex - 1));
+        }
+        if(length > data.length) {
+            data = new byte[Math.max(length, 2 * data.length)];
+        }
+        buffer.get(data, 0, length);
+        return true;
+    }
+
+    private void open(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+        } finally {
+            in.close();
+        }
+        byte magic[] = new byte[SessionRecorder.MAGIC.length];
+        if(buffer.remaining() < SessionRecorder.FILE_HEADER_LENGTH) {
+            throw new IOException("not a session log: " + file);
+        }
+        buffer.get(magic);
+        for(int i = 0; i < magic.length; i++) {
+            if(magic[i] != SessionRecorder.MAGIC[i]) {
+                throw new IOException("not a session log: " + file);
+            }
+        }
+        ledCount = buffer.getInt();
+        // the wall clock and nano time the file was started at
+        buffer.getLong();
+        buffer.getLong();
+    }
+
+    /**
+     * @return led count of the display the current file was recorded with
+     */
+    int getLedCount() {
+        return ledCount;
+    }
+
+    /**
+     * @return {@link SessionRecorder#CONNECTED}, {@link SessionRecorder#DISCONNECTED},
+     * {@link SessionRecorder#SENT} or {@link SessionRecorder#RECEIVED}
+     */
+    byte getType() {
+        return type;
+    }
+
+    /**
+     * @return System.nanoTime() of the recording device when the record was written
+     */
+    long getNanos() {
+        return nanos;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    int getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,216 @@
+package org.schabi.kiba;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * SessionRecorder.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Appends everything sent to and received from a display to a log, so a session can be
+ * looked at or replayed later with {@link SessionLogReader}.
+ *
+ * The log is a series of files of a fixed size, each mapped into memory, so recording
+ * copies the bytes and nothing else: no system call and no allocation per record. When
+ * a file is full the next one is started, and the oldest one is deleted once there are
+ * more than maxFiles, counting the files of earlier recordings into the same directory.
+ * The file names hold the time recording started and a number, so sorting them by name
+ * sorts them by time, and the files of one recording share a name up to the number.
+ * A file starts with {@link #MAGIC}, the led count, the wall clock
+ * time and the System.nanoTime() it was opened at. Each record is a type, the length of
+ * its data, its System.nanoTime() and the data. Data that does not fit into the rest of
+ * a file is split into records of the same type and time. A file that was not closed,
+ * because the app got killed, ends with zeros.
+ *
+ * An error while starting the next file stops recording, see {@link #getError()}.
+ */
+final class SessionRecorder {
+
+    static final byte MAGIC[] = {'K', 'I', 'B', 'A', 'L', 'O', 'G', '1'};
+    // magic, led count, wall clock millis, nano time
+    static final int FILE_HEADER_LENGTH = 28;
+    // type, length, nano time
+    static final int RECORD_HEADER_LENGTH = 13;
+    static final int MIN_FILE_SIZE = 4096;
+    static final String SUFFIX = ".klog";
+
+    // a new connection, without data
+    static final byte CONNECTED = 'c';
+    // the connection ended, without data
+    static final byte DISCONNECTED = 'd';
+    static final byte SENT = 'o';
+    static final byte RECEIVED = 'i';
+
+    private final File directory;
+    // prefix-start time-, the same for all files of this recording
+    private final String namePrefix;
+    private final int ledCount;
+    private final int fileSize;
+    private final int maxFiles;
+    // oldest first
+    private final ArrayDeque<File> files = new ArrayDeque<>();
+    private int fileNumber = 0;
+    // named before it is needed, so starting it does not format on the send path
+    private File nextFile;
+
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private IOException error;
+
+    /**
+     * Opens the first file right away.
+     * @param prefix file names are prefix-start-number.klog, start being the wall clock
+     *               millis recording started at and the number counting from 0 on
+     * @param fileSize bytes of each file, at least {@link #MIN_FILE_SIZE}
+     * @param maxFiles files kept, at least 1
+     */
+    SessionRecorder(File directory, String prefix, int ledCount, int fileSize, int maxFiles)
+            throws IOException {
+        this.directory = directory;
+        this.ledCount = ledCount;
+        this.fileSize = Math.max(fileSize, MIN_FILE_SIZE);
+        this.maxFiles = Math.max(maxFiles, 1);
+        findEarlierFiles(prefix);
+        // a recording started within the same millisecond gets the next one
+        long start = System.currentTimeMillis();
+        while(new File(directory, prefix + "-" + start + "-" + fileNumber(0) + SUFFIX).exists()) {
+            start++;
+        }
+        namePrefix = prefix + "-" + start + "-";
+        nextFile = new File(directory, namePrefix + fileNumber(0) + SUFFIX);
+        openNext();
+    }
+
+    private void findEarlierFiles(String prefix) {
+        File earlier[] = directory.listFiles();
+        if(earlier == null) {
+            return;
+        }
+        Arrays.sort(earlier);
+        for(File f : earlier) {
+            String name = f.getName();
+            if(name.startsWith(prefix + "-") && name.endsWith(SUFFIX)) {
+                files.add(f);
+            }
+        }
+    }
+
+    // five digits at least, so the names of one recording sort by number
+    private static String fileNumber(int number) {
+        String digits = Integer.toString(number);
+        return "00000".substring(Math.min(digits.length(), 5)) + digits;
+    }
+
+    private void openNext() throws IOException {
+        File next = nextFile;
+        while(files.size() >= maxFiles) {
+            files.poll().delete();
+        }
+        file = new RandomAccessFile(next, "rw");
+        try {
+            file.setLength(0);
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        files.add(next);
+        nextFile = new File(directory, namePrefix + fileNumber(++fileNumber) + SUFFIX);
+        buffer.put(MAGIC);
+        buffer.putInt(ledCount);
+        buffer.putLong(System.currentTimeMillis());
+        buffer.putLong(System.nanoTime());
+    }
+
+    // cuts the file down to what was written
+    private void finish() throws IOException {
+        try {
+            file.setLength(buffer.position());
+        } finally {
+            buffer = null;
+            file.close();
+        }
+    }
+
+    private void rotate() throws IOException {
+        finish();
+        openNext();
+    }
+
+    /**
+     * Appends a record with length bytes of src. Does nothing once recording stopped.
+     */
+    synchronized void record(byte type, byte src[], int offset, int length) {
+        if(buffer == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        try {
+            do {
+                if(buffer.remaining() <= RECORD_HEADER_LENGTH) {
+                    rotate();
+                }
+                int part = Math.min(length, buffer.remaining() - RECORD_HEADER_LENGTH);
+                buffer.put(type);
+                buffer.putInt(part);
+                buffer.putLong(now);
+                if(part > 0) {
+                    buffer.put(src, offset, part);
+                }
+                offset += part;
+                length -= part;
+            } while(length > 0);
+        } catch (IOException e) {
+            error = e;
+            buffer = null;
+        }
+    }
+
+    /**
+     * Appends a record without data, {@link #CONNECTED} or {@link #DISCONNECTED}.
+     */
+    void record(byte type) {
+        record(type, null, 0, 0);
+    }
+
+    /**
+     * Stops recording and cuts the current file down to what was written.
+     */
+    synchronized void close() {
+        if(buffer == null) {
+            return;
+        }
+        try {
+            finish();
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * @return the exception that stopped recording, null if there was none
+     */
+    synchronized IOException getError() {
+        return error;
+    }
+}
@@ -0,0 +1,120 @@
+package org.schabi.kiba;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * ActiveDiscoveryTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+public class ActiveDiscoveryTest {
+
+    // a display on an address of its own that answers probes with a beacon
+    private static final String DISPLAY = "127.0.0.5";
+
+    private DatagramSocket display;
+    private Thread answering;
+
+    @Before
+    public void startDisplay() throws IOException {
+        display = new DatagramSocket(new InetSocketAddress(InetAddress.getByName(DISPLAY),
+                PlussyDiscovery.UDP_PORT));
+        answering = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                DatagramPacket packet = new DatagramPacket(new byte[64], 64);
+                try {
+                    while(true) {
+                        packet.setLength(64);
+                        display.receive(packet);
+                        if(PlussyDiscovery.isProbe(packet)) {
+                            display.send(PlussyDiscovery.beaconPacket(packet.getAddress(),
+                                    packet.getPort()));
+                        }
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        });
+        answering.start();
+    }
+
+    @After
+    public void stopDisplay() throws InterruptedException {
+        display.close();
+        answering.join();
+    }
+
+    @Test
+    public void probesFindADisplayAndCacheIt() throws IOException {
+        ActiveDiscovery discovery = new ActiveDiscovery(1000, 60000);
+        discovery.addTarget(InetAddress.getByName(DISPLAY));
+        long start = System.nanoTime();
+        List<InetAddress> found = discovery.discover(1);
+        assertEquals(1, found.size());
+        assertEquals(InetAddress.getByName(DISPLAY), found.get(0));
+        // found by its answer, not by waiting out the window
+        assertTrue(System.nanoTime() - start < 500000000L);
+        assertEquals(found, discovery.getCached());
+
+        discovery.forget(found.get(0));
+        assertTrue(discovery.getCached().isEmpty());
+    }
+
+    @Test
+    public void theCacheCanBeUsedWhileADiscoveryWaits() throws Exception {
+        final ActiveDiscovery discovery = new ActiveDiscovery(1000, 60000);
+        discovery.addTarget(InetAddress.getByName(DISPLAY));
+        // waits the whole window for a second display that is not there
+        Thread waiting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    discovery.discover(2);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        waiting.start();
+        Thread.sleep(200);
+        assertTrue(waiting.isAlive());
+
+        long start = System.nanoTime();
+        InetAddress other = InetAddress.getByName("127.0.0.6");
+        discovery.put(other);
+        assertTrue(discovery.getCached().contains(other));
+        discovery.forget(other);
+        assertTrue(System.nanoTime() - start < 100000000L);
+        assertTrue(waiting.isAlive());
+
+        waiting.join();
+        assertEquals(1, discovery.getCached().size());
+    }
+}
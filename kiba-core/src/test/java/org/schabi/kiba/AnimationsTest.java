@@ -0,0 +1,118 @@
+package org.schabi.kiba;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * AnimationsTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+public class AnimationsTest {
+
+    @Test
+    public void rainbowChaseMovesOnceAroundPerCycle() {
+        Animation rainbow = Animations.rainbowChase(10);
+        Frame first = new Frame(20);
+        Frame frame = new Frame(20);
+        assertTrue(rainbow.render(0, first));
+        assertEquals(0xffff0000, first.colors[0]);
+        // every led a different hue
+        for(int i = 1; i < 20; i++) {
+            assertNotEquals(first.colors[i - 1], first.colors[i]);
+        }
+        rainbow.render(5, frame);
+        assertNotEquals(first.colors[0], frame.colors[0]);
+        // half a cycle later the rainbow moved by half of the leds
+        assertEquals(first.colors[10], frame.colors[0]);
+        rainbow.render(10, frame);
+        assertArrayEquals(first.colors, frame.colors);
+        rainbow.render(1000000000000L, frame);
+        assertArrayEquals(first.colors, frame.colors);
+    }
+
+    @Test
+    public void fadeGoesThereAndBack() {
+        Animation fade = Animations.fade(0xff000000, 0xffff8040, 4);
+        Frame frame = new Frame(3);
+        fade.render(0, frame);
+        assertArrayEquals(new int[]{0xff000000, 0xff000000, 0xff000000}, frame.colors);
+        fade.render(2, frame);
+        assertEquals(0xff7f4020, frame.colors[2]);
+        fade.render(4, frame);
+        assertEquals(0xffff8040, frame.colors[0]);
+        fade.render(6, frame);
+        assertEquals(0xff7f4020, frame.colors[1]);
+        fade.render(8, frame);
+        assertEquals(0xff000000, frame.colors[0]);
+
+        // one tick per direction alternates
+        Animation blink = Animations.fade(0xff000000, 0xffffffff, 1);
+        for(int i = 0; i < 4; i++) {
+            blink.render(i, frame);
+            assertEquals(i % 2 == 0 ? 0xff000000 : 0xffffffff, frame.colors[0]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rainbowChaseNeedsATick() {
+        Animations.rainbowChase(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fadeNeedsATick() {
+        Animations.fade(0xff000000, 0xffffffff, 0);
+    }
+
+    @Test
+    public void sparkleStaysBetweenItsColorsAndFadesOut() {
+        Animation sparkle = Animations.sparkle(0xff000000, 0xff0000ff, 1, 0.5f);
+        Frame frame = new Frame(20);
+        sparkle.render(0, frame);
+        for(int color : frame.colors) {
+            assertEquals(0xff0000ff, color);
+        }
+        sparkle.render(1, frame);
+        for(int color : frame.colors) {
+            assertEquals(0xff00007f, color);
+        }
+        // nothing flashes up without a chance to
+        Animation dark = Animations.sparkle(0xff101010, 0xffffffff, 0, 0.5f);
+        assertTrue(dark.render(0, frame));
+        for(int color : frame.colors) {
+            assertEquals(0xff101010, color);
+        }
+        // a frame of another size is drawn as well
+        Frame big = new Frame(200);
+        sparkle.render(2, big);
+        assertFalse(big.colors[199] == 0);
+    }
+
+    @Test
+    public void hueCoversTheRainbow() {
+        assertEquals(0xffff0000, Animations.hueToColor(0));
+        assertEquals(0xffffff00, Animations.hueToColor(1 / 6f));
+        assertEquals(0xff00ff00, Animations.hueToColor(2 / 6f));
+        assertEquals(0xff00ffff, Animations.hueToColor(3 / 6f));
+        assertEquals(0xff0000ff, Animations.hueToColor(4 / 6f));
+        assertEquals(0xffff00ff, Animations.hueToColor(5 / 6f));
+    }
+}
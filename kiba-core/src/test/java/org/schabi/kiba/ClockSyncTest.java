@@ -0,0 +1,115 @@
+package org.schabi.kiba;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * ClockSyncTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+public class ClockSyncTest {
+
+    private static final long MILLI = 1000000L;
+
+    private static void record(ClockSync clock, long roundTrip, int times) {
+        for(int i = 0; i < times; i++) {
+            clock.record(roundTrip);
+        }
+    }
+
+    @Test
+    public void nothingIsKnownBeforeTheFirstSample() {
+        ClockSync clock = new ClockSync();
+        assertEquals(-1, clock.getRoundTrip());
+        assertEquals(0, clock.getOneWayDelay());
+        assertEquals(0, clock.getJitter());
+        assertEquals(0, clock.getSampleCount());
+        assertEquals(Long.MAX_VALUE, clock.getSampleAge());
+    }
+
+    @Test
+    public void roundTripIsTheMedian() {
+        ClockSync clock = new ClockSync();
+        clock.record(30 * MILLI);
+        clock.record(10 * MILLI);
+        clock.record(20 * MILLI);
+        assertEquals(20 * MILLI, clock.getRoundTrip());
+        assertEquals(10 * MILLI, clock.getOneWayDelay());
+
+        // the upper one of the two in the middle
+        clock.record(40 * MILLI);
+        assertEquals(30 * MILLI, clock.getRoundTrip());
+        assertEquals(4, clock.getSampleCount());
+    }
+
+    @Test
+    public void singleLateAnswersDoNotMoveTheLead() {
+        ClockSync clock = new ClockSync();
+        record(clock, 10 * MILLI, ClockSync.SAMPLES - 1);
+        clock.record(500 * MILLI);
+        assertEquals(5 * MILLI, clock.getOneWayDelay());
+        assertEquals(0, clock.getJitter());
+    }
+
+    @Test
+    public void leadFollowsOnceMostAnswersAreLate() {
+        ClockSync clock = new ClockSync();
+        record(clock, 10 * MILLI, ClockSync.SAMPLES / 2 + 1);
+        record(clock, 200 * MILLI, ClockSync.SAMPLES / 2 - 1);
+        assertEquals(5 * MILLI, clock.getOneWayDelay());
+        record(clock, 200 * MILLI, 2);
+        assertEquals(100 * MILLI, clock.getOneWayDelay());
+    }
+
+    @Test
+    public void onlyTheLastSamplesCount() {
+        ClockSync clock = new ClockSync();
+        record(clock, 100 * MILLI, ClockSync.SAMPLES);
+        record(clock, 10 * MILLI, ClockSync.SAMPLES);
+        assertEquals(10 * MILLI, clock.getRoundTrip());
+        assertEquals(0, clock.getJitter());
+        assertEquals(ClockSync.SAMPLES, clock.getSampleCount());
+    }
+
+    @Test
+    public void jitterIsHalfTheSpreadOfTheQuartiles() {
+        ClockSync clock = new ClockSync();
+        // 1 to 16ms, the quartiles are 5ms and 13ms
+        for(int i = 1; i <= ClockSync.SAMPLES; i++) {
+            clock.record(i * MILLI);
+        }
+        assertEquals(4 * MILLI, clock.getJitter());
+        // the outer quarters may be as far off as they like
+        clock.record(1000 * MILLI);
+        clock.record(0);
+        assertEquals(4 * MILLI, clock.getJitter());
+    }
+
+    @Test
+    public void negativeSamplesAreIgnored() {
+        ClockSync clock = new ClockSync();
+        clock.record(-1);
+        assertEquals(0, clock.getSampleCount());
+        clock.record(2 * MILLI);
+        clock.record(-5 * MILLI);
+        assertEquals(1, clock.getSampleCount());
+        assertEquals(MILLI, clock.getOneWayDelay());
+        assertTrue(clock.getSampleAge() < 1000 * MILLI);
+    }
+}
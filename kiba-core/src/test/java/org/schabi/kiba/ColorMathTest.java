@@ -0,0 +1,91 @@
+package org.schabi.kiba;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * ColorMathTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+public class ColorMathTest {
+
+    // the positions of the strip are floats, so a channel may be one below
+    private static void assertNearly(int expected, int color) {
+        assertEquals(0xff, color >>> 24);
+        for(int shift = 0; shift < 24; shift += 8) {
+            int difference = ((expected >> shift) & 0xff) - ((color >> shift) & 0xff);
+            assertTrue(Integer.toHexString(color) + " for " + Integer.toHexString(expected),
+                    difference == 0 || difference == 1);
+        }
+    }
+
+    @Test
+    public void chromaRunsThroughTheRainbow() {
+        assertNearly(0xffff0000, ColorMath.chroma(0));
+        assertNearly(0xffffff00, ColorMath.chroma(1 / 6f));
+        assertNearly(0xff00ff00, ColorMath.chroma(2 / 6f));
+        assertNearly(0xff00ffff, ColorMath.chroma(3 / 6f));
+        assertNearly(0xff0000ff, ColorMath.chroma(4 / 6f));
+        assertNearly(0xffff00ff, ColorMath.chroma(5 / 6f));
+        assertNearly(0xffff0000, ColorMath.chroma(1));
+    }
+
+    @Test
+    public void intensityGoesFromTheBaseColorToWhite() {
+        assertEquals(0xff204080, ColorMath.intensity(0xff204080, 0));
+        assertEquals(0xffffffff, ColorMath.intensity(0xff204080, 1));
+        assertEquals(0xff8f9fbf, ColorMath.intensity(0xff204080, 0.5f));
+    }
+
+    @Test
+    public void brightnessGoesFromBlackToTheBaseColor() {
+        assertEquals(0xff000000, ColorMath.brightness(0xff204080, 0));
+        assertEquals(0xff204080, ColorMath.brightness(0xff204080, 1));
+        assertEquals(0xff102040, ColorMath.brightness(0xff204080, 0.5f));
+    }
+
+    @Test
+    public void tableHoldsTheColorsOfTheWholeStrip() {
+        int kinds[] = {ColorMath.CHROMA, ColorMath.INTENSITY, ColorMath.BRIGHTNESS};
+        int table[] = new int[600];
+        for(int kind : kinds) {
+            ColorMath.fillTable(kind, 0xff3366cc, table, 500);
+            assertEquals(ColorMath.color(kind, 0xff3366cc, 0), table[0]);
+            assertEquals(ColorMath.color(kind, 0xff3366cc, 1), table[499]);
+            for(int i = 0; i < 500; i++) {
+                assertEquals(ColorMath.tableColor(kind, 0xff3366cc, i, 500), table[i]);
+                assertEquals(ColorMath.color(kind, 0xff3366cc, i / 499f), table[i]);
+            }
+            // only the first length entries are filled
+            assertEquals(0, table[500]);
+        }
+        // a table of one entry has the start of the strip
+        assertEquals(ColorMath.chroma(0), ColorMath.tableColor(ColorMath.CHROMA, 0, 0, 1));
+    }
+
+    @Test
+    public void colorsAreOpaque() {
+        for(int i = 0; i <= 1000; i++) {
+            float position = i / 1000f;
+            assertTrue((ColorMath.chroma(position) >>> 24) == 0xff);
+            assertTrue((ColorMath.intensity(0xff123456, position) >>> 24) == 0xff);
+            assertTrue((ColorMath.brightness(0xff123456, position) >>> 24) == 0xff);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package org.schabi.kiba;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * CommandQueueTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+public class CommandQueueTest {
+
+    private static final int LEDS = 20;
+
+    private CommandQueue queue;
+
+    @Before
+    public void setUp() {
+        queue = new CommandQueue(LEDS);
+    }
+
+    @Test
+    public void pollStopsAtTheWindow() {
+        queue.setWindow(4);
+        for(int i = 0; i < 10; i++) {
+            queue.putLed(i, i);
+        }
+        for(int i = 0; i < 4; i++) {
+            assertEquals(i, queue.poll());
+        }
+        assertEquals(CommandQueue.NO_COMMAND, queue.poll());
+        assertEquals(4, queue.getInFlight());
+        assertEquals(6, queue.getPending());
+
+        queue.acknowledge();
+        assertEquals(4, queue.poll());
+        assertEquals(CommandQueue.NO_COMMAND, queue.poll());
+    }
+
+    @Test
+    public void setWindowIsClamped() {
+        queue.setWindow(0);
+        assertEquals(1, queue.getWindow());
+        queue.setWindow(CommandQueue.MAX_WINDOW + 1);
+        assertEquals(CommandQueue.MAX_WINDOW, queue.getWindow());
+    }
+
+    @Test
+    public void pendingLedsAreCoalesced() {
+        queue.putLed(3, 0x111111);
+        queue.putLed(5, 0x222222);
+        queue.putLed(3, 0x333333);
+        assertEquals(2, queue.getPending());
+
+        // in the order they were first changed, with the newest color
+        assertEquals(3, queue.poll());
+        assertEquals(0x333333, queue.getColor(3));
+        assertEquals(5, queue.poll());
+        assertEquals(CommandQueue.NO_COMMAND, queue.poll());
+    }
+
+    @Test
+    public void ledInFlightIsQueuedAgainWhenChanged() {
+        queue.putLed(3, 0x111111);
+        assertEquals(3, queue.poll());
+        queue.putLed(3, 0x222222);
+        assertEquals(1, queue.getPending());
+        assertEquals(3, queue.poll());
+        assertEquals(0x222222, queue.getColor(3));
+    }
+
+    @Test
+    public void acknowledgeMatchesCommandsFirstInFirstOut() {
+        queue.setWindow(8);
+        queue.putRequest();
+        queue.putLed(7, 1);
+        queue.putLed(2, 2);
+        int first = queue.poll();
+        int second = queue.poll();
+        int third = queue.poll();
+        assertEquals(CommandQueue.REQUEST_STATE, first);
+
+        long before = System.nanoTime();
+        assertEquals(first, queue.acknowledge());
+        assertTrue(queue.getAcknowledgedSince() <= before);
+        assertEquals(second, queue.acknowledge());
+        assertEquals(third, queue.acknowledge());
+        assertEquals(CommandQueue.NO_COMMAND, queue.acknowledge());
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void subscriptionAndRequestGoFirst() {
+        queue.setWindow(8);
+        queue.putLed(1, 1);
+        queue.putRequest();
+        queue.putSubscribe();
+        assertEquals(CommandQueue.SUBSCRIBE, queue.poll());
+        assertEquals(CommandQueue.REQUEST_STATE, queue.poll());
+        assertEquals(1, queue.poll());
+    }
+
+    @Test
+    public void matrixNeedsSupport() {
+        int colors[] = new int[LEDS];
+        assertFalse(queue.putMatrix(colors));
+        assertTrue(queue.isIdle());
+
+        queue.setMatrixSupported(true);
+        assertTrue(queue.putMatrix(colors));
+        assertEquals(CommandQueue.SET_MATRIX, queue.poll());
+        assertEquals(CommandQueue.NO_COMMAND, queue.poll());
+    }
+
+    @Test
+    public void matrixReplacesPendingLeds() {
+        queue.setMatrixSupported(true);
+        queue.putLed(4, 0x111111);
+        int colors[] = new int[LEDS];
+        colors[4] = 0x222222;
+        assertTrue(queue.putMatrix(colors));
+        // changes the pending matrix instead of queueing the led
+        queue.putLed(6, 0x333333);
+        assertEquals(1, queue.getPending());
+
+        assertEquals(CommandQueue.SET_MATRIX, queue.poll());
+        assertEquals(0x222222, queue.getColor(4));
+        assertEquals(0x333333, queue.getColor(6));
+        assertEquals(CommandQueue.NO_COMMAND, queue.poll());
+    }
+
+    @Test
+    public void pendingMatrixFallsBackToLeds() {
+        queue.setMatrixSupported(true);
+        assertTrue(queue.putMatrix(new int[LEDS]));
+        queue.setMatrixSupported(false);
+        assertEquals(LEDS, queue.getPending());
+        assertEquals(0, queue.poll());
+    }
+
+    @Test
+    public void restartQueuesCommandsInFlightAgain() {
+        queue.setWindow(8);
+        queue.putSubscribe();
+        queue.putRequest();
+        queue.putLed(1, 0x111111);
+        queue.putLed(2, 0x222222);
+        for(int i = 0; i < 4; i++) {
+            queue.poll();
+        }
+        queue.putLed(9, 0x999999);
+
+        queue.restart();
+        assertEquals(0, queue.getInFlight());
+        // everything but the subscription, the new session subscribes itself
+        assertEquals(CommandQueue.REQUEST_STATE, queue.poll());
+        assertEquals(9, queue.poll());
+        assertEquals(1, queue.poll());
+        assertEquals(2, queue.poll());
+        assertEquals(CommandQueue.NO_COMMAND, queue.poll());
+        assertEquals(CommandQueue.REQUEST_STATE, queue.acknowledge());
+    }
+
+    @Test
+    public void restartQueuesMatrixAgainAndForgetsSupport() {
+        queue.setMatrixSupported(true);
+        queue.putMatrix(new int[LEDS]);
+        assertEquals(CommandQueue.SET_MATRIX, queue.poll());
+
+        queue.restart();
+        // the new connection may not understand matrix commands, so it gets leds
+        assertEquals(LEDS, queue.getPending());
+        assertFalse(queue.putMatrix(new int[LEDS]));
+    }
+
+    @Test
+    public void clearDropsEverything() {
+        queue.putLed(1, 1);
+        queue.putRequest();
+        queue.poll();
+        queue.clear();
+        assertTrue(queue.isIdle());
+        assertEquals(CommandQueue.NO_COMMAND, queue.poll());
+        assertEquals(CommandQueue.NO_COMMAND, queue.acknowledge());
+    }
+}
@@ -0,0 +1,192 @@
+package org.schabi.kiba;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * CommandRingTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+public class CommandRingTest {
+
+    private static final int LEDS = 20;
+    private static final int BURSTS = 1000;
+    private static final int BURST_LENGTH = 500;
+
+    private CommandQueue queue;
+
+    @Before
+    public void setUp() {
+        queue = new CommandQueue(LEDS);
+        queue.setWindow(CommandQueue.MAX_WINDOW);
+    }
+
+    @Test
+    public void capacityIsAPowerOfTwoWithRoomForTwoMatrices() {
+        assertEquals(64, new CommandRing(10, LEDS).capacity());
+        assertEquals(128, new CommandRing(128, LEDS).capacity());
+        assertEquals(4, new CommandRing(3, 1).capacity());
+    }
+
+    @Test
+    public void commandsAreDrainedInOrder() {
+        CommandRing ring = new CommandRing(64, LEDS);
+        assertTrue(ring.isEmpty());
+        assertTrue(ring.putLed(5, 0x050505));
+        assertTrue(ring.putRequest());
+        assertTrue(ring.putLeds(new int[]{1, 2}, new int[]{0x010101, 0x020202}, 2));
+        assertEquals(4, ring.size());
+
+        ring.drainTo(queue);
+        assertTrue(ring.isEmpty());
+        // the request goes first, the leds keep their order
+        assertEquals(CommandQueue.REQUEST_STATE, queue.poll());
+        assertEquals(5, queue.poll());
+        assertEquals(0x050505, queue.getColor(5));
+        assertEquals(1, queue.poll());
+        assertEquals(2, queue.poll());
+        assertEquals(CommandQueue.NO_COMMAND, queue.poll());
+    }
+
+    @Test
+    public void fullRingMarksLedsDirtyInsteadOfWaiting() {
+        CommandRing ring = new CommandRing(1, 1);
+        int capacity = ring.capacity();
+        for(int i = 0; i < capacity; i++) {
+            assertTrue(ring.putLed(0, i));
+        }
+        assertFalse(ring.putLed(0, 0xabcdef));
+        assertFalse(ring.putRequest());
+        assertFalse(ring.isEmpty());
+
+        ring.drainTo(queue);
+        assertTrue(ring.isEmpty());
+        // the led ends up with the color that did not fit, the request is not lost
+        assertEquals(CommandQueue.REQUEST_STATE, queue.poll());
+        assertEquals(0, queue.poll());
+        assertEquals(0xabcdef, queue.getColor(0));
+    }
+
+    @Test
+    public void putLedsIsAllOrNothing() {
+        CommandRing ring = new CommandRing(1, 2);
+        int capacity = ring.capacity();
+        for(int i = 0; i < capacity - 1; i++) {
+            assertTrue(ring.putLed(0, 1));
+        }
+        assertFalse(ring.putLeds(new int[]{0, 1}, new int[]{0x222222, 0x333333}, 2));
+        assertEquals(capacity - 1, ring.size());
+
+        queue = new CommandQueue(2);
+        ring.drainTo(queue);
+        assertEquals(0, queue.poll());
+        assertEquals(0x222222, queue.getColor(0));
+        assertEquals(1, queue.poll());
+        assertEquals(0x333333, queue.getColor(1));
+    }
+
+    @Test
+    public void matrixSendsOnlyChangedLeds() {
+        CommandRing ring = new CommandRing(64, LEDS);
+        int colors[] = new int[LEDS];
+        boolean changed[] = new boolean[LEDS];
+        colors[3] = 0x030303;
+        changed[3] = true;
+        colors[4] = 0x040404;
+        assertTrue(ring.putMatrix(colors, changed, false));
+
+        ring.drainTo(queue);
+        assertEquals(3, queue.poll());
+        assertEquals(0x030303, queue.getColor(3));
+        assertEquals(CommandQueue.NO_COMMAND, queue.poll());
+    }
+
+    @Test
+    public void wholeMatrixIsOneCommandIfSupported() {
+        CommandRing ring = new CommandRing(64, LEDS);
+        int colors[] = new int[LEDS];
+        boolean changed[] = new boolean[LEDS];
+        for(int i = 0; i < LEDS; i++) {
+            colors[i] = i;
+            changed[i] = true;
+        }
+        queue.setMatrixSupported(true);
+        assertTrue(ring.putMatrix(colors, changed, true));
+        ring.drainTo(queue);
+        assertEquals(CommandQueue.SET_MATRIX, queue.poll());
+        for(int i = 0; i < LEDS; i++) {
+            assertEquals(i, queue.getColor(i));
+        }
+
+        // without support the matrix falls back to its leds
+        queue.clear();
+        assertTrue(ring.putMatrix(colors, changed, true));
+        ring.drainTo(queue);
+        assertEquals(LEDS, queue.getPending());
+    }
+
+    @Test
+    public void consumerEndsWithTheNewestColors() {
+        final CommandRing ring = new CommandRing(16, LEDS);
+        final int expected[] = new int[LEDS];
+        // bursts the producer finished and the consumer checked
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicInteger checked = new AtomicInteger();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                int color = 0;
+                for(int burst = 1; burst <= BURSTS; burst++) {
+                    for(int i = 0; i < BURST_LENGTH; i++) {
+                        int led = (color * 7) % LEDS;
+                        ring.putLed(led, ++color);
+                        expected[led] = color;
+                    }
+                    finished.set(burst);
+                    while(checked.get() < burst) {
+                        Thread.yield();
+                    }
+                }
+            }
+        };
+        producer.setDaemon(true);
+        producer.start();
+
+        int colors[] = new int[LEDS];
+        while(checked.get() < BURSTS) {
+            int burst = finished.get();
+            ring.drainTo(queue);
+            int command;
+            while((command = queue.poll()) != CommandQueue.NO_COMMAND) {
+                colors[command] = queue.getColor(command);
+                queue.acknowledge();
+            }
+            // every burst ends with the ring empty, so this is what the display shows
+            if(burst > checked.get() && ring.isEmpty()) {
+                assertArrayEquals("after burst " + burst, expected, colors);
+                checked.set(burst);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.schabi.kiba;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * FrameSequenceTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+public class FrameSequenceTest {
+
+    private static Frame frame(int color) {
+        Frame frame = new Frame(4);
+        frame.fill(color);
+        return frame;
+    }
+
+    // the color of the frame shown at index, or 0 if the sequence is over
+    private static int colorAt(FrameSequence sequence, long index) {
+        Frame frame = new Frame(4);
+        return sequence.render(index, frame) ? frame.colors[0] : 0;
+    }
+
+    @Test
+    public void framesAreShownForTheirTicks() {
+        FrameSequence sequence = new FrameSequence();
+        sequence.add(frame(1), 2);
+        sequence.add(frame(2), 1);
+        sequence.add(frame(3), 3);
+        int expected[] = {1, 1, 2, 3, 3, 3, 0, 0};
+        for(int i = 0; i < expected.length; i++) {
+            assertEquals("tick " + i, expected[i], colorAt(sequence, i));
+        }
+    }
+
+    @Test
+    public void aLoopStartsOver() {
+        FrameSequence sequence = new FrameSequence(true);
+        sequence.add(frame(1), 2);
+        sequence.add(frame(2), 1);
+        int expected[] = {1, 1, 2, 1, 1, 2, 1};
+        for(int i = 0; i < expected.length; i++) {
+            assertEquals("tick " + i, expected[i], colorAt(sequence, i));
+        }
+        assertEquals(2, colorAt(sequence, 3000000002L));
+
+        sequence.setLoop(false);
+        assertEquals(0, colorAt(sequence, 3));
+    }
+
+    @Test
+    public void anEmptySequenceIsOver() {
+        assertFalse(new FrameSequence(true).render(0, new Frame(4)));
+    }
+
+    @Test
+    public void framesAreCopied() {
+        FrameSequence sequence = new FrameSequence();
+        Frame frame = frame(1);
+        sequence.add(frame, 1);
+        frame.fill(2);
+        assertEquals(1, colorAt(sequence, 0));
+        assertEquals(1, sequence.getTicks(0));
+    }
+
+    @Test
+    public void manyFrames() {
+        FrameSequence sequence = new FrameSequence();
+        for(int i = 0; i < 100; i++) {
+            sequence.add(frame(i + 1), i % 3 + 1);
+        }
+        assertEquals(100, sequence.size());
+        long index = 0;
+        for(int i = 0; i < 100; i++) {
+            assertEquals(i % 3 + 1, sequence.getTicks(i));
+            for(int t = 0; t < sequence.getTicks(i); t++) {
+                assertEquals(i + 1, colorAt(sequence, index++));
+            }
+        }
+        assertEquals(0, colorAt(sequence, index));
+        Frame copy = new Frame(4);
+        assertTrue(sequence.render(index - 1, copy));
+        assertArrayEquals(frame(100).colors, copy.colors);
+    }
+}
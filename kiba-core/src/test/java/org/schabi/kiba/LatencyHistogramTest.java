@@ -0,0 +1,116 @@
+package org.schabi.kiba;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * LatencyHistogramTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueOnce() {
+        // each bucket starts right after the one before it ends
+        assertEquals(0, LatencyHistogram.highestValue(0));
+        for(int i = 1; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            long lowest = LatencyHistogram.highestValue(i - 1) + 1;
+            assertEquals(i, LatencyHistogram.index(lowest));
+            assertEquals(i, LatencyHistogram.index(LatencyHistogram.highestValue(i)));
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void reportedValuesAreAtMostASixteenthAbove() {
+        Random random = new Random(3);
+        for(int i = 0; i < 100000; i++) {
+            long value = random.nextInt(Integer.MAX_VALUE) >> random.nextInt(31);
+            long reported = LatencyHistogram.highestValue(LatencyHistogram.index(value));
+            assertTrue(reported >= value);
+            assertTrue(value + " reported as " + reported, reported - value <= value / 16);
+        }
+    }
+
+    @Test
+    public void percentilesFollowTheRecordings() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        long values[] = new long[10000];
+        Random random = new Random(7);
+        for(int i = 0; i < values.length; i++) {
+            values[i] = 100 + random.nextInt(50000);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        assertEquals(values.length, histogram.getCount());
+        assertEquals(values[values.length - 1], histogram.getMax());
+        for(double percentile : new double[]{1, 25, 50, 90, 99, 99.9, 100}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long reported = histogram.getPercentile(percentile);
+            assertTrue(percentile + ": " + reported + " for " + exact,
+                    reported >= exact && reported - exact <= exact / 16);
+        }
+        long sum = 0;
+        for(long value : values) {
+            sum += value;
+        }
+        assertEquals(sum / values.length, histogram.getMean());
+    }
+
+    @Test
+    public void aCopyKeepsItsValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(10);
+        LatencyHistogram copy = histogram.copy();
+        histogram.record(1000000);
+        assertEquals(2, copy.getCount());
+        assertEquals(10, copy.getMax());
+        assertEquals(5, copy.getMean());
+        assertEquals(0, copy.getPercentile(50));
+        assertEquals(3, histogram.getCount());
+    }
+
+    @Test
+    public void concurrentRecordingsAreAllCounted() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread threads[] = new Thread[4];
+        for(int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < 100000; i++) {
+                        histogram.record(i % 1000 + offset);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, histogram.getCount());
+        assertEquals(1002, histogram.getMax());
+    }
+}
@@ -0,0 +1,227 @@
+package org.schabi.kiba;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * LedLayoutTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+public class LedLayoutTest {
+
+    private static final int PLUSSY_MAPPING[] = {
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19
+    };
+
+    // what hitTest() finds without the grid: the lowest place whose led contains the point
+    private static int bruteForceHit(LedLayout layout, float px, float py) {
+        float r = layout.getLedRadius();
+        for(int i = 0; i < layout.getCount(); i++) {
+            if(layout.x[i] - r < px && px < layout.x[i] + r
+                    && layout.y[i] - r < py && py < layout.y[i] + r) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void assertSameHits(LedLayout layout, float viewWidth, float viewHeight) {
+        layout.fit(viewWidth, viewHeight);
+        Random random = new Random(11);
+        for(int i = 0; i < 20000; i++) {
+            float px = random.nextFloat() * viewWidth;
+            float py = random.nextFloat() * viewHeight;
+            assertEquals("at " + px + ", " + py, bruteForceHit(layout, px, py),
+                    layout.hitTest(px, py));
+        }
+        // the centers of all leds
+        for(int i = 0; i < layout.getCount(); i++) {
+            assertEquals(bruteForceHit(layout, layout.x[i], layout.y[i]),
+                    layout.hitTest(layout.x[i], layout.y[i]));
+        }
+    }
+
+    @Test
+    public void nothingIsHitBeforeFit() {
+        LedLayout layout = LedLayout.grid(4, 4);
+        assertEquals(-1, layout.hitTest(1, 1));
+        assertEquals(0, layout.hitSegment(0, 0, 10, 10, new int[16]));
+    }
+
+    @Test
+    public void hitTestOfThePlussyCross() {
+        LedLayout layout = LedLayout.plussy(PLUSSY_MAPPING);
+        assertSameHits(layout, 1080, 1920);
+        assertSameHits(layout, 1920, 1080);
+        assertSameHits(layout, 320, 320);
+
+        // the middle of the cross is between the four leds of the middle group
+        layout.fit(900, 900);
+        assertEquals(-1, layout.hitTest(450, 450));
+        assertEquals(8, layout.hitTest(layout.x[8], layout.y[8]));
+        assertEquals(-1, layout.hitTest(5, 5));
+    }
+
+    @Test
+    public void hitTestOfLargeGrids() {
+        assertSameHits(LedLayout.grid(50, 40), 1080, 1920);
+        assertSameHits(LedLayout.grid(256, 256), 800, 800);
+        assertSameHits(LedLayout.grid(1, 300), 480, 800);
+    }
+
+    @Test
+    public void segmentAlongARowHitsEveryLedOfItOnce() {
+        LedLayout layout = LedLayout.grid(4, 3);
+        layout.fit(400, 300);
+        int hits[] = new int[12];
+        int found = layout.hitSegment(1, 150, 399, 150, hits);
+        assertEquals(4, found);
+        boolean seen[] = new boolean[12];
+        for(int i = 0; i < found; i++) {
+            assertEquals(1, hits[i] / 4);
+            assertFalse(seen[hits[i]]);
+            seen[hits[i]] = true;
+        }
+
+        // between the rows nothing is hit
+        assertEquals(0, layout.hitSegment(1, 100, 399, 100, hits));
+        // a full hits array stops the search
+        assertEquals(2, layout.hitSegment(1, 150, 399, 150, new int[2]));
+    }
+
+    @Test
+    public void segmentsHitWhatTheirPointsHit() {
+        LedLayout layout = LedLayout.grid(40, 30);
+        layout.fit(1080, 1920);
+        float reach = layout.getLedRadius() * 1.5f;
+        Random random = new Random(5);
+        int hits[] = new int[layout.getCount()];
+        for(int s = 0; s < 2000; s++) {
+            float x0 = random.nextFloat() * 1080;
+            float y0 = random.nextFloat() * 1920;
+            float x1 = x0 + (random.nextFloat() - 0.5f) * 300;
+            float y1 = y0 + (random.nextFloat() - 0.5f) * 300;
+            int found = layout.hitSegment(x0, y0, x1, y1, hits);
+
+            boolean reported[] = new boolean[layout.getCount()];
+            for(int i = 0; i < found; i++) {
+                assertFalse("reported twice", reported[hits[i]]);
+                reported[hits[i]] = true;
+                // near the segment
+                assertTrue(distanceToSegment(layout.x[hits[i]], layout.y[hits[i]],
+                        x0, y0, x1, y1) < reach);
+            }
+            for(int p = 0; p <= 1000; p++) {
+                float t = p / 1000f;
+                int hit = bruteForceHit(layout, x0 + t * (x1 - x0), y0 + t * (y1 - y0));
+                if(hit >= 0) {
+                    assertTrue("missed led " + hit, reported[hit]);
+                }
+            }
+        }
+    }
+
+    private static float distanceToSegment(float px, float py,
+                                           float x0, float y0, float x1, float y1) {
+        float dx = x1 - x0;
+        float dy = y1 - y0;
+        float t = ((px - x0) * dx + (py - y0) * dy) / (dx * dx + dy * dy);
+        t = Math.max(0, Math.min(1, t));
+        return (float) Math.hypot(px - (x0 + t * dx), py - (y0 + t * dy));
+    }
+
+    @Test
+    public void fitKeepsTheAspectRatioCentered() {
+        LedLayout layout = LedLayout.grid(2, 1);
+        layout.fit(400, 400);
+        // scaled by 200, centered vertically
+        assertEquals(100, layout.x[0], 0.001);
+        assertEquals(300, layout.x[1], 0.001);
+        assertEquals(200, layout.y[0], 0.001);
+        assertEquals(80, layout.getLedRadius(), 0.001);
+        assertEquals(100, layout.getCursorRadius(), 0.001);
+    }
+
+    @Test
+    public void matrixFormatFollowsTheLedCount() {
+        assertSame(MatrixFormat.PLUSSY, LedLayout.plussy(PLUSSY_MAPPING).getMatrixFormat());
+        assertEquals(2000, LedLayout.grid(50, 40).getMatrixFormat().ledCount);
+    }
+
+    @Test
+    public void layoutFileRoundTrip() throws IOException {
+        LedLayout layout = LedLayout.plussy(new int[]{
+                3, 2, 1, 0, 7, 6, 5, 4, 11, 10, 9, 8, 15, 14, 13, 12, 19, 18, 17, 16
+        });
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        layout.write(out);
+        LedLayout read = LedLayout.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(layout.getCount(), read.getCount());
+        assertArrayEquals(layout.unitX, read.unitX, 0);
+        assertArrayEquals(layout.unitY, read.unitY, 0);
+        assertArrayEquals(layout.ledNumber, read.ledNumber);
+        layout.fit(500, 700);
+        read.fit(500, 700);
+        assertEquals(layout.getLedRadius(), read.getLedRadius(), 0);
+        assertEquals(layout.getCursorRadius(), read.getCursorRadius(), 0);
+    }
+
+    private static void assertBroken(byte file[]) {
+        try {
+            LedLayout.read(new ByteArrayInputStream(file));
+            fail("read a broken layout file");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void brokenLayoutFilesAreRejected() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LedLayout.grid(3, 3).write(out);
+        byte file[] = out.toByteArray();
+
+        byte magic[] = file.clone();
+        magic[0] = 'X';
+        assertBroken(magic);
+
+        byte version[] = file.clone();
+        version[4] = 2;
+        assertBroken(version);
+
+        // the led number of the last place, right at the end of the file
+        byte led[] = file.clone();
+        led[led.length - 1] = 9;
+        assertBroken(led);
+
+        byte truncated[] = new byte[file.length - 1];
+        System.arraycopy(file, 0, truncated, 0, truncated.length);
+        assertBroken(truncated);
+    }
+}
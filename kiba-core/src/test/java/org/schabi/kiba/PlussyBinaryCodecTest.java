@@ -0,0 +1,131 @@
+package org.schabi.kiba;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * PlussyBinaryCodecTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+public class PlussyBinaryCodecTest {
+
+    private static final MatrixFormat FORMAT = MatrixFormat.PLUSSY;
+    private static final MatrixFormat LARGE = new MatrixFormat(300);
+
+    @Test
+    public void frameSizesOfThePlussyCross() {
+        assertEquals(5, PlussyBinaryCodec.frameLength(FORMAT, PlussyBinaryCodec.SET_LED));
+        assertEquals(1, PlussyBinaryCodec.frameLength(FORMAT, PlussyBinaryCodec.REQUEST_STATE));
+        assertEquals(1, PlussyBinaryCodec.frameLength(FORMAT, PlussyBinaryCodec.SUBSCRIBE));
+        assertEquals(61, PlussyBinaryCodec.frameLength(FORMAT, PlussyBinaryCodec.SET_MATRIX));
+        assertEquals(61, PlussyBinaryCodec.frameLength(FORMAT, PlussyBinaryCodec.MATRIX_UPDATE));
+        assertEquals(61, PlussyBinaryCodec.frameLength(FORMAT, PlussyBinaryCodec.MATRIX_STATE));
+        assertEquals(63, PlussyBinaryCodec.frameLength(FORMAT, PlussyBinaryCodec.SUBSCRIBED));
+        assertEquals(5, PlussyBinaryCodec.frameLength(FORMAT, PlussyBinaryCodec.NOTIFICATION));
+        assertEquals(1, PlussyBinaryCodec.frameLength(FORMAT, PlussyBinaryCodec.WRONG_COMMAND));
+        assertEquals(-1, PlussyBinaryCodec.frameLength(FORMAT, (byte) 'x'));
+        assertEquals(6, PlussyBinaryCodec.frameLength(LARGE, PlussyBinaryCodec.SET_LED));
+    }
+
+    @Test
+    public void setLedLayout() {
+        byte dst[] = new byte[8];
+        assertEquals(5, PlussyBinaryCodec.encodeSetLed(FORMAT, 19, 0xff123456, dst, 1));
+        assertArrayEquals(new byte[]{0, 'm', 19, 0x12, 0x34, 0x56, 0, 0}, dst);
+
+        assertEquals(6, PlussyBinaryCodec.encodeSetLed(LARGE, 299, 0xabcdef, dst, 0));
+        // the led number high byte first
+        assertArrayEquals(new byte[]{'m', 1, 43, (byte) 0xab, (byte) 0xcd, (byte) 0xef},
+                Arrays.copyOf(dst, 6));
+    }
+
+    @Test
+    public void setLedRoundTrip() {
+        Random random = new Random(3);
+        byte dst[] = new byte[LARGE.binarySetLedLength];
+        for(MatrixFormat format : new MatrixFormat[]{FORMAT, LARGE}) {
+            for(int i = 0; i < 1000; i++) {
+                int led = random.nextInt(format.ledCount);
+                int color = random.nextInt();
+                PlussyBinaryCodec.encodeSetLed(format, led, color, dst, 0);
+                assertEquals(led, PlussyBinaryCodec.decodeSetLedNumber(format, dst, 0));
+                assertEquals(color & 0xffffff, PlussyBinaryCodec.decodeSetLedColor(format, dst, 0));
+            }
+        }
+    }
+
+    @Test
+    public void matrixAndSubscribedRoundTrip() {
+        int colors[] = new int[FORMAT.ledCount];
+        for(int i = 0; i < colors.length; i++) {
+            colors[i] = 0xff000000 | i * 0x0c0b0a;
+        }
+        byte dst[] = new byte[FORMAT.binarySubscribedLength];
+        int decoded[] = new int[FORMAT.ledCount];
+        int expected[] = new int[FORMAT.ledCount];
+        for(int i = 0; i < colors.length; i++) {
+            expected[i] = colors[i] & 0xffffff;
+        }
+
+        assertEquals(61, PlussyBinaryCodec.encodeSetMatrix(FORMAT, colors, dst, 0));
+        assertEquals(PlussyBinaryCodec.SET_MATRIX, dst[0]);
+        PlussyBinaryCodec.decodeMatrix(FORMAT, dst, 0, decoded);
+        assertArrayEquals(expected, decoded);
+
+        assertEquals(63, PlussyBinaryCodec.encodeSubscribed(FORMAT, 0x1234, colors, dst, 0));
+        decoded = new int[FORMAT.ledCount];
+        assertEquals(0x1234, PlussyBinaryCodec.decodeSubscribed(FORMAT, dst, 0, decoded));
+        assertArrayEquals(expected, decoded);
+    }
+
+    @Test
+    public void notificationRoundTrip() {
+        for(MatrixFormat format : new MatrixFormat[]{FORMAT, LARGE}) {
+            int leds[] = {0, format.ledCount - 1, 7};
+            int changes[] = {0x010203, 0xfffefd, 0x800000};
+            byte dst[] = new byte[PlussyBinaryCodec.NOTIFICATION_HEADER_LENGTH
+                    + 3 * format.binaryChangeLength];
+            assertEquals(dst.length, PlussyBinaryCodec.encodeNotification(format, 0xfffe, leds,
+                    changes, 3, dst, 0));
+            // the header alone is not enough to tell the length
+            assertEquals(0, PlussyBinaryCodec.notificationLength(format, dst, 0, 4));
+            assertEquals(dst.length, PlussyBinaryCodec.notificationLength(format, dst, 0, 5));
+
+            int colors[] = new int[format.ledCount];
+            colors[1] = 0x111111;
+            assertEquals(0xfffe, PlussyBinaryCodec.applyNotification(format, dst, 0, colors));
+            assertEquals(0x010203, colors[0]);
+            assertEquals(0xfffefd, colors[format.ledCount - 1]);
+            assertEquals(0x800000, colors[7]);
+            assertEquals(0x111111, colors[1]);
+        }
+    }
+
+    @Test
+    public void notificationWithUnknownLedIsRejected() {
+        byte dst[] = new byte[PlussyBinaryCodec.NOTIFICATION_HEADER_LENGTH
+                + FORMAT.binaryChangeLength];
+        PlussyBinaryCodec.encodeNotification(FORMAT, 1, new int[]{20}, new int[]{0}, 1, dst, 0);
+        assertEquals(-1, PlussyBinaryCodec.applyNotification(FORMAT, dst, 0,
+                new int[FORMAT.ledCount]));
+    }
+}
@@ -0,0 +1,185 @@
+package org.schabi.kiba;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * PlussyCodecTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Checks the codec against the string based code PlussyDisplay used before, which
+ * displays in the field expect byte for byte.
+ */
+public class PlussyCodecTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final MatrixFormat FORMAT = MatrixFormat.PLUSSY;
+
+    // how PlussyDisplay.setLed() built the command, println() added the line break
+    private static String oldSetLed(int led, int color) {
+        String ledS = Integer.toHexString(led);
+        if (ledS.length() < 2) {
+            ledS = "0" + ledS;
+        }
+        return "m" + ledS + Integer.toHexString(color).substring(2, 8) + "\n";
+    }
+
+    // how PlussyDisplay parsed 'M' and 'R' lines
+    private static int[] oldParseMatrixUpdate(String message) {
+        message = message.substring(1, message.length());
+        int t[] = new int[20];
+        for(int i = 0; i < 20; i++) {
+            String ledValS = message.substring(i*6, i*6 + 6);
+            t[i] = Integer.valueOf(ledValS, 16);
+        }
+        return t;
+    }
+
+    private static String encodeSetLed(MatrixFormat format, int led, int color) {
+        byte dst[] = new byte[format.textSetLedLength + 2];
+        int length = PlussyCodec.encodeSetLed(format, led, color, dst, 1);
+        assertEquals(format.textSetLedLength, length);
+        return new String(dst, 1, length, ASCII);
+    }
+
+    @Test
+    public void setLedMatchesTheOldEncodingForEveryLed() {
+        int colors[] = {
+                0xff000000, 0xffffffff, 0xff123456, 0xffabcdef, 0x80fedcba, 0x10a0b0c0
+        };
+        for(int led = 0; led < FORMAT.ledCount; led++) {
+            for(int color : colors) {
+                assertEquals(oldSetLed(led, color), encodeSetLed(FORMAT, led, color));
+            }
+        }
+        Random random = new Random(42);
+        for(int i = 0; i < 10000; i++) {
+            int led = random.nextInt(FORMAT.ledCount);
+            // the old code only worked for colors with an alpha of at least 0x10
+            int color = (0x10 + random.nextInt(0xf0)) << 24 | random.nextInt(0x1000000);
+            assertEquals(oldSetLed(led, color), encodeSetLed(FORMAT, led, color));
+        }
+    }
+
+    @Test
+    public void setLedIgnoresAnyAlpha() {
+        // the old code wrote garbage or threw for these
+        assertEquals("m00123456\n", encodeSetLed(FORMAT, 0, 0x05123456));
+        assertEquals("m13000000\n", encodeSetLed(FORMAT, 19, 0));
+    }
+
+    @Test
+    public void setLedOfLargeLayoutsHasFourDigits() {
+        MatrixFormat large = new MatrixFormat(300);
+        assertEquals("m012bff8000\n", encodeSetLed(large, 299, 0xffff8000));
+    }
+
+    @Test
+    public void parseSetLedReadsWhatWasEncoded() {
+        byte line[] = encodeSetLed(FORMAT, 17, 0xff3456ab).getBytes(ASCII);
+        long parsed = PlussyCodec.parseSetLed(FORMAT, line, 0, line.length - 1);
+        assertEquals(17, parsed >> 24);
+        assertEquals(0x3456ab, parsed & 0xffffff);
+
+        byte wrongLed[] = "m14000000".getBytes(ASCII);
+        assertEquals(-1, PlussyCodec.parseSetLed(FORMAT, wrongLed, 0, wrongLed.length));
+        byte noHex[] = "m00x00000".getBytes(ASCII);
+        assertEquals(-1, PlussyCodec.parseSetLed(FORMAT, noHex, 0, noHex.length));
+    }
+
+    @Test
+    public void requestStateMatchesTheOldCommand() {
+        byte dst[] = new byte[PlussyCodec.REQUEST_STATE_LENGTH];
+        assertEquals(2, PlussyCodec.encodeRequestState(dst, 0));
+        assertEquals("r\n", new String(dst, ASCII));
+    }
+
+    @Test
+    public void parseMatrixMatchesTheOldParser() {
+        Random random = new Random(7);
+        int colors[] = new int[FORMAT.ledCount];
+        for(int i = 0; i < 1000; i++) {
+            StringBuilder line = new StringBuilder(i % 2 == 0 ? "M" : "R");
+            for(int led = 0; led < FORMAT.ledCount; led++) {
+                String hex = String.format("%06x", random.nextInt(0x1000000));
+                // displays may answer in either case
+                line.append(i % 3 == 0 ? hex.toUpperCase() : hex);
+            }
+            String message = line.toString();
+            byte src[] = ("xx" + message + "\n").getBytes(ASCII);
+            assertTrue(PlussyCodec.parseMatrix(FORMAT, src, 2, message.length(), colors));
+            assertArrayEquals(oldParseMatrixUpdate(message), colors);
+        }
+    }
+
+    @Test
+    public void brokenMatrixIsRejected() {
+        int colors[] = new int[FORMAT.ledCount];
+        byte shortLine[] = "M000000".getBytes(ASCII);
+        assertFalse(PlussyCodec.parseMatrix(FORMAT, shortLine, 0, shortLine.length, colors));
+
+        byte matrix[] = new byte[FORMAT.textMatrixLength + 1];
+        PlussyCodec.encodeMatrix(FORMAT, (byte) 'R', colors, matrix, 0);
+        matrix[30] = 'g';
+        assertFalse(PlussyCodec.parseMatrix(FORMAT, matrix, 0, FORMAT.textMatrixLength,
+                colors));
+    }
+
+    @Test
+    public void replyTypes() {
+        byte src[] = "MRS N?x".getBytes(ASCII);
+        assertEquals(PlussyCodec.REPLY_MATRIX_UPDATE, PlussyCodec.getReplyType(src, 0, 1));
+        assertEquals(PlussyCodec.REPLY_MATRIX_STATE, PlussyCodec.getReplyType(src, 1, 1));
+        assertEquals(PlussyCodec.REPLY_SUBSCRIBED, PlussyCodec.getReplyType(src, 2, 1));
+        assertEquals(PlussyCodec.REPLY_EMPTY, PlussyCodec.getReplyType(src, 3, 0));
+        assertEquals(PlussyCodec.REPLY_NOTIFICATION, PlussyCodec.getReplyType(src, 4, 1));
+        assertEquals(PlussyCodec.REPLY_WRONG_COMMAND, PlussyCodec.getReplyType(src, 5, 1));
+        assertEquals(PlussyCodec.REPLY_UNKNOWN, PlussyCodec.getReplyType(src, 6, 1));
+    }
+
+    @Test
+    public void subscribedAndNotificationRoundTrip() {
+        int colors[] = new int[FORMAT.ledCount];
+        for(int i = 0; i < colors.length; i++) {
+            colors[i] = i * 0x0a0b0c;
+        }
+        byte dst[] = new byte[FORMAT.textSubscribedLength + 1];
+        assertEquals(dst.length, PlussyCodec.encodeSubscribed(FORMAT, 0xbeef, colors, dst, 0));
+        int parsed[] = new int[FORMAT.ledCount];
+        assertEquals(0xbeef, PlussyCodec.parseSubscribed(FORMAT, dst, 0, dst.length - 1, parsed));
+        assertArrayEquals(colors, parsed);
+
+        int leds[] = {3, 19};
+        int changes[] = {0x123456, 0xabcdef};
+        byte line[] = new byte[PlussyCodec.NOTIFICATION_HEADER_LENGTH
+                + 2 * FORMAT.textChangeLength + 1];
+        assertEquals(line.length,
+                PlussyCodec.encodeNotification(FORMAT, 7, leds, changes, 2, line, 0));
+        assertEquals(7, PlussyCodec.applyNotification(FORMAT, line, 0, line.length - 1, parsed));
+        assertEquals(0x123456, parsed[3]);
+        assertEquals(0xabcdef, parsed[19]);
+        assertEquals(colors[4], parsed[4]);
+    }
+}
@@ -0,0 +1,129 @@
+package org.schabi.kiba;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * RateControllerTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+public class RateControllerTest {
+
+    private static final long MILLI = 1000000L;
+
+    // answers a whole round of the current window, returns the window after it
+    private static int round(RateController rate, long roundTrip, boolean waiting) {
+        int window = rate.getWindow();
+        int next = window;
+        for(int i = 0; i < window; i++) {
+            next = rate.onAnswer(roundTrip, waiting);
+        }
+        return next;
+    }
+
+    @Test
+    public void windowDoublesWhileStartingUpAndCommandsWait() {
+        RateController rate = new RateController(2);
+        assertEquals(4, round(rate, MILLI, true));
+        assertEquals(8, round(rate, MILLI, true));
+        assertEquals(16, round(rate, MILLI, true));
+        assertEquals(3, rate.getIncreases());
+        assertEquals(0, rate.getDecreases());
+    }
+
+    @Test
+    public void windowTheAppDoesNotUseDoesNotGrow() {
+        RateController rate = new RateController(4);
+        for(int i = 0; i < 10; i++) {
+            assertEquals(4, round(rate, MILLI, false));
+        }
+        assertEquals(0, rate.getIncreases());
+    }
+
+    @Test
+    public void windowGrowsByOneAfterStartUp() {
+        RateController rate = new RateController(8);
+        // half the target ends start up without halving
+        assertEquals(9, round(rate, 30 * MILLI, true));
+        assertEquals(10, round(rate, 30 * MILLI, true));
+    }
+
+    @Test
+    public void windowIsHalvedAboveTheTargetAndTheNextRoundLeftAlone() {
+        RateController rate = new RateController(16);
+        // the link without a queue
+        assertEquals(16, round(rate, 10 * MILLI, false));
+        assertEquals(8, round(rate, 100 * MILLI, true));
+        assertEquals(1, rate.getDecreases());
+        // still the answers of the larger window
+        assertEquals(8, round(rate, 100 * MILLI, true));
+        assertEquals(4, round(rate, 100 * MILLI, true));
+        assertEquals(2, rate.getDecreases());
+        // start up is over, so it grows by one again
+        assertEquals(4, round(rate, 100 * MILLI, true));
+        assertEquals(5, round(rate, 10 * MILLI, true));
+    }
+
+    @Test
+    public void aSingleSlowAnswerDoesNotShrinkTheWindow() {
+        RateController rate = new RateController(8);
+        for(int i = 0; i < 7; i++) {
+            rate.onAnswer(MILLI, true);
+        }
+        assertEquals(16, rate.onAnswer(500 * MILLI, true));
+    }
+
+    @Test
+    public void slowLinkGetsRoomForAQueue() {
+        RateController rate = new RateController(4);
+        // 80 ms without a queue, above the target of 50 ms, ends start up
+        assertEquals(5, round(rate, 80 * MILLI, true));
+        assertEquals(80 * MILLI, rate.getMinRtt());
+        // 1.5 times the smallest round trip is still fine
+        assertEquals(6, round(rate, 110 * MILLI, true));
+        assertEquals(3, round(rate, 130 * MILLI, true));
+    }
+
+    @Test
+    public void answersWithinTheSameClockTickCountAsOneNanosecond() throws InterruptedException {
+        RateController rate = new RateController(2);
+        rate.onAnswer(5, true);
+        Thread.sleep(1);
+        rate.onAnswer(0, true);
+        assertEquals(1, rate.getMinRtt());
+        assertTrue(rate.getCommandRate() > 0);
+
+        // the same with equal samples
+        rate = new RateController(3);
+        rate.onAnswer(5, true);
+        rate.onAnswer(5, true);
+        rate.onAnswer(0, true);
+        assertEquals(1, rate.getMinRtt());
+    }
+
+    @Test
+    public void batchIntervalFollowsTheSmoothedRoundTrip() {
+        RateController rate = new RateController(4);
+        round(rate, 10 * MILLI, false);
+        assertEquals(0, rate.getBatchInterval());
+        rate = new RateController(4);
+        round(rate, 40 * MILLI, false);
+        assertEquals(5 * MILLI, rate.getBatchInterval());
+    }
+}
@@ -0,0 +1,204 @@
+package org.schabi.kiba;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * SceneLibraryTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+public class SceneLibraryTest {
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("kiba-scenes", ".kscn");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+        new File(file.getPath() + ".new").delete();
+    }
+
+    private static int[] colors(int ledCount, int seed) {
+        int colors[] = new int[ledCount];
+        for(int i = 0; i < ledCount; i++) {
+            colors[i] = (seed * 0x10101 + i * 0x3f1d) & 0xffffff;
+        }
+        return colors;
+    }
+
+    @Test
+    public void aNewLibraryIsEmpty() throws IOException {
+        SceneLibrary library = SceneLibrary.open(file, 20);
+        assertTrue(file.exists());
+        assertEquals(0, library.size());
+        assertEquals(20, library.getLedCount());
+        assertEquals(-1, library.find("anything"));
+    }
+
+    @Test
+    public void savedScenesAreFoundAndRead() throws IOException {
+        SceneLibrary library = SceneLibrary.open(file, 20);
+        String names[] = {"zebra", "apple", "\u00c4pfel", "m", "apple pie", "Apple"};
+        for(int i = 0; i < names.length; i++) {
+            library = library.save(names[i], colors(20, i));
+        }
+        FrameSequence animation = new FrameSequence();
+        animation.add(new Frame(colors(20, 100)), 3);
+        animation.add(new Frame(colors(20, 101)), 7);
+        library = library.save("animation", animation);
+
+        // read from the file again, not from what was just written
+        library = SceneLibrary.open(file, 20);
+        assertEquals(names.length + 1, library.size());
+        int read[] = new int[20];
+        for(int i = 0; i < names.length; i++) {
+            int scene = library.find(names[i]);
+            assertTrue(names[i], scene >= 0);
+            assertEquals(names[i], library.getName(scene));
+            assertEquals(1, library.getFrameCount(scene));
+            library.getColors(scene, 0, read);
+            assertArrayEquals(colors(20, i), read);
+        }
+        assertEquals(-1, library.find("appl"));
+        assertEquals(-1, library.find("zebras"));
+
+        int scene = library.find("animation");
+        assertEquals(2, library.getFrameCount(scene));
+        assertEquals(3, library.getTicks(scene, 0));
+        assertEquals(7, library.getTicks(scene, 1));
+        library.getColors(scene, 1, read);
+        assertArrayEquals(colors(20, 101), read);
+        FrameSequence sequence = library.getSequence(scene, true);
+        assertEquals(2, sequence.size());
+        assertArrayEquals(colors(20, 100), sequence.get(0).colors);
+    }
+
+    @Test
+    public void savingANameAgainReplacesTheScene() throws IOException {
+        SceneLibrary library = SceneLibrary.open(file, 4);
+        library = library.save("one", colors(4, 1));
+        library = library.save("two", colors(4, 2));
+        library = library.save("one", colors(4, 3));
+        assertEquals(2, library.size());
+        int read[] = new int[4];
+        library.getColors(library.find("one"), 0, read);
+        assertArrayEquals(colors(4, 3), read);
+
+        library = library.remove("one");
+        assertEquals(1, library.size());
+        assertEquals(-1, library.find("one"));
+        library.getColors(library.find("two"), 0, read);
+        assertArrayEquals(colors(4, 2), read);
+        assertFalse(new File(file.getPath() + ".new").exists());
+    }
+
+    @Test
+    public void textExportImportsIntoAnotherLibrary() throws IOException {
+        SceneLibrary library = SceneLibrary.open(file, 20);
+        library = library.save("red", colors(20, 1));
+        FrameSequence animation = new FrameSequence();
+        animation.add(new Frame(colors(20, 2)), 5);
+        animation.add(new Frame(colors(20, 3)), 1);
+        library = library.save("blink", animation);
+        StringWriter text = new StringWriter();
+        library.exportText(text);
+
+        File other = File.createTempFile("kiba-scenes", ".kscn");
+        try {
+            assertTrue(other.delete());
+            SceneLibrary imported = SceneLibrary.open(other, 20)
+                    .importText(new StringReader(text.toString()));
+            StringWriter again = new StringWriter();
+            imported.exportText(again);
+            assertEquals(text.toString(), again.toString());
+        } finally {
+            other.delete();
+        }
+    }
+
+    @Test
+    public void brokenTextIsNotImported() throws IOException {
+        SceneLibrary library = SceneLibrary.open(file, 2);
+        String broken[] = {
+                "no scenes\nleds 2\n",
+                "kiba scenes 1\nleds 3\n",
+                "kiba scenes 1\nleds 2\nscene a\nframe 1 ff0000\n",
+                "kiba scenes 1\nleds 2\nscene a\nframe 1 ff0000 xyz\n",
+                "kiba scenes 1\nleds 2\nscene a\n",
+                "kiba scenes 1\nleds 2\nscene a\nsomething else\n",
+        };
+        for(String text : broken) {
+            try {
+                library.importText(new StringReader(text));
+                fail("imported " + text);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        assertEquals(0, SceneLibrary.open(file, 2).size());
+    }
+
+    @Test
+    public void brokenLibrariesAreNotOpened() throws IOException {
+        SceneLibrary.open(file, 20).save("scene", colors(20, 1));
+        try {
+            SceneLibrary.open(file, 30);
+            fail("opened a library made for 20 leds");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // the frames of the scene cut off
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.setLength(out.length() - 1);
+        out.close();
+        try {
+            SceneLibrary.open(file, 20);
+            fail("opened a cut off library");
+        } catch (IOException e) {
+            // expected
+        }
+
+        out = new RandomAccessFile(file, "rw");
+        out.write('X');
+        out.close();
+        try {
+            SceneLibrary.open(file, 20);
+            fail("opened a file without the magic");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
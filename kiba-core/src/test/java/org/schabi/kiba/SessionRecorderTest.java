@@ -0,0 +1,215 @@
+package org.schabi.kiba;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * SessionRecorderTest.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+public class SessionRecorderTest {
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("kiba-session", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @After
+    public void deleteDirectory() {
+        File files[] = directory.listFiles();
+        if(files != null) {
+            for(File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    // the log files in the order the replay tool takes them
+    private List<File> logFiles() {
+        File files[] = directory.listFiles();
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    private static byte[] command(int i) {
+        return ("m" + (i % 20) + "00ff" + Integer.toHexString(i & 0xff) + "\n").getBytes();
+    }
+
+    @Test
+    public void recordsAreReadBackInOrder() throws IOException {
+        SessionRecorder recorder = new SessionRecorder(directory, "session", 20,
+                SessionRecorder.MIN_FILE_SIZE, 100);
+        recorder.record(SessionRecorder.CONNECTED);
+        for(int i = 0; i < 2000; i++) {
+            byte data[] = command(i);
+            recorder.record(i % 2 == 0 ? SessionRecorder.SENT : SessionRecorder.RECEIVED,
+                    data, 0, data.length);
+        }
+        recorder.record(SessionRecorder.DISCONNECTED);
+        recorder.close();
+        assertEquals(null, recorder.getError());
+        assertTrue("rotated", logFiles().size() > 1);
+
+        SessionLogReader reader = new SessionLogReader(logFiles());
+        assertTrue(reader.next());
+        assertEquals(SessionRecorder.CONNECTED, reader.getType());
+        assertEquals(0, reader.getLength());
+        assertEquals(20, reader.getLedCount());
+        long nanos = reader.getNanos();
+        // records split at the end of a file are joined again here
+        List<Byte> joined = new ArrayList<>();
+        int commands = 0;
+        while(reader.next() && reader.getType() != SessionRecorder.DISCONNECTED) {
+            assertTrue(reader.getNanos() >= nanos);
+            nanos = reader.getNanos();
+            for(int i = 0; i < reader.getLength(); i++) {
+                joined.add(reader.getData()[i]);
+            }
+            if(joined.size() > 0 && joined.get(joined.size() - 1) == '\n') {
+                byte expected[] = command(commands);
+                assertEquals(expected.length, joined.size());
+                for(int i = 0; i < expected.length; i++) {
+                    assertEquals(expected[i], (byte) joined.get(i));
+                }
+                assertEquals(commands % 2 == 0 ? SessionRecorder.SENT : SessionRecorder.RECEIVED,
+                        reader.getType());
+                joined.clear();
+                commands++;
+            }
+        }
+        assertEquals(2000, commands);
+        assertEquals(SessionRecorder.DISCONNECTED, reader.getType());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void dataLongerThanAFileIsSplit() throws IOException {
+        SessionRecorder recorder = new SessionRecorder(directory, "session", 256,
+                SessionRecorder.MIN_FILE_SIZE, 10);
+        byte frame[] = new byte[3 * SessionRecorder.MIN_FILE_SIZE];
+        for(int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) (i * 7);
+        }
+        recorder.record(SessionRecorder.SENT, frame, 0, frame.length);
+        recorder.close();
+
+        SessionLogReader reader = new SessionLogReader(logFiles());
+        byte read[] = new byte[frame.length];
+        int length = 0;
+        while(reader.next()) {
+            assertEquals(SessionRecorder.SENT, reader.getType());
+            System.arraycopy(reader.getData(), 0, read, length, reader.getLength());
+            length += reader.getLength();
+        }
+        assertEquals(frame.length, length);
+        assertArrayEquals(frame, read);
+    }
+
+    @Test
+    public void aFileThatWasNotClosedEndsAtItsZeros() throws IOException {
+        SessionRecorder recorder = new SessionRecorder(directory, "session", 20,
+                SessionRecorder.MIN_FILE_SIZE, 1);
+        byte data[] = command(1);
+        recorder.record(SessionRecorder.SENT, data, 0, data.length);
+        // not closed, the file keeps its full mapped size
+
+        assertEquals(SessionRecorder.MIN_FILE_SIZE, logFiles().get(0).length());
+        SessionLogReader reader = new SessionLogReader(logFiles());
+        assertTrue(reader.next());
+        assertEquals(data.length, reader.getLength());
+        assertFalse(reader.next());
+        recorder.close();
+    }
+
+    @Test
+    public void onlyTheNewestFilesAreKept() throws IOException {
+        SessionRecorder recorder = new SessionRecorder(directory, "session", 20,
+                SessionRecorder.MIN_FILE_SIZE, 3);
+        byte data[] = new byte[1000];
+        for(int i = 0; i < 40; i++) {
+            recorder.record(SessionRecorder.SENT, data, 0, data.length);
+        }
+        recorder.close();
+        assertEquals(3, logFiles().size());
+        assertTrue(logFiles().get(2).getName().endsWith("-00009.klog"));
+    }
+
+    @Test
+    public void aNewRecordingKeepsTheEarlierOnes() throws IOException {
+        byte data[] = new byte[1000];
+        SessionRecorder first = new SessionRecorder(directory, "session", 20,
+                SessionRecorder.MIN_FILE_SIZE, 10);
+        for(int i = 0; i < 10; i++) {
+            first.record(SessionRecorder.SENT, data, 0, data.length);
+        }
+        first.close();
+        List<File> firstFiles = logFiles();
+        assertEquals(3, firstFiles.size());
+
+        SessionRecorder second = new SessionRecorder(directory, "session", 20,
+                SessionRecorder.MIN_FILE_SIZE, 10);
+        second.record(SessionRecorder.CONNECTED);
+        second.close();
+
+        List<File> all = logFiles();
+        assertEquals(4, all.size());
+        // the earlier files are untouched and sort before the new one
+        assertEquals(firstFiles, all.subList(0, 3));
+        String prefix = firstFiles.get(0).getName().substring(0, "session-".length() + 13);
+        assertFalse(all.get(3).getName().startsWith(prefix));
+
+        // the limit counts the earlier files, the oldest go first
+        SessionRecorder third = new SessionRecorder(directory, "session", 20,
+                SessionRecorder.MIN_FILE_SIZE, 2);
+        third.close();
+        assertEquals(Arrays.asList(all.get(3), logFiles().get(1)), logFiles());
+    }
+
+    @Test
+    public void otherFilesAreNotLogs() throws IOException {
+        File other = new File(directory, "other.klog");
+        FileOutputStream out = new FileOutputStream(other);
+        out.write("not a log at all, but long enough for a header".getBytes());
+        out.close();
+        SessionLogReader reader = new SessionLogReader(Arrays.asList(other));
+        try {
+            reader.next();
+            fail("read a file without the magic");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.schabi.kiba;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * Announcer.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Makes a display, real or not, findable: sends the beacon at a fixed interval and
+ * answers probes with a beacon to whoever asked. Both run on threads of their own.
+ */
+class Announcer {
+
+    private final InetAddress beaconAddress;
+    private final int beaconInterval;
+    private final boolean answerProbes;
+    private final LinkConditions conditions;
+
+    private volatile boolean run = true;
+    private DatagramSocket beaconSocket;
+    private DatagramSocket probeSocket;
+
+    /**
+     * @param beaconInterval milliseconds between two beacons
+     * @param conditions decide which beacons and answers get lost or delayed
+     */
+    Announcer(InetAddress beaconAddress, int beaconInterval, boolean answerProbes,
+              LinkConditions conditions) {
+        this.beaconAddress = beaconAddress;
+        this.beaconInterval = beaconInterval;
+        this.answerProbes = answerProbes;
+        this.conditions = conditions;
+    }
+
+    void start() throws IOException {
+        beaconSocket = new DatagramSocket();
+        beaconSocket.setBroadcast(true);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendBeacons();
+            }
+        }, "beacon").start();
+        if(answerProbes) {
+            probeSocket = new DatagramSocket(null);
+            // the app's discovery may listen on the same port of this machine
+            probeSocket.setReuseAddress(true);
+            probeSocket.bind(new InetSocketAddress(PlussyDiscovery.UDP_PORT));
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    answerProbes();
+                }
+            }, "probe").start();
+        }
+    }
+
+    void stop() {
+        run = false;
+        beaconSocket.close();
+        if(probeSocket != null) {
+            probeSocket.close();
+        }
+    }
+
+    private void sendBeacons() {
+        DatagramPacket packet = PlussyDiscovery.beaconPacket(beaconAddress,
+                PlussyDiscovery.UDP_PORT);
+        while(run) {
+            try {
+                if(!conditions.dropBeacon()) {
+                    beaconSocket.send(packet);
+                }
+                Thread.sleep(beaconInterval);
+            } catch (IOException e) {
+                if(run) {
+                    System.err.println("Error: could not send beacon: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void answerProbes() {
+        byte buffer[] = new byte[64];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while(run) {
+            try {
+                packet.setLength(buffer.length);
+                probeSocket.receive(packet);
+                if(!PlussyDiscovery.isProbe(packet) || conditions.dropBeacon()) {
+                    continue;
+                }
+                long delay = conditions.datagramDelay();
+                if(delay > 0) {
+                    Thread.sleep(delay);
+                }
+                probeSocket.send(PlussyDiscovery.beaconPacket(packet.getAddress(),
+                        packet.getPort()));
+            } catch (IOException e) {
+                if(run) {
+                    System.err.println("Error: could not answer probe: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
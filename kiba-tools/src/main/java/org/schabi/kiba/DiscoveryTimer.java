@@ -0,0 +1,135 @@
+package org.schabi.kiba;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Random;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * DiscoveryTimer.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Measures how long it takes to find a display, real or emulated, by waiting for its
+ * beacon and by probing for it. Every round starts after a random pause, so the passive
+ * time is not always measured from the same point between two beacons.
+ *
+ * Usage: DiscoveryTimer [--rounds n] [--window ms] [--timeout ms] [--pause ms]
+ *                       [--probe address]
+ */
+public class DiscoveryTimer {
+
+    private static void passive(int rounds, int timeout, int pause, Random random)
+            throws IOException, InterruptedException {
+        LatencyHistogram times = new LatencyHistogram();
+        DatagramPacket packet = new DatagramPacket(new byte[64], 64);
+        int missed = 0;
+        for(int i = 0; i < rounds; i++) {
+            Thread.sleep(random.nextInt(pause + 1));
+            long start = System.nanoTime();
+            long deadline = start + timeout * 1000000L;
+            DatagramSocket socket = PlussyDiscovery.openSocket(timeout);
+            InetAddress found = null;
+            try {
+                while(found == null && System.nanoTime() < deadline) {
+                    found = PlussyDiscovery.receiveBeacon(socket, packet);
+                }
+            } catch (InterruptedIOException e) {
+                // counted as missed below
+            } finally {
+                socket.close();
+            }
+            if(found != null) {
+                times.record((System.nanoTime() - start) / 1000);
+            } else {
+                missed++;
+            }
+        }
+        print("passive", times, missed);
+    }
+
+    private static void active(int rounds, int window, int pause,
+                               InetAddress probe, Random random)
+            throws IOException, InterruptedException {
+        LatencyHistogram times = new LatencyHistogram();
+        int missed = 0;
+        for(int i = 0; i < rounds; i++) {
+            Thread.sleep(random.nextInt(pause + 1));
+            // no ttl, so every round probes
+            ActiveDiscovery discovery = new ActiveDiscovery(window, 0);
+            if(probe != null) {
+                discovery.addTarget(probe);
+            }
+            long start = System.nanoTime();
+            if(discovery.discover() != null) {
+                times.record((System.nanoTime() - start) / 1000);
+            } else {
+                missed++;
+            }
+        }
+        print("active", times, missed);
+    }
+
+    private static void print(String mode, LatencyHistogram times, int missed) {
+        System.out.println(mode + " discovery us: p50 " + times.getPercentile(50)
+                + ", p99 " + times.getPercentile(99)
+                + ", max " + times.getMax()
+                + ", missed " + missed);
+    }
+
+    public static void main(String args[]) throws Exception {
+        int rounds = 20;
+        int window = 300;
+        int timeout = 10000;
+        int pause = 1000;
+        InetAddress probe = null;
+        for(int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if(i + 1 < args.length) {
+                String value = args[++i];
+                if(arg.equals("--rounds")) {
+                    rounds = Integer.parseInt(value);
+                } else if(arg.equals("--window")) {
+                    window = Integer.parseInt(value);
+                } else if(arg.equals("--timeout")) {
+                    timeout = Integer.parseInt(value);
+                } else if(arg.equals("--pause")) {
+                    pause = Integer.parseInt(value);
+                } else if(arg.equals("--probe")) {
+                    probe = InetAddress.getByName(value);
+                } else {
+                    usage(arg);
+                }
+            } else {
+                usage(arg);
+            }
+        }
+        Random random = new Random(42);
+        System.out.println(rounds + " rounds, probe window " + window + " ms");
+        passive(rounds, timeout, pause, random);
+        active(rounds, window, pause, probe, random);
+    }
+
+    private static void usage(String arg) {
+        System.err.println("Unknown or incomplete option " + arg);
+        System.err.println("Usage: DiscoveryTimer [--rounds n] [--window ms] [--timeout ms]"
+                + " [--pause ms] [--probe address]");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,300 @@
+package org.schabi.kiba;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * HubClient.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * One client of the hub. Speaks the protocol of a display, text or binary, and answers
+ * every command right away from the merged state of the hub.
+ *
+ * Memory is fixed per client: a command is only handled while its answer fits into the
+ * send buffer. A client that doesn't read its answers stops being read from, until the
+ * buffer drained, so it slows down itself instead of the hub. Changes waiting for a
+ * notification are kept as a set of leds, which never grows beyond the matrix.
+ * Only used by the hub's selector thread.
+ */
+final class HubClient {
+
+    private static final int MIN_READ_BUFFER_SIZE = 4096;
+    private static final int MIN_SEND_BUFFER_SIZE = 16384;
+
+    private final PlussyHub hub;
+    private final MatrixFormat format;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ByteBuffer in;
+    private final ByteBuffer out;
+    // longest answer to a single command
+    private final int maxReplyLength;
+    private boolean binary = false;
+    private boolean closed = false;
+
+    // number of the last notification and the leds changed since then, allocated with
+    // the subscription
+    private boolean subscribed = false;
+    private int sequence = 0;
+    private boolean changed[];
+    private int changedLeds[];
+    private int changedCount = 0;
+    // set while the hub has this client in its list of pending notifications
+    boolean notificationQueued = false;
+
+    HubClient(PlussyHub hub, SocketChannel channel, SelectionKey key) {
+        this.hub = hub;
+        this.channel = channel;
+        this.key = key;
+        format = hub.format;
+        maxReplyLength = Math.max(format.textSubscribedLength + 1,
+                format.binarySubscribedLength);
+        in = ByteBuffer.allocate(Math.max(MIN_READ_BUFFER_SIZE, 2 * format.binaryMatrixLength));
+        out = ByteBuffer.allocate(Math.max(MIN_SEND_BUFFER_SIZE, 2 * maxReplyLength));
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    boolean isSubscribed() {
+        return subscribed;
+    }
+
+    /**
+     * Handles whatever the selector reported for this client.
+     */
+    void handle() {
+        try {
+            if(key.isReadable() && channel.read(in) < 0) {
+                close();
+                return;
+            }
+            service();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Handles buffered commands, sends what is waiting and decides what to wait for next.
+     */
+    void service() throws IOException {
+        boolean more;
+        do {
+            more = processCommands();
+            sendNotification();
+            out.flip();
+            channel.write(out);
+            out.compact();
+        } while(more && out.remaining() >= maxReplyLength);
+        int ops = 0;
+        if(out.position() > 0) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        // no room for an answer, so the client has to wait with further commands
+        if(out.remaining() >= maxReplyLength) {
+            ops |= SelectionKey.OP_READ;
+        }
+        key.interestOps(ops);
+    }
+
+    void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // gone anyway
+        }
+        hub.clientClosed(this);
+    }
+
+    // returns true if commands are left that did not fit into the send buffer
+    private boolean processCommands() {
+        byte buffer[] = in.array();
+        int start = 0;
+        int end = in.position();
+        while(start < end) {
+            if(out.remaining() < maxReplyLength) {
+                break;
+            }
+            int consumed = binary
+                    ? processFrame(buffer, start, end)
+                    : processLine(buffer, start, end);
+            if(consumed == 0) {
+                break;
+            }
+            start += consumed;
+        }
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        in.position(end - start);
+        if(!in.hasRemaining() && out.remaining() >= maxReplyLength) {
+            // nothing sensible fills the whole buffer
+            in.clear();
+            wrongCommand();
+        }
+        return in.position() > 0 && out.remaining() < maxReplyLength;
+    }
+
+    // returns the number of bytes consumed, 0 if the line is not complete yet
+    private int processLine(byte buffer[], int start, int end) {
+        int lineEnd = PlussyCodec.findLineEnd(buffer, start, end);
+        if(lineEnd < 0) {
+            return 0;
+        }
+        int length = lineEnd - start;
+        if(length > 0 && buffer[lineEnd - 1] == '\r') {
+            length--;
+        }
+        long setLed = PlussyCodec.parseSetLed(format, buffer, start, length);
+        if(setLed >= 0) {
+            hub.setLed(this, (int) (setLed >> 24), (int) setLed & 0xffffff);
+            replyMatrix(PlussyBinaryCodec.MATRIX_UPDATE);
+        } else if(length == 1 && buffer[start] == PlussyBinaryCodec.REQUEST_STATE) {
+            replyMatrix(PlussyBinaryCodec.MATRIX_STATE);
+        } else if(length == 1 && buffer[start] == PlussyBinaryCodec.SUBSCRIBE) {
+            subscribe();
+        } else if(length == 1 && buffer[start] == PlussyBinaryCodec.NEGOTIATE_COMMAND) {
+            binary = true;
+            out.put(PlussyBinaryCodec.NEGOTIATE_REPLY).put((byte) '\n');
+        } else {
+            wrongCommand();
+        }
+        return lineEnd + 1 - start;
+    }
+
+    // returns the number of bytes consumed, 0 if the frame is not complete yet
+    private int processFrame(byte buffer[], int start, int end) {
+        byte type = buffer[start];
+        if(type != PlussyBinaryCodec.SET_LED && type != PlussyBinaryCodec.SET_MATRIX
+                && type != PlussyBinaryCodec.REQUEST_STATE
+                && type != PlussyBinaryCodec.SUBSCRIBE) {
+            wrongCommand();
+            return 1;
+        }
+        int length = PlussyBinaryCodec.frameLength(format, type);
+        if(end - start < length) {
+            return 0;
+        }
+        if(type == PlussyBinaryCodec.SET_LED) {
+            int led = PlussyBinaryCodec.decodeSetLedNumber(format, buffer, start);
+            if(led < format.ledCount) {
+                hub.setLed(this, led, PlussyBinaryCodec.decodeSetLedColor(format, buffer, start));
+                replyMatrix(PlussyBinaryCodec.MATRIX_UPDATE);
+            } else {
+                wrongCommand();
+            }
+        } else if(type == PlussyBinaryCodec.SET_MATRIX) {
+            int colors[] = hub.scratchColors;
+            PlussyBinaryCodec.decodeMatrix(format, buffer, start, colors);
+            hub.setMatrix(this, colors);
+            replyMatrix(PlussyBinaryCodec.MATRIX_UPDATE);
+        } else if(type == PlussyBinaryCodec.SUBSCRIBE) {
+            subscribe();
+        } else {
+            replyMatrix(PlussyBinaryCodec.MATRIX_STATE);
+        }
+        return length;
+    }
+
+    private void replyMatrix(byte type) {
+        int length = binary
+                ? PlussyBinaryCodec.encodeMatrix(format, type, hub.matrix, out.array(),
+                        out.position())
+                : PlussyCodec.encodeMatrix(format, type, hub.matrix, out.array(),
+                        out.position());
+        out.position(out.position() + length);
+    }
+
+    private void wrongCommand() {
+        out.put(PlussyBinaryCodec.WRONG_COMMAND);
+        if(!binary) {
+            out.put((byte) '\n');
+        }
+    }
+
+    private void subscribe() {
+        if(!subscribed) {
+            subscribed = true;
+            changed = new boolean[format.ledCount];
+            changedLeds = new int[format.ledCount];
+            hub.subscribed(this);
+        }
+        // the answer carries everything changed so far
+        for(int i = 0; i < changedCount; i++) {
+            changed[changedLeds[i]] = false;
+        }
+        changedCount = 0;
+        int length = binary
+                ? PlussyBinaryCodec.encodeSubscribed(format, sequence, hub.matrix, out.array(),
+                        out.position())
+                : PlussyCodec.encodeSubscribed(format, sequence, hub.matrix, out.array(),
+                        out.position());
+        out.position(out.position() + length);
+    }
+
+    /**
+     * Remembers a led changed by someone else for the next notification.
+     * @return true if it is the first change since the last notification
+     */
+    boolean changed(int led) {
+        if(changed[led]) {
+            return false;
+        }
+        changed[led] = true;
+        changedLeds[changedCount++] = led;
+        return changedCount == 1;
+    }
+
+    boolean hasChanges() {
+        return changedCount > 0;
+    }
+
+    // sends as many changes as fit, the rest follows once the send buffer drained
+    private void sendNotification() {
+        if(changedCount == 0) {
+            return;
+        }
+        int changeLength = binary ? format.binaryChangeLength : format.textChangeLength;
+        int count = (out.remaining() - PlussyCodec.NOTIFICATION_HEADER_LENGTH - 1) / changeLength;
+        count = Math.min(Math.min(count, changedCount), PlussyBinaryCodec.MAX_NOTIFICATION_CHANGES);
+        if(count <= 0) {
+            return;
+        }
+        int colors[] = hub.scratchColors;
+        for(int i = 0; i < count; i++) {
+            colors[i] = hub.matrix[changedLeds[i]];
+            changed[changedLeds[i]] = false;
+        }
+        sequence = (sequence + 1) & 0xffff;
+        int length = binary
+                ? PlussyBinaryCodec.encodeNotification(format, sequence, changedLeds, colors,
+                        count, out.array(), out.position())
+                : PlussyCodec.encodeNotification(format, sequence, changedLeds, colors,
+                        count, out.array(), out.position());
+        out.position(out.position() + length);
+        changedCount -= count;
+        System.arraycopy(changedLeds, count, changedLeds, 0, changedCount);
+    }
+}
@@ -0,0 +1,406 @@
+package org.schabi.kiba;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * HubUpstream.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The hub's one connection to the real display. Works like a session of the app: it
+ * negotiates the binary protocol, subscribes to the changes of clients connected to the
+ * display directly, and sends the merged commands of all hub clients through a
+ * {@link CommandQueue}, so they are coalesced per led and pipelined up to the window.
+ * A lost connection is opened again after a pause, commands that were in flight are
+ * sent again then. Only used by the hub's selector thread.
+ */
+final class HubUpstream {
+
+    private static final int NEGOTIATION_TIMEOUT = 1000;
+    private static final int RECONNECT_DELAY = 1000;
+
+    private final PlussyHub hub;
+    private final MatrixFormat format;
+    private final InetSocketAddress address;
+    final CommandQueue queue;
+    private final int maxCommandLength;
+    private final ByteBuffer in;
+    private final ByteBuffer out;
+    // what the display reported last, notifications applied
+    private final int deviceColors[];
+    private final int matrixColors[];
+    // false until a whole matrix was received on this connection
+    private boolean deviceKnown = false;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean binary = false;
+    private boolean negotiating = false;
+    private boolean established = false;
+    private boolean subscribed = false;
+    private int lastSequence;
+    private long negotiationDeadline;
+    private long reconnectAt = 0;
+
+    long commandsSent = 0;
+    long repliesReceived = 0;
+    long notificationsReceived = 0;
+    long notificationGaps = 0;
+    int connects = 0;
+
+    HubUpstream(PlussyHub hub, InetSocketAddress address, int window) {
+        this.hub = hub;
+        this.address = address;
+        format = hub.format;
+        queue = new CommandQueue(format.ledCount);
+        queue.setWindow(window);
+        maxCommandLength = Math.max(format.binaryMatrixLength, format.textSetLedLength);
+        in = ByteBuffer.allocate(Math.max(4096, 2 * (format.textSubscribedLength + 2)));
+        out = ByteBuffer.allocate(CommandQueue.MAX_WINDOW * format.textSetLedLength
+                + maxCommandLength);
+        deviceColors = new int[format.ledCount];
+        matrixColors = new int[format.ledCount];
+    }
+
+    boolean isEstablished() {
+        return established;
+    }
+
+    /**
+     * Opens the connection when it is due and ends a negotiation nobody answers.
+     * @return milliseconds until this has to be called again, 0 for no limit
+     */
+    long maintain(Selector selector, long now) {
+        if(channel == null) {
+            if(now - reconnectAt < 0) {
+                return reconnectAt - now;
+            }
+            connect(selector);
+            return channel == null ? RECONNECT_DELAY : 0;
+        }
+        if(negotiating) {
+            if(negotiationDeadline - now <= 0) {
+                established(false);
+                send();
+                return 0;
+            }
+            return negotiationDeadline - now;
+        }
+        return 0;
+    }
+
+    private void connect(Selector selector) {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            boolean connected = channel.connect(address);
+            key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            if(connected) {
+                begin();
+            }
+        } catch (IOException e) {
+            failed("could not connect to display " + address + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handles whatever the selector reported for the connection.
+     */
+    void handle() {
+        try {
+            if(key.isConnectable()) {
+                channel.finishConnect();
+                begin();
+                return;
+            }
+            if(key.isReadable()) {
+                if(channel.read(in) < 0) {
+                    failed("connection closed by display.");
+                    return;
+                }
+                processReplies();
+            }
+            send();
+        } catch (IOException e) {
+            failed("connection to display lost: " + e.getMessage());
+        }
+    }
+
+    private void begin() throws IOException {
+        connects++;
+        in.clear();
+        out.clear();
+        queue.restart();
+        deviceKnown = false;
+        negotiating = true;
+        negotiationDeadline = System.currentTimeMillis() + NEGOTIATION_TIMEOUT;
+        out.put(PlussyBinaryCodec.NEGOTIATE_COMMAND).put((byte) '\n');
+        write();
+        System.out.println("Connected to display " + address);
+    }
+
+    private void established(boolean binary) {
+        this.binary = binary;
+        queue.setMatrixSupported(binary);
+        negotiating = false;
+        subscribed = false;
+        // the answer carries the state of the display
+        queue.putSubscribe();
+        established = true;
+    }
+
+    private void failed(String message) {
+        System.err.println("Error: " + message);
+        if(key != null) {
+            key.cancel();
+        }
+        try {
+            if(channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // gone anyway
+        }
+        channel = null;
+        key = null;
+        established = false;
+        negotiating = false;
+        reconnectAt = System.currentTimeMillis() + RECONNECT_DELAY;
+    }
+
+    /**
+     * Encodes as many queued commands as the window and the send buffer allow and sends
+     * them.
+     */
+    void send() {
+        if(!established) {
+            return;
+        }
+        byte dst[] = out.array();
+        int command;
+        while(out.remaining() >= maxCommandLength
+                && (command = queue.poll()) != CommandQueue.NO_COMMAND) {
+            int offset = out.position();
+            int length;
+            if(command == CommandQueue.REQUEST_STATE) {
+                length = binary
+                        ? PlussyBinaryCodec.encodeRequestState(dst, offset)
+                        : PlussyCodec.encodeRequestState(dst, offset);
+            } else if(command == CommandQueue.SUBSCRIBE) {
+                length = binary
+                        ? PlussyBinaryCodec.encodeSubscribe(dst, offset)
+                        : PlussyCodec.encodeSubscribe(dst, offset);
+            } else if(command == CommandQueue.SET_MATRIX) {
+                // only queued while the binary protocol is in use
+                for(int i = 0; i < matrixColors.length; i++) {
+                    matrixColors[i] = queue.getColor(i);
+                }
+                length = PlussyBinaryCodec.encodeSetMatrix(format, matrixColors, dst, offset);
+            } else {
+                int color = queue.getColor(command);
+                length = binary
+                        ? PlussyBinaryCodec.encodeSetLed(format, command, color, dst, offset)
+                        : PlussyCodec.encodeSetLed(format, command, color, dst, offset);
+            }
+            out.position(offset + length);
+            commandsSent++;
+        }
+        try {
+            write();
+        } catch (IOException e) {
+            failed("could not send to display: " + e.getMessage());
+        }
+    }
+
+    private void write() throws IOException {
+        out.flip();
+        channel.write(out);
+        out.compact();
+        key.interestOps(out.position() > 0
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ);
+    }
+
+    private void processReplies() {
+        byte buffer[] = in.array();
+        int start = 0;
+        int end = in.position();
+        boolean replied = false;
+        while(start < end) {
+            int consumed;
+            if(negotiating) {
+                consumed = handleNegotiationReply(buffer, start, end);
+            } else if(binary) {
+                consumed = handleBinaryReply(buffer, start, end);
+            } else {
+                consumed = handleTextReply(buffer, start, end);
+            }
+            if(consumed == 0) {
+                break;
+            }
+            replied = true;
+            start += consumed;
+        }
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        in.position(end - start);
+        if(!in.hasRemaining()) {
+            System.err.println("Error: message from display too long, dropping it.");
+            in.clear();
+        }
+        // while commands are on their way the display reports a state they will change
+        if(replied && deviceKnown && queue.isIdle()) {
+            hub.adopt(deviceColors);
+        }
+    }
+
+    private int handleNegotiationReply(byte buffer[], int start, int end) {
+        int lineEnd = PlussyCodec.findLineEnd(buffer, start, end);
+        if(lineEnd < 0) {
+            return 0;
+        }
+        int length = lineEnd - start;
+        if(length > 0 && buffer[lineEnd - 1] == '\r') {
+            length--;
+        }
+        established(length == 1 && buffer[start] == PlussyBinaryCodec.NEGOTIATE_REPLY);
+        return lineEnd + 1 - start;
+    }
+
+    private int acknowledge(boolean wrongCommand) {
+        repliesReceived++;
+        int command = queue.acknowledge();
+        if(command == CommandQueue.SUBSCRIBE && wrongCommand) {
+            System.out.println("Display does not support subscriptions.");
+            // the state the answer would have carried
+            queue.putRequest();
+        }
+        return command;
+    }
+
+    // checks the sequence number of a notification already applied to deviceColors
+    private void notified(int sequence) {
+        notificationsReceived++;
+        boolean complete = sequence >= 0 && ((sequence - lastSequence) & 0xffff) == 1;
+        if(sequence >= 0) {
+            lastSequence = sequence;
+        }
+        if(!complete) {
+            notificationGaps++;
+            queue.putRequest();
+        }
+    }
+
+    private int handleTextReply(byte buffer[], int start, int end) {
+        int lineEnd = PlussyCodec.findLineEnd(buffer, start, end);
+        if(lineEnd < 0) {
+            return 0;
+        }
+        int length = lineEnd - start;
+        if(length > 0 && buffer[lineEnd - 1] == '\r') {
+            length--;
+        }
+        int type = PlussyCodec.getReplyType(buffer, start, length);
+        switch(type) {
+            case PlussyCodec.REPLY_NOTIFICATION:
+                // no answer to a command, so nothing is acknowledged
+                if(subscribed) {
+                    notified(PlussyCodec.applyNotification(format, buffer, start, length,
+                            deviceColors));
+                }
+                break;
+            case PlussyCodec.REPLY_SUBSCRIBED:
+                int sequence = PlussyCodec.parseSubscribed(format, buffer, start, length,
+                        deviceColors);
+                if(sequence >= 0) {
+                    subscribed = true;
+                    lastSequence = sequence;
+                    deviceKnown = true;
+                } else {
+                    System.err.println("Error: broken subscription from display.");
+                    deviceKnown = false;
+                }
+                acknowledge(false);
+                break;
+            case PlussyCodec.REPLY_MATRIX_UPDATE:
+            case PlussyCodec.REPLY_MATRIX_STATE:
+                deviceKnown = PlussyCodec.parseMatrix(format, buffer, start, length,
+                        deviceColors);
+                if(!deviceKnown) {
+                    System.err.println("Error: broken matrix state from display.");
+                    queue.putRequest();
+                }
+                acknowledge(false);
+                break;
+            case PlussyCodec.REPLY_WRONG_COMMAND:
+                acknowledge(true);
+                break;
+            default:
+                System.err.println("Error: can't handle message from display: "
+                        + new String(buffer, start, length));
+                break;
+        }
+        return lineEnd + 1 - start;
+    }
+
+    private int handleBinaryReply(byte buffer[], int start, int end) {
+        byte type = buffer[start];
+        int available = end - start;
+        int length;
+        switch(type) {
+            case PlussyBinaryCodec.NOTIFICATION:
+                length = PlussyBinaryCodec.notificationLength(format, buffer, start, available);
+                if(length == 0 || available < length) {
+                    return 0;
+                }
+                if(subscribed) {
+                    notified(PlussyBinaryCodec.applyNotification(format, buffer, start,
+                            deviceColors));
+                }
+                return length;
+            case PlussyBinaryCodec.SUBSCRIBED:
+            case PlussyBinaryCodec.MATRIX_UPDATE:
+            case PlussyBinaryCodec.MATRIX_STATE:
+            case PlussyBinaryCodec.WRONG_COMMAND:
+                length = PlussyBinaryCodec.frameLength(format, type);
+                if(available < length) {
+                    return 0;
+                }
+                break;
+            default:
+                System.err.println("Error: can't handle frame from display: "
+                        + Integer.toHexString(type & 0xff));
+                return 1;
+        }
+        if(type == PlussyBinaryCodec.SUBSCRIBED) {
+            lastSequence = PlussyBinaryCodec.decodeSubscribed(format, buffer, start,
+                    deviceColors);
+            subscribed = true;
+            deviceKnown = true;
+        } else if(type != PlussyBinaryCodec.WRONG_COMMAND) {
+            PlussyBinaryCodec.decodeMatrix(format, buffer, start, deviceColors);
+            deviceKnown = true;
+        }
+        acknowledge(type == PlussyBinaryCodec.WRONG_COMMAND);
+        return length;
+    }
+}
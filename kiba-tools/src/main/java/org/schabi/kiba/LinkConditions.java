@@ -0,0 +1,101 @@
+package org.schabi.kiba;
+
+import java.util.Random;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * LinkConditions.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * How bad the emulated network between a display and its clients is. TCP never loses
+ * data, so a lost segment shows up as a retransmission delay that also holds back
+ * everything sent after it.
+ */
+public class LinkConditions {
+
+    // a typical minimum retransmission timeout
+    public static final int RETRANSMIT_DELAY = 200;
+
+    /** added round trip time in milliseconds */
+    public int latency = 0;
+    /** the round trip time varies this many milliseconds around latency */
+    public int jitter = 0;
+    /** bytes per second in each direction, 0 for no limit */
+    public int bandwidth = 0;
+    /** probability between 0 and 1 that a segment or a beacon gets lost */
+    public double loss = 0;
+
+    private final Random random = new Random();
+
+    /**
+     * @return nanoseconds a segment takes in one direction, half a round trip plus the
+     * retransmissions if it got lost
+     */
+    public synchronized long segmentDelay() {
+        long delay = datagramDelay() * 500000L;
+        while(loss > 0 && random.nextDouble() < loss) {
+            delay += RETRANSMIT_DELAY * 1000000L;
+        }
+        return delay;
+    }
+
+    /**
+     * @return milliseconds a datagram takes there and back, it is never retransmitted
+     */
+    public synchronized long datagramDelay() {
+        long delay = latency;
+        if(jitter > 0) {
+            delay += random.nextInt(2 * jitter + 1) - jitter;
+        }
+        return Math.max(0, delay);
+    }
+
+    public synchronized boolean dropBeacon() {
+        return loss > 0 && random.nextDouble() < loss;
+    }
+
+    /**
+     * Limits the rate of one direction of a connection to bandwidth.
+     */
+    public class Throttle {
+        private long nextFree = 0;
+
+        /**
+         * Blocks until the given number of bytes may pass.
+         */
+        public void acquire(int bytes) throws InterruptedException {
+            if(bandwidth <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            if(nextFree < now) {
+                nextFree = now;
+            }
+            long wait = nextFree - now;
+            nextFree += bytes * 1000000000L / bandwidth;
+            if(wait > 0) {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "latency " + latency + "ms, jitter " + jitter + "ms, bandwidth "
+                + (bandwidth > 0 ? bandwidth + "B/s" : "unlimited") + ", loss " + loss;
+    }
+}
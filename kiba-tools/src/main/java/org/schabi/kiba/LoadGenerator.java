@@ -0,0 +1,314 @@
+package org.schabi.kiba;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * LoadGenerator.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Drives a display, real or emulated, with a number of clients that each send set led
+ * commands at a fixed rate, and reports how long the replies took.
+ *
+ * The rate is kept open loop: a command is due at its scheduled time no matter how late
+ * the replies to earlier ones are, and its latency is measured from that time, so a
+ * stalled link shows up in the percentiles instead of slowing down the load.
+ *
+ * Usage: LoadGenerator [--host address] [--port n] [--leds n] [--clients n]
+ *                      [--rate commands/s] [--duration s] [--warmup s] [--binary]
+ */
+public class LoadGenerator {
+
+    private static final int CONNECT_TIMEOUT = 2000;
+    // commands sent but not answered yet, per client
+    private static final int MAX_OUTSTANDING = 4096;
+
+    private final String host;
+    private final int port;
+    private final MatrixFormat format;
+    private final int clients;
+    private final int rate;
+    private final boolean binary;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong replies = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile boolean run = true;
+    // replies to commands scheduled before this are not recorded
+    private volatile long measureFrom;
+
+    public LoadGenerator(String host, int port, MatrixFormat format, int clients, int rate,
+                         boolean binary) {
+        this.host = host;
+        this.port = port;
+        this.format = format;
+        this.clients = clients;
+        this.rate = rate;
+        this.binary = binary;
+    }
+
+    private class Client {
+        private final int number;
+        private final Socket socket = new Socket();
+        // scheduled send times of the commands waiting for their reply
+        private final ArrayBlockingQueue<Long> outstanding =
+                new ArrayBlockingQueue<>(MAX_OUTSTANDING);
+        private final byte readBuffer[] = new byte[Math.max(4096, 2 * (format.textMatrixLength + 1))];
+        private int readEnd = 0;
+
+        Client(int number) {
+            this.number = number;
+        }
+
+        void connect() throws IOException {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            if(binary) {
+                OutputStream out = socket.getOutputStream();
+                out.write(new byte[]{PlussyBinaryCodec.NEGOTIATE_COMMAND, '\n'});
+                out.flush();
+                InputStream in = socket.getInputStream();
+                if(in.read() != PlussyBinaryCodec.NEGOTIATE_REPLY || in.read() != '\n') {
+                    throw new IOException("display does not speak the binary protocol");
+                }
+            }
+        }
+
+        void send(long start, long interval) {
+            byte command[] = new byte[format.textSetLedLength];
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                // clients start spread over one interval instead of all at once
+                long next = start + interval * number / clients;
+                for(long i = 0; run; i++) {
+                    long wait = next - System.nanoTime();
+                    if(wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    }
+                    int led = (int) (i % format.ledCount);
+                    int color = (int) (i * 0x010203) & 0xffffff;
+                    int length = binary
+                            ? PlussyBinaryCodec.encodeSetLed(format, led, color, command, 0)
+                            : PlussyCodec.encodeSetLed(format, led, color, command, 0);
+                    if(!outstanding.offer(next)) {
+                        // the display fell too far behind, count the command as lost
+                        errors.incrementAndGet();
+                    } else {
+                        out.write(command, 0, length);
+                        out.flush();
+                        sent.incrementAndGet();
+                    }
+                    next += interval;
+                }
+            } catch (IOException e) {
+                if(run) {
+                    System.err.println("Error: client " + number + " could not send: "
+                            + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }
+
+        void receive() {
+            try {
+                InputStream in = socket.getInputStream();
+                int read;
+                while((read = in.read(readBuffer, readEnd, readBuffer.length - readEnd)) >= 0) {
+                    readEnd += read;
+                    int consumed = binary ? processFrames() : processLines();
+                    System.arraycopy(readBuffer, consumed, readBuffer, 0, readEnd - consumed);
+                    readEnd -= consumed;
+                }
+            } catch (IOException e) {
+                if(run) {
+                    System.err.println("Error: client " + number + " lost the connection: "
+                            + e.getMessage());
+                }
+            }
+        }
+
+        private int processLines() {
+            int start = 0;
+            int lineEnd;
+            while((lineEnd = PlussyCodec.findLineEnd(readBuffer, start, readEnd)) >= 0) {
+                onReply(readBuffer[start]);
+                start = lineEnd + 1;
+            }
+            return start;
+        }
+
+        private int processFrames() {
+            int start = 0;
+            while(start < readEnd) {
+                int length = PlussyBinaryCodec.frameLength(format, readBuffer[start]);
+                if(length < 0) {
+                    length = 1;
+                }
+                if(readEnd - start < length) {
+                    break;
+                }
+                onReply(readBuffer[start]);
+                start += length;
+            }
+            return start;
+        }
+
+        private void onReply(byte type) {
+            long now = System.nanoTime();
+            if(type != PlussyBinaryCodec.MATRIX_UPDATE) {
+                errors.incrementAndGet();
+            }
+            Long scheduled = outstanding.poll();
+            if(scheduled == null) {
+                return;
+            }
+            if(scheduled >= measureFrom) {
+                latency.record((now - scheduled) / 1000);
+                replies.incrementAndGet();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Runs the load and prints the results.
+     * @param warmup seconds at the start that are not measured
+     * @param duration seconds that are measured
+     */
+    public void run(int warmup, int duration) throws IOException, InterruptedException {
+        final Client all[] = new Client[clients];
+        for(int i = 0; i < clients; i++) {
+            all[i] = new Client(i);
+            all[i].connect();
+        }
+        // every client sends rate / clients commands per second
+        final long interval = 1000000000L * clients / rate;
+        final long start = System.nanoTime() + 10000000L;
+        measureFrom = start + warmup * 1000000000L;
+        Thread threads[] = new Thread[clients * 2];
+        for(int i = 0; i < clients; i++) {
+            final Client client = all[i];
+            threads[i * 2] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    client.send(start, interval);
+                }
+            }, "send " + i);
+            threads[i * 2 + 1] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    client.receive();
+                }
+            }, "receive " + i);
+        }
+        for(Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep((warmup + duration) * 1000L + 10);
+        long measureEnd = System.nanoTime();
+        run = false;
+        LatencyHistogram result = latency.copy();
+        long answered = replies.get();
+        // give replies on their way a moment, then count what never came back
+        Thread.sleep(500);
+        for(Client client : all) {
+            client.close();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        long missing = 0;
+        for(Client client : all) {
+            missing += client.outstanding.size();
+        }
+
+        double seconds = (measureEnd - measureFrom) / 1e9;
+        System.out.println(clients + " clients, " + format.ledCount + " leds, target "
+                + rate + " commands/s, "
+                + (binary ? "binary" : "text") + " protocol");
+        System.out.printf("sent %d, answered %d in %.1fs: %.0f commands/s sustained%n",
+                sent.get(), answered, seconds, answered / seconds);
+        System.out.println("latency us: p50 " + result.getPercentile(50)
+                + ", p99 " + result.getPercentile(99)
+                + ", p99.9 " + result.getPercentile(99.9)
+                + ", max " + result.getMax());
+        System.out.println("errors " + errors.get() + ", unanswered " + missing);
+    }
+
+    public static void main(String args[]) throws Exception {
+        String host = "127.0.0.1";
+        int port = PlussyDiscovery.TCP_PORT;
+        int leds = MatrixFormat.PLUSSY.ledCount;
+        int clients = 1;
+        int rate = 1000;
+        int duration = 10;
+        int warmup = 2;
+        boolean binary = false;
+        for(int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if(arg.equals("--binary")) {
+                binary = true;
+            } else if(i + 1 < args.length) {
+                String value = args[++i];
+                if(arg.equals("--host")) {
+                    host = value;
+                } else if(arg.equals("--port")) {
+                    port = Integer.parseInt(value);
+                } else if(arg.equals("--leds")) {
+                    leds = Integer.parseInt(value);
+                } else if(arg.equals("--clients")) {
+                    clients = Integer.parseInt(value);
+                } else if(arg.equals("--rate")) {
+                    rate = Integer.parseInt(value);
+                } else if(arg.equals("--duration")) {
+                    duration = Integer.parseInt(value);
+                } else if(arg.equals("--warmup")) {
+                    warmup = Integer.parseInt(value);
+                } else {
+                    usage(arg);
+                }
+            } else {
+                usage(arg);
+            }
+        }
+        new LoadGenerator(host, port, new MatrixFormat(leds), clients, rate, binary)
+                .run(warmup, duration);
+    }
+
+    private static void usage(String arg) {
+        System.err.println("Unknown or incomplete option " + arg);
+        System.err.println("Usage: LoadGenerator [--host address] [--port n] [--leds n]"
+                + " [--clients n] [--rate commands/s] [--duration s] [--warmup s] [--binary]");
+        System.exit(1);
+    }
+}
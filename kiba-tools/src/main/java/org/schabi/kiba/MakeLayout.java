@@ -0,0 +1,47 @@
+package org.schabi.kiba;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * MakeLayout.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Writes the layout file of a rectangular led matrix, numbered row by row. Put it into
+ * the app's external files directory as led_layout.bin to drive such a matrix.
+ *
+ * Usage: MakeLayout columns rows file
+ */
+public class MakeLayout {
+
+    public static void main(String args[]) throws IOException {
+        if(args.length != 3) {
+            System.err.println("Usage: MakeLayout columns rows file");
+            System.exit(1);
+        }
+        LedLayout layout = LedLayout.grid(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+        OutputStream out = new FileOutputStream(args[2]);
+        try {
+            layout.write(out);
+        } finally {
+            out.close();
+        }
+        System.out.println("Wrote a layout of " + layout.getCount() + " leds to " + args[2]);
+    }
+}
@@ -0,0 +1,653 @@
+package org.schabi.kiba;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * PlussyEmulator.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Behaves like a plussy display: announces itself with the beacon, accepts any number
+ * of clients and answers the text commands as well as the binary ones after a client
+ * switched to them. Every client gets the replies to its own commands only, and clients
+ * that subscribed get notified about the changes of the others after half the latency.
+ * Commands take effect half the latency after they were sent, and their replies take
+ * the other half, each with its own jitter, so clients that time their commands by the
+ * round trip can be tried out. --bind lets several emulators share one machine, each
+ * on an address of its own, since clients always connect to the same port.
+ * Notifications that come in while one is waiting to be sent are merged into it, and
+ * with --loss some get lost, to try out how clients recover. Probes are answered with a
+ * beacon. --no-probe and --no-subscribe make it behave like firmware that doesn't know
+ * probes or subscriptions. Tests can make it stop reading, like a display that hangs.
+ *
+ * Usage: PlussyEmulator [--port n] [--bind address] [--beacon address]
+ *                       [--beacon-interval ms] [--no-probe]
+ *                       [--no-subscribe] [--leds n] [--latency ms] [--jitter ms]
+ *                       [--bandwidth bytes/s] [--loss probability] [--text-only]
+ */
+public class PlussyEmulator {
+
+    private static final int BEACON_INTERVAL = 500;
+
+    private final int port;
+    private final MatrixFormat format;
+    private final InetAddress beaconAddress;
+    private final LinkConditions conditions;
+    private final boolean binarySupported;
+    private int beaconInterval = BEACON_INTERVAL;
+    private InetAddress bindAddress = null;
+    private boolean answerProbes = true;
+    private boolean subscriptionSupported = true;
+    private final CopyOnWriteArrayList<Client> clients = new CopyOnWriteArrayList<>();
+
+    private final int state[];
+    private volatile boolean run = true;
+    // the clients wait on this while reading is off
+    private final Object readLock = new Object();
+    private boolean reading = true;
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private Announcer announcer;
+
+    private volatile long commands = 0;
+    private volatile long lastChange = 0;
+
+    public PlussyEmulator(int port, MatrixFormat format, InetAddress beaconAddress,
+                          LinkConditions conditions, boolean binarySupported) {
+        this.port = port;
+        this.format = format;
+        state = new int[format.ledCount];
+        this.beaconAddress = beaconAddress;
+        this.conditions = conditions;
+        this.binarySupported = binarySupported;
+    }
+
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(bindAddress, port));
+        announcer = new Announcer(beaconAddress, beaconInterval, answerProbes, conditions);
+        announcer.start();
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptClients();
+            }
+        }, "accept");
+        acceptThread.start();
+    }
+
+    public void stop() {
+        run = false;
+        synchronized (readLock) {
+            readLock.notifyAll();
+        }
+        announcer.stop();
+        try {
+            serverSocket.close();
+            // the port is only free once accept() returned
+            acceptThread.join();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // like a display that is switched off
+        for(Client client : clients) {
+            client.close();
+        }
+    }
+
+    /**
+     * @param interval milliseconds between two beacons, takes effect with start()
+     */
+    public void setBeaconInterval(int interval) {
+        beaconInterval = interval;
+    }
+
+    /**
+     * @param address the only address clients can connect to, null for all of them.
+     *                Takes effect with start().
+     */
+    public void setBindAddress(InetAddress address) {
+        bindAddress = address;
+    }
+
+    /**
+     * @param answer if probes are answered, takes effect with start()
+     */
+    public void setAnswerProbes(boolean answer) {
+        answerProbes = answer;
+    }
+
+    /**
+     * @param supported if clients may subscribe to notifications
+     */
+    public void setSubscriptionSupported(boolean supported) {
+        subscriptionSupported = supported;
+    }
+
+    /**
+     * @param reading false to stop reading what the clients send. Their commands pile up
+     *                in the socket buffers until the clients can't write any more.
+     */
+    public void setReading(boolean reading) {
+        synchronized (readLock) {
+            this.reading = reading;
+            readLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return number of commands that changed leds since the start
+     */
+    public long getCommands() {
+        return commands;
+    }
+
+    /**
+     * @return System.nanoTime() a command last changed a led, 0 if none did yet
+     */
+    public long getLastChange() {
+        return lastChange;
+    }
+
+    public int[] getState() {
+        synchronized (state) {
+            return state.clone();
+        }
+    }
+
+    private void acceptClients() {
+        while(run) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                new Client(socket).start();
+            } catch (IOException e) {
+                if(run) {
+                    System.err.println("Error: could not accept client: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // stands in for a notification, which is put together when it is due
+    private static final byte NOTIFICATION[] = new byte[0];
+
+    // bytes that are on their way between a client and the display until due
+    private static class Segment {
+        final long due;
+        final byte data[];
+
+        Segment(long due, byte data[]) {
+            this.due = due;
+            this.data = data;
+        }
+    }
+
+    // receives the commands of one client, handles them once they arrived and writes
+    // the replies, each on a thread of its own
+    private class Client implements Runnable {
+        private final Socket socket;
+        private final LinkedBlockingQueue<Segment> arrivals = new LinkedBlockingQueue<>();
+        private final LinkedBlockingQueue<Segment> replies = new LinkedBlockingQueue<>();
+        private final LinkConditions.Throttle readThrottle = conditions.new Throttle();
+        private final LinkConditions.Throttle writeThrottle = conditions.new Throttle();
+        // bytes arrive in order, so they are never due before the ones ahead of them
+        private long lastCommandDue = 0;
+        private long lastDue = 0;
+        private volatile boolean binary = false;
+
+        // guarded by the lock of state: the subscription, the number of the last
+        // notification and the leds changed since then
+        private boolean subscribed = false;
+        private int sequence = 0;
+        private final boolean changed[] = new boolean[format.ledCount];
+        private final int changedLeds[] = new int[format.ledCount];
+        private int changedCount = 0;
+        private boolean notificationQueued = false;
+
+        private final byte buffer[] = new byte[Math.max(4096, 2 * format.binaryMatrixLength)];
+        private int start = 0;
+        private int end = 0;
+
+        Client(Socket socket) {
+            this.socket = socket;
+        }
+
+        void start() {
+            clients.add(this);
+            new Thread(this, "client " + socket.getRemoteSocketAddress()).start();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    handleCommands();
+                }
+            }, "commands " + socket.getRemoteSocketAddress()).start();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeReplies();
+                }
+            }, "replies " + socket.getRemoteSocketAddress()).start();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closed already
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                InputStream in = socket.getInputStream();
+                byte data[] = new byte[buffer.length];
+                while(run) {
+                    synchronized (readLock) {
+                        while(run && !reading) {
+                            readLock.wait();
+                        }
+                    }
+                    int read = in.read(data);
+                    if(read < 0) {
+                        break;
+                    }
+                    readThrottle.acquire(read);
+                    long due = System.nanoTime() + conditions.segmentDelay();
+                    if(due < lastCommandDue) {
+                        due = lastCommandDue;
+                    }
+                    lastCommandDue = due;
+                    byte segment[] = new byte[read];
+                    System.arraycopy(data, 0, segment, 0, read);
+                    arrivals.add(new Segment(due, segment));
+                }
+            } catch (IOException e) {
+                // the client went away
+            } catch (InterruptedException e) {
+                // stopped
+            }
+            arrivals.add(new Segment(0, null));
+        }
+
+        private void handleCommands() {
+            try {
+                while(true) {
+                    Segment segment = arrivals.take();
+                    if(segment.data == null) {
+                        break;
+                    }
+                    long wait = segment.due - System.nanoTime();
+                    if(wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    }
+                    int offset = 0;
+                    while(offset < segment.data.length) {
+                        if(start > 0) {
+                            System.arraycopy(buffer, start, buffer, 0, end - start);
+                            end -= start;
+                            start = 0;
+                        }
+                        int length = Math.min(segment.data.length - offset, buffer.length - end);
+                        System.arraycopy(segment.data, offset, buffer, end, length);
+                        offset += length;
+                        end += length;
+                        if(binary) {
+                            processFrames();
+                        } else {
+                            processLines();
+                        }
+                        if(start == 0 && end == buffer.length) {
+                            // nothing sensible fills the whole buffer
+                            end = 0;
+                            reply(new byte[]{PlussyBinaryCodec.WRONG_COMMAND});
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+            clients.remove(this);
+            replies.add(new Segment(0, null));
+        }
+
+        private void processLines() {
+            int lineEnd;
+            while(!binary && (lineEnd = PlussyCodec.findLineEnd(buffer, start, end)) >= 0) {
+                processLine(start, lineEnd - start);
+                start = lineEnd + 1;
+            }
+            if(binary) {
+                processFrames();
+            }
+        }
+
+        private void processLine(int offset, int length) {
+            if(length > 0 && buffer[offset + length - 1] == '\r') {
+                length--;
+            }
+            long setLed = PlussyCodec.parseSetLed(format, buffer, offset, length);
+            if(setLed >= 0) {
+                setLed((int) (setLed >> 24), (int) setLed & 0xffffff);
+                replyMatrix(PlussyBinaryCodec.MATRIX_UPDATE);
+                return;
+            } else if(length == 1 && buffer[offset] == 'r') {
+                replyMatrix(PlussyBinaryCodec.MATRIX_STATE);
+                return;
+            } else if(length == 1 && buffer[offset] == PlussyBinaryCodec.SUBSCRIBE
+                    && subscriptionSupported) {
+                subscribe();
+                return;
+            } else if(length == 1 && buffer[offset] == PlussyBinaryCodec.NEGOTIATE_COMMAND
+                    && binarySupported) {
+                binary = true;
+                reply(new byte[]{PlussyBinaryCodec.NEGOTIATE_REPLY, '\n'});
+                return;
+            }
+            reply(new byte[]{PlussyBinaryCodec.WRONG_COMMAND, '\n'});
+        }
+
+        private void processFrames() {
+            while(start < end) {
+                byte type = buffer[start];
+                int length = PlussyBinaryCodec.frameLength(format, type);
+                if(length < 0 || type == PlussyBinaryCodec.MATRIX_UPDATE
+                        || type == PlussyBinaryCodec.MATRIX_STATE
+                        || type == PlussyBinaryCodec.WRONG_COMMAND
+                        || type == PlussyBinaryCodec.SUBSCRIBED
+                        || type == PlussyBinaryCodec.NOTIFICATION
+                        || (type == PlussyBinaryCodec.SUBSCRIBE && !subscriptionSupported)) {
+                    start++;
+                    reply(new byte[]{PlussyBinaryCodec.WRONG_COMMAND});
+                    continue;
+                }
+                if(end - start < length) {
+                    return;
+                }
+                if(type == PlussyBinaryCodec.SET_LED) {
+                    int led = PlussyBinaryCodec.decodeSetLedNumber(format, buffer, start);
+                    if(led < format.ledCount) {
+                        setLed(led, PlussyBinaryCodec.decodeSetLedColor(format, buffer, start));
+                        replyMatrix(PlussyBinaryCodec.MATRIX_UPDATE);
+                    } else {
+                        reply(new byte[]{PlussyBinaryCodec.WRONG_COMMAND});
+                    }
+                } else if(type == PlussyBinaryCodec.SET_MATRIX) {
+                    int colors[] = new int[format.ledCount];
+                    PlussyBinaryCodec.decodeMatrix(format, buffer, start, colors);
+                    synchronized (state) {
+                        for(int i = 0; i < colors.length; i++) {
+                            if(state[i] != colors[i]) {
+                                state[i] = colors[i];
+                                lastChange = System.nanoTime();
+                                notifyOthers(i);
+                            }
+                        }
+                    }
+                    commands++;
+                    replyMatrix(PlussyBinaryCodec.MATRIX_UPDATE);
+                } else if(type == PlussyBinaryCodec.SUBSCRIBE) {
+                    subscribe();
+                } else {
+                    replyMatrix(PlussyBinaryCodec.MATRIX_STATE);
+                }
+                start += length;
+            }
+        }
+
+        private void setLed(int led, int color) {
+            synchronized (state) {
+                if(state[led] != color) {
+                    state[led] = color;
+                    lastChange = System.nanoTime();
+                    notifyOthers(led);
+                }
+            }
+            commands++;
+        }
+
+        // must hold the lock of state
+        private void notifyOthers(int led) {
+            for(Client client : clients) {
+                if(client != this && client.subscribed) {
+                    client.changed(led);
+                }
+            }
+        }
+
+        // must hold the lock of state
+        private void changed(int led) {
+            if(!changed[led]) {
+                changed[led] = true;
+                changedLeds[changedCount++] = led;
+            }
+            if(!notificationQueued) {
+                notificationQueued = true;
+                // from the display to the subscriber
+                enqueue(conditions.segmentDelay(), NOTIFICATION);
+            }
+        }
+
+        private void subscribe() {
+            byte data[];
+            synchronized (state) {
+                subscribed = true;
+                // all in the matrix of the answer
+                clearChanges(changedCount);
+                if(binary) {
+                    data = new byte[format.binarySubscribedLength];
+                    PlussyBinaryCodec.encodeSubscribed(format, sequence, state, data, 0);
+                } else {
+                    data = new byte[format.textSubscribedLength + 1];
+                    PlussyCodec.encodeSubscribed(format, sequence, state, data, 0);
+                }
+            }
+            reply(data);
+        }
+
+        /**
+         * Puts together the notification about all leds changed since the last one.
+         * @return null if there is nothing to send
+         */
+        private byte[] takeNotification() {
+            synchronized (state) {
+                notificationQueued = false;
+                int count = Math.min(changedCount, PlussyBinaryCodec.MAX_NOTIFICATION_CHANGES);
+                if(count == 0) {
+                    return null;
+                }
+                int colors[] = new int[count];
+                for(int i = 0; i < count; i++) {
+                    colors[i] = state[changedLeds[i]];
+                }
+                sequence = (sequence + 1) & 0xffff;
+                byte data[] = null;
+                // the number is used up anyway, which the client notices
+                if(!conditions.dropBeacon()) {
+                    if(binary) {
+                        data = new byte[PlussyBinaryCodec.NOTIFICATION_HEADER_LENGTH
+                                + count * format.binaryChangeLength];
+                        PlussyBinaryCodec.encodeNotification(format, sequence, changedLeds,
+                                colors, count, data, 0);
+                    } else {
+                        data = new byte[PlussyCodec.NOTIFICATION_HEADER_LENGTH
+                                + count * format.textChangeLength + 1];
+                        PlussyCodec.encodeNotification(format, sequence, changedLeds,
+                                colors, count, data, 0);
+                    }
+                }
+                clearChanges(count);
+                if(changedCount > 0) {
+                    notificationQueued = true;
+                    enqueue(0, NOTIFICATION);
+                }
+                return data;
+            }
+        }
+
+        // must hold the lock of state, forgets the first count changed leds
+        private void clearChanges(int count) {
+            for(int i = 0; i < count; i++) {
+                changed[changedLeds[i]] = false;
+            }
+            System.arraycopy(changedLeds, count, changedLeds, 0, changedCount - count);
+            changedCount -= count;
+        }
+
+        private void replyMatrix(byte type) {
+            byte data[];
+            synchronized (state) {
+                if(binary) {
+                    data = new byte[format.binaryMatrixLength];
+                    PlussyBinaryCodec.encodeMatrix(format, type, state, data, 0);
+                } else {
+                    data = new byte[format.textMatrixLength + 1];
+                    PlussyCodec.encodeMatrix(format, type, state, data, 0);
+                }
+            }
+            reply(data);
+        }
+
+        // the command took the other half of the round trip
+        private void reply(byte data[]) {
+            enqueue(conditions.segmentDelay(), data);
+        }
+
+        // called by the command threads of all clients, delay in nanoseconds
+        private synchronized void enqueue(long delay, byte data[]) {
+            long due = System.nanoTime() + delay;
+            if(due < lastDue) {
+                due = lastDue;
+            }
+            lastDue = due;
+            replies.add(new Segment(due, data));
+        }
+
+        private void writeReplies() {
+            try {
+                OutputStream out = socket.getOutputStream();
+                while(true) {
+                    Segment reply = replies.take();
+                    if(reply.data == null) {
+                        break;
+                    }
+                    long wait = reply.due - System.nanoTime();
+                    if(wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    }
+                    byte data[] = reply.data;
+                    if(data == NOTIFICATION && (data = takeNotification()) == null) {
+                        continue;
+                    }
+                    writeThrottle.acquire(data.length);
+                    out.write(data);
+                }
+            } catch (SocketException e) {
+                // the client went away
+            } catch (IOException e) {
+                System.err.println("Error: could not send reply: " + e.getMessage());
+            } catch (InterruptedException e) {
+                // stopped
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static void main(String args[]) throws IOException {
+        int port = PlussyDiscovery.TCP_PORT;
+        String beacon = PlussyDiscovery.BROADCAST_IP;
+        int leds = MatrixFormat.PLUSSY.ledCount;
+        boolean binary = true;
+        int beaconInterval = BEACON_INTERVAL;
+        boolean answerProbes = true;
+        boolean subscriptions = true;
+        String bind = null;
+        LinkConditions conditions = new LinkConditions();
+        for(int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if(arg.equals("--text-only")) {
+                binary = false;
+            } else if(arg.equals("--no-probe")) {
+                answerProbes = false;
+            } else if(arg.equals("--no-subscribe")) {
+                subscriptions = false;
+            } else if(i + 1 < args.length) {
+                String value = args[++i];
+                if(arg.equals("--port")) {
+                    port = Integer.parseInt(value);
+                } else if(arg.equals("--bind")) {
+                    bind = value;
+                } else if(arg.equals("--beacon")) {
+                    beacon = value;
+                } else if(arg.equals("--beacon-interval")) {
+                    beaconInterval = Integer.parseInt(value);
+                } else if(arg.equals("--leds")) {
+                    leds = Integer.parseInt(value);
+                } else if(arg.equals("--latency")) {
+                    conditions.latency = Integer.parseInt(value);
+                } else if(arg.equals("--jitter")) {
+                    conditions.jitter = Integer.parseInt(value);
+                } else if(arg.equals("--bandwidth")) {
+                    conditions.bandwidth = Integer.parseInt(value);
+                } else if(arg.equals("--loss")) {
+                    conditions.loss = Double.parseDouble(value);
+                } else {
+                    usage(arg);
+                }
+            } else {
+                usage(arg);
+            }
+        }
+        PlussyEmulator emulator = new PlussyEmulator(port, new MatrixFormat(leds),
+                InetAddress.getByName(beacon), conditions, binary);
+        if(bind != null) {
+            emulator.setBindAddress(InetAddress.getByName(bind));
+        }
+        emulator.setBeaconInterval(beaconInterval);
+        emulator.setAnswerProbes(answerProbes);
+        emulator.setSubscriptionSupported(subscriptions);
+        emulator.start();
+        System.out.println("Emulating a plussy display with " + leds + " leds on "
+                + (bind != null ? bind + ":" : "port ") + port + ", " + conditions);
+    }
+
+    private static void usage(String arg) {
+        System.err.println("Unknown or incomplete option " + arg);
+        System.err.println("Usage: PlussyEmulator [--port n] [--bind address] [--beacon address]"
+                + " [--beacon-interval ms] [--no-probe] [--no-subscribe] [--leds n]"
+                + " [--latency ms] [--jitter ms] [--bandwidth bytes/s] [--loss probability]"
+                + " [--text-only]");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,330 @@
+package org.schabi.kiba;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * PlussyHub.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Lets many clients share one display. The hub looks like a display to its clients: it
+ * sends the beacon, answers probes and speaks the same protocol. The set led commands of
+ * all clients are merged into one matrix, the last command for a led wins, and every
+ * command is answered right away from that matrix. Only the merged changes go on to the
+ * display, through a single pipelined connection, so the display sees one client no
+ * matter how many use the hub. Clients that subscribed get notified about the changes
+ * of the others, and about changes made on the display itself.
+ *
+ * Everything runs on one thread with a selector, so hundreds of clients cost a pair of
+ * fixed buffers each and no threads.
+ *
+ * Usage: PlussyHub [--device host[:port]] [--port n] [--beacon address] [--no-probe]
+ *                  [--leds n] [--window n] [--max-clients n] [--stats seconds]
+ */
+public class PlussyHub {
+
+    private static final int BEACON_INTERVAL = 500;
+    private static final int PROBE_WINDOW = 500;
+    private static final int DEFAULT_WINDOW = 16;
+    private static final int DEFAULT_MAX_CLIENTS = 1024;
+
+    final MatrixFormat format;
+    // last command of any client for every led, or what the display reports when no
+    // command is on its way
+    final int matrix[];
+    // for decoding and encoding, the hub only ever handles one client at a time
+    final int scratchColors[];
+
+    private final int port;
+    private final int maxClients;
+    private final Announcer announcer;
+    private final HubUpstream upstream;
+    private final ArrayList<HubClient> clients = new ArrayList<>();
+    private final ArrayList<HubClient> subscribers = new ArrayList<>();
+    // subscribers with changes that did not go out yet
+    private final ArrayDeque<HubClient> notificationsPending = new ArrayDeque<>();
+    private Selector selector;
+    private ServerSocketChannel server;
+    private volatile boolean run = true;
+
+    private long commandsReceived = 0;
+    private long clientsAccepted = 0;
+    private long clientsRefused = 0;
+
+    public PlussyHub(int port, MatrixFormat format, InetSocketAddress device,
+                     Announcer announcer, int window, int maxClients) {
+        this.port = port;
+        this.format = format;
+        this.announcer = announcer;
+        this.maxClients = maxClients;
+        matrix = new int[format.ledCount];
+        scratchColors = new int[format.ledCount];
+        upstream = new HubUpstream(this, device, window);
+    }
+
+    /**
+     * Serves clients on the calling thread until {@link #stop()} is called.
+     * @param statsInterval milliseconds between two lines of statistics, 0 for none
+     */
+    public void run(long statsInterval) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(port), 256);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        announcer.start();
+        long nextStats = System.currentTimeMillis() + statsInterval;
+        try {
+            while(run) {
+                long now = System.currentTimeMillis();
+                long timeout = upstream.maintain(selector, now);
+                if(statsInterval > 0) {
+                    if(nextStats - now <= 0) {
+                        printStats();
+                        nextStats = now + statsInterval;
+                    }
+                    timeout = timeout == 0 ? nextStats - now : Math.min(timeout, nextStats - now);
+                }
+                selector.select(Math.max(0, timeout));
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid()) {
+                        continue;
+                    }
+                    Object attachment = key.attachment();
+                    if(attachment == null) {
+                        acceptClients();
+                    } else if(attachment == upstream) {
+                        upstream.handle();
+                    } else {
+                        ((HubClient) attachment).handle();
+                    }
+                }
+                // everything the clients changed in this round goes out at once
+                upstream.send();
+                sendNotifications();
+            }
+        } finally {
+            announcer.stop();
+            for(HubClient client : new ArrayList<>(clients)) {
+                client.close();
+            }
+            server.close();
+            selector.close();
+        }
+    }
+
+    public void stop() {
+        run = false;
+        if(selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void acceptClients() throws IOException {
+        SocketChannel channel;
+        while((channel = server.accept()) != null) {
+            if(clients.size() >= maxClients) {
+                clientsRefused++;
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            HubClient client = new HubClient(this, channel, key);
+            key.attach(client);
+            clients.add(client);
+            clientsAccepted++;
+        }
+    }
+
+    void clientClosed(HubClient client) {
+        clients.remove(client);
+        if(client.isSubscribed()) {
+            subscribers.remove(client);
+        }
+    }
+
+    void subscribed(HubClient client) {
+        subscribers.add(client);
+    }
+
+    void setLed(HubClient from, int led, int color) {
+        commandsReceived++;
+        if(matrix[led] != color) {
+            matrix[led] = color;
+            changed(from, led);
+        }
+        // queued even if nothing changed, the display may still show something else
+        upstream.queue.putLed(led, color);
+    }
+
+    void setMatrix(HubClient from, int colors[]) {
+        commandsReceived++;
+        for(int i = 0; i < colors.length; i++) {
+            if(matrix[i] != colors[i]) {
+                matrix[i] = colors[i];
+                changed(from, i);
+            }
+        }
+        if(!upstream.queue.putMatrix(matrix)) {
+            for(int i = 0; i < matrix.length; i++) {
+                upstream.queue.putLed(i, matrix[i]);
+            }
+        }
+    }
+
+    /**
+     * Takes over what the display reports, for changes made by clients connected to it
+     * directly. Only called while none of the hub's commands are on their way.
+     */
+    void adopt(int colors[]) {
+        for(int i = 0; i < colors.length; i++) {
+            if(matrix[i] != colors[i]) {
+                matrix[i] = colors[i];
+                changed(null, i);
+            }
+        }
+    }
+
+    // notifies every subscriber except the one that made the change
+    private void changed(HubClient from, int led) {
+        for(int i = 0; i < subscribers.size(); i++) {
+            HubClient subscriber = subscribers.get(i);
+            if(subscriber != from && subscriber.changed(led) && !subscriber.notificationQueued) {
+                subscriber.notificationQueued = true;
+                notificationsPending.add(subscriber);
+            }
+        }
+    }
+
+    private void sendNotifications() {
+        HubClient client;
+        while((client = notificationsPending.poll()) != null) {
+            client.notificationQueued = false;
+            if(client.isClosed()) {
+                continue;
+            }
+            try {
+                client.service();
+            } catch (IOException e) {
+                client.close();
+            }
+            // a full send buffer: the rest goes out when the client is writable again
+        }
+    }
+
+    private void printStats() {
+        CommandQueue queue = upstream.queue;
+        System.out.println(clients.size() + " clients (" + subscribers.size() + " subscribed, "
+                + clientsAccepted + " accepted, " + clientsRefused + " refused), "
+                + commandsReceived + " commands received, " + upstream.commandsSent
+                + " sent to the display, " + queue.getPending() + " pending, "
+                + queue.getInFlight() + " in flight, " + upstream.notificationsReceived
+                + " notifications from the display (" + upstream.notificationGaps + " gaps), "
+                + (upstream.isEstablished() ? "connected" : "not connected")
+                + " (" + upstream.connects + " connects)");
+    }
+
+    // waits for the first display that answers a probe or sends its beacon
+    private static InetAddress discover() throws IOException {
+        ActiveDiscovery discovery = new ActiveDiscovery(PROBE_WINDOW, 0);
+        System.out.println("Looking for a display...");
+        InetAddress found;
+        while((found = discovery.discover()) == null) {
+            System.out.println("No display answered, trying again.");
+        }
+        return found;
+    }
+
+    public static void main(String args[]) throws IOException {
+        int port = PlussyDiscovery.TCP_PORT;
+        String device = null;
+        String beacon = PlussyDiscovery.BROADCAST_IP;
+        boolean answerProbes = true;
+        int leds = MatrixFormat.PLUSSY.ledCount;
+        int window = DEFAULT_WINDOW;
+        int maxClients = DEFAULT_MAX_CLIENTS;
+        int stats = 10;
+        for(int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if(arg.equals("--no-probe")) {
+                answerProbes = false;
+            } else if(i + 1 < args.length) {
+                String value = args[++i];
+                if(arg.equals("--device")) {
+                    device = value;
+                } else if(arg.equals("--port")) {
+                    port = Integer.parseInt(value);
+                } else if(arg.equals("--beacon")) {
+                    beacon = value;
+                } else if(arg.equals("--leds")) {
+                    leds = Integer.parseInt(value);
+                } else if(arg.equals("--window")) {
+                    window = Math.min(Integer.parseInt(value), CommandQueue.MAX_WINDOW);
+                } else if(arg.equals("--max-clients")) {
+                    maxClients = Integer.parseInt(value);
+                } else if(arg.equals("--stats")) {
+                    stats = Integer.parseInt(value);
+                } else {
+                    usage(arg);
+                }
+            } else {
+                usage(arg);
+            }
+        }
+        InetSocketAddress deviceAddress;
+        if(device == null) {
+            // before the hub announces itself, so it doesn't find itself
+            deviceAddress = new InetSocketAddress(discover(), PlussyDiscovery.TCP_PORT);
+        } else {
+            int colon = device.lastIndexOf(':');
+            deviceAddress = colon < 0
+                    ? new InetSocketAddress(device, PlussyDiscovery.TCP_PORT)
+                    : new InetSocketAddress(device.substring(0, colon),
+                            Integer.parseInt(device.substring(colon + 1)));
+        }
+        Announcer announcer = new Announcer(InetAddress.getByName(beacon), BEACON_INTERVAL,
+                answerProbes, new LinkConditions());
+        PlussyHub hub = new PlussyHub(port, new MatrixFormat(leds), deviceAddress, announcer,
+                window, maxClients);
+        System.out.println("Hub for the display at " + deviceAddress + " with " + leds
+                + " leds on port " + port + ", window " + window);
+        hub.run(stats * 1000L);
+    }
+
+    private static void usage(String arg) {
+        System.err.println("Unknown or incomplete option " + arg);
+        System.err.println("Usage: PlussyHub [--device host[:port]] [--port n]"
+                + " [--beacon address] [--no-probe] [--leds n] [--window n]"
+                + " [--max-clients n] [--stats seconds]");
+        System.exit(1);
+    }
+}
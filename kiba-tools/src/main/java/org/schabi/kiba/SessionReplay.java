@@ -0,0 +1,254 @@
+package org.schabi.kiba;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Copyright (C) Christian Schabesberger 2016 <chris.schabesberger@mailbox.org>
+ * SessionReplay.java is part of KIBA.
+ *
+ * KIBA is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * KIBA is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with KIBA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Sends what the app recorded with {@link SessionRecorder} to a display again, real or
+ * emulated, byte for byte and with a new connection wherever the app made one.
+ *
+ * With --speed 1 the commands go out at the pace they were recorded at, --speed 10 ten
+ * times as fast. --speed max sends as fast as the display answers: every command waits
+ * until as many bytes came back as the app had received before sending it, so the
+ * window of commands in flight stays the one of the recording. --no-wait drops that
+ * too and sends everything at once. A display that answers less than recorded, for
+ * example because notifications are missing, stalls the replay for at most a second.
+ * A log whose first files were rotated away starts in the middle of a connection, which
+ * is replayed on a fresh one and so only makes sense with the text protocol.
+ *
+ * Usage: SessionReplay [--host address] [--port n] [--speed factor|max] [--no-wait]
+ *                      [--loops n] files...
+ */
+public class SessionReplay {
+
+    private static final long STALL_TIMEOUT = 1000000000L;
+
+    private final String host;
+    private final int port;
+    // 0 for as fast as possible
+    private final double speed;
+    private final boolean waitForReplies;
+
+    private Socket socket;
+    private OutputStream out;
+    private Receiver receiver;
+    // bytes the app had received on the current connection up to the current record
+    private long recordedIn = 0;
+
+    private long connections = 0;
+    private long records = 0;
+    private long bytesOut = 0;
+    private long bytesIn = 0;
+    private long recordedBytesIn = 0;
+    private long stalls = 0;
+
+    // counts what the display sends on a thread of its own
+    private static class Receiver extends Thread {
+        private final InputStream in;
+        private long received = 0;
+
+        Receiver(InputStream in) {
+            super("receiver");
+            this.in = in;
+        }
+
+        @Override
+        public void run() {
+            byte buffer[] = new byte[8192];
+            try {
+                int read;
+                while((read = in.read(buffer)) >= 0) {
+                    synchronized (this) {
+                        received += read;
+                        notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                // closed by the replay or the display
+            }
+        }
+
+        synchronized long getReceived() {
+            return received;
+        }
+
+        // returns false if the bytes did not come within the timeout
+        synchronized boolean await(long bytes, long timeoutNanos) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            long left;
+            while(received < bytes && (left = deadline - System.nanoTime()) > 0) {
+                wait(left / 1000000L + 1);
+            }
+            return received >= bytes;
+        }
+    }
+
+    public SessionReplay(String host, int port, double speed, boolean waitForReplies) {
+        this.host = host;
+        this.port = port;
+        this.speed = speed;
+        this.waitForReplies = waitForReplies;
+    }
+
+    public void replay(List<File> files) throws IOException, InterruptedException {
+        SessionLogReader log = new SessionLogReader(files);
+        long start = System.nanoTime();
+        long first = 0;
+        long last = 0;
+        while(log.next()) {
+            if(records++ == 0) {
+                first = log.getNanos();
+            }
+            last = log.getNanos();
+            switch(log.getType()) {
+                case SessionRecorder.CONNECTED:
+                    disconnect();
+                    connect();
+                    break;
+                case SessionRecorder.DISCONNECTED:
+                    disconnect();
+                    break;
+                case SessionRecorder.RECEIVED:
+                    recordedIn += log.getLength();
+                    recordedBytesIn += log.getLength();
+                    break;
+                case SessionRecorder.SENT:
+                    if(socket == null) {
+                        // the log starts in the middle of a connection
+                        connect();
+                    }
+                    pace(start, log.getNanos() - first);
+                    out.write(log.getData(), 0, log.getLength());
+                    bytesOut += log.getLength();
+                    break;
+                default:
+                    throw new IOException("unknown record type " + log.getType());
+            }
+        }
+        disconnect();
+        long elapsed = System.nanoTime() - start;
+        double seconds = elapsed / 1e9;
+        System.out.println(records + " records, " + connections + " connections, recorded in "
+                + String.format("%.2f", (last - first) / 1e9) + "s, replayed in "
+                + String.format("%.2f", seconds) + "s");
+        System.out.println("sent " + bytesOut + " bytes, "
+                + String.format("%.0f", bytesOut / seconds) + " bytes/s, received "
+                + bytesIn + " of " + recordedBytesIn + " recorded bytes, stalls " + stalls);
+    }
+
+    // waits until the record at offset nanos into the recording is due
+    private void pace(long start, long offset) throws IOException, InterruptedException {
+        if(speed > 0) {
+            long due = start + (long) (offset / speed);
+            if(due - System.nanoTime() > 0) {
+                out.flush();
+                long wait;
+                while((wait = due - System.nanoTime()) > 0) {
+                    Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                }
+            }
+        } else if(waitForReplies && receiver.getReceived() < recordedIn) {
+            out.flush();
+            if(!receiver.await(recordedIn, STALL_TIMEOUT)) {
+                stalls++;
+            }
+        }
+    }
+
+    private void connect() throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        receiver = new Receiver(socket.getInputStream());
+        receiver.start();
+        recordedIn = 0;
+        connections++;
+    }
+
+    private void disconnect() throws IOException, InterruptedException {
+        if(socket == null) {
+            return;
+        }
+        out.flush();
+        // the answers to the last commands
+        if(waitForReplies) {
+            receiver.await(recordedIn, STALL_TIMEOUT);
+        }
+        socket.close();
+        receiver.join();
+        bytesIn += receiver.getReceived();
+        socket = null;
+    }
+
+    public static void main(String args[]) throws Exception {
+        String host = "127.0.0.1";
+        int port = PlussyDiscovery.TCP_PORT;
+        double speed = 1;
+        boolean waitForReplies = true;
+        int loops = 1;
+        List<File> files = new ArrayList<>();
+        for(int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if(arg.equals("--no-wait")) {
+                waitForReplies = false;
+            } else if(!arg.startsWith("--")) {
+                files.add(new File(arg));
+            } else if(i + 1 < args.length) {
+                String value = args[++i];
+                if(arg.equals("--host")) {
+                    host = value;
+                } else if(arg.equals("--port")) {
+                    port = Integer.parseInt(value);
+                } else if(arg.equals("--speed")) {
+                    speed = value.equals("max") ? 0 : Double.parseDouble(value);
+                } else if(arg.equals("--loops")) {
+                    loops = Integer.parseInt(value);
+                } else {
+                    usage(arg);
+                }
+            } else {
+                usage(arg);
+            }
+        }
+        if(files.isEmpty()) {
+            usage("files");
+        }
+        // the recorder numbers its files, so their names give the order
+        Collections.sort(files);
+        for(int i = 0; i < loops; i++) {
+            new SessionReplay(host, port, speed, waitForReplies).replay(files);
+        }
+    }
+
+    private static void usage(String arg) {
+        System.err.println("Unknown or incomplete option " + arg);
+        System.err.println("Usage: SessionReplay [--host address] [--port n]"
+                + " [--speed factor|max] [--no-wait] [--loops n] files...");
+        System.exit(1);
+    }
+}